@@ -1,5 +1,7 @@
 package com.mongodb.gridfs;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -28,6 +30,21 @@ public final class GridFSUtil {
     dbFile.remove();
   }
 
+  public static DBCollection getChunksCollection(GridFSFile gridFsFile) {
+    return getChunksCollection(gridFsFile, gridFsFile._fs.getBucketName());
+  }
+
+  public static DBCollection getChunksCollection(GridFSFile gridFsFile, String bucketName) {
+    return gridFsFile._fs.getDB().getCollection(bucketName + ".chunks");
+  }
+
+  /**
+   * Removes the chunks of a file whose files document has not been saved yet.
+   */
+  public static void removeChunks(GridFSFile gridFsFile) {
+    getChunksCollection(gridFsFile).remove(new BasicDBObject("files_id", gridFsFile.getId()));
+  }
+
   public static void mergeMetaData(final GridFSFile gridFsFile, final DBObject metaDataToMerge) {
     final DBObject existingMetaData = gridFsFile.getMetaData();
     if (existingMetaData == null) {
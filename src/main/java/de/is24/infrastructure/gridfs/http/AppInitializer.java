@@ -14,6 +14,8 @@ import org.springframework.web.filter.DelegatingFilterProxy;
 import org.springframework.web.servlet.DispatcherServlet;
 import org.tuckey.web.filters.urlrewrite.UrlRewriteFilter;
 
+import javax.servlet.Filter;
+import javax.servlet.FilterRegistration;
 import javax.servlet.MultipartConfigElement;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -39,6 +41,10 @@ public class AppInitializer implements WebApplicationInitializer {
   public static final String UPLOAD_FILE_SIZE_THRESHOLD_KEY = "upload.file.size.threshold.in.mb";
   public static final String ALL_URLS = "/*";
 
+  // file deliveries answering HEAD from the file metadata only
+  private static final String FILE_DELIVERY_URLS = "/repo/(?!virtual/)[^/]+/[^/]+/[^/]+";
+  private static final String VIRTUAL_FILE_DELIVERY_URLS = "/repo/virtual/[^/]+/[^/]+/[^/]+";
+
   public void onStartup(ServletContext servletContext) throws ServletException {
     WebApplicationContext rootContext = createRootContext(servletContext);
     createSpringRootServlet(servletContext, rootContext);
@@ -66,6 +72,7 @@ public class AppInitializer implements WebApplicationInitializer {
     ServletRegistration.Dynamic appServlet = servletContext.addServlet(SERVLET_NAME,
       new DispatcherServlet(rootContext));
     appServlet.setLoadOnStartup(1);
+    appServlet.setAsyncSupported(true);
     appServlet.addMapping("/");
     appServlet.setMultipartConfig(new MultipartConfigElement(null, MAX_FILE_SIZE, MAX_FILE_SIZE,
         fileSizeThresholdInMB() * 1024 * 1024));
@@ -84,32 +91,41 @@ public class AppInitializer implements WebApplicationInitializer {
     return FILE_SIZE_THRESHOLD_IN_MB;
   }
 
+  private FilterRegistration.Dynamic addAsyncSupportedFilter(ServletContext servletContext, String name,
+                                                             Filter filter) {
+    FilterRegistration.Dynamic registration = servletContext.addFilter(name, filter);
+    registration.setAsyncSupported(true);
+    return registration;
+  }
+
   private void registerHeadRequestFilter(ServletContext servletContext) {
-    servletContext.addFilter("httpHeadFilter", new HttpHeadFilter())
+    addAsyncSupportedFilter(servletContext, "httpHeadFilter", new HttpHeadFilter(FILE_DELIVERY_URLS, VIRTUAL_FILE_DELIVERY_URLS))
     .addMappingForUrlPatterns(of(REQUEST, FORWARD), false, ALL_URLS);
   }
 
   private void registerUrlRewirteFilter(ServletContext servletContext) {
-    servletContext.addFilter("urlRewriteFilter", new UrlRewriteFilter())
+    addAsyncSupportedFilter(servletContext, "urlRewriteFilter", new UrlRewriteFilter())
     .addMappingForUrlPatterns(of(REQUEST, FORWARD), false, ALL_URLS);
   }
 
   private void registerSecurityFilter(ServletContext servletContext) {
-    servletContext.addFilter("springSecurityFilterChain", new DelegatingFilterProxy())
+    addAsyncSupportedFilter(servletContext, "springSecurityFilterChain", new DelegatingFilterProxy())
     .addMappingForUrlPatterns(of(REQUEST, FORWARD), false, ALL_URLS);
   }
 
   private void registerContentTypeFilter(ServletContext servletContext) {
-    servletContext.addFilter("formEncodedContentTypeFilter", new DelegatingFilterProxy())
+    addAsyncSupportedFilter(servletContext, "formEncodedContentTypeFilter", new DelegatingFilterProxy())
     .addMappingForUrlPatterns(of(REQUEST), false, ALL_URLS);
   }
 
   private void registerMDCFilter(ServletContext servletContext) {
-    servletContext.addFilter("mdcFilter", new MDCFilter()).addMappingForUrlPatterns(of(REQUEST, FORWARD), false, ALL_URLS);
+    addAsyncSupportedFilter(servletContext, "mdcFilter", new MDCFilter())
+    .addMappingForUrlPatterns(of(REQUEST, FORWARD), false, ALL_URLS);
   }
 
   private void registerAccessLogFilter(ServletContext servletContext) {
-    servletContext.addFilter("accessLogFilter", new AccessLogFilter()).addMappingForUrlPatterns(of(REQUEST, FORWARD), false, ALL_URLS);
+    addAsyncSupportedFilter(servletContext, "accessLogFilter", new AccessLogFilter())
+    .addMappingForUrlPatterns(of(REQUEST, FORWARD), false, ALL_URLS);
   }
 
 }
@@ -0,0 +1,50 @@
+package de.is24.infrastructure.gridfs.http.cache;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+
+public class ByteBufferInputStream extends InputStream {
+  private final ByteBuffer buffer;
+
+  /**
+   * @param buffer is read from its position up to its limit; callers should pass a duplicate of shared buffers.
+   */
+  public ByteBufferInputStream(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  @Override
+  public int read() {
+    return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int len) {
+    if (len == 0) {
+      return 0;
+    }
+    if (!buffer.hasRemaining()) {
+      return -1;
+    }
+
+    int count = min(len, buffer.remaining());
+    buffer.get(bytes, offset, count);
+    return count;
+  }
+
+  @Override
+  public long skip(long n) {
+    int skipped = (int) max(0, min(n, buffer.remaining()));
+    buffer.position(buffer.position() + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return buffer.remaining();
+  }
+}
@@ -0,0 +1,33 @@
+package de.is24.infrastructure.gridfs.http.cache;
+
+import de.is24.infrastructure.gridfs.http.storage.DelegatingFileStorageItem;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+
+import java.io.InputStream;
+
+
+class CacheFillingFileStorageItem extends DelegatingFileStorageItem {
+  private final LocalDiskCache cache;
+
+  CacheFillingFileStorageItem(FileStorageItem delegate, LocalDiskCache cache) {
+    super(delegate);
+    this.cache = cache;
+  }
+
+  @Override
+  public InputStream getInputStream(long startPos) {
+    InputStream inputStream = super.getInputStream(startPos);
+    if (startPos != 0) {
+      return inputStream;
+    }
+    return cache.fillWhileReading(inputStream, getChecksumSha256(), getSize());
+  }
+
+  @Override
+  public InputStream getInputStream(long startPos, long length) {
+    if ((startPos == 0) && (length >= getSize())) {
+      return getInputStream(0);
+    }
+    return super.getInputStream(startPos, length);
+  }
+}
@@ -0,0 +1,127 @@
+package de.is24.infrastructure.gridfs.http.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+import static org.apache.commons.codec.binary.Hex.encodeHexString;
+import static org.apache.commons.codec.digest.DigestUtils.getSha256Digest;
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+
+/**
+ * Copies everything read from the storage into a temp file of the cache. Only if the stream is read up to its end
+ * and the content matches the expected size and sha256 the temp file is committed to the cache.
+ */
+class CacheFillingInputStream extends FilterInputStream {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheFillingInputStream.class);
+
+  private final LocalDiskCache cache;
+  private final String sha256;
+  private final long expectedSize;
+  private final File tempFile;
+  private final MessageDigest digest = getSha256Digest();
+  private OutputStream out;
+  private long written;
+  private boolean finished;
+
+  CacheFillingInputStream(InputStream in, LocalDiskCache cache, String sha256, long expectedSize, File tempFile)
+                   throws IOException {
+    super(in);
+    this.cache = cache;
+    this.sha256 = sha256;
+    this.expectedSize = expectedSize;
+    this.tempFile = tempFile;
+    this.out = new FileOutputStream(tempFile);
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if (b < 0) {
+      complete();
+    } else {
+      fill(new byte[] { (byte) b }, 0, 1);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int len) throws IOException {
+    int count = super.read(buffer, offset, len);
+    if (count < 0) {
+      complete();
+    } else {
+      fill(buffer, offset, count);
+    }
+    return count;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    abort();
+    return super.skip(n);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      abort();
+    }
+  }
+
+  private void fill(byte[] buffer, int offset, int len) {
+    if (finished) {
+      return;
+    }
+
+    try {
+      out.write(buffer, offset, len);
+      digest.update(buffer, offset, len);
+      written += len;
+    } catch (IOException e) {
+      LOGGER.warn("could not write {} to cache", sha256, e);
+      abort();
+    }
+  }
+
+  private void complete() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    closeQuietly(out);
+
+    String actualSha256 = encodeHexString(digest.digest());
+    if ((written == expectedSize) && sha256.equals(actualSha256)) {
+      cache.commit(sha256, tempFile);
+    } else {
+      LOGGER.warn("discard cache fill for {}: got {} bytes with sha256 {} but expected {} bytes", sha256, written,
+        actualSha256, expectedSize);
+      cache.discard(sha256, tempFile);
+    }
+  }
+
+  private void abort() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    closeQuietly(out);
+    cache.discard(sha256, tempFile);
+  }
+}
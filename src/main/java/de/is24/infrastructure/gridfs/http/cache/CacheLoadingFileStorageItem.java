@@ -0,0 +1,33 @@
+package de.is24.infrastructure.gridfs.http.cache;
+
+import de.is24.infrastructure.gridfs.http.storage.DelegatingFileStorageItem;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+
+import java.io.InputStream;
+
+
+/**
+ * A stored repodata file, which is loaded into the {@link RepoMetadataCache} when its content is read the first
+ * time, so that HEAD and conditional requests are answered from the file metadata only.
+ */
+class CacheLoadingFileStorageItem extends DelegatingFileStorageItem {
+  private final RepoMetadataCache cache;
+
+  CacheLoadingFileStorageItem(FileStorageItem delegate, RepoMetadataCache cache) {
+    super(delegate);
+    this.cache = cache;
+  }
+
+  @Override
+  public InputStream getInputStream(long startPos) {
+    FileStorageItem cachedItem = cache.put(getDelegate());
+    return (cachedItem != null) ? cachedItem.getInputStream(startPos) : super.getInputStream(startPos);
+  }
+
+  @Override
+  public InputStream getInputStream(long startPos, long length) {
+    FileStorageItem cachedItem = cache.put(getDelegate());
+    return (cachedItem != null) ? cachedItem.getInputStream(startPos, length)
+                                : super.getInputStream(startPos, length);
+  }
+}
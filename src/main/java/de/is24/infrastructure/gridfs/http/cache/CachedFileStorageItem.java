@@ -0,0 +1,52 @@
+package de.is24.infrastructure.gridfs.http.cache;
+
+import de.is24.infrastructure.gridfs.http.storage.DelegatingFileStorageItem;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+public class CachedFileStorageItem extends DelegatingFileStorageItem {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CachedFileStorageItem.class);
+
+  private final File cacheFile;
+  private final LocalDiskCache cache;
+
+  public CachedFileStorageItem(FileStorageItem delegate, File cacheFile, LocalDiskCache cache) {
+    super(delegate);
+    this.cacheFile = cacheFile;
+    this.cache = cache;
+  }
+
+  @Override
+  public InputStream getInputStream(long startPos) {
+    try {
+      return new FileChannelInputStream(cacheFile, startPos, getSize() - startPos);
+    } catch (IOException e) {
+      LOGGER.info("could not open cached file {}, falling back to storage", cacheFile, e);
+      return super.getInputStream(startPos);
+    }
+  }
+
+  @Override
+  public InputStream getInputStream(long startPos, long length) {
+    try {
+      return new FileChannelInputStream(cacheFile, startPos, getSize() - startPos).limit(length);
+    } catch (IOException e) {
+      LOGGER.info("could not open cached file {}, falling back to storage", cacheFile, e);
+      return super.getInputStream(startPos, length);
+    }
+  }
+
+  /**
+   * @return the cache file, pinned so that it is not deleted before a connector has opened it by name,
+   * or null if it has been evicted already
+   */
+  public File pinCacheFile() {
+    return cache.pin(getChecksumSha256()) ? cacheFile : null;
+  }
+}
@@ -0,0 +1,70 @@
+package de.is24.infrastructure.gridfs.http.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.nio.file.StandardOpenOption.READ;
+
+
+/**
+ * Input stream over a region of a local file, reading with positional reads, so that it can be limited to a range
+ * without wrapping it.
+ */
+public class FileChannelInputStream extends InputStream {
+  private final FileChannel channel;
+  private long position;
+  private long limit;
+
+  public FileChannelInputStream(File file, long startPos, long length) throws IOException {
+    this.channel = FileChannel.open(file.toPath(), READ);
+    this.position = startPos;
+    this.limit = startPos + length;
+  }
+
+  public FileChannelInputStream limit(long length) {
+    limit = min(limit, position + length);
+    return this;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int count = read(buffer, 0, 1);
+    return (count <= 0) ? -1 : (buffer[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int len) throws IOException {
+    if (position >= limit) {
+      return -1;
+    }
+
+    int count = channel.read(ByteBuffer.wrap(buffer, offset, (int) min(len, limit - position)), position);
+    if (count > 0) {
+      position += count;
+    }
+    return count;
+  }
+
+  @Override
+  public long skip(long bytesToSkip) throws IOException {
+    long skipped = max(0, min(bytesToSkip, limit - position));
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int) min(Integer.MAX_VALUE, limit - position);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
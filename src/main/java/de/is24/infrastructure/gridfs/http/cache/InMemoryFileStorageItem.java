@@ -0,0 +1,113 @@
+package de.is24.infrastructure.gridfs.http.cache;
+
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+
+/**
+ * Snapshot of a stored file whose content is held in a direct {@link ByteBuffer} outside the heap.
+ * Every stream reads a duplicate of the buffer, also after the cache has evicted the item, and the garbage
+ * collector reclaims the buffer once the cache and all streams have dropped it.
+ */
+public class InMemoryFileStorageItem implements FileStorageItem {
+  private final Object id;
+  private final String repo;
+  private final String arch;
+  private final String filename;
+  private final String checksumSha256;
+  private final Date uploadDate;
+  private final String contentType;
+  private final ByteBuffer content;
+  private volatile long cachedAt;
+
+  InMemoryFileStorageItem(FileStorageItem storageItem, ByteBuffer content, long cachedAt) {
+    this.id = storageItem.getId();
+    this.repo = storageItem.getRepo();
+    this.arch = storageItem.getArch();
+    this.filename = storageItem.getFilename();
+    this.checksumSha256 = storageItem.getChecksumSha256();
+    this.uploadDate = storageItem.getUploadDate();
+    this.contentType = storageItem.getContentType();
+    this.content = content;
+    this.cachedAt = cachedAt;
+  }
+
+  @Override
+  public boolean isMarkedAsDeleted() {
+    return false;
+  }
+
+  @Override
+  public String getRepo() {
+    return repo;
+  }
+
+  @Override
+  public Object getId() {
+    return id;
+  }
+
+  @Override
+  public String getFilename() {
+    return filename;
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return getInputStream(0);
+  }
+
+  @Override
+  public InputStream getInputStream(long startPos) {
+    return getInputStream(startPos, content.capacity());
+  }
+
+  @Override
+  public InputStream getInputStream(long startPos, long length) {
+    ByteBuffer buffer = content.asReadOnlyBuffer();
+    buffer.position((int) Math.min(startPos, buffer.capacity()));
+    buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + Math.min(length, buffer.capacity())));
+    return new ByteBufferInputStream(buffer);
+  }
+
+  @Override
+  public long getSize() {
+    return content.capacity();
+  }
+
+  @Override
+  public String getChecksumSha256() {
+    return checksumSha256;
+  }
+
+  @Override
+  public Date getUploadDate() {
+    return uploadDate;
+  }
+
+  @Override
+  public String getContentType() {
+    return contentType;
+  }
+
+  @Override
+  public Date getDateOfMarkAsDeleted() {
+    return null;
+  }
+
+  @Override
+  public String getArch() {
+    return arch;
+  }
+
+  long getCachedAt() {
+    return cachedAt;
+  }
+
+  void touch(long now) {
+    cachedAt = now;
+  }
+}
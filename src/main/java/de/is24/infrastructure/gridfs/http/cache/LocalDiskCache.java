@@ -0,0 +1,306 @@
+package de.is24.infrastructure.gridfs.http.cache;
+
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+import de.is24.util.monitoring.InApplicationMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import static java.lang.System.currentTimeMillis;
+import static java.nio.file.Files.move;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Comparator.comparingLong;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.apache.commons.io.FileUtils.deleteQuietly;
+import static org.apache.commons.io.FileUtils.listFiles;
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+
+/**
+ * Content addressed cache of delivered files on the local disk. Files are keyed by their sha256, filled while
+ * being delivered from the storage and evicted least recently used first, once the cache exceeds its maximum size.
+ * The size counts the files of the entries, the expected sizes of fills in progress and evicted files that are still
+ * pinned. A pinned file is handed to a connector that opens it only after the request, so it is deleted only once
+ * its pin has expired.
+ */
+@ManagedResource
+@Service
+public class LocalDiskCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(LocalDiskCache.class);
+  private static final long MB = 1024 * 1024;
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+  private static final Pattern SHA256_PATTERN = Pattern.compile("^[0-9a-f]{64}$");
+  private static final long PIN_MILLIS = MINUTES.toMillis(1);
+
+  private final File cacheDir;
+  private final long maxSizeInBytes;
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<String, Long> fillsInProgress = new HashMap<>();
+  private final Map<String, Long> pinnedUntil = new HashMap<>();
+  private final Map<String, Long> evictedWhilePinned = new HashMap<>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final long pinMillis;
+  private long sizeInBytes;
+
+  @Autowired
+  public LocalDiskCache(@Value("${delivery.cache.dir:@null}") File cacheDir,
+                        @Value("${delivery.cache.max.size.mb:10240}") long maxSizeInMb) {
+    this(cacheDir, maxSizeInMb, PIN_MILLIS);
+  }
+
+  LocalDiskCache(File cacheDir, long maxSizeInMb, long pinMillis) {
+    this.cacheDir = cacheDir;
+    this.maxSizeInBytes = maxSizeInMb * MB;
+    this.pinMillis = pinMillis;
+    if (isActive()) {
+      loadEntries();
+    }
+  }
+
+  public boolean isActive() {
+    return (cacheDir != null) && (maxSizeInBytes > 0);
+  }
+
+  /**
+   * @return a storage item delivering its content from the local disk, if the content is already cached,
+   * or one filling the cache while being delivered from the storage.
+   */
+  public FileStorageItem cached(FileStorageItem storageItem) {
+    String sha256 = storageItem.getChecksumSha256();
+    if (!isActive() || isBlank(sha256) || !SHA256_PATTERN.matcher(sha256).matches() ||
+        (storageItem.getSize() > maxSizeInBytes)) {
+      return storageItem;
+    }
+
+    File cacheFile = cacheFileOf(sha256);
+    if (lookup(sha256, storageItem.getSize(), cacheFile)) {
+      hits.incrementAndGet();
+      InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".hit");
+      return new CachedFileStorageItem(storageItem, cacheFile, this);
+    }
+
+    misses.incrementAndGet();
+    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".miss");
+    return new CacheFillingFileStorageItem(storageItem, this);
+  }
+
+  /**
+   * Keeps the cache file of the given sha256 on disk for a while, even if it is evicted meanwhile, so that it can be
+   * handed to a connector opening it by name after the request.
+   *
+   * @return true, if the file is still cached and now pinned; false, if it has been evicted already
+   */
+  public synchronized boolean pin(String sha256) {
+    if (!entries.containsKey(sha256)) {
+      return false;
+    }
+
+    pinnedUntil.merge(sha256, currentTimeMillis() + pinMillis, Math::max);
+    return true;
+  }
+
+  @ManagedOperation
+  public synchronized void clear() {
+    for (String sha256 : new ArrayList<>(entries.keySet())) {
+      remove(sha256);
+    }
+  }
+
+  @ManagedAttribute
+  public long getHits() {
+    return hits.get();
+  }
+
+  @ManagedAttribute
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @ManagedAttribute
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @ManagedAttribute
+  public synchronized long getSizeInBytes() {
+    return sizeInBytes;
+  }
+
+  @ManagedAttribute
+  public long getMaxSizeInBytes() {
+    return maxSizeInBytes;
+  }
+
+  @ManagedAttribute
+  public synchronized int getNumberOfEntries() {
+    return entries.size();
+  }
+
+  InputStream fillWhileReading(InputStream inputStream, String sha256, long size) {
+    if (!reserve(sha256, size)) {
+      return inputStream;
+    }
+
+    try {
+      File tempFile = File.createTempFile(sha256, TEMP_FILE_SUFFIX, cacheDir);
+      return new CacheFillingInputStream(inputStream, this, sha256, size, tempFile);
+    } catch (IOException e) {
+      LOGGER.warn("could not start to fill cache for {}", sha256, e);
+      releaseReservation(sha256);
+      return inputStream;
+    }
+  }
+
+  void commit(String sha256, File tempFile) {
+    try {
+      File cacheFile = cacheFileOf(sha256);
+      cacheFile.getParentFile().mkdirs();
+      move(tempFile.toPath(), cacheFile.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+      add(sha256, cacheFile.length());
+      LOGGER.debug("cached {} with {} bytes", sha256, cacheFile.length());
+    } catch (IOException e) {
+      LOGGER.warn("could not commit {} to cache", sha256, e);
+      deleteQuietly(tempFile);
+      releaseReservation(sha256);
+    }
+  }
+
+  void discard(String sha256, File tempFile) {
+    deleteQuietly(tempFile);
+    releaseReservation(sha256);
+  }
+
+  /**
+   * Counts the expected size of a fill before its temp file is written, evicting other files to make room for it.
+   *
+   * @return false, if the same content is being filled already
+   */
+  private synchronized boolean reserve(String sha256, long size) {
+    if (fillsInProgress.containsKey(sha256)) {
+      return false;
+    }
+
+    fillsInProgress.put(sha256, size);
+    sizeInBytes += size;
+    evictWhileTooLarge(null);
+    return true;
+  }
+
+  private synchronized void releaseReservation(String sha256) {
+    Long reservedSize = fillsInProgress.remove(sha256);
+    if (reservedSize != null) {
+      sizeInBytes -= reservedSize;
+    }
+  }
+
+  private synchronized boolean lookup(String sha256, long expectedSize, File cacheFile) {
+    Long size = entries.get(sha256);
+    if (size == null) {
+      return false;
+    }
+    if ((size != expectedSize) || !cacheFile.isFile()) {
+      LOGGER.warn("drop cache entry {} with {} bytes, expected {} bytes", sha256, size, expectedSize);
+      remove(sha256);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Adds a file, that has replaced the file of an evicted entry still pinned, if there is one, and takes over the
+   * size reserved for its fill.
+   */
+  private synchronized void add(String sha256, long size) {
+    releaseReservation(sha256);
+    Long replacedSize = evictedWhilePinned.remove(sha256);
+    Long previousSize = entries.put(sha256, size);
+    sizeInBytes += size - ((previousSize != null) ? previousSize : 0) - ((replacedSize != null) ? replacedSize : 0);
+    evictWhileTooLarge(sha256);
+  }
+
+  private void evictWhileTooLarge(String keep) {
+    deleteEvictedFilesNoLongerPinned();
+
+    Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+    while ((sizeInBytes > maxSizeInBytes) && iterator.hasNext()) {
+      Map.Entry<String, Long> eldest = iterator.next();
+      if (!eldest.getKey().equals(keep)) {
+        iterator.remove();
+        deleteOrKeepWhilePinned(eldest.getKey(), eldest.getValue());
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  private void remove(String sha256) {
+    Long size = entries.remove(sha256);
+    deleteOrKeepWhilePinned(sha256, (size != null) ? size : 0);
+  }
+
+  private void deleteOrKeepWhilePinned(String sha256, long size) {
+    if (isPinned(sha256)) {
+      evictedWhilePinned.merge(sha256, size, Math::max);
+    } else {
+      sizeInBytes -= size;
+      deleteQuietly(cacheFileOf(sha256));
+    }
+  }
+
+  private void deleteEvictedFilesNoLongerPinned() {
+    pinnedUntil.values().removeIf(until -> until <= currentTimeMillis());
+
+    Iterator<Map.Entry<String, Long>> iterator = evictedWhilePinned.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Long> evicted = iterator.next();
+      if (!isPinned(evicted.getKey())) {
+        iterator.remove();
+        sizeInBytes -= evicted.getValue();
+        deleteQuietly(cacheFileOf(evicted.getKey()));
+      }
+    }
+  }
+
+  private boolean isPinned(String sha256) {
+    Long until = pinnedUntil.get(sha256);
+    return (until != null) && (until > currentTimeMillis());
+  }
+
+  private synchronized void loadEntries() {
+    cacheDir.mkdirs();
+
+    List<File> files = new ArrayList<>(listFiles(cacheDir, null, true));
+    files.sort(comparingLong(File::lastModified));
+    for (File file : files) {
+      if (SHA256_PATTERN.matcher(file.getName()).matches()) {
+        add(file.getName(), file.length());
+      } else if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+        deleteQuietly(file);
+      }
+    }
+    LOGGER.info("local disk cache {} contains {} files with {} bytes", cacheDir, entries.size(), sizeInBytes);
+  }
+
+  private File cacheFileOf(String sha256) {
+    return new File(new File(cacheDir, sha256.substring(0, 2)), sha256);
+  }
+}
@@ -0,0 +1,232 @@
+package de.is24.infrastructure.gridfs.http.cache;
+
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+import de.is24.util.monitoring.InApplicationMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.ARCH_KEY_REPO_DATA;
+import static java.nio.channels.Channels.newChannel;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+
+/**
+ * Holds the current repodata of each repository in direct byte buffers, so that <code>yum makecache</code>
+ * is served without touching MongoDB. Filled when new repodata is published and on first read of a file;
+ * least recently used files are evicted once the cache is full. Files without a checksum in their name
+ * (<code>repomd.xml</code>) are revalidated after a short ttl to pick up repodata published by other instances,
+ * checksum-named files after a longer one, so that files removed by other instances are dropped.
+ */
+@ManagedResource
+@Service
+public class RepoMetadataCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RepoMetadataCache.class);
+  private static final long MB = 1024 * 1024;
+  private static final Pattern CHECKSUM_NAMED_PATTERN = Pattern.compile(".*-[0-9a-f]{64}\\.[^/]+$");
+
+  private final LinkedHashMap<String, InMemoryFileStorageItem> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final long maxSizeInBytes;
+  private final long repoMdTtlInMillis;
+  private final long ttlInMillis;
+  private long sizeInBytes;
+
+  @Autowired
+  public RepoMetadataCache(@Value("${metadata.cache.max.size.mb:256}") long maxSizeInMb,
+                           @Value("${metadata.cache.repomd.ttl.seconds:60}") long repoMdTtlInSeconds,
+                           @Value("${metadata.cache.ttl.seconds:600}") long ttlInSeconds) {
+    this.maxSizeInBytes = maxSizeInMb * MB;
+    this.repoMdTtlInMillis = SECONDS.toMillis(repoMdTtlInSeconds);
+    this.ttlInMillis = SECONDS.toMillis(ttlInSeconds);
+  }
+
+  public boolean isActive() {
+    return maxSizeInBytes > 0;
+  }
+
+  public boolean isCacheable(FileDescriptor descriptor) {
+    return isActive() && ARCH_KEY_REPO_DATA.equals(descriptor.getArch());
+  }
+
+  public static boolean isChecksumNamed(String filename) {
+    return CHECKSUM_NAMED_PATTERN.matcher(filename).matches();
+  }
+
+  /**
+   * @return the cached repodata file or the one from the loader, which is added to the cache when its content
+   * is read
+   */
+  public FileStorageItem get(FileDescriptor descriptor, Supplier<FileStorageItem> loader) {
+    InMemoryFileStorageItem cachedItem = lookup(descriptor.getPath());
+    if ((cachedItem != null) && !isExpired(cachedItem)) {
+      hits.incrementAndGet();
+      InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".hit");
+      return cachedItem;
+    }
+
+    misses.incrementAndGet();
+    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".miss");
+
+    FileStorageItem storageItem;
+    try {
+      storageItem = loader.get();
+    } catch (RuntimeException e) {
+      invalidate(descriptor.getPath());
+      throw e;
+    }
+
+    if ((cachedItem != null) && !storageItem.isMarkedAsDeleted() && cachedItem.getId().equals(storageItem.getId())) {
+      cachedItem.touch(System.currentTimeMillis());
+      return cachedItem;
+    }
+
+    invalidate(descriptor.getPath());
+    if (storageItem.isMarkedAsDeleted() || (storageItem.getSize() > maxSizeInBytes)) {
+      return storageItem;
+    }
+    return new CacheLoadingFileStorageItem(storageItem, this);
+  }
+
+  public FileStorageItem put(FileStorageItem storageItem) {
+    if (!isActive() || (storageItem.getSize() > maxSizeInBytes)) {
+      return null;
+    }
+
+    InMemoryFileStorageItem cachedItem = lookup(storageItem.getFilename());
+    if ((cachedItem != null) && cachedItem.getId().equals(storageItem.getId())) {
+      return cachedItem;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect((int) storageItem.getSize());
+    try(ReadableByteChannel channel = newChannel(storageItem.getInputStream())) {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.warn("could not load {} into metadata cache", storageItem.getFilename(), e);
+      return null;
+    }
+
+    if (buffer.hasRemaining()) {
+      LOGGER.warn("could not load {} into metadata cache: expected {} bytes but got {}", storageItem.getFilename(),
+        buffer.capacity(), buffer.position());
+      return null;
+    }
+    buffer.flip();
+    return add(new InMemoryFileStorageItem(storageItem, buffer, System.currentTimeMillis()));
+  }
+
+  public FileStorageItem put(FileStorageItem storageItem, byte[] content) {
+    if (!isActive() || (content.length > maxSizeInBytes)) {
+      return null;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+    buffer.put(content).flip();
+    return add(new InMemoryFileStorageItem(storageItem, buffer, System.currentTimeMillis()));
+  }
+
+  public void invalidateByFilenameRegex(String regex) {
+    Pattern pattern = Pattern.compile(regex);
+    paths().stream().filter(path -> pattern.matcher(path).find()).forEach(this::invalidate);
+  }
+
+  public void invalidateRepo(String reponame) {
+    paths().stream().filter(path -> path.startsWith(reponame + "/")).forEach(this::invalidate);
+  }
+
+  public synchronized void invalidate(String path) {
+    InMemoryFileStorageItem removedItem = entries.remove(path);
+    if (removedItem != null) {
+      sizeInBytes -= removedItem.getSize();
+    }
+  }
+
+  @ManagedOperation
+  public void clear() {
+    paths().forEach(this::invalidate);
+  }
+
+  @ManagedAttribute
+  public long getHits() {
+    return hits.get();
+  }
+
+  @ManagedAttribute
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @ManagedAttribute
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @ManagedAttribute
+  public synchronized long getSizeInBytes() {
+    return sizeInBytes;
+  }
+
+  @ManagedAttribute
+  public long getMaxSizeInBytes() {
+    return maxSizeInBytes;
+  }
+
+  @ManagedAttribute
+  public synchronized int getNumberOfEntries() {
+    return entries.size();
+  }
+
+  private synchronized InMemoryFileStorageItem lookup(String path) {
+    return entries.get(path);
+  }
+
+  private synchronized List<String> paths() {
+    return new ArrayList<>(entries.keySet());
+  }
+
+  private synchronized InMemoryFileStorageItem add(InMemoryFileStorageItem item) {
+    invalidate(item.getFilename());
+
+    Iterator<Map.Entry<String, InMemoryFileStorageItem>> iterator = entries.entrySet().iterator();
+    while (((sizeInBytes + item.getSize()) > maxSizeInBytes) && iterator.hasNext()) {
+      InMemoryFileStorageItem eldest = iterator.next().getValue();
+      iterator.remove();
+      sizeInBytes -= eldest.getSize();
+      evictions.incrementAndGet();
+      LOGGER.debug("evicted {} from metadata cache", eldest.getFilename());
+    }
+
+    entries.put(item.getFilename(), item);
+    sizeInBytes += item.getSize();
+    return item;
+  }
+
+  private boolean isExpired(InMemoryFileStorageItem item) {
+    long ttl = isChecksumNamed(item.getFilename()) ? ttlInMillis : repoMdTtlInMillis;
+    return (System.currentTimeMillis() - item.getCachedAt()) > ttl;
+  }
+}
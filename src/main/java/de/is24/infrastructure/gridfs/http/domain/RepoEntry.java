@@ -47,6 +47,8 @@ public class RepoEntry {
 
   private String hashOfEntries;
 
+  private RepodataCompression repodataCompression;
+
   public ObjectId getId() {
     return id;
   }
@@ -158,6 +160,17 @@ public class RepoEntry {
     this.hashOfEntries = hashOfEntries;
   }
 
+  /**
+   * @return the codec of the repodata, or <code>null</code> for bzip2 compressed databases and gzip compressed XML
+   */
+  public RepodataCompression getRepodataCompression() {
+    return repodataCompression;
+  }
+
+  public void setRepodataCompression(RepodataCompression repodataCompression) {
+    this.repodataCompression = repodataCompression;
+  }
+
   @Override
   public String toString() {
     return new ToStringBuilder(this).append("id", id)
@@ -172,6 +185,7 @@ public class RepoEntry {
       .append("maxKeepRpms", maxKeepRpms)
       .append("maxDaysRpms", maxDaysRpms)
       .append("hashOfEntries", hashOfEntries)
+      .append("repodataCompression", repodataCompression)
       .toString();
   }
 }
@@ -0,0 +1,95 @@
+package de.is24.infrastructure.gridfs.http.domain;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * The codecs the repodata of a repository can be compressed with. Clients recognize the codec by the extension of
+ * the location in the <i>repomd.xml</i>: yum reads bzip2, gzip and xz, zstd needs dnf.
+ */
+public enum RepodataCompression {
+  BZIP2("bz2", "application/x-bzip2") {
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new BZip2CompressorOutputStream(out);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new BZip2CompressorInputStream(in, true);
+    }
+  },
+  GZIP("gz", "application/x-gzip") {
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new GZIPOutputStream(out, BUFFER_SIZE);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+  },
+  XZ("xz", "application/x-xz") {
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new XZCompressorOutputStream(out, XZ_PRESET);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new XZCompressorInputStream(in, true);
+    }
+  },
+  ZSTD("zst", "application/zstd") {
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new ZstdOutputStream(out, ZSTD_LEVEL);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new ZstdInputStream(in);
+    }
+  };
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final int XZ_PRESET = 6;
+
+  /**
+   * Above the default level 3, as the repodata is compressed once and decompressed by every client.
+   */
+  private static final int ZSTD_LEVEL = 10;
+
+  private final String extension;
+  private final String contentType;
+
+  RepodataCompression(String extension, String contentType) {
+    this.extension = extension;
+    this.contentType = contentType;
+  }
+
+  public abstract OutputStream compress(OutputStream out) throws IOException;
+
+  public abstract InputStream decompress(InputStream in) throws IOException;
+
+  public String getExtension() {
+    return extension;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+}
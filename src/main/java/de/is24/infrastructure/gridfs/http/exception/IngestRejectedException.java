@@ -0,0 +1,26 @@
+package de.is24.infrastructure.gridfs.http.exception;
+
+import org.springframework.http.HttpStatus;
+
+
+/**
+ * An upload was not admitted. It is answered with the given status and a <code>Retry-After</code> header.
+ */
+public class IngestRejectedException extends RuntimeException {
+  private final HttpStatus status;
+  private final long retryAfterSeconds;
+
+  public IngestRejectedException(HttpStatus status, long retryAfterSeconds, String message) {
+    super(message);
+    this.status = status;
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  public HttpStatus getStatus() {
+    return status;
+  }
+
+  public long getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+}
@@ -0,0 +1,13 @@
+package de.is24.infrastructure.gridfs.http.exception;
+
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import static org.springframework.http.HttpStatus.CONFLICT;
+
+
+@ResponseStatus(CONFLICT)
+public class UploadSessionConflictException extends RuntimeException {
+  public UploadSessionConflictException(String message) {
+    super(message);
+  }
+}
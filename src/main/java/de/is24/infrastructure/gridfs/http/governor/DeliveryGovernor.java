@@ -0,0 +1,262 @@
+package de.is24.infrastructure.gridfs.http.governor;
+
+import de.is24.infrastructure.gridfs.http.monitoring.LongSupplierValueProvider;
+import de.is24.infrastructure.gridfs.http.security.AuthenticationDetails;
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import de.is24.infrastructure.gridfs.http.utils.HostnameResolver;
+import de.is24.util.monitoring.InApplicationMonitor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.ARCH_KEY_REPO_DATA;
+import static java.lang.Math.max;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+
+/**
+ * Limits concurrent downloads and bandwidth of RPM bodies per remote host, per repository and in total,
+ * so that a single mirroring host cannot starve the others. Repodata is never limited or throttled and
+ * therefore always takes priority over RPM bodies. A limit of 0 means unlimited.
+ */
+@ManagedResource
+@Service
+public class DeliveryGovernor {
+  private static final long KB = 1024;
+  private static final int SWEEP_INTERVAL = 1000;
+
+  private final HostnameResolver hostnameResolver;
+  private final ConcurrentMap<String, Limiter> hostLimiters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Limiter> repoLimiters = new ConcurrentHashMap<>();
+  private final AtomicInteger activeDownloads = new AtomicInteger();
+  private final AtomicInteger activeRepodataDownloads = new AtomicInteger();
+  private final AtomicLong rejectedDownloads = new AtomicLong();
+  private final AtomicLong releasedDownloads = new AtomicLong();
+
+  private volatile int maxDownloads;
+  private volatile int maxDownloadsPerHost;
+  private volatile int maxDownloadsPerRepo;
+  private volatile long bandwidthPerHostInKb;
+  private volatile long bandwidthPerRepoInKb;
+  private volatile int retryAfterSeconds;
+
+  @Autowired
+  public DeliveryGovernor(HostnameResolver hostnameResolver,
+                          @Value("${delivery.governor.max.downloads:0}") int maxDownloads,
+                          @Value("${delivery.governor.max.downloads.per.host:0}") int maxDownloadsPerHost,
+                          @Value("${delivery.governor.max.downloads.per.repo:0}") int maxDownloadsPerRepo,
+                          @Value("${delivery.governor.bandwidth.per.host.kb:0}") long bandwidthPerHostInKb,
+                          @Value("${delivery.governor.bandwidth.per.repo.kb:0}") long bandwidthPerRepoInKb,
+                          @Value("${delivery.governor.retry.after.seconds:5}") int retryAfterSeconds) {
+    this.hostnameResolver = hostnameResolver;
+    this.maxDownloads = maxDownloads;
+    this.maxDownloadsPerHost = maxDownloadsPerHost;
+    this.maxDownloadsPerRepo = maxDownloadsPerRepo;
+    this.bandwidthPerHostInKb = bandwidthPerHostInKb;
+    this.bandwidthPerRepoInKb = bandwidthPerRepoInKb;
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  @PostConstruct
+  public void registerStateValues() {
+    String prefix = getClass().getName();
+    InApplicationMonitor monitor = InApplicationMonitor.getInstance();
+    monitor.registerStateValue(new LongSupplierValueProvider(prefix + ".activeDownloads", activeDownloads::get));
+    monitor.registerStateValue(new LongSupplierValueProvider(prefix + ".activeRepodataDownloads",
+      activeRepodataDownloads::get));
+    monitor.registerStateValue(new LongSupplierValueProvider(prefix + ".rejectedDownloads", rejectedDownloads::get));
+    monitor.registerStateValue(new LongSupplierValueProvider(prefix + ".limitedHosts", hostLimiters::size));
+    monitor.registerStateValue(new LongSupplierValueProvider(prefix + ".limitedRepos", repoLimiters::size));
+  }
+
+  public DeliveryPermit acquire(FileDescriptor descriptor, HttpServletRequest request) {
+    if (ARCH_KEY_REPO_DATA.equals(descriptor.getArch())) {
+      activeRepodataDownloads.incrementAndGet();
+      return new DeliveryPermit(this, null, null, true);
+    }
+
+    int max = maxDownloads;
+    if ((activeDownloads.incrementAndGet() > max) && (max > 0)) {
+      activeDownloads.decrementAndGet();
+      return reject(".rejected.total", retryAfterSeconds);
+    }
+
+    String hostKey = remoteHost(request);
+    Limiter hostLimiter = enter(hostLimiters, hostKey, maxDownloadsPerHost);
+    if (hostLimiter == null) {
+      activeDownloads.decrementAndGet();
+      return reject(".rejected.host", retryAfterSeconds);
+    }
+
+    String repoKey = descriptor.getRepo();
+    Limiter repoLimiter = enter(repoLimiters, repoKey, maxDownloadsPerRepo);
+    if (repoLimiter == null) {
+      hostLimiter.leave();
+      activeDownloads.decrementAndGet();
+      return reject(".rejected.repo", retryAfterSeconds);
+    }
+
+    DeliveryPermit permit = new DeliveryPermit(this, hostLimiter, repoLimiter, false);
+    long debtInNanos = max(hostLimiter.getBucket().getDebtInNanos(getBandwidthPerHostInBytes()),
+      repoLimiter.getBucket().getDebtInNanos(getBandwidthPerRepoInBytes()));
+    if (debtInNanos > SECONDS.toNanos(retryAfterSeconds)) {
+      permit.release();
+      return reject(".rejected.bandwidth", NANOSECONDS.toSeconds(debtInNanos) + 1);
+    }
+    return permit;
+  }
+
+  void release(DeliveryPermit permit) {
+    if (permit.isRepodata()) {
+      activeRepodataDownloads.decrementAndGet();
+      return;
+    }
+
+    permit.getRepoLimiter().leave();
+    permit.getHostLimiter().leave();
+    activeDownloads.decrementAndGet();
+    if ((releasedDownloads.incrementAndGet() % SWEEP_INTERVAL) == 0) {
+      sweep(hostLimiters, getBandwidthPerHostInBytes());
+      sweep(repoLimiters, getBandwidthPerRepoInBytes());
+    }
+  }
+
+  boolean isBandwidthLimited() {
+    return (bandwidthPerHostInKb > 0) || (bandwidthPerRepoInKb > 0);
+  }
+
+  long getBandwidthPerHostInBytes() {
+    return bandwidthPerHostInKb * KB;
+  }
+
+  long getBandwidthPerRepoInBytes() {
+    return bandwidthPerRepoInKb * KB;
+  }
+
+  @ManagedAttribute
+  public int getMaxDownloads() {
+    return maxDownloads;
+  }
+
+  @ManagedAttribute
+  public void setMaxDownloads(int maxDownloads) {
+    this.maxDownloads = maxDownloads;
+  }
+
+  @ManagedAttribute
+  public int getMaxDownloadsPerHost() {
+    return maxDownloadsPerHost;
+  }
+
+  @ManagedAttribute
+  public void setMaxDownloadsPerHost(int maxDownloadsPerHost) {
+    this.maxDownloadsPerHost = maxDownloadsPerHost;
+  }
+
+  @ManagedAttribute
+  public int getMaxDownloadsPerRepo() {
+    return maxDownloadsPerRepo;
+  }
+
+  @ManagedAttribute
+  public void setMaxDownloadsPerRepo(int maxDownloadsPerRepo) {
+    this.maxDownloadsPerRepo = maxDownloadsPerRepo;
+  }
+
+  @ManagedAttribute
+  public long getBandwidthPerHostInKb() {
+    return bandwidthPerHostInKb;
+  }
+
+  @ManagedAttribute
+  public void setBandwidthPerHostInKb(long bandwidthPerHostInKb) {
+    this.bandwidthPerHostInKb = bandwidthPerHostInKb;
+  }
+
+  @ManagedAttribute
+  public long getBandwidthPerRepoInKb() {
+    return bandwidthPerRepoInKb;
+  }
+
+  @ManagedAttribute
+  public void setBandwidthPerRepoInKb(long bandwidthPerRepoInKb) {
+    this.bandwidthPerRepoInKb = bandwidthPerRepoInKb;
+  }
+
+  @ManagedAttribute
+  public int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  @ManagedAttribute
+  public void setRetryAfterSeconds(int retryAfterSeconds) {
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  @ManagedAttribute
+  public int getActiveDownloads() {
+    return activeDownloads.get();
+  }
+
+  @ManagedAttribute
+  public int getActiveRepodataDownloads() {
+    return activeRepodataDownloads.get();
+  }
+
+  @ManagedAttribute
+  public long getRejectedDownloads() {
+    return rejectedDownloads.get();
+  }
+
+  @ManagedAttribute
+  public int getLimitedHosts() {
+    return hostLimiters.size();
+  }
+
+  private DeliveryPermit reject(String counter, long retryAfter) {
+    rejectedDownloads.incrementAndGet();
+    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + counter);
+    return DeliveryPermit.rejected(retryAfter);
+  }
+
+  private String remoteHost(HttpServletRequest request) {
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    if ((authentication != null) && (authentication.getDetails() instanceof AuthenticationDetails)) {
+      AuthenticationDetails details = (AuthenticationDetails) authentication.getDetails();
+      if (details.getRemoteHost() != null) {
+        return details.getRemoteHost().getName();
+      }
+    }
+    return hostnameResolver.remoteHost(request).getName();
+  }
+
+  private static Limiter enter(ConcurrentMap<String, Limiter> limiters, String key, int maxDownloads) {
+    Limiter[] entered = new Limiter[1];
+    limiters.compute(key, (k, limiter) -> {
+      Limiter current = (limiter == null) ? new Limiter() : limiter;
+      if (current.tryEnter(maxDownloads)) {
+        entered[0] = current;
+      }
+      return current;
+    });
+    return entered[0];
+  }
+
+  private static void sweep(ConcurrentMap<String, Limiter> limiters, long ratePerSecond) {
+    for (String key : limiters.keySet()) {
+      limiters.computeIfPresent(key, (k, limiter) -> limiter.isIdle(ratePerSecond) ? null : limiter);
+    }
+  }
+}
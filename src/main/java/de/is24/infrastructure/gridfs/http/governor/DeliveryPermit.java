@@ -0,0 +1,171 @@
+package de.is24.infrastructure.gridfs.http.governor;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+
+/**
+ * The result of {@link DeliveryGovernor#acquire}. A granted permit has to be released when the download is
+ * finished, a rejected one tells the client when to retry.
+ */
+public class DeliveryPermit {
+  public static final String REQUEST_ATTRIBUTE = DeliveryPermit.class.getName();
+  private static final int MAX_READ_SIZE = 64 * 1024;
+
+  private final DeliveryGovernor governor;
+  private final Limiter hostLimiter;
+  private final Limiter repoLimiter;
+  private final boolean repodata;
+  private final long retryAfterSeconds;
+  private final AtomicBoolean released = new AtomicBoolean();
+
+  DeliveryPermit(DeliveryGovernor governor, Limiter hostLimiter, Limiter repoLimiter, boolean repodata) {
+    this.governor = governor;
+    this.hostLimiter = hostLimiter;
+    this.repoLimiter = repoLimiter;
+    this.repodata = repodata;
+    this.retryAfterSeconds = 0;
+  }
+
+  private DeliveryPermit(long retryAfterSeconds) {
+    this.governor = null;
+    this.hostLimiter = null;
+    this.repoLimiter = null;
+    this.repodata = false;
+    this.retryAfterSeconds = retryAfterSeconds;
+    this.released.set(true);
+  }
+
+  static DeliveryPermit rejected(long retryAfterSeconds) {
+    return new DeliveryPermit(max(retryAfterSeconds, 1));
+  }
+
+  public boolean isGranted() {
+    return governor != null;
+  }
+
+  public long getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  /**
+   * @return true, if the permit counts against the concurrency limits until it is released, so that the download
+   * has to be written before the request completes
+   */
+  public boolean isLimited() {
+    return isGranted() && !repodata;
+  }
+
+  /**
+   * @return the given resource, or a resource whose content is read at the bandwidth of host and repository
+   */
+  public Resource throttled(Resource resource) {
+    if (!isGranted() || repodata || !governor.isBandwidthLimited()) {
+      return resource;
+    }
+    return new ThrottledResource(resource);
+  }
+
+  public void release() {
+    if (released.compareAndSet(false, true)) {
+      governor.release(this);
+    }
+  }
+
+  Limiter getHostLimiter() {
+    return hostLimiter;
+  }
+
+  Limiter getRepoLimiter() {
+    return repoLimiter;
+  }
+
+  boolean isRepodata() {
+    return repodata;
+  }
+
+  private void consume(int bytes) throws InterruptedIOException {
+    long waitInNanos = max(hostLimiter.getBucket().take(bytes, governor.getBandwidthPerHostInBytes()),
+      repoLimiter.getBucket().take(bytes, governor.getBandwidthPerRepoInBytes()));
+    if (waitInNanos > 0) {
+      try {
+        NANOSECONDS.sleep(waitInNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while throttling download");
+      }
+    }
+  }
+
+  private class ThrottledResource extends AbstractResource {
+    private final Resource delegate;
+
+    ThrottledResource(Resource delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      return new ThrottledInputStream(delegate.getInputStream());
+    }
+
+    @Override
+    public boolean exists() {
+      return delegate.exists();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+      return delegate.contentLength();
+    }
+
+    @Override
+    public long lastModified() throws IOException {
+      return delegate.lastModified();
+    }
+
+    @Override
+    public String getFilename() {
+      return delegate.getFilename();
+    }
+
+    @Override
+    public String getDescription() {
+      return "throttled " + delegate.getDescription();
+    }
+  }
+
+  private class ThrottledInputStream extends FilterInputStream {
+    ThrottledInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        consume(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int len) throws IOException {
+      int count = super.read(buffer, offset, min(len, MAX_READ_SIZE));
+      if (count > 0) {
+        consume(count);
+      }
+      return count;
+    }
+  }
+}
@@ -0,0 +1,302 @@
+package de.is24.infrastructure.gridfs.http.governor;
+
+import de.is24.infrastructure.gridfs.http.exception.IngestRejectedException;
+import de.is24.infrastructure.gridfs.http.monitoring.Histogram;
+import de.is24.infrastructure.gridfs.http.monitoring.LongSupplierValueProvider;
+import de.is24.util.monitoring.InApplicationMonitor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
+
+
+/**
+ * Admits a bounded number of concurrent RPM uploads per node. Further uploads wait in a bounded queue until a slot
+ * is free or their deadline has passed. Freed slots are handed to the waiting repositories in turn, so that a
+ * release storm into one repository cannot starve uploads into the others. Uploads that are not admitted are
+ * rejected with 503, or with 429 if their repository already fills its share of the queue, and a
+ * <code>Retry-After</code>. A limit of 0 means unlimited.
+ */
+@ManagedResource
+@Service
+public class IngestGovernor {
+  private static final long[] WAIT_MILLIS_BUCKETS = { 10, 100, 1000, 10000 };
+  private static final long[] QUEUE_DEPTH_BUCKETS = { 1, 4, 16, 64 };
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition handedOver = lock.newCondition();
+  private final Map<String, Deque<Waiter>> waiters = new LinkedHashMap<>();
+  private final AtomicLong rejectedIngests = new AtomicLong();
+  private final Histogram waitHistogram = new Histogram(getClass().getName() + ".wait.ms", WAIT_MILLIS_BUCKETS);
+  private final Histogram queueDepthHistogram = new Histogram(getClass().getName() + ".queue.depth",
+    QUEUE_DEPTH_BUCKETS);
+  private int activeIngests;
+  private int queuedIngests;
+
+  private volatile int maxIngests;
+  private volatile int maxQueued;
+  private volatile int maxQueuedPerRepo;
+  private volatile int maxWaitSeconds;
+  private volatile int retryAfterSeconds;
+
+  @Autowired
+  public IngestGovernor(@Value("${ingest.governor.max.ingests:8}") int maxIngests,
+                        @Value("${ingest.governor.max.queued:64}") int maxQueued,
+                        @Value("${ingest.governor.max.queued.per.repo:16}") int maxQueuedPerRepo,
+                        @Value("${ingest.governor.max.wait.seconds:30}") int maxWaitSeconds,
+                        @Value("${ingest.governor.retry.after.seconds:10}") int retryAfterSeconds) {
+    this.maxIngests = maxIngests;
+    this.maxQueued = maxQueued;
+    this.maxQueuedPerRepo = maxQueuedPerRepo;
+    this.maxWaitSeconds = maxWaitSeconds;
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  @PostConstruct
+  public void registerStateValues() {
+    String prefix = getClass().getName();
+    InApplicationMonitor monitor = InApplicationMonitor.getInstance();
+    monitor.registerStateValue(new LongSupplierValueProvider(prefix + ".activeIngests", this::getActiveIngests));
+    monitor.registerStateValue(new LongSupplierValueProvider(prefix + ".queueSize", this::getQueuedIngests));
+    monitor.registerStateValue(new LongSupplierValueProvider(prefix + ".rejectedIngests", rejectedIngests::get));
+  }
+
+  /**
+   * Waits until the upload into the given repository is admitted.
+   *
+   * @throws IngestRejectedException if the queue is full or the deadline has passed
+   */
+  public IngestPermit acquire(String reponame) throws InterruptedIOException {
+    long start = System.nanoTime();
+    lock.lock();
+    try {
+      int max = maxIngests;
+      if ((max <= 0) || ((activeIngests < max) && (queuedIngests == 0))) {
+        activeIngests++;
+        return admitted(start);
+      }
+
+      int maxQueue = maxQueued;
+      if ((maxQueue > 0) && (queuedIngests >= maxQueue)) {
+        throw reject(SERVICE_UNAVAILABLE, ".rejected.queue", "Too many uploads queued, retry later.");
+      }
+
+      Deque<Waiter> repoWaiters = waiters.computeIfAbsent(reponame, k -> new ArrayDeque<>());
+      int maxPerRepo = maxQueuedPerRepo;
+      if ((maxPerRepo > 0) && (repoWaiters.size() >= maxPerRepo)) {
+        throw reject(TOO_MANY_REQUESTS, ".rejected.repo",
+          "Too many uploads queued for repository " + reponame + ", retry later.");
+      }
+
+      Waiter waiter = new Waiter();
+      repoWaiters.addLast(waiter);
+      queuedIngests++;
+      queueDepthHistogram.record(queuedIngests);
+      awaitHandOver(reponame, waiter, start + SECONDS.toNanos(maxWaitSeconds));
+      return admitted(start);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void release() {
+    lock.lock();
+    try {
+      int max = maxIngests;
+      Waiter next = ((max <= 0) || (activeIngests <= max)) ? nextWaiter() : null;
+      if (next == null) {
+        activeIngests--;
+        return;
+      }
+
+      next.handedOver = true;
+      queuedIngests--;
+      handedOver.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @ManagedAttribute
+  public int getMaxIngests() {
+    return maxIngests;
+  }
+
+  /**
+   * Sets the limit of concurrent uploads. Slots freed by raising it are handed to waiting uploads at once.
+   */
+  @ManagedAttribute
+  public void setMaxIngests(int maxIngests) {
+    lock.lock();
+    try {
+      this.maxIngests = maxIngests;
+      boolean admitted = false;
+      while ((maxIngests <= 0) || (activeIngests < maxIngests)) {
+        Waiter next = nextWaiter();
+        if (next == null) {
+          break;
+        }
+        next.handedOver = true;
+        queuedIngests--;
+        activeIngests++;
+        admitted = true;
+      }
+      if (admitted) {
+        handedOver.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @ManagedAttribute
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+
+  @ManagedAttribute
+  public void setMaxQueued(int maxQueued) {
+    this.maxQueued = maxQueued;
+  }
+
+  @ManagedAttribute
+  public int getMaxQueuedPerRepo() {
+    return maxQueuedPerRepo;
+  }
+
+  @ManagedAttribute
+  public void setMaxQueuedPerRepo(int maxQueuedPerRepo) {
+    this.maxQueuedPerRepo = maxQueuedPerRepo;
+  }
+
+  @ManagedAttribute
+  public int getMaxWaitSeconds() {
+    return maxWaitSeconds;
+  }
+
+  @ManagedAttribute
+  public void setMaxWaitSeconds(int maxWaitSeconds) {
+    this.maxWaitSeconds = maxWaitSeconds;
+  }
+
+  @ManagedAttribute
+  public int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  @ManagedAttribute
+  public void setRetryAfterSeconds(int retryAfterSeconds) {
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  @ManagedAttribute
+  public int getActiveIngests() {
+    lock.lock();
+    try {
+      return activeIngests;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @ManagedAttribute
+  public int getQueuedIngests() {
+    lock.lock();
+    try {
+      return queuedIngests;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @ManagedAttribute
+  public long getRejectedIngests() {
+    return rejectedIngests.get();
+  }
+
+  private void awaitHandOver(String reponame, Waiter waiter, long deadline) throws InterruptedIOException {
+    boolean interrupted = false;
+    long remaining = deadline - System.nanoTime();
+    while (!waiter.handedOver && (remaining > 0) && !interrupted) {
+      try {
+        remaining = handedOver.awaitNanos(remaining);
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+
+    if (waiter.handedOver) {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      return;
+    }
+
+    removeWaiter(reponame, waiter);
+    queuedIngests--;
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for admission of upload");
+    }
+    throw reject(SERVICE_UNAVAILABLE, ".rejected.timeout", "Upload was not admitted in time, retry later.");
+  }
+
+  private Waiter nextWaiter() {
+    Iterator<Map.Entry<String, Deque<Waiter>>> iterator = waiters.entrySet().iterator();
+    if (!iterator.hasNext()) {
+      return null;
+    }
+
+    Map.Entry<String, Deque<Waiter>> entry = iterator.next();
+    iterator.remove();
+
+    Waiter waiter = entry.getValue().pollFirst();
+    if (!entry.getValue().isEmpty()) {
+      waiters.put(entry.getKey(), entry.getValue());
+    }
+    return waiter;
+  }
+
+  private void removeWaiter(String reponame, Waiter waiter) {
+    Deque<Waiter> repoWaiters = waiters.get(reponame);
+    repoWaiters.remove(waiter);
+    if (repoWaiters.isEmpty()) {
+      waiters.remove(reponame);
+    }
+  }
+
+  private IngestPermit admitted(long start) {
+    long waitInMillis = NANOSECONDS.toMillis(System.nanoTime() - start);
+    waitHistogram.record(waitInMillis);
+    InApplicationMonitor.getInstance().addTimerMeasurement(getClass().getName() + ".wait", waitInMillis);
+    return new IngestPermit(this);
+  }
+
+  private IngestRejectedException reject(HttpStatus status, String counter, String message) {
+    rejectedIngests.incrementAndGet();
+    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + counter);
+    return new IngestRejectedException(status, retryAfterSeconds, message);
+  }
+
+  private static class Waiter {
+    private boolean handedOver;
+  }
+}
@@ -0,0 +1,24 @@
+package de.is24.infrastructure.gridfs.http.governor;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * An admitted upload, see {@link IngestGovernor#acquire}. Closing the permit hands its slot to the next waiting
+ * upload.
+ */
+public class IngestPermit implements AutoCloseable {
+  private final IngestGovernor governor;
+  private final AtomicBoolean released = new AtomicBoolean();
+
+  IngestPermit(IngestGovernor governor) {
+    this.governor = governor;
+  }
+
+  @Override
+  public void close() {
+    if (released.compareAndSet(false, true)) {
+      governor.release();
+    }
+  }
+}
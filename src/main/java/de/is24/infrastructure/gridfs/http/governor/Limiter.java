@@ -0,0 +1,33 @@
+package de.is24.infrastructure.gridfs.http.governor;
+
+/**
+ * Concurrent downloads and bandwidth of one remote host or repository.
+ */
+class Limiter {
+  private final TokenBucket bucket = new TokenBucket();
+  private int activeDownloads;
+
+  synchronized boolean tryEnter(int maxDownloads) {
+    if ((maxDownloads > 0) && (activeDownloads >= maxDownloads)) {
+      return false;
+    }
+    activeDownloads++;
+    return true;
+  }
+
+  synchronized void leave() {
+    activeDownloads--;
+  }
+
+  synchronized boolean isIdle(long ratePerSecond) {
+    return (activeDownloads == 0) && bucket.isFull(ratePerSecond);
+  }
+
+  synchronized int getActiveDownloads() {
+    return activeDownloads;
+  }
+
+  TokenBucket getBucket() {
+    return bucket;
+  }
+}
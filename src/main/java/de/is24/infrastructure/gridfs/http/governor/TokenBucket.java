@@ -0,0 +1,61 @@
+package de.is24.infrastructure.gridfs.http.governor;
+
+import static java.lang.Math.min;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+
+/**
+ * A token bucket of bytes, refilled at a given rate per second and holding at most one second of that rate.
+ * Taking more than available puts the bucket into debt, which is paid off by waiting.
+ */
+class TokenBucket {
+  private static final double NANOS_PER_SECOND = SECONDS.toNanos(1);
+
+  private double tokens = Double.NaN;
+  private long lastRefill = System.nanoTime();
+
+  /**
+   * @return the nanoseconds to wait until the taken bytes are covered by the rate
+   */
+  synchronized long take(long bytes, long ratePerSecond) {
+    if (ratePerSecond <= 0) {
+      return 0;
+    }
+
+    refill(ratePerSecond);
+    tokens -= bytes;
+    return debtInNanos(ratePerSecond);
+  }
+
+  synchronized long getDebtInNanos(long ratePerSecond) {
+    if (ratePerSecond <= 0) {
+      return 0;
+    }
+
+    refill(ratePerSecond);
+    return debtInNanos(ratePerSecond);
+  }
+
+  synchronized boolean isFull(long ratePerSecond) {
+    if (ratePerSecond <= 0) {
+      return true;
+    }
+
+    refill(ratePerSecond);
+    return tokens >= ratePerSecond;
+  }
+
+  private long debtInNanos(long ratePerSecond) {
+    return (tokens >= 0) ? 0 : (long) (-tokens * NANOS_PER_SECOND / ratePerSecond);
+  }
+
+  private void refill(long ratePerSecond) {
+    long now = System.nanoTime();
+    if (Double.isNaN(tokens)) {
+      tokens = ratePerSecond;
+    } else {
+      tokens = min(ratePerSecond, tokens + ((now - lastRefill) * ratePerSecond / NANOS_PER_SECOND));
+    }
+    lastRefill = now;
+  }
+}
@@ -0,0 +1,60 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * Opens bzip2 compressing streams, which compress their blocks in parallel on a shared fork-join pool. With a single
+ * thread, the blocks are compressed one after another by the writing thread.
+ */
+@ManagedResource
+@Service
+public class BZip2Compressor {
+  private static final int PENDING_BLOCKS_PER_THREAD = 2;
+
+  private final ForkJoinPool pool;
+  private final int threads;
+
+  @Autowired
+  public BZip2Compressor(@Value("${metadata.compression.threads:0}") int threads) {
+    this.threads = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+    this.pool = (this.threads > 1) ? new ForkJoinPool(this.threads) : null;
+  }
+
+  /**
+   * @return a stream writing the compressed content to the given stream, which is closed with it
+   */
+  public OutputStream open(OutputStream out) throws IOException {
+    if (pool == null) {
+      return new BZip2CompressorOutputStream(out);
+    }
+    return new ParallelBZip2OutputStream(out, pool, threads * PENDING_BLOCKS_PER_THREAD);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+  }
+
+  @ManagedAttribute
+  public int getThreads() {
+    return threads;
+  }
+
+  @ManagedAttribute
+  public int getActiveThreads() {
+    return (pool == null) ? 0 : pool.getActiveThreadCount();
+  }
+}
@@ -0,0 +1,469 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSFile;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static de.is24.infrastructure.gridfs.http.gridfs.GridFsChunkInputStream.CHUNK_INDEX_KEY;
+import static de.is24.infrastructure.gridfs.http.gridfs.GridFsChunkInputStream.DATA_KEY;
+import static de.is24.infrastructure.gridfs.http.gridfs.GridFsChunkInputStream.DEFAULT_BATCH_SIZE;
+import static de.is24.infrastructure.gridfs.http.gridfs.GridFsChunkInputStream.FILES_ID_KEY;
+import static de.is24.infrastructure.gridfs.http.gridfs.GridFsChunkOutputStream.sequential;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.BLOBS_BUCKET;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.BLOB_CHUNKS_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.BLOB_FILES_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.BLOB_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.COLLAPSED_CHUNKS_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.FILENAME_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.GRIDFS_CHUNKS_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.GRIDFS_FILES_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.METADATA_BLOB_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.METADATA_REF_COUNT_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.METADATA_SHA256_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.REF_COUNT_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.SHA256_KEY;
+import static java.util.Arrays.copyOf;
+
+
+/**
+ * Content addressed storage of file contents. Every distinct SHA-256 is stored once as a file of the
+ * <code>blobs</code> GridFS bucket, named after its SHA-256 and counting the <code>fs.files</code> entries that
+ * reference it in <code>metadata.refCount</code>. A referencing entry has no chunks of its own, but the id of its
+ * blob in <code>metadata.blob</code>. Entries marked as deleted keep their reference until they are removed, the
+ * last removed entry removes the blob. The SHA-256 is unique: a blob stored concurrently with the same content is
+ * dropped in favour of the existing one.
+ */
+@ManagedResource
+@Service
+public class BlobStore {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BlobStore.class);
+  private static final String ID_KEY = "_id";
+  private static final String ENDS_WITH_RPM_REGEX = "\\.rpm$";
+  private static final String COLLAPSED_KEY = "collapsed";
+  private static final int MAX_INSERT_ATTEMPTS = 3;
+
+  private final GridFS blobFs;
+  private final DBCollection blobFiles;
+  private final DBCollection blobChunks;
+  private final DBCollection files;
+  private final DBCollection chunks;
+  private final DBCollection collapsedChunks;
+  private final AtomicLong reusedBlobs = new AtomicLong();
+  private final AtomicLong createdBlobs = new AtomicLong();
+  private final AtomicLong removedBlobs = new AtomicLong();
+  private GridFsChunkWriter chunkWriter;
+
+  @Autowired
+  public BlobStore(MongoTemplate mongoTemplate) {
+    this.blobFs = new GridFS(mongoTemplate.getDb(), BLOBS_BUCKET);
+    this.blobFiles = mongoTemplate.getCollection(BLOB_FILES_COLLECTION);
+    this.blobChunks = mongoTemplate.getCollection(BLOB_CHUNKS_COLLECTION);
+    this.files = mongoTemplate.getCollection(GRIDFS_FILES_COLLECTION);
+    this.chunks = mongoTemplate.getCollection(GRIDFS_CHUNKS_COLLECTION);
+    this.collapsedChunks = mongoTemplate.getCollection(COLLAPSED_CHUNKS_COLLECTION);
+
+    try {
+      blobFiles.createIndex(new BasicDBObject(FILENAME_KEY, 1), new BasicDBObject("unique", true));
+    } catch (MongoException e) {
+      LOGGER.warn("could not create unique index on SHA-256 of blobs, remove duplicate blobs first", e);
+    }
+    files.createIndex(new BasicDBObject(METADATA_SHA256_KEY, 1));
+  }
+
+  /**
+   * @return the id of the blob holding the content of the given file, or <code>null</code> if it owns its chunks
+   */
+  public static Object getBlobId(GridFSFile file) {
+    DBObject metaData = file.getMetaData();
+    return (metaData == null) ? null : metaData.get(BLOB_KEY);
+  }
+
+  /**
+   * @return the blob with the given SHA-256 after adding a reference to it, or <code>null</code> if there is none
+   */
+  public GridFSDBFile reference(String sha256Hash) {
+    DBObject blob = blobFiles.findAndModify(
+      new BasicDBObject(FILENAME_KEY, sha256Hash).append(METADATA_REF_COUNT_KEY, new BasicDBObject("$gt", 0)),
+      null, null, false, increment(1), true, false);
+    if (blob == null) {
+      return null;
+    }
+
+    reusedBlobs.incrementAndGet();
+    return blobFs.findOne(new BasicDBObject(ID_KEY, blob.get(ID_KEY)));
+  }
+
+  /**
+   * @return a new blob to write the content to, which is stored by {@link #store}
+   */
+  public GridFsChunkOutputStream create(String contentType) {
+    return (chunkWriter == null) ? sequential(blobChunks) : chunkWriter.open(blobChunks, contentType);
+  }
+
+  /**
+   * Stores a blob created by {@link #create} with one reference, after all content has been written. If a blob with
+   * the same SHA-256 has been stored in the meantime, that one is referenced and the new one is discarded.
+   */
+  public GridFSDBFile store(GridFsChunkOutputStream blob, String sha256Hash) throws IOException {
+    blob.close();
+    GridFSDBFile existingBlob = insertOrReference(
+      blob.createFilesDocument(sha256Hash, null, new BasicDBObject(REF_COUNT_KEY, 1)));
+    if (existingBlob != null) {
+      blob.discard();
+      return existingBlob;
+    }
+    return blobFs.findOne(new BasicDBObject(ID_KEY, blob.getFilesId()));
+  }
+
+  /**
+   * Removes the chunks of a blob created by {@link #create} that is not going to be stored.
+   */
+  public void discard(GridFsChunkOutputStream blob) {
+    blob.discard();
+  }
+
+  /**
+   * Removes chunks written by {@link #writeChunk} that are not going to be adopted.
+   */
+  public void discard(Object blobId) {
+    blobChunks.remove(new BasicDBObject(FILES_ID_KEY, blobId));
+  }
+
+  /**
+   * Removes chunks written by {@link #writeChunk}, unless they have been adopted as blob.
+   */
+  public void discardUnlessAdopted(ObjectId blobId) {
+    if (blobFiles.findOne(new BasicDBObject(ID_KEY, blobId), new BasicDBObject(ID_KEY, 1)) == null) {
+      discard(blobId);
+    }
+  }
+
+  /**
+   * Writes a chunk of a blob that is stored by {@link #adopt} later, replacing a previous version of the chunk.
+   */
+  public void writeChunk(ObjectId blobId, int chunkIndex, byte[] data, int length) {
+    DBObject query = new BasicDBObject(FILES_ID_KEY, blobId).append(CHUNK_INDEX_KEY, chunkIndex);
+    blobChunks.update(query, new BasicDBObject(FILES_ID_KEY, blobId).append(CHUNK_INDEX_KEY, chunkIndex)
+      .append(DATA_KEY, copyOf(data, length)), true, false);
+  }
+
+  /**
+   * @return the content of a chunk written by {@link #writeChunk}
+   */
+  public byte[] readChunk(ObjectId blobId, int chunkIndex) throws IOException {
+    DBObject chunk = blobChunks.findOne(new BasicDBObject(FILES_ID_KEY, blobId).append(CHUNK_INDEX_KEY, chunkIndex));
+    if (chunk == null) {
+      throw new IOException("missing chunk " + chunkIndex + " of blob " + blobId);
+    }
+    return (byte[]) chunk.get(DATA_KEY);
+  }
+
+  public GridFsChunkInputStream openChunks(ObjectId blobId, long length, int chunkSize) {
+    return new GridFsChunkInputStream(blobChunks, blobId, length, chunkSize, 0, DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * Stores the chunks of a finished upload as blob with one reference, without copying them. If a blob with the same
+   * SHA-256 has been stored in the meantime, that one is referenced instead and the chunks are left to the caller.
+   */
+  public GridFSDBFile adopt(UploadedChunks chunks) {
+    GridFSDBFile existingBlob = insertOrReference(new BasicDBObject(ID_KEY, chunks.getBlobId())
+      .append(FILENAME_KEY, chunks.getSha256Hash())
+      .append("length", chunks.getLength())
+      .append("chunkSize", chunks.getChunkSize())
+      .append("uploadDate", new Date())
+      .append("md5", chunks.getMd5Hash())
+      .append("metadata", new BasicDBObject(REF_COUNT_KEY, 1)));
+    if (existingBlob != null) {
+      return existingBlob;
+    }
+    return blobFs.findOne(new BasicDBObject(ID_KEY, chunks.getBlobId()));
+  }
+
+  /**
+   * Reverts {@link #adopt}, keeping the chunks. If the blob has been referenced in the meantime, only the reference
+   * is released and the chunks stay with the blob.
+   */
+  public void unadopt(UploadedChunks chunks) {
+    int removed = blobFiles.remove(new BasicDBObject(ID_KEY, chunks.getBlobId())
+      .append(METADATA_REF_COUNT_KEY, 1)).getN();
+    if (removed > 0) {
+      createdBlobs.decrementAndGet();
+    } else {
+      release(chunks.getBlobId());
+    }
+  }
+
+  /**
+   * Inserts an <code>fs.files</code> entry referencing the given blob, which must hold a reference for it.
+   */
+  public ObjectId insertEntry(GridFSFile blob, String filename, String contentType, DBObject metaData) {
+    metaData.put(BLOB_KEY, blob.getId());
+
+    ObjectId id = new ObjectId();
+    files.insert(new BasicDBObject(ID_KEY, id)
+      .append(FILENAME_KEY, filename)
+      .append("contentType", contentType)
+      .append("length", blob.getLength())
+      .append("chunkSize", blob.getChunkSize())
+      .append("uploadDate", new Date())
+      .append("md5", blob.getMD5())
+      .append("metadata", metaData));
+    return id;
+  }
+
+  /**
+   * Releases the reference of a removed entry and removes the blob, if it was the last one.
+   *
+   * @return <code>true</code> if the blob has been removed
+   */
+  public boolean release(Object blobId) {
+    DBObject blob = blobFiles.findAndModify(new BasicDBObject(ID_KEY, blobId), null, null, false, increment(-1),
+      true, false);
+    if (blob == null) {
+      LOGGER.warn("released unknown blob {}", blobId);
+      return false;
+    }
+    if (refCount(blob) > 0) {
+      return false;
+    }
+
+    int removed = blobFiles.remove(new BasicDBObject(ID_KEY, blobId)
+      .append(METADATA_REF_COUNT_KEY, new BasicDBObject("$lte", 0))).getN();
+    if (removed == 0) {
+      return false;
+    }
+
+    blobChunks.remove(new BasicDBObject(FILES_ID_KEY, blobId));
+    removedBlobs.incrementAndGet();
+    LOGGER.info("removed unreferenced blob {} ({} bytes)", blob.get(FILENAME_KEY), blob.get("length"));
+    return true;
+  }
+
+  /**
+   * Turns all RPMs in <code>fs.files</code> with the same SHA-256, which still own their chunks, into references
+   * to a single blob. Their chunks are removed by {@link #removeChunksCollapsedBefore} later, because downloads
+   * started before still read them. RPMs whose content is unique are left untouched.
+   */
+  public DeduplicationReport collapseDuplicates() {
+    DeduplicationReport report = new DeduplicationReport();
+    DBCursor cursor = files.find(
+      new BasicDBObject(METADATA_SHA256_KEY, new BasicDBObject("$ne", null))
+        .append(FILENAME_KEY, new BasicDBObject("$regex", ENDS_WITH_RPM_REGEX)),
+      new BasicDBObject(METADATA_SHA256_KEY, 1).append(METADATA_BLOB_KEY, 1).append("length", 1)
+        .append("chunkSize", 1).append("md5", 1))
+      .sort(new BasicDBObject(METADATA_SHA256_KEY, 1));
+    try {
+      String sha256Hash = null;
+      List<DBObject> owners = new ArrayList<>();
+      while (cursor.hasNext()) {
+        DBObject entry = cursor.next();
+        String entrySha256Hash = (String) ((DBObject) entry.get("metadata")).get(SHA256_KEY);
+        if (!entrySha256Hash.equals(sha256Hash)) {
+          collapse(sha256Hash, owners, report);
+          sha256Hash = entrySha256Hash;
+          owners = new ArrayList<>();
+        }
+        if (((DBObject) entry.get("metadata")).get(BLOB_KEY) == null) {
+          owners.add(entry);
+        }
+      }
+      collapse(sha256Hash, owners, report);
+    } finally {
+      cursor.close();
+    }
+
+    LOGGER.info("deduplication finished: {}", report);
+    return report;
+  }
+
+  private void collapse(String sha256Hash, List<DBObject> owners, DeduplicationReport report) {
+    if (owners.isEmpty()) {
+      return;
+    }
+
+    DBObject blob = blobFiles.findAndModify(
+      new BasicDBObject(FILENAME_KEY, sha256Hash).append(METADATA_REF_COUNT_KEY, new BasicDBObject("$gt", 0)),
+      null, null, false, increment(1), true, false);
+    long reclaimedBytes = 0;
+    if (blob == null) {
+      if (owners.size() < 2) {
+        return;
+      }
+      DBObject copiedBlob = copyToBlob(owners.get(0), sha256Hash);
+      try {
+        blob = insertOrReference(copiedBlob);
+      } catch (MongoException e) {
+        discard(copiedBlob.get(ID_KEY));
+        throw e;
+      }
+      if (blob == null) {
+        blob = copiedBlob;
+        reclaimedBytes -= length(blob);
+      } else {
+        discard(copiedBlob.get(ID_KEY));
+      }
+    }
+
+    Object blobId = blob.get(ID_KEY);
+    Date collapsed = new Date();
+    for (DBObject owner : owners) {
+      blobFiles.update(new BasicDBObject(ID_KEY, blobId), increment(1));
+      int referenced = files.update(
+        new BasicDBObject(ID_KEY, owner.get(ID_KEY)).append(METADATA_BLOB_KEY, null),
+        new BasicDBObject("$set", new BasicDBObject(METADATA_BLOB_KEY, blobId))).getN();
+      if (referenced == 0) {
+        release(blobId);
+        continue;
+      }
+
+      collapsedChunks.insert(new BasicDBObject(ID_KEY, owner.get(ID_KEY)).append(COLLAPSED_KEY, collapsed));
+      reclaimedBytes += length(owner);
+      report.addCollapsedFile();
+    }
+
+    release(blobId);
+    report.addChecksum(reclaimedBytes);
+  }
+
+  /**
+   * Removes the chunks of entries collapsed into a blob by {@link #collapseDuplicates} before the given date.
+   */
+  public void removeChunksCollapsedBefore(Date before) {
+    DBCursor cursor = collapsedChunks.find(new BasicDBObject(COLLAPSED_KEY, new BasicDBObject("$lt", before)));
+    try {
+      while (cursor.hasNext()) {
+        Object ownerId = cursor.next().get(ID_KEY);
+        chunks.remove(new BasicDBObject(FILES_ID_KEY, ownerId));
+        collapsedChunks.remove(new BasicDBObject(ID_KEY, ownerId));
+        LOGGER.info("removed chunks of collapsed file {}", ownerId);
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Inserts the files document of a new blob with one reference.
+   *
+   * @return the blob with the same SHA-256 stored in the meantime after adding a reference to it, or
+   *         <code>null</code> if the new blob has been inserted
+   */
+  private GridFSDBFile insertOrReference(DBObject blob) {
+    String sha256Hash = (String) blob.get(FILENAME_KEY);
+    for (int attempt = 1; ; attempt++) {
+      try {
+        blobFiles.insert(blob);
+        createdBlobs.incrementAndGet();
+        return null;
+      } catch (MongoException e) {
+        if (!isDuplicateKey(e) || (attempt == MAX_INSERT_ATTEMPTS)) {
+          throw e;
+        }
+      }
+
+      GridFSDBFile existingBlob = reference(sha256Hash);
+      if (existingBlob != null) {
+        return existingBlob;
+      }
+      removeUnreferenced(sha256Hash);
+    }
+  }
+
+  /**
+   * Completes the removal of a blob whose last reference has been released, which blocks a new blob with its SHA-256.
+   */
+  private void removeUnreferenced(String sha256Hash) {
+    DBObject blob = blobFiles.findAndRemove(new BasicDBObject(FILENAME_KEY, sha256Hash)
+      .append(METADATA_REF_COUNT_KEY, new BasicDBObject("$lte", 0)));
+    if (blob != null) {
+      blobChunks.remove(new BasicDBObject(FILES_ID_KEY, blob.get(ID_KEY)));
+      removedBlobs.incrementAndGet();
+    }
+  }
+
+  private DBObject copyToBlob(DBObject owner, String sha256Hash) {
+    ObjectId blobId = new ObjectId();
+    DBCursor ownerChunks = chunks.find(new BasicDBObject(FILES_ID_KEY, owner.get(ID_KEY)))
+      .sort(new BasicDBObject(CHUNK_INDEX_KEY, 1));
+    try {
+      while (ownerChunks.hasNext()) {
+        DBObject chunk = ownerChunks.next();
+        blobChunks.insert(new BasicDBObject(FILES_ID_KEY, blobId)
+          .append(CHUNK_INDEX_KEY, chunk.get(CHUNK_INDEX_KEY))
+          .append(DATA_KEY, chunk.get(DATA_KEY)));
+      }
+    } finally {
+      ownerChunks.close();
+    }
+
+    return new BasicDBObject(ID_KEY, blobId)
+      .append(FILENAME_KEY, sha256Hash)
+      .append("length", owner.get("length"))
+      .append("chunkSize", owner.get("chunkSize"))
+      .append("uploadDate", new Date())
+      .append("md5", owner.get("md5"))
+      .append("metadata", new BasicDBObject(REF_COUNT_KEY, 1));
+  }
+
+  @Autowired(required = false)
+  public void setChunkWriter(GridFsChunkWriter chunkWriter) {
+    this.chunkWriter = chunkWriter;
+  }
+
+  @ManagedAttribute
+  public long getReusedBlobs() {
+    return reusedBlobs.get();
+  }
+
+  @ManagedAttribute
+  public long getCreatedBlobs() {
+    return createdBlobs.get();
+  }
+
+  @ManagedAttribute
+  public long getRemovedBlobs() {
+    return removedBlobs.get();
+  }
+
+  @ManagedAttribute
+  public long getBlobCount() {
+    return blobFiles.count();
+  }
+
+  private static DBObject increment(int delta) {
+    return new BasicDBObject("$inc", new BasicDBObject(METADATA_REF_COUNT_KEY, delta));
+  }
+
+  private static boolean isDuplicateKey(MongoException e) {
+    return (e.getCode() == 11000) || (e.getCode() == 11001);
+  }
+
+  private static int refCount(DBObject blob) {
+    Object refCount = ((DBObject) blob.get("metadata")).get(REF_COUNT_KEY);
+    return (refCount == null) ? 0 : ((Number) refCount).intValue();
+  }
+
+  private static long length(DBObject file) {
+    return ((Number) file.get("length")).longValue();
+  }
+}
@@ -1,35 +1,51 @@
 package de.is24.infrastructure.gridfs.http.gridfs;
 
+import de.is24.infrastructure.gridfs.http.cache.CachedFileStorageItem;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
-import org.apache.commons.io.input.BoundedInputStream;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.AbstractResource;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Date;
 
 import static java.lang.Math.min;
 
-public class BoundedGridFsResource extends InputStreamResource {
+
+/**
+ * A range of a stored file. The content is only read from the storage when {@link #getInputStream()} is called,
+ * so responses without body (304, HEAD) do not touch any chunks.
+ */
+public class BoundedGridFsResource extends AbstractResource {
   private final FileStorageItem storageItem;
   private final long length;
   private final long startPos;
 
-  public BoundedGridFsResource(FileStorageItem storageItem, long startPos) throws IOException {
-    super(skip(storageItem.getInputStream(), startPos));
-    this.storageItem = storageItem;
-    this.startPos = startPos;
-    this.length = storageItem.getSize() - startPos;
+  public BoundedGridFsResource(FileStorageItem storageItem, long startPos) {
+    this(storageItem, startPos, storageItem.getSize() - startPos);
   }
 
-  public BoundedGridFsResource(FileStorageItem storageItem, long startPos, long length) throws IOException {
-    super(new BoundedInputStream(skip(storageItem.getInputStream(), startPos), length));
+  public BoundedGridFsResource(FileStorageItem storageItem, long startPos, long length) {
     this.storageItem = storageItem;
     this.length = length;
     this.startPos = startPos;
   }
 
   @Override
-  public long contentLength() throws IOException {
+  public InputStream getInputStream() throws IOException {
+    if (startPos + length >= storageItem.getSize()) {
+      return storageItem.getInputStream(startPos);
+    }
+    return storageItem.getInputStream(startPos, length);
+  }
+
+  @Override
+  public boolean exists() {
+    return true;
+  }
+
+  @Override
+  public long contentLength() {
     return min(storageItem.getSize() - startPos, length);
   }
 
@@ -40,7 +56,16 @@ public class BoundedGridFsResource extends InputStreamResource {
 
   @Override
   public long lastModified() throws IOException {
-    return storageItem.getUploadDate().getTime();
+    return getUploadDate().getTime();
+  }
+
+  @Override
+  public String getDescription() {
+    return "GridFS file [" + storageItem.getFilename() + "] from " + startPos;
+  }
+
+  public long getStartPos() {
+    return startPos;
   }
 
   public long getFileLength() {
@@ -51,8 +76,27 @@ public class BoundedGridFsResource extends InputStreamResource {
     return storageItem.getContentType();
   }
 
-  private static InputStream skip(InputStream inputStream, long startPos) throws IOException {
-    inputStream.skip(startPos);
-    return inputStream;
+  public String getChecksumSha256() {
+    return storageItem.getChecksumSha256();
+  }
+
+  public Date getUploadDate() {
+    return storageItem.getUploadDate();
+  }
+
+  /**
+   * @return the file on the local disk holding the content, if it is cached there, or null. The file is pinned in
+   * the cache for long enough to be opened by name after the request.
+   */
+  public File pinLocalFile() {
+    return (storageItem instanceof CachedFileStorageItem) ? ((CachedFileStorageItem) storageItem).pinCacheFile()
+                                                          : null;
+  }
+
+  /**
+   * @return a range of the same stored file, without looking it up again
+   */
+  public BoundedGridFsResource range(long startPos, long length) {
+    return new BoundedGridFsResource(storageItem, startPos, length);
   }
 }
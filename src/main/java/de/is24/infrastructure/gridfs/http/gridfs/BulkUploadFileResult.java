@@ -0,0 +1,70 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+
+import static org.springframework.http.HttpStatus.CREATED;
+
+
+/**
+ * The outcome for a single file of a bulk upload.
+ */
+public class BulkUploadFileResult {
+  private final String name;
+  private final int status;
+  private final String path;
+  private final String sha256;
+  private final long size;
+  private final String message;
+
+  private BulkUploadFileResult(String name, int status, String path, String sha256, long size, String message) {
+    this.name = name;
+    this.status = status;
+    this.path = path;
+    this.sha256 = sha256;
+    this.size = size;
+    this.message = message;
+  }
+
+  public static BulkUploadFileResult stored(String name, YumEntry yumEntry) {
+    YumPackage yumPackage = yumEntry.getYumPackage();
+    return new BulkUploadFileResult(name, CREATED.value(),
+      yumEntry.getRepo() + "/" + yumPackage.getLocation().getHref(), yumPackage.getChecksum().getChecksum(),
+      yumPackage.getSize().getPackaged(), null);
+  }
+
+  public static BulkUploadFileResult failed(String name, int status, String message) {
+    return new BulkUploadFileResult(name, status, null, null, -1, message);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the HTTP status a single upload of the file would have been answered with
+   */
+  public int getStatus() {
+    return status;
+  }
+
+  public boolean isStored() {
+    return status == CREATED.value();
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public String getSha256() {
+    return sha256;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+}
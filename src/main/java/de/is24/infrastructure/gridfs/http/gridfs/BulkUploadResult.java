@@ -0,0 +1,37 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The manifest of a bulk upload, listing the outcome of every file in the order of the upload.
+ */
+public class BulkUploadResult {
+  private final String repo;
+  private final List<BulkUploadFileResult> files = new ArrayList<>();
+
+  public BulkUploadResult(String repo) {
+    this.repo = repo;
+  }
+
+  public void add(BulkUploadFileResult file) {
+    files.add(file);
+  }
+
+  public String getRepo() {
+    return repo;
+  }
+
+  public int getStored() {
+    return (int) files.stream().filter(BulkUploadFileResult::isStored).count();
+  }
+
+  public int getFailed() {
+    return files.size() - getStored();
+  }
+
+  public List<BulkUploadFileResult> getFiles() {
+    return files;
+  }
+}
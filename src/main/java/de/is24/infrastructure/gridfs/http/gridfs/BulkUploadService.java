@@ -0,0 +1,261 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.metadata.YumEntriesRepository;
+import de.is24.infrastructure.gridfs.http.repos.RepoService;
+import de.is24.util.monitoring.InApplicationMonitor;
+import de.is24.util.monitoring.spring.TimeMeasurement;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.concurrent.DelegatingSecurityContextCallable;
+import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+import static de.is24.infrastructure.gridfs.http.repos.RepositoryNameValidator.validateRepoName;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.io.IOUtils.copyLarge;
+import static org.springframework.core.annotation.AnnotationUtils.findAnnotation;
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+
+
+/**
+ * Stores many RPMs into one repository at once. Header parsing, hashing and storing of the files run in parallel,
+ * the yum entries are saved with a single bulk insert and the repository is updated once for the whole batch.
+ * Files of a tar stream are spooled, in memory up to a threshold or to a temporary file, so that the stream can be
+ * read on while the preceding files are stored. The number of spooled files is bounded by twice the number of
+ * threads.
+ */
+@ManagedResource
+@Service
+public class BulkUploadService {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BulkUploadService.class);
+  private static final int MB = 1024 * 1024;
+
+  private final StorageService storageService;
+  private final YumEntriesRepository yumEntriesRepository;
+  private final RepoService repoService;
+  private final ThreadPoolExecutor executor;
+  private volatile int spoolThresholdInMb;
+
+  @Autowired
+  public BulkUploadService(StorageService storageService, YumEntriesRepository yumEntriesRepository,
+                           RepoService repoService,
+                           @Value("${upload.bulk.threads:0}") int threads,
+                           @Value("${upload.bulk.spool.threshold.mb:16}") int spoolThresholdInMb) {
+    this.storageService = storageService;
+    this.yumEntriesRepository = yumEntriesRepository;
+    this.repoService = repoService;
+    this.spoolThresholdInMb = spoolThresholdInMb;
+
+    int poolSize = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+    this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60, SECONDS, new LinkedBlockingQueue<>(),
+      new CustomizableThreadFactory("bulk-upload-"));
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Stores all regular files of the given tar stream as RPMs.
+   */
+  @TimeMeasurement
+  public BulkUploadResult storeRpmsFromTar(String reponame, InputStream inputStream) throws IOException {
+    validateRepoName(reponame);
+
+    TarArchiveInputStream tarInputStream = new TarArchiveInputStream(inputStream);
+    Batch batch = new Batch(reponame);
+    try {
+      TarArchiveEntry entry;
+      while ((entry = tarInputStream.getNextTarEntry()) != null) {
+        if (entry.isFile()) {
+          batch.submit(entry.getName(), spool(tarInputStream));
+        }
+      }
+    } finally {
+      batch.complete();
+    }
+    return batch.getResult();
+  }
+
+  /**
+   * Stores all given files as RPMs.
+   */
+  @TimeMeasurement
+  public BulkUploadResult storeRpms(String reponame, List<MultipartFile> files) throws IOException {
+    validateRepoName(reponame);
+
+    Batch batch = new Batch(reponame);
+    try {
+      for (MultipartFile file : files) {
+        batch.submit(file.getOriginalFilename(), new SpooledFile(file::getInputStream, null));
+      }
+    } finally {
+      batch.complete();
+    }
+    return batch.getResult();
+  }
+
+  @ManagedAttribute
+  public int getThreads() {
+    return executor.getMaximumPoolSize();
+  }
+
+  @ManagedAttribute
+  public int getActiveUploads() {
+    return executor.getActiveCount();
+  }
+
+  @ManagedAttribute
+  public int getSpoolThresholdInMb() {
+    return spoolThresholdInMb;
+  }
+
+  @ManagedAttribute
+  public void setSpoolThresholdInMb(int spoolThresholdInMb) {
+    this.spoolThresholdInMb = spoolThresholdInMb;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private SpooledFile spool(InputStream inputStream) throws IOException {
+    DeferredFileOutputStream outputStream = new DeferredFileOutputStream(spoolThresholdInMb * MB, "bulk-upload-",
+      ".rpm", null);
+    try {
+      copyLarge(inputStream, outputStream);
+    } finally {
+      outputStream.close();
+    }
+
+    if (outputStream.isInMemory()) {
+      return new SpooledFile(new ByteArrayResource(outputStream.getData()), null);
+    }
+    return new SpooledFile(new FileSystemResource(outputStream.getFile()), outputStream.getFile());
+  }
+
+  private static int statusOf(Exception e) {
+    ResponseStatus responseStatus = findAnnotation(e.getClass(), ResponseStatus.class);
+    return (responseStatus == null) ? INTERNAL_SERVER_ERROR.value() : responseStatus.value().value();
+  }
+
+  private static class SpooledFile {
+    private final InputStreamSource source;
+    private final File tempFile;
+
+    SpooledFile(InputStreamSource source, File tempFile) {
+      this.source = source;
+      this.tempFile = tempFile;
+    }
+
+    InputStream getInputStream() throws IOException {
+      return source.getInputStream();
+    }
+
+    void dispose() {
+      if ((tempFile != null) && !tempFile.delete()) {
+        LOGGER.warn("could not delete spooled file {}", tempFile);
+      }
+    }
+  }
+
+  private class Batch {
+    private final String reponame;
+    private final Semaphore spooledFiles = new Semaphore(2 * executor.getMaximumPoolSize());
+    private final List<Future<BulkUploadFileResult>> futures = new ArrayList<>();
+    private final Queue<YumEntry> yumEntries = new ConcurrentLinkedQueue<>();
+    private final BulkUploadResult result;
+
+    Batch(String reponame) {
+      this.reponame = reponame;
+      this.result = new BulkUploadResult(reponame);
+    }
+
+    void submit(String name, SpooledFile file) throws InterruptedIOException {
+      try {
+        spooledFiles.acquire();
+      } catch (InterruptedException e) {
+        file.dispose();
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while waiting for stored files");
+      }
+      futures.add(executor.submit(DelegatingSecurityContextCallable.create(() -> {
+          try {
+            return store(name, file);
+          } finally {
+            file.dispose();
+            spooledFiles.release();
+          }
+        }, null)));
+    }
+
+    void complete() {
+      for (Future<BulkUploadFileResult> future : futures) {
+        try {
+          result.add(getUninterruptibly(future));
+        } catch (ExecutionException e) {
+          LOGGER.error("bulk upload to {} failed", reponame, e);
+        }
+      }
+
+      if (!yumEntries.isEmpty()) {
+        insertYumEntries();
+        repoService.createOrUpdate(reponame);
+      }
+      LOGGER.info("Stored {} of {} RPMs in {}", result.getStored(), result.getFiles().size(), reponame);
+    }
+
+    BulkUploadResult getResult() {
+      return result;
+    }
+
+    private BulkUploadFileResult store(String name, SpooledFile file) {
+      try(InputStream inputStream = file.getInputStream()) {
+        YumEntry yumEntry = storageService.storeRpmFile(reponame, inputStream);
+        yumEntries.add(yumEntry);
+        InApplicationMonitor.getInstance().incrementCounter(BulkUploadService.class.getName() + ".stored");
+        return BulkUploadFileResult.stored(name, yumEntry);
+      } catch (Exception e) {
+        LOGGER.info("could not store {} in {}: {}", name, reponame, e.getMessage());
+        InApplicationMonitor.getInstance().incrementCounter(BulkUploadService.class.getName() + ".failed");
+        return BulkUploadFileResult.failed(name, statusOf(e), e.getMessage());
+      }
+    }
+
+    private void insertYumEntries() {
+      try {
+        yumEntriesRepository.insertAll(yumEntries);
+      } catch (RuntimeException e) {
+        LOGGER.warn("bulk insert of {} yum entries failed, saving them one by one", yumEntries.size(), e);
+        yumEntries.forEach(yumEntry -> yumEntriesRepository.save(yumEntry));
+      }
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import static org.apache.commons.io.FileUtils.byteCountToDisplaySize;
+
+
+/**
+ * Outcome of {@link BlobStore#collapseDuplicates()}.
+ */
+public class DeduplicationReport {
+  private int checksums;
+  private int collapsedFiles;
+  private long reclaimedBytes;
+
+  void addChecksum(long reclaimedBytesOfChecksum) {
+    checksums++;
+    reclaimedBytes += reclaimedBytesOfChecksum;
+  }
+
+  void addCollapsedFile() {
+    collapsedFiles++;
+  }
+
+  public int getChecksums() {
+    return checksums;
+  }
+
+  public int getCollapsedFiles() {
+    return collapsedFiles;
+  }
+
+  public long getReclaimedBytes() {
+    return reclaimedBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "collapsed " + collapsedFiles + " files with " + checksums + " distinct checksums, reclaimed " +
+      byteCountToDisplaySize(reclaimedBytes) + " (" + reclaimedBytes + " bytes)";
+  }
+}
@@ -0,0 +1,214 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.gridfs.GridFSFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.mongodb.gridfs.GridFSUtil.getChunksCollection;
+import static de.is24.infrastructure.gridfs.http.gridfs.BlobStore.getBlobId;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.BLOBS_BUCKET;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+
+/**
+ * Reads the chunks of a GridFS file starting at an arbitrary byte position. Only the chunks
+ * with <code>n &gt;= startPos / chunkSize</code> are fetched from <code>fs.chunks</code>,
+ * using a single cursor sorted by <code>n</code> that fetches <code>batchSize</code> chunks per round trip.
+ * A stream {@link #limit(long) limited} to a range stops at the last chunk overlapping the range.
+ * Files referencing a blob of the {@link BlobStore} are read from the chunks of that blob.
+ */
+public class GridFsChunkInputStream extends InputStream {
+  private static final Logger LOGGER = LoggerFactory.getLogger(GridFsChunkInputStream.class);
+  public static final int DEFAULT_BATCH_SIZE = 8;
+  static final String FILES_ID_KEY = "files_id";
+  static final String CHUNK_INDEX_KEY = "n";
+  static final String DATA_KEY = "data";
+
+  private final DBCollection chunksCollection;
+  private final Object fileId;
+  private final long length;
+  private final long chunkSize;
+  private final int batchSize;
+
+  private long position;
+  private long end;
+  private DBCursor cursor;
+  private byte[] chunk;
+  private int chunkIndex = -1;
+  private int offsetInChunk;
+  private long chunksRead;
+  private long bytesRead;
+  private int roundTrips;
+
+  public GridFsChunkInputStream(GridFSFile file, long startPos) {
+    this(file, startPos, DEFAULT_BATCH_SIZE);
+  }
+
+  public GridFsChunkInputStream(GridFSFile file, long startPos, int batchSize) {
+    this(chunksCollectionOf(file), chunksIdOf(file), file.getLength(), file.getChunkSize(), startPos, batchSize);
+  }
+
+  public GridFsChunkInputStream(DBCollection chunksCollection, Object fileId, long length, long chunkSize,
+                                long startPos, int batchSize) {
+    this.chunksCollection = chunksCollection;
+    this.fileId = fileId;
+    this.length = length;
+    this.chunkSize = chunkSize;
+    this.batchSize = max(batchSize, 1);
+    this.position = min(max(startPos, 0), length);
+    this.end = length;
+  }
+
+  /**
+   * Limits the stream to the given number of bytes from the current position. Must be called before reading.
+   */
+  public GridFsChunkInputStream limit(long bytes) {
+    this.end = min(position + max(bytes, 0), length);
+    return this;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureChunk()) {
+      return -1;
+    }
+    position++;
+    bytesRead++;
+    return chunk[offsetInChunk++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureChunk()) {
+      return -1;
+    }
+
+    int bytesToCopy = (int) min(min(len, chunk.length - offsetInChunk), end - position);
+    System.arraycopy(chunk, offsetInChunk, buffer, offset, bytesToCopy);
+    offsetInChunk += bytesToCopy;
+    position += bytesToCopy;
+    bytesRead += bytesToCopy;
+    return bytesToCopy;
+  }
+
+  @Override
+  public long skip(long bytesToSkip) throws IOException {
+    if (bytesToSkip <= 0) {
+      return 0;
+    }
+
+    long newPosition = min(position + bytesToSkip, end);
+    long skipped = newPosition - position;
+    if ((chunk != null) && (chunkIndexOf(newPosition) == chunkIndex)) {
+      offsetInChunk += (int) skipped;
+    } else {
+      closeCursor();
+      chunk = null;
+      chunkIndex = -1;
+    }
+    position = newPosition;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (chunk == null) ? 0 : (int) min(chunk.length - offsetInChunk, end - position);
+  }
+
+  @Override
+  public void close() throws IOException {
+    closeCursor();
+    LOGGER.debug("read {} bytes in {} chunks with {} round trips from file {}", bytesRead, chunksRead, roundTrips,
+      fileId);
+  }
+
+  public long getPosition() {
+    return position;
+  }
+
+  public long getChunksRead() {
+    return chunksRead;
+  }
+
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  public int getRoundTrips() {
+    return roundTrips + ((cursor != null) ? (1 + cursor.numGetMores()) : 0);
+  }
+
+  private boolean ensureChunk() throws IOException {
+    if (position >= end) {
+      return false;
+    }
+    if ((chunk != null) && (offsetInChunk < chunk.length)) {
+      return true;
+    }
+
+    int nextChunkIndex = chunkIndexOf(position);
+    if (cursor == null) {
+      cursor = openCursor(nextChunkIndex);
+    }
+    if (!cursor.hasNext()) {
+      throw new IOException("Missing chunk " + nextChunkIndex + " of file " + fileId);
+    }
+
+    DBObject chunkObject = cursor.next();
+    int index = ((Number) chunkObject.get(CHUNK_INDEX_KEY)).intValue();
+    if (index != nextChunkIndex) {
+      throw new IOException("Expected chunk " + nextChunkIndex + " of file " + fileId + " but got " + index);
+    }
+
+    chunk = (byte[]) chunkObject.get(DATA_KEY);
+    chunkIndex = index;
+    offsetInChunk = (int) (position - (index * chunkSize));
+    chunksRead++;
+    return offsetInChunk < chunk.length;
+  }
+
+  private DBCursor openCursor(int startChunk) {
+    BasicDBObject chunkRange = new BasicDBObject("$gte", startChunk);
+    int cursorBatchSize = batchSize;
+    if (end < length) {
+      int endChunk = chunkIndexOf(end - 1);
+      chunkRange.append("$lte", endChunk);
+      cursorBatchSize = min(batchSize, endChunk - startChunk + 1);
+    }
+
+    DBObject query = new BasicDBObject(FILES_ID_KEY, fileId).append(CHUNK_INDEX_KEY, chunkRange);
+    return chunksCollection.find(query).sort(new BasicDBObject(CHUNK_INDEX_KEY, 1)).batchSize(cursorBatchSize);
+  }
+
+  private int chunkIndexOf(long pos) {
+    return (int) (pos / chunkSize);
+  }
+
+  private void closeCursor() {
+    if (cursor != null) {
+      roundTrips += 1 + cursor.numGetMores();
+      cursor.close();
+      cursor = null;
+    }
+  }
+
+  private static DBCollection chunksCollectionOf(GridFSFile file) {
+    return (getBlobId(file) == null) ? getChunksCollection(file) : getChunksCollection(file, BLOBS_BUCKET);
+  }
+
+  private static Object chunksIdOf(GridFSFile file) {
+    Object blobId = getBlobId(file);
+    return (blobId == null) ? file.getId() : blobId;
+  }
+}
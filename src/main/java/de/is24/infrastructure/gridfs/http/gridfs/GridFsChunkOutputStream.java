@@ -0,0 +1,262 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import static de.is24.infrastructure.gridfs.http.gridfs.GridFsChunkInputStream.CHUNK_INDEX_KEY;
+import static de.is24.infrastructure.gridfs.http.gridfs.GridFsChunkInputStream.DATA_KEY;
+import static de.is24.infrastructure.gridfs.http.gridfs.GridFsChunkInputStream.FILES_ID_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.FILENAME_KEY;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.util.Arrays.copyOf;
+import static org.apache.commons.codec.binary.Hex.encodeHexString;
+import static org.apache.commons.codec.digest.DigestUtils.getMd5Digest;
+
+
+/**
+ * Writes the chunks of a GridFS file, <code>chunksPerInsert</code> chunks per insert. With an executor, up to
+ * <code>maxInFlightInserts</code> inserts are sent while the next chunks are filled, so a write concern waiting for
+ * the replicas delays the upload once per window instead of once per chunk. No files document is written, the
+ * caller inserts the one created by {@link #createFilesDocument} after {@link #close}, so readers never see a
+ * partially written file.
+ */
+public class GridFsChunkOutputStream extends OutputStream {
+  private static final Logger LOGGER = LoggerFactory.getLogger(GridFsChunkOutputStream.class);
+
+  private final DBCollection chunksCollection;
+  private final Object filesId;
+  private final int chunkSize;
+  private final int chunksPerInsert;
+  private final Executor executor;
+  private final int maxInFlightInserts;
+  private final Semaphore inFlightInserts;
+  private final MessageDigest md5Digest = getMd5Digest();
+
+  private byte[] buffer;
+  private int bufferPosition;
+  private int chunkIndex;
+  private long length;
+  private List<DBObject> pendingChunks = new ArrayList<>();
+  private volatile RuntimeException failure;
+  private String md5Hash;
+  private boolean closed;
+
+  /**
+   * @return a stream writing one chunk of the default size per insert from the writing thread, as the GridFS of the
+   * driver does
+   */
+  public static GridFsChunkOutputStream sequential(DBCollection chunksCollection) {
+    return new GridFsChunkOutputStream(chunksCollection, new ObjectId(), GridFsChunkWriter.DEFAULT_CHUNK_SIZE, 1,
+      null, 1);
+  }
+
+  /**
+   * @param executor sends the inserts, or <code>null</code> to send them from the writing thread
+   */
+  public GridFsChunkOutputStream(DBCollection chunksCollection, Object filesId, int chunkSize, int chunksPerInsert,
+                                 Executor executor, int maxInFlightInserts) {
+    this.chunksCollection = chunksCollection;
+    this.filesId = filesId;
+    this.chunkSize = chunkSize;
+    this.chunksPerInsert = max(chunksPerInsert, 1);
+    this.executor = executor;
+    this.maxInFlightInserts = max(maxInFlightInserts, 1);
+    this.inFlightInserts = new Semaphore(this.maxInFlightInserts);
+    this.buffer = new byte[chunkSize];
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int len) throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      int count = min(len, chunkSize - bufferPosition);
+      System.arraycopy(bytes, offset, buffer, bufferPosition, count);
+      bufferPosition += count;
+      offset += count;
+      len -= count;
+      if (bufferPosition == chunkSize) {
+        addChunk();
+      }
+    }
+  }
+
+  /**
+   * Writes the remaining chunks and waits until all inserts have been acknowledged.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    if (bufferPosition > 0) {
+      addChunk();
+    }
+    sendPendingChunks();
+    awaitInserts();
+    buffer = null;
+    md5Hash = encodeHexString(md5Digest.digest());
+
+    if (failure != null) {
+      throw new IOException("Could not write chunks of " + filesId + ".", failure);
+    }
+  }
+
+  /**
+   * Removes all chunks written so far, after waiting for the inserts still in flight.
+   */
+  public void discard() {
+    closed = true;
+    buffer = null;
+    pendingChunks.clear();
+    try {
+      awaitInserts();
+    } catch (InterruptedIOException e) {
+      LOGGER.warn("interrupted while waiting for inserts of discarded chunks of {}", filesId);
+    }
+    chunksCollection.remove(new BasicDBObject(FILES_ID_KEY, filesId));
+  }
+
+  /**
+   * @return the files document for the chunks written by this closed stream, to be inserted by the caller
+   */
+  public DBObject createFilesDocument(String filename, String contentType, DBObject metaData) {
+    if (md5Hash == null) {
+      throw new IllegalStateException("Chunks of " + filesId + " are not completely written.");
+    }
+
+    return new BasicDBObject("_id", filesId)
+      .append(FILENAME_KEY, filename)
+      .append("contentType", contentType)
+      .append("length", length)
+      .append("chunkSize", (long) chunkSize)
+      .append("uploadDate", new Date())
+      .append("md5", md5Hash)
+      .append("metadata", metaData);
+  }
+
+  public Object getFilesId() {
+    return filesId;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public String getMD5() {
+    return md5Hash;
+  }
+
+  private void addChunk() throws IOException {
+    byte[] data = (bufferPosition == chunkSize) ? buffer : copyOf(buffer, bufferPosition);
+    md5Digest.update(data);
+    length += bufferPosition;
+    pendingChunks.add(new BasicDBObject(FILES_ID_KEY, filesId)
+      .append(CHUNK_INDEX_KEY, chunkIndex++)
+      .append(DATA_KEY, data));
+
+    if (data == buffer) {
+      buffer = new byte[chunkSize];
+    }
+    bufferPosition = 0;
+
+    if (pendingChunks.size() >= chunksPerInsert) {
+      sendPendingChunks();
+    }
+  }
+
+  private void sendPendingChunks() throws IOException {
+    if (pendingChunks.isEmpty()) {
+      return;
+    }
+
+    List<DBObject> chunks = pendingChunks;
+    pendingChunks = new ArrayList<>(chunksPerInsert);
+    if (executor == null) {
+      chunksCollection.insert(chunks);
+      return;
+    }
+
+    acquireInsert();
+    try {
+      executor.execute(() -> insert(chunks));
+    } catch (RejectedExecutionException e) {
+      inFlightInserts.release();
+      throw new IOException("Could not send chunks of " + filesId + ".", e);
+    }
+  }
+
+  private void insert(List<DBObject> chunks) {
+    try {
+      if (failure == null) {
+        chunksCollection.insert(chunks);
+      }
+    } catch (RuntimeException e) {
+      failure = e;
+    } finally {
+      inFlightInserts.release();
+    }
+  }
+
+  private void acquireInsert() throws IOException {
+    try {
+      inFlightInserts.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for inserts of chunks of " + filesId);
+    }
+    if (failure != null) {
+      inFlightInserts.release();
+      throw new IOException("Could not write chunks of " + filesId + ".", failure);
+    }
+  }
+
+  private void awaitInserts() throws InterruptedIOException {
+    if (executor == null) {
+      return;
+    }
+
+    try {
+      inFlightInserts.acquire(maxInFlightInserts);
+      inFlightInserts.release(maxInFlightInserts);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for inserts of chunks of " + filesId);
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Chunks of " + filesId + " are already written.");
+    }
+    if (failure != null) {
+      throw new IOException("Could not write chunks of " + filesId + ".", failure);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import com.mongodb.DBCollection;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static java.util.Collections.unmodifiableMap;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.lang.StringUtils.isBlank;
+import static org.apache.commons.lang.StringUtils.split;
+import static org.apache.commons.lang.StringUtils.trim;
+
+
+/**
+ * Opens {@link GridFsChunkOutputStream}s with a chunk size depending on the content type of the file, e.g. large
+ * chunks for RPMs and small ones for XML. The inserts of all streams are sent by a shared pool of threads.
+ */
+@ManagedResource
+@Service
+public class GridFsChunkWriter {
+  public static final int DEFAULT_CHUNK_SIZE = 255 * 1024;
+  private static final int KB = 1024;
+
+  private final Map<String, Integer> chunkSizes;
+  private final ThreadPoolExecutor executor;
+  private volatile int chunksPerInsert;
+  private volatile int maxInFlightInserts;
+
+  @Autowired
+  public GridFsChunkWriter(@Value("${gridfs.write.chunk.sizes.kb:application/x-rpm=1024,application/xml=64}") String chunkSizes,
+                           @Value("${gridfs.write.chunks.per.insert:4}") int chunksPerInsert,
+                           @Value("${gridfs.write.max.inflight.inserts:2}") int maxInFlightInserts,
+                           @Value("${gridfs.write.threads:0}") int threads) {
+    this.chunkSizes = parseChunkSizes(chunkSizes);
+    this.chunksPerInsert = chunksPerInsert;
+    this.maxInFlightInserts = maxInFlightInserts;
+
+    int poolSize = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+    this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60, SECONDS, new LinkedBlockingQueue<>(),
+      new CustomizableThreadFactory("gridfs-write-"));
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @return a stream writing the chunks of a new file with the given content type to the given collection
+   */
+  public GridFsChunkOutputStream open(DBCollection chunksCollection, String contentType) {
+    return new GridFsChunkOutputStream(chunksCollection, new ObjectId(), getChunkSize(contentType), chunksPerInsert,
+      (maxInFlightInserts > 0) ? executor : null, maxInFlightInserts);
+  }
+
+  public int getChunkSize(String contentType) {
+    Integer chunkSize = chunkSizes.get(contentType);
+    return (chunkSize == null) ? DEFAULT_CHUNK_SIZE : chunkSize;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  @ManagedAttribute
+  public int getChunksPerInsert() {
+    return chunksPerInsert;
+  }
+
+  @ManagedAttribute
+  public void setChunksPerInsert(int chunksPerInsert) {
+    this.chunksPerInsert = chunksPerInsert;
+  }
+
+  @ManagedAttribute
+  public int getMaxInFlightInserts() {
+    return maxInFlightInserts;
+  }
+
+  @ManagedAttribute
+  public void setMaxInFlightInserts(int maxInFlightInserts) {
+    this.maxInFlightInserts = maxInFlightInserts;
+  }
+
+  @ManagedAttribute
+  public Map<String, Integer> getChunkSizes() {
+    return chunkSizes;
+  }
+
+  @ManagedAttribute
+  public int getActiveInserts() {
+    return executor.getActiveCount();
+  }
+
+  private static Map<String, Integer> parseChunkSizes(String chunkSizes) {
+    Map<String, Integer> parsed = new HashMap<>();
+    for (String entry : split(chunkSizes, ',')) {
+      if (isBlank(entry)) {
+        continue;
+      }
+
+      String[] keyValue = split(entry, '=');
+      if (keyValue.length != 2) {
+        throw new IllegalArgumentException("Chunk size must be given as <content type>=<size in KB>, but was: " +
+          entry);
+      }
+      parsed.put(trim(keyValue[0]), Integer.parseInt(trim(keyValue[1])) * KB);
+    }
+    return unmodifiableMap(parsed);
+  }
+}
@@ -9,6 +9,7 @@ import org.springframework.util.Assert;
 import java.io.InputStream;
 import java.util.Date;
 
+import static de.is24.infrastructure.gridfs.http.gridfs.GridFsChunkInputStream.DEFAULT_BATCH_SIZE;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.ARCH_KEY;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.MARKED_AS_DELETED_KEY;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.REPO_KEY;
@@ -16,10 +17,16 @@ import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.SHA256_
 
 public class GridFsFileStorageItem implements FileStorageItem {
   private final GridFSDBFile dbFile;
+  private final int deliveryBatchSize;
 
   public GridFsFileStorageItem(GridFSDBFile dbFile) {
+    this(dbFile, DEFAULT_BATCH_SIZE);
+  }
+
+  public GridFsFileStorageItem(GridFSDBFile dbFile, int deliveryBatchSize) {
     Assert.notNull(dbFile);
     this.dbFile = dbFile;
+    this.deliveryBatchSize = deliveryBatchSize;
     ensureMetaData();
   }
 
@@ -52,7 +59,19 @@ public class GridFsFileStorageItem implements FileStorageItem {
   @JsonIgnore
   @Override
   public InputStream getInputStream() {
-    return dbFile.getInputStream();
+    return getInputStream(0);
+  }
+
+  @JsonIgnore
+  @Override
+  public InputStream getInputStream(long startPos) {
+    return new GridFsChunkInputStream(dbFile, startPos, deliveryBatchSize);
+  }
+
+  @JsonIgnore
+  @Override
+  public InputStream getInputStream(long startPos, long length) {
+    return new GridFsChunkInputStream(dbFile, startPos, deliveryBatchSize).limit(length);
   }
 
   @Override
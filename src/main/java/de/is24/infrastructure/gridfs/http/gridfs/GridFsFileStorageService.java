@@ -6,27 +6,34 @@ import com.mongodb.DBObject;
 import com.mongodb.gridfs.GridFS;
 import com.mongodb.gridfs.GridFSDBFile;
 import com.mongodb.gridfs.GridFSFile;
-import com.mongodb.gridfs.GridFSInputFile;
-import com.mongodb.gridfs.GridFSUtil;
+import de.is24.infrastructure.gridfs.http.cache.LocalDiskCache;
+import de.is24.infrastructure.gridfs.http.cache.RepoMetadataCache;
+import de.is24.infrastructure.gridfs.http.domain.RepodataCompression;
 import de.is24.infrastructure.gridfs.http.exception.BadRangeRequestException;
 import de.is24.infrastructure.gridfs.http.exception.GridFSFileAlreadyExistsException;
 import de.is24.infrastructure.gridfs.http.exception.GridFSFileNotFoundException;
+import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
+import de.is24.infrastructure.gridfs.http.storage.ContentWriter;
 import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptorResolver;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
 import de.is24.infrastructure.gridfs.http.storage.UploadResult;
 import de.is24.util.monitoring.spring.TimeMeasurement;
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.gridfs.GridFsOperations;
 import org.springframework.data.mongodb.tx.MongoTx;
-import org.springframework.http.MediaType;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.security.access.prepost.PreAuthorize;
@@ -44,11 +51,14 @@ import java.security.DigestOutputStream;
 import java.util.Date;
 import java.util.List;
 
-import static com.mongodb.gridfs.GridFSUtil.mergeMetaData;
 import static com.mongodb.gridfs.GridFSUtil.remove;
+import static de.is24.infrastructure.gridfs.http.domain.RepodataCompression.BZIP2;
+import static de.is24.infrastructure.gridfs.http.gridfs.BlobStore.getBlobId;
+import static de.is24.infrastructure.gridfs.http.gridfs.GridFsChunkOutputStream.sequential;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.ARCH_KEY;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.ARCH_KEY_REPO_DATA;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.FILENAME_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.GRIDFS_CHUNKS_COLLECTION;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.GRIDFS_FILES_COLLECTION;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.MARKED_AS_DELETED_KEY;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.METADATA_ARCH_KEY;
@@ -58,6 +68,8 @@ import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.METADAT
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.REPO_KEY;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.SHA256_KEY;
 import static de.is24.infrastructure.gridfs.http.security.Permission.HAS_DESCRIPTOR_READ_PERMISSION;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
 import static java.lang.String.format;
 import static java.util.regex.Pattern.quote;
 import static java.util.stream.Collectors.toList;
@@ -65,6 +77,7 @@ import static org.apache.commons.codec.binary.Hex.encodeHexString;
 import static org.apache.commons.codec.digest.DigestUtils.getSha256Digest;
 import static org.apache.commons.io.IOUtils.closeQuietly;
 import static org.apache.commons.io.IOUtils.copy;
+import static org.apache.commons.io.output.NullOutputStream.NULL_OUTPUT_STREAM;
 import static org.springframework.data.mongodb.core.query.Query.query;
 import static org.springframework.data.mongodb.core.query.Update.update;
 import static org.springframework.data.mongodb.gridfs.GridFsCriteria.whereFilename;
@@ -78,14 +91,22 @@ public class GridFsFileStorageService implements FileStorageService {
   private static final Logger LOGGER = LoggerFactory.getLogger(GridFsFileStorageService.class);
   public static final String CONTENT_TYPE_APPLICATION_X_RPM = "application/x-rpm";
   public static final String CONTENT_TYPE_APPLICATION_X_GPG = "application/x-gpg";
-  private static final String BZ2_CONTENT_TYPE = new MediaType("application", "x-bzip2").toString();
   private static final String ENDS_WITH_RPM_REGEX = ".*\\.rpm$";
   private static final int MB = 1024 * 1024;
   private static final int FIVE_MB = 5 * MB;
+  private static final int DEFAULT_DELIVERY_READ_AHEAD_IN_MB = 4;
 
   private final GridFS gridFs;
   private final GridFsOperations gridFsTemplate;
   private final MongoTemplate mongoTemplate;
+  private int deliveryBatchSize = GridFsChunkInputStream.DEFAULT_BATCH_SIZE;
+  private int deliveryReadAheadInMb = DEFAULT_DELIVERY_READ_AHEAD_IN_MB;
+  private LocalDiskCache localDiskCache;
+  private RepoMetadataCache repoMetadataCache;
+  private ReadCoalescer readCoalescer;
+  private BlobStore blobStore;
+  private GridFsChunkWriter chunkWriter;
+  private BZip2Compressor bzip2Compressor;
 
   @Autowired
   public GridFsFileStorageService(GridFS gridFs, GridFsOperations gridFsTemplate, MongoTemplate mongoTemplate) {
@@ -102,7 +123,7 @@ public class GridFsFileStorageService implements FileStorageService {
       throw new IllegalArgumentException("id must be of type ObjectId, but got: " + id.getClass());
     }
     GridFSDBFile gridFSDBFile = gridFs.find((ObjectId) id);
-    return gridFSDBFile != null ? new GridFsFileStorageItem(gridFSDBFile) : null;
+    return gridFSDBFile != null ? toStorageItem(gridFSDBFile) : null;
   }
 
   @TimeMeasurement
@@ -115,7 +136,7 @@ public class GridFsFileStorageService implements FileStorageService {
   @TimeMeasurement
   private FileStorageItem insecureFindBy(FileDescriptor descriptor) {
     GridFSDBFile gridFSDBFile = gridFsTemplate.findOne(query(whereFilename().is(descriptor.getPath())));
-    return gridFSDBFile != null ? new GridFsFileStorageItem(gridFSDBFile) : null;
+    return gridFSDBFile != null ? toStorageItem(gridFSDBFile) : null;
   }
 
   @TimeMeasurement
@@ -131,7 +152,7 @@ public class GridFsFileStorageService implements FileStorageService {
 
   @Override
   public void delete(FileStorageItem storageItem) {
-    remove(((GridFsFileStorageItem) storageItem).getDbFile());
+    removeFile(((GridFsFileStorageItem) storageItem).getDbFile());
   }
 
   @Override
@@ -182,21 +203,186 @@ public class GridFsFileStorageService implements FileStorageService {
       throw new GridFSFileAlreadyExistsException("Reupload of rpm is not possible.", descriptor.getPath());
     }
 
+    String contentType = getContentType(descriptor.getPath());
     DigestInputStream digestInputStream = new DigestInputStream(inputStream, getSha256Digest());
-    GridFSFile inputFile = gridFsTemplate.store(digestInputStream, descriptor.getPath(), getContentType(descriptor.getPath()));
-    closeQuietly(digestInputStream);
+    GridFsChunkOutputStream chunksOutputStream = openChunks(contentType);
+    boolean stored = false;
+    try {
+      copy(digestInputStream, chunksOutputStream);
+      chunksOutputStream.close();
+
+      String sha256Hash = encodeHexString(digestInputStream.getMessageDigest().digest());
+      DBObject metaData = createBasicMetaDataObject(descriptor, sha256Hash);
+      filesCollection().insert(chunksOutputStream.createFilesDocument(descriptor.getPath(), contentType, metaData));
+      stored = true;
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not store " + descriptor.getPath() + ".", e);
+    } finally {
+      closeQuietly(digestInputStream);
+      if (!stored) {
+        chunksOutputStream.discard();
+      }
+    }
+
+    if (!existingDbFiles.isEmpty()) {
+      existingDbFiles.forEach(this::removeFile);
+    }
 
-    String sha256Hash = encodeHexString(digestInputStream.getMessageDigest().digest());
-    DBObject metaData = createBasicMetaDataObject(descriptor, sha256Hash);
-    mergeMetaData(inputFile, metaData);
+    return findById(chunksOutputStream.getFilesId());
+  }
 
-    inputFile.save();
+  @Override
+  @MongoTx
+  public FileStorageItem storeFile(InputStream inputStream, FileDescriptorResolver resolver)
+                            throws InvalidRpmHeaderException, IOException {
+    if (blobStore != null) {
+      return storeDeduplicated(inputStream, resolver);
+    }
 
-    if (!existingDbFiles.isEmpty()) {
-      existingDbFiles.forEach(e -> remove(e));
+    CountingInputStream countingInputStream = new CountingInputStream(inputStream);
+    DigestInputStream digestInputStream = new DigestInputStream(countingInputStream, getSha256Digest());
+    GridFsChunkOutputStream chunksOutputStream = openChunks(CONTENT_TYPE_APPLICATION_X_RPM);
+    boolean stored = false;
+    try {
+      FileDescriptor descriptor = resolver.resolve(new TeeInputStream(digestInputStream, chunksOutputStream));
+      if (!findAllBy(descriptor).isEmpty()) {
+        throw new GridFSFileAlreadyExistsException("Reupload of rpm is not possible.", descriptor.getPath());
+      }
+      copy(digestInputStream, chunksOutputStream);
+
+      String sha256Hash = encodeHexString(digestInputStream.getMessageDigest().digest());
+      resolver.verify(countingInputStream.getByteCount(), sha256Hash);
+      chunksOutputStream.close();
+      filesCollection().insert(chunksOutputStream.createFilesDocument(descriptor.getPath(),
+        getContentType(descriptor.getPath()), createBasicMetaDataObject(descriptor, sha256Hash)));
+      stored = true;
+    } finally {
+      closeQuietly(digestInputStream);
+      if (!stored) {
+        LOGGER.info("removing chunks of incomplete upload {}", chunksOutputStream.getFilesId());
+        chunksOutputStream.discard();
+      }
+    }
+
+    return findById(chunksOutputStream.getFilesId());
+  }
+
+  /**
+   * Stores the content as blob of the {@link BlobStore}, unless a blob with the same SHA-256 exists. If the SHA-256
+   * is known in advance and a blob exists, no chunks are written at all.
+   */
+  private FileStorageItem storeDeduplicated(InputStream inputStream, FileDescriptorResolver resolver)
+                                     throws InvalidRpmHeaderException, IOException {
+    CountingInputStream countingInputStream = new CountingInputStream(inputStream);
+    DigestInputStream digestInputStream = new DigestInputStream(countingInputStream, getSha256Digest());
+    String expectedSha256Hash = resolver.getExpectedSha256Hash();
+    GridFSFile blob = (expectedSha256Hash == null) ? null : blobStore.reference(expectedSha256Hash);
+    GridFsChunkOutputStream newBlob = (blob == null) ? blobStore.create(CONTENT_TYPE_APPLICATION_X_RPM) : null;
+    OutputStream blobOutputStream = (newBlob == null) ? NULL_OUTPUT_STREAM : newBlob;
+    ObjectId id = null;
+    try {
+      FileDescriptor descriptor = resolver.resolve(new TeeInputStream(digestInputStream, blobOutputStream));
+      if (!findAllBy(descriptor).isEmpty()) {
+        throw new GridFSFileAlreadyExistsException("Reupload of rpm is not possible.", descriptor.getPath());
+      }
+      copy(digestInputStream, blobOutputStream);
+
+      String sha256Hash = encodeHexString(digestInputStream.getMessageDigest().digest());
+      resolver.verify(countingInputStream.getByteCount(), sha256Hash);
+      if (newBlob != null) {
+        blob = blobStore.reference(sha256Hash);
+        if (blob == null) {
+          blob = blobStore.store(newBlob, sha256Hash);
+        } else {
+          blobStore.discard(newBlob);
+        }
+        newBlob = null;
+      }
+
+      id = blobStore.insertEntry(blob, descriptor.getPath(), getContentType(descriptor.getPath()),
+        createBasicMetaDataObject(descriptor, sha256Hash));
+    } finally {
+      closeQuietly(digestInputStream);
+      if (id == null) {
+        if (newBlob != null) {
+          blobStore.discard(newBlob);
+        }
+        if (blob != null) {
+          blobStore.release(blob.getId());
+        }
+      }
     }
 
-    return findById(inputFile.getId());
+    return findById(id);
+  }
+
+  @Override
+  @MongoTx
+  public FileStorageItem storeChunks(UploadedChunks chunks, FileDescriptorResolver resolver)
+                              throws InvalidRpmHeaderException, IOException {
+    Assert.notNull(blobStore, "Uploaded chunks can only be stored in the blob store.");
+
+    FileDescriptor descriptor;
+    try(InputStream head = blobStore.openChunks(chunks.getBlobId(), chunks.getLength(), chunks.getChunkSize())) {
+      descriptor = resolver.resolve(head);
+    }
+    resolver.verify(chunks.getLength(), chunks.getSha256Hash());
+    if (!findAllBy(descriptor).isEmpty()) {
+      throw new GridFSFileAlreadyExistsException("Reupload of rpm is not possible.", descriptor.getPath());
+    }
+
+    GridFSFile blob = blobStore.reference(chunks.getSha256Hash());
+    if (blob == null) {
+      blob = blobStore.adopt(chunks);
+    }
+    boolean adopted = blob.getId().equals(chunks.getBlobId());
+
+    ObjectId id = null;
+    try {
+      id = blobStore.insertEntry(blob, descriptor.getPath(), getContentType(descriptor.getPath()),
+        createBasicMetaDataObject(descriptor, chunks.getSha256Hash()));
+    } finally {
+      if ((id == null) && adopted) {
+        blobStore.unadopt(chunks);
+      } else if (id == null) {
+        blobStore.release(blob.getId());
+      }
+    }
+
+    return findById(id);
+  }
+
+  @Override
+  @MongoTx
+  public void unstoreChunks(UploadedChunks chunks, FileStorageItem storageItem) {
+    GridFSDBFile dbFile = ((GridFsFileStorageItem) storageItem).getDbFile();
+    remove(dbFile);
+
+    Object blobId = getBlobId(dbFile);
+    if (chunks.getBlobId().equals(blobId)) {
+      blobStore.unadopt(chunks);
+    } else {
+      blobStore.release(blobId);
+    }
+  }
+
+  private GridFsChunkOutputStream openChunks(String contentType) {
+    DBCollection chunksCollection = mongoTemplate.getCollection(GRIDFS_CHUNKS_COLLECTION);
+    return (chunkWriter == null) ? sequential(chunksCollection) : chunkWriter.open(chunksCollection, contentType);
+  }
+
+  /**
+   * Compresses bzip2 with the parallel compressor, if there is one.
+   */
+  private OutputStream compress(RepodataCompression compression, OutputStream out) throws IOException {
+    if ((compression == BZIP2) && (bzip2Compressor != null)) {
+      return bzip2Compressor.open(out);
+    }
+    return compression.compress(out);
+  }
+
+  private DBCollection filesCollection() {
+    return mongoTemplate.getCollection(GRIDFS_FILES_COLLECTION);
   }
 
   private String getContentType(String path) {
@@ -212,46 +398,74 @@ public class GridFsFileStorageService implements FileStorageService {
   }
 
   @Override
-  public UploadResult storeSqliteFileCompressedWithChecksumName(String reponame, File metadataFile, String name) throws IOException {
-    FileDescriptor descriptor = new FileDescriptor(reponame, ARCH_KEY_REPO_DATA, name);
-    GridFSInputFile inputFile = gridFs.createFile();
-    inputFile.setContentType(BZ2_CONTENT_TYPE);
-
-    InputStream fileInputStream = new BufferedInputStream(new FileInputStream(metadataFile));
-    DigestInputStream uncompressedDigestInputStream = new DigestInputStream(fileInputStream, getSha256Digest());
-    DigestOutputStream compressedDigestOutputStream;
-    try {
-      OutputStream gridFsOutputStream = inputFile.getOutputStream();
-      compressedDigestOutputStream = new DigestOutputStream(gridFsOutputStream, getSha256Digest());
-
-      BZip2CompressorOutputStream bzip2OutputStream = new BZip2CompressorOutputStream(compressedDigestOutputStream);
+  public UploadResult storeSqliteFileCompressedWithChecksumName(String reponame, File metadataFile, String name,
+                                                                RepodataCompression compression) throws IOException {
+    return storeCompressedWithChecksumName(reponame, name + "-%s.sqlite", compression,
+      outputStream -> {
+        try(InputStream fileInputStream = new BufferedInputStream(new FileInputStream(metadataFile))) {
+          copy(fileInputStream, outputStream);
+        }
+      });
+  }
 
-      copy(uncompressedDigestInputStream, bzip2OutputStream);
-      bzip2OutputStream.close();
+  @Override
+  public UploadResult storeXmlCompressedWithChecksumName(String reponame, String name,
+                                                         RepodataCompression compression, ContentWriter contentWriter)
+                                                  throws IOException {
+    return storeCompressedWithChecksumName(reponame, name + "-%s.xml", compression, contentWriter);
+  }
+
+  /**
+   * Compresses the written content into the chunks of a new file, whose name contains the checksum of the compressed
+   * content. The files document is only written after the content is complete.
+   *
+   * @param filenamePattern the name of the file in the repodata directory with a <code>%s</code> for the checksum and
+   *                        without the extension of the compression
+   */
+  private UploadResult storeCompressedWithChecksumName(String reponame, String filenamePattern,
+                                                       RepodataCompression compression, ContentWriter contentWriter)
+                                                throws IOException {
+    String contentType = compression.getContentType();
+    GridFsChunkOutputStream chunksOutputStream = openChunks(contentType);
+    DigestOutputStream compressedDigestOutputStream = new DigestOutputStream(chunksOutputStream, getSha256Digest());
+    DigestOutputStream uncompressedDigestOutputStream;
+    CountingOutputStream uncompressedCountingOutputStream;
+    boolean stored = false;
+    try {
+      OutputStream compressingOutputStream = compress(compression, compressedDigestOutputStream);
+      uncompressedDigestOutputStream = new DigestOutputStream(compressingOutputStream, getSha256Digest());
+      uncompressedCountingOutputStream = new CountingOutputStream(uncompressedDigestOutputStream);
+
+      contentWriter.writeTo(uncompressedCountingOutputStream);
+      uncompressedCountingOutputStream.close();
+
+      String compressedChecksum = encodeHexString(compressedDigestOutputStream.getMessageDigest().digest());
+      String uncompressedChecksum = encodeHexString(uncompressedDigestOutputStream.getMessageDigest().digest());
+      String location = ARCH_KEY_REPO_DATA + "/" + format(filenamePattern, compressedChecksum) + "." +
+        compression.getExtension();
+      String finalFilename = reponame + "/" + location;
+
+      gridFs.remove(finalFilename);
+
+      DBObject metaData = createBasicMetaDataObject(new FileDescriptor(finalFilename), compressedChecksum);
+      DBObject filesDocument = chunksOutputStream.createFilesDocument(finalFilename, contentType, metaData);
+      filesCollection().insert(filesDocument);
+      stored = true;
+
+      UploadResult uploadResult = new UploadResult();
+      uploadResult.setId(chunksOutputStream.getFilesId());
+      uploadResult.setLocation(finalFilename);
+      uploadResult.setUploadDate((Date) filesDocument.get("uploadDate"));
+      uploadResult.setCompressedSize(chunksOutputStream.getLength());
+      uploadResult.setCompressedChecksum(compressedChecksum);
+      uploadResult.setUncompressedSize(uncompressedCountingOutputStream.getByteCount());
+      uploadResult.setUncompressedChecksum(uncompressedChecksum);
+      return uploadResult;
     } finally {
-      uncompressedDigestInputStream.close();
+      if (!stored) {
+        chunksOutputStream.discard();
+      }
     }
-
-    String compressedChecksum = encodeHexString(compressedDigestOutputStream.getMessageDigest().digest());
-    String uncompressedChecksum = encodeHexString(uncompressedDigestInputStream.getMessageDigest().digest());
-    String finalFilename = reponame + "/" + createRepoMdLocation(name, compressedChecksum);
-
-    gridFs.remove(finalFilename);
-
-    DBObject metaData = createBasicMetaDataObject(descriptor, compressedChecksum);
-
-    inputFile.setMetaData(metaData);
-    inputFile.put(FILENAME_KEY, finalFilename);
-    inputFile.getOutputStream().close();
-
-    UploadResult uploadResult = new UploadResult();
-    uploadResult.setLocation(finalFilename);
-    uploadResult.setUploadDate(inputFile.getUploadDate());
-    uploadResult.setCompressedSize(inputFile.getLength());
-    uploadResult.setCompressedChecksum(compressedChecksum);
-    uploadResult.setUncompressedSize(metadataFile.length());
-    uploadResult.setUncompressedChecksum(uncompressedChecksum);
-    return uploadResult;
   }
 
   @ManagedOperation
@@ -273,10 +487,10 @@ public class GridFsFileStorageService implements FileStorageService {
       final long lengthInBytes = file.getLength();
       final String filename = file.getFilename();
       LOGGER.info("removing file {}", filename);
-      GridFSUtil.remove(file);
+      boolean contentRemoved = removeFile(file);
 
       //wait depending on the size/count of deleted file to let the mongo cluster do the sync without 'dieing' on io wait
-      if (lengthInBytes > FIVE_MB) {
+      if (contentRemoved && (lengthInBytes > FIVE_MB)) {
         waitAfterDeleteOfLargeFile(lengthInBytes, filename);
       }
       if (counter > 100) {
@@ -343,7 +557,7 @@ public class GridFsFileStorageService implements FileStorageService {
 
   @Override
   public void deleteCorruptFiles() {
-    gridFsTemplate.delete(getCorruptFileQuery());
+    gridFsTemplate.find(getCorruptFileQuery()).forEach(this::removeFile);
   }
 
   @Override
@@ -352,16 +566,56 @@ public class GridFsFileStorageService implements FileStorageService {
     return new BoundedGridFsResource(getFileStorageItemWithCheckedStartPos(descriptor, startPos), startPos);
   }
 
+  /**
+   * Removes the file and releases its blob, if it references one.
+   *
+   * @return <code>true</code> if the content of the file has been removed, too
+   */
+  private boolean removeFile(GridFSDBFile dbFile) {
+    remove(dbFile);
+
+    Object blobId = getBlobId(dbFile);
+    if (blobId == null) {
+      return true;
+    }
+    if (blobStore == null) {
+      LOGGER.warn("could not release blob {} of {}", blobId, dbFile.getFilename());
+      return false;
+    }
+    return blobStore.release(blobId);
+  }
+
   private List<GridFSDBFile> findAllBy(FileDescriptor descriptor) {
     return gridFsTemplate.find(query(whereFilename().is(descriptor.getPath())));
   }
 
   private List<FileStorageItem> convert(List<GridFSDBFile> rpms) {
-    return rpms.stream().map(GridFsFileStorageItem::new).collect(toList());
+    return rpms.stream().map(this::toStorageItem).collect(toList());
   }
 
-  private FileStorageItem getFileStorageItemWithCheckedStartPos(FileDescriptor descriptor, long startPos) {
+  private FileStorageItem getFileForDelivery(FileDescriptor descriptor) {
+    if ((repoMetadataCache != null) && repoMetadataCache.isCacheable(descriptor)) {
+      return repoMetadataCache.get(descriptor, () -> getFileBy(descriptor));
+    }
+
     FileStorageItem storageItem = getFileBy(descriptor);
+    if (readCoalescer != null) {
+      storageItem = readCoalescer.coalesced(storageItem);
+    }
+    return (localDiskCache != null) ? localDiskCache.cached(storageItem) : storageItem;
+  }
+
+  private GridFsFileStorageItem toStorageItem(GridFSDBFile dbFile) {
+    return new GridFsFileStorageItem(dbFile, deliveryBatchSizeFor(dbFile.getChunkSize()));
+  }
+
+  private int deliveryBatchSizeFor(long chunkSize) {
+    long maxChunksInReadAhead = ((long) deliveryReadAheadInMb * MB) / max(chunkSize, 1);
+    return (int) max(1, min(deliveryBatchSize, maxChunksInReadAhead));
+  }
+
+  private FileStorageItem getFileStorageItemWithCheckedStartPos(FileDescriptor descriptor, long startPos) {
+    FileStorageItem storageItem = getFileForDelivery(descriptor);
     if (startPos >= storageItem.getSize()) {
       throw new BadRangeRequestException(format(
           "Range start is bigger than file size.\n" +
@@ -382,10 +636,6 @@ public class GridFsFileStorageService implements FileStorageService {
         GRIDFS_FILES_COLLECTION);
   }
 
-  private String createRepoMdLocation(String name, String checksum) {
-    return ARCH_KEY_REPO_DATA + "/" + name + "-" + checksum + ".sqlite.bz2";
-  }
-
   private DBObject createBasicMetaDataObject(FileDescriptor descriptor, String sha256Hash) {
     DBObject metaData = new BasicDBObject();
     metaData.put(REPO_KEY, descriptor.getRepo());
@@ -407,6 +657,56 @@ public class GridFsFileStorageService implements FileStorageService {
     }
   }
 
+  @Value("${gridfs.delivery.batch.size:8}")
+  public void setDeliveryBatchSize(int deliveryBatchSize) {
+    this.deliveryBatchSize = deliveryBatchSize;
+  }
+
+  @Value("${gridfs.delivery.readahead.mb:4}")
+  public void setDeliveryReadAheadInMb(int deliveryReadAheadInMb) {
+    this.deliveryReadAheadInMb = deliveryReadAheadInMb;
+  }
+
+  @Autowired(required = false)
+  public void setLocalDiskCache(LocalDiskCache localDiskCache) {
+    this.localDiskCache = localDiskCache;
+  }
+
+  @Autowired(required = false)
+  public void setRepoMetadataCache(RepoMetadataCache repoMetadataCache) {
+    this.repoMetadataCache = repoMetadataCache;
+  }
+
+  @Autowired(required = false)
+  public void setReadCoalescer(ReadCoalescer readCoalescer) {
+    this.readCoalescer = readCoalescer;
+  }
+
+  @Autowired(required = false)
+  public void setBlobStore(BlobStore blobStore) {
+    this.blobStore = blobStore;
+  }
+
+  @Autowired(required = false)
+  public void setChunkWriter(GridFsChunkWriter chunkWriter) {
+    this.chunkWriter = chunkWriter;
+  }
+
+  @Autowired(required = false)
+  public void setBZip2Compressor(BZip2Compressor bzip2Compressor) {
+    this.bzip2Compressor = bzip2Compressor;
+  }
+
+  @ManagedAttribute
+  public int getDeliveryBatchSize() {
+    return deliveryBatchSize;
+  }
+
+  @ManagedAttribute
+  public int getDeliveryReadAheadInMb() {
+    return deliveryReadAheadInMb;
+  }
+
   private void setupIndices() {
     createIndex(METADATA_REPO_KEY);
     createIndex(METADATA_ARCH_KEY);
@@ -415,7 +715,6 @@ public class GridFsFileStorageService implements FileStorageService {
   }
 
   private void createIndex(String key) {
-    DBCollection filesCollection = mongoTemplate.getCollection(GRIDFS_FILES_COLLECTION);
-    filesCollection.createIndex(new BasicDBObject(key, 1));
+    filesCollection().createIndex(new BasicDBObject(key, 1));
   }
 }
@@ -0,0 +1,137 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.apache.commons.lang.StringUtils.isNotBlank;
+
+
+/**
+ * Several ranges of a stored file as <code>multipart/byteranges</code> body (RFC 7233, appendix A). The ranges are
+ * streamed one after the other, each reading only its own part of the file.
+ */
+public class MultipartByteRangesResource extends AbstractResource {
+  public static final String MULTIPART_BYTERANGES = "multipart/byteranges";
+
+  private final List<BoundedGridFsResource> ranges;
+  private final String boundary;
+  private final List<byte[]> partHeaders = new ArrayList<>();
+  private final byte[] closingDelimiter;
+
+  public MultipartByteRangesResource(List<BoundedGridFsResource> ranges, String boundary) {
+    this.ranges = ranges;
+    this.boundary = boundary;
+    for (BoundedGridFsResource range : ranges) {
+      partHeaders.add(partHeader(range));
+    }
+    this.closingDelimiter = ("\r\n--" + boundary + "--\r\n").getBytes(US_ASCII);
+  }
+
+  public String getContentType() {
+    return MULTIPART_BYTERANGES + "; boundary=" + boundary;
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return new PartsInputStream();
+  }
+
+  @Override
+  public boolean exists() {
+    return true;
+  }
+
+  @Override
+  public long contentLength() {
+    long length = closingDelimiter.length;
+    for (int i = 0; i < ranges.size(); i++) {
+      length += partHeaders.get(i).length + ranges.get(i).contentLength();
+    }
+    return length;
+  }
+
+  @Override
+  public String getFilename() {
+    return ranges.isEmpty() ? null : ranges.get(0).getFilename();
+  }
+
+  @Override
+  public String getDescription() {
+    return ranges.size() + " ranges of " + getFilename();
+  }
+
+  private byte[] partHeader(BoundedGridFsResource range) {
+    StringBuilder header = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+    if (isNotBlank(range.getContentType())) {
+      header.append("Content-Type: ").append(range.getContentType()).append("\r\n");
+    }
+
+    long end = range.getStartPos() + range.contentLength() - 1;
+    header.append("Content-Range: bytes ")
+      .append(range.getStartPos())
+      .append('-')
+      .append(end)
+      .append('/')
+      .append(range.getFileLength())
+      .append("\r\n\r\n");
+    return header.toString().getBytes(US_ASCII);
+  }
+
+  private class PartsInputStream extends InputStream {
+    private int index;
+    private InputStream current;
+
+    @Override
+    public int read() throws IOException {
+      byte[] buffer = new byte[1];
+      int count = read(buffer, 0, 1);
+      return (count <= 0) ? -1 : (buffer[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (true) {
+        if (current == null) {
+          current = nextPart();
+          if (current == null) {
+            return -1;
+          }
+        }
+
+        int count = current.read(buffer, offset, len);
+        if (count >= 0) {
+          return count;
+        }
+        current.close();
+        current = null;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (current != null) {
+        current.close();
+        current = null;
+      }
+      index = 2 * ranges.size() + 1;
+    }
+
+    private InputStream nextPart() throws IOException {
+      int part = index++;
+      if (part < 2 * ranges.size()) {
+        return ((part % 2) == 0) ? new ByteArrayInputStream(partHeaders.get(part / 2))
+                                 : ranges.get(part / 2).getInputStream();
+      }
+      return (part == 2 * ranges.size()) ? new ByteArrayInputStream(closingDelimiter) : null;
+    }
+  }
+}
@@ -0,0 +1,238 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream.MAX_BLOCKSIZE;
+
+
+/**
+ * Compresses to bzip2 like pbzip2: the input is cut into blocks which are compressed independently by the given
+ * executor. Unlike pbzip2, the compressed blocks are not concatenated as separate streams, but spliced bit by bit into
+ * a single stream with a combined CRC, so decoders reading only the first stream of a file, as the bz2 module of
+ * Python 2 used by yum does, see the whole content.
+ */
+public class ParallelBZip2OutputStream extends OutputStream {
+  /**
+   * The run length encoding in front of the block sort expands its input by at most 5/4, so an input block of this
+   * size always fits into one bzip2 block of 900k.
+   */
+  static final int BLOCK_INPUT_SIZE = 700 * 1000;
+
+  private static final int HEADER_BITS = 4 * 8;
+  private static final int BLOCK_CRC_BIT = HEADER_BITS + 48;
+  private static final int END_OF_STREAM_BITS = 48 + 32;
+  private static final int END_OF_STREAM_MAGIC_HIGH = 0x177245;
+  private static final int END_OF_STREAM_MAGIC_LOW = 0x385090;
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+  private final OutputStream out;
+  private final ExecutorService executor;
+  private final int maxPendingBlocks;
+  private final Deque<Future<CompressedBlock>> pendingBlocks = new ArrayDeque<>();
+  private final byte[] outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+
+  private byte[] buffer = new byte[BLOCK_INPUT_SIZE];
+  private int bufferPosition;
+  private int outputPosition;
+  private long bitBuffer;
+  private int bitCount;
+  private int combinedCrc;
+  private boolean closed;
+
+  /**
+   * @param maxPendingBlocks the number of blocks compressed or waiting to be written at the same time, which bounds
+   *                         the memory used to about one megabyte per block
+   */
+  public ParallelBZip2OutputStream(OutputStream out, ExecutorService executor, int maxPendingBlocks)
+                            throws IOException {
+    this.out = out;
+    this.executor = executor;
+    this.maxPendingBlocks = max(maxPendingBlocks, 1);
+    writeBits('B', 8);
+    writeBits('Z', 8);
+    writeBits('h', 8);
+    writeBits('0' + MAX_BLOCKSIZE, 8);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int len) throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      int count = min(len, BLOCK_INPUT_SIZE - bufferPosition);
+      System.arraycopy(bytes, offset, buffer, bufferPosition, count);
+      bufferPosition += count;
+      offset += count;
+      len -= count;
+      if (bufferPosition == BLOCK_INPUT_SIZE) {
+        submitBlock();
+      }
+    }
+  }
+
+  /**
+   * Writes all remaining blocks and the end of the stream, and closes the underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    try {
+      if (bufferPosition > 0) {
+        submitBlock();
+      }
+      while (!pendingBlocks.isEmpty()) {
+        writeNextBlock();
+      }
+      buffer = null;
+
+      writeBits(END_OF_STREAM_MAGIC_HIGH, 24);
+      writeBits(END_OF_STREAM_MAGIC_LOW, 24);
+      writeBits(combinedCrc >>> 16, 16);
+      writeBits(combinedCrc & 0xffff, 16);
+      if (bitCount > 0) {
+        writeBits(0, 8 - bitCount);
+      }
+      flushOutputBuffer();
+    } finally {
+      pendingBlocks.forEach(block -> block.cancel(true));
+      pendingBlocks.clear();
+      out.close();
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    byte[] input = buffer;
+    int length = bufferPosition;
+    try {
+      pendingBlocks.add(executor.submit(() -> compress(input, length)));
+    } catch (RejectedExecutionException e) {
+      throw new IOException("Could not compress block.", e);
+    }
+    buffer = new byte[BLOCK_INPUT_SIZE];
+    bufferPosition = 0;
+
+    if (pendingBlocks.size() >= maxPendingBlocks) {
+      writeNextBlock();
+    }
+  }
+
+  private void writeNextBlock() throws IOException {
+    CompressedBlock block;
+    try {
+      block = pendingBlocks.peek().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while compressing block");
+    } catch (ExecutionException e) {
+      throw new IOException("Could not compress block.", e.getCause());
+    }
+    pendingBlocks.poll();
+
+    combinedCrc = ((combinedCrc << 1) | (combinedCrc >>> 31)) ^ block.crc;
+    long position = HEADER_BITS;
+    while (position < block.endBit) {
+      int count = (int) min(24, block.endBit - position);
+      writeBits(readBits(block.data, position, count), count);
+      position += count;
+    }
+  }
+
+  private void writeBits(int value, int count) throws IOException {
+    bitBuffer = (bitBuffer << count) | value;
+    bitCount += count;
+    while (bitCount >= 8) {
+      bitCount -= 8;
+      outputBuffer[outputPosition++] = (byte) (bitBuffer >>> bitCount);
+      if (outputPosition == OUTPUT_BUFFER_SIZE) {
+        flushOutputBuffer();
+      }
+    }
+  }
+
+  private void flushOutputBuffer() throws IOException {
+    out.write(outputBuffer, 0, outputPosition);
+    outputPosition = 0;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream is already closed.");
+    }
+  }
+
+  /**
+   * Compresses the input to a stream of its own and locates the single block within it.
+   */
+  private static CompressedBlock compress(byte[] input, int length) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2);
+    try(BZip2CompressorOutputStream bzip2OutputStream = new BZip2CompressorOutputStream(compressed, MAX_BLOCKSIZE)) {
+      bzip2OutputStream.write(input, 0, length);
+    }
+
+    byte[] data = compressed.toByteArray();
+    int crc = readInt(data, BLOCK_CRC_BIT);
+    return new CompressedBlock(data, findEndOfStream(data, crc), crc);
+  }
+
+  /**
+   * The end of a stream with a single block is followed by the CRC of this block and at most seven bits of padding.
+   */
+  private static long findEndOfStream(byte[] data, int blockCrc) {
+    for (int padding = 0; padding < 8; padding++) {
+      long position = (data.length * 8L) - padding - END_OF_STREAM_BITS;
+      if ((readBits(data, position, 24) == END_OF_STREAM_MAGIC_HIGH) &&
+          (readBits(data, position + 24, 24) == END_OF_STREAM_MAGIC_LOW) &&
+          (readInt(data, position + 48) == blockCrc)) {
+        return position;
+      }
+    }
+    throw new IllegalStateException("Compressed block is not a bzip2 stream with a single block.");
+  }
+
+  private static int readInt(byte[] data, long position) {
+    return (readBits(data, position, 16) << 16) | readBits(data, position + 16, 16);
+  }
+
+  private static int readBits(byte[] data, long position, int count) {
+    int index = (int) (position >>> 3);
+    int offset = (int) (position & 7);
+    long word = 0;
+    for (int i = index; i < (index + 4); i++) {
+      word = (word << 8) | ((i < data.length) ? (data[i] & 0xff) : 0);
+    }
+    return (int) ((word >>> (32 - offset - count)) & ((1L << count) - 1));
+  }
+
+  private static class CompressedBlock {
+    private final byte[] data;
+    private final long endBit;
+    private final int crc;
+
+    CompressedBlock(byte[] data, long endBit, int crc) {
+      this.data = data;
+      this.endBit = endBit;
+      this.crc = crc;
+    }
+  }
+}
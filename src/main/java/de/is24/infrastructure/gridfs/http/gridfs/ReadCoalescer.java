@@ -0,0 +1,138 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import de.is24.infrastructure.gridfs.http.storage.DelegatingFileStorageItem;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+import de.is24.util.monitoring.InApplicationMonitor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Coalesces concurrent downloads of the same range of a file into one read from MongoDB. Readers arriving while
+ * the read has not yet passed the buffer size join it, all others read directly.
+ */
+@ManagedResource
+@Service
+public class ReadCoalescer {
+  private static final int KB = 1024;
+
+  private final int bufferSize;
+  private final int maxSharedReads;
+  private final ConcurrentMap<List<Object>, SharedRead> joinableReads = new ConcurrentHashMap<>();
+  private final AtomicInteger sharedReads = new AtomicInteger();
+  private final AtomicLong coalescedReads = new AtomicLong();
+  private final AtomicLong directReads = new AtomicLong();
+  private final AtomicLong fallbacks = new AtomicLong();
+
+  @Autowired
+  public ReadCoalescer(@Value("${delivery.coalescing.buffer.kb:1024}") int bufferSizeInKb,
+                       @Value("${delivery.coalescing.max.shared.reads:64}") int maxSharedReads) {
+    this.bufferSize = bufferSizeInKb * KB;
+    this.maxSharedReads = maxSharedReads;
+  }
+
+  public boolean isActive() {
+    return (bufferSize > 0) && (maxSharedReads > 0);
+  }
+
+  public FileStorageItem coalesced(FileStorageItem storageItem) {
+    return isActive() ? new CoalescingFileStorageItem(storageItem) : storageItem;
+  }
+
+  @ManagedAttribute
+  public long getCoalescedReads() {
+    return coalescedReads.get();
+  }
+
+  @ManagedAttribute
+  public long getDirectReads() {
+    return directReads.get();
+  }
+
+  @ManagedAttribute
+  public long getFallbacks() {
+    return fallbacks.get();
+  }
+
+  @ManagedAttribute
+  public int getSharedReads() {
+    return sharedReads.get();
+  }
+
+  /**
+   * @param length the length of the range, or -1 to read to the end of the file
+   */
+  InputStream open(FileStorageItem storageItem, long startPos, long length) {
+    List<Object> key = Arrays.asList(storageItem.getId(), startPos, length);
+    while (true) {
+      SharedRead sharedRead = joinableReads.get(key);
+      if (sharedRead != null) {
+        InputStream reader = sharedRead.join();
+        if (reader != null) {
+          count(coalescedReads, ".coalesced");
+          return reader;
+        }
+        joinableReads.remove(key, sharedRead);
+        continue;
+      }
+
+      if (sharedReads.incrementAndGet() > maxSharedReads) {
+        sharedReads.decrementAndGet();
+        count(directReads, ".direct");
+        return (length < 0) ? storageItem.getInputStream(startPos) : storageItem.getInputStream(startPos, length);
+      }
+
+      SharedRead newRead = new SharedRead(this, key, storageItem, startPos, length, bufferSize);
+      if (joinableReads.putIfAbsent(key, newRead) == null) {
+        count(directReads, ".direct");
+        return newRead.join();
+      }
+      sharedReads.decrementAndGet();
+    }
+  }
+
+  void notJoinable(Object key, SharedRead sharedRead) {
+    joinableReads.remove(key, sharedRead);
+  }
+
+  void finished(Object key, SharedRead sharedRead) {
+    joinableReads.remove(key, sharedRead);
+    sharedReads.decrementAndGet();
+  }
+
+  void fellBack() {
+    count(fallbacks, ".fallback");
+  }
+
+  private void count(AtomicLong counter, String name) {
+    counter.incrementAndGet();
+    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + name);
+  }
+
+  private class CoalescingFileStorageItem extends DelegatingFileStorageItem {
+    CoalescingFileStorageItem(FileStorageItem delegate) {
+      super(delegate);
+    }
+
+    @Override
+    public InputStream getInputStream(long startPos) {
+      return open(getDelegate(), startPos, -1);
+    }
+
+    @Override
+    public InputStream getInputStream(long startPos, long length) {
+      return open(getDelegate(), startPos, length);
+    }
+  }
+}
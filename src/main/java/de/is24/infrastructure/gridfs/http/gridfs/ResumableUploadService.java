@@ -0,0 +1,402 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import de.is24.infrastructure.gridfs.http.exception.BadRequestException;
+import de.is24.infrastructure.gridfs.http.exception.GridFSFileAlreadyExistsException;
+import de.is24.infrastructure.gridfs.http.exception.GridFSFileNotFoundException;
+import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
+import de.is24.infrastructure.gridfs.http.exception.UploadSessionConflictException;
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import de.is24.util.monitoring.InApplicationMonitor;
+import de.is24.util.monitoring.spring.TimeMeasurement;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Date;
+
+import static de.is24.infrastructure.gridfs.http.gridfs.UploadSession.BUSY_KEY;
+import static de.is24.infrastructure.gridfs.http.gridfs.UploadSession.BUSY_SINCE_KEY;
+import static de.is24.infrastructure.gridfs.http.gridfs.UploadSession.CHUNK_SIZE_KEY;
+import static de.is24.infrastructure.gridfs.http.gridfs.UploadSession.CLAIM_KEY;
+import static de.is24.infrastructure.gridfs.http.gridfs.UploadSession.ID_KEY;
+import static de.is24.infrastructure.gridfs.http.gridfs.UploadSession.LAST_MODIFIED_KEY;
+import static de.is24.infrastructure.gridfs.http.gridfs.UploadSession.LENGTH_KEY;
+import static de.is24.infrastructure.gridfs.http.gridfs.UploadSession.OFFSET_KEY;
+import static de.is24.infrastructure.gridfs.http.gridfs.UploadSession.REPO_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.UPLOAD_SESSION_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.repos.RepositoryNameValidator.validateRepoName;
+import static org.apache.commons.codec.binary.Hex.encodeHexString;
+import static org.apache.commons.codec.digest.DigestUtils.getMd5Digest;
+import static org.apache.commons.codec.digest.DigestUtils.getSha256Digest;
+import static org.apache.commons.io.IOUtils.read;
+import static org.apache.commons.lang.time.DateUtils.addHours;
+import static org.apache.commons.lang.time.DateUtils.addMinutes;
+
+
+/**
+ * Resumable uploads of large RPMs. The content of an upload session is appended piece by piece and written directly
+ * as chunks of the {@link BlobStore}, so that an interrupted upload continues at the committed offset instead of
+ * starting over. Finishing a session parses the RPM header from the chunks and adopts them as blob without copying.
+ * The checksums are computed incrementally while appending, and only recomputed from the chunks if the session has
+ * been continued on another instance. Sessions not modified for a while are removed together with their chunks.
+ * A request working on a session holds a lease, that it renews while data arrives. If the instance dies during the
+ * request, the session can be claimed again once the lease has expired.
+ */
+@ManagedResource
+@Service
+public class ResumableUploadService {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ResumableUploadService.class);
+  private static final int KB = 1024;
+  private static final int MAX_CACHED_CHECKSUMS = 1000;
+
+  private final DBCollection sessions;
+  private final BlobStore blobStore;
+  private final StorageService storageService;
+  private final int chunkSize;
+  private final Cache<ObjectId, Checksums> checksums = CacheBuilder.newBuilder()
+    .maximumSize(MAX_CACHED_CHECKSUMS)
+    .build();
+  private volatile int abandonedAfterHours;
+  private volatile int busyTimeoutInMinutes;
+
+  @Autowired
+  public ResumableUploadService(MongoTemplate mongoTemplate, BlobStore blobStore, StorageService storageService,
+                                @Value("${upload.resumable.chunk.size.kb:255}") int chunkSizeInKb,
+                                @Value("${upload.resumable.abandoned.hours:24}") int abandonedAfterHours,
+                                @Value("${upload.resumable.busy.timeout.minutes:10}") int busyTimeoutInMinutes) {
+    this.sessions = mongoTemplate.getCollection(UPLOAD_SESSION_COLLECTION);
+    this.blobStore = blobStore;
+    this.storageService = storageService;
+    this.chunkSize = chunkSizeInKb * KB;
+    this.abandonedAfterHours = abandonedAfterHours;
+    this.busyTimeoutInMinutes = busyTimeoutInMinutes;
+
+    sessions.createIndex(new BasicDBObject(LAST_MODIFIED_KEY, 1));
+  }
+
+  /**
+   * @param length the length of the upload, or -1 if not yet known
+   */
+  @TimeMeasurement
+  public UploadSession createSession(String reponame, long length) {
+    validateRepoName(reponame);
+
+    ObjectId id = new ObjectId();
+    sessions.insert(new BasicDBObject(ID_KEY, id)
+      .append(REPO_KEY, reponame)
+      .append(OFFSET_KEY, 0L)
+      .append(LENGTH_KEY, length)
+      .append(CHUNK_SIZE_KEY, chunkSize)
+      .append(BUSY_KEY, false)
+      .append(LAST_MODIFIED_KEY, new Date()));
+    checksums.put(id, new Checksums());
+    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".created");
+    return new UploadSession(id, reponame, 0, length, chunkSize, false);
+  }
+
+  public UploadSession getSession(String reponame, String sessionId) {
+    DBObject session = sessions.findOne(new BasicDBObject(ID_KEY, toId(reponame, sessionId)).append(REPO_KEY,
+      reponame));
+    if (session == null) {
+      throw notFound(reponame, sessionId);
+    }
+    return UploadSession.of(session);
+  }
+
+  /**
+   * Appends the content at the given offset, which has to be the committed offset of the session. If the stream
+   * breaks off, everything read up to the last complete chunk remains committed.
+   *
+   * @param length the length of the complete upload, or -1 if not yet known
+   * @return the committed offset
+   */
+  @TimeMeasurement
+  public long append(String reponame, String sessionId, long offset, long length, InputStream inputStream)
+              throws IOException {
+    UploadSession session = claim(reponame, sessionId, new BasicDBObject(OFFSET_KEY, offset));
+    long committed = offset;
+    Checksums sessionChecksums = checksumsAt(session.getId(), offset);
+    try {
+      long totalLength = verifiedLength(session, length);
+      InputStream boundedInputStream = (totalLength < 0)
+        ? inputStream : new BoundedInputStream(inputStream, totalLength - offset);
+
+      int chunkIndex = (int) (offset / session.getChunkSize());
+      int fill = (int) (offset % session.getChunkSize());
+      byte[] chunk = new byte[session.getChunkSize()];
+      if (fill > 0) {
+        System.arraycopy(blobStore.readChunk(session.getId(), chunkIndex), 0, chunk, 0, fill);
+      }
+
+      long renewedAt = System.currentTimeMillis();
+      int bytesRead;
+      while ((bytesRead = read(boundedInputStream, chunk, fill, chunk.length - fill)) > 0) {
+        renewedAt = renewIfHalfExpired(session, renewedAt);
+        blobStore.writeChunk(session.getId(), chunkIndex, chunk, fill + bytesRead);
+        if (sessionChecksums != null) {
+          sessionChecksums.update(chunk, fill, bytesRead);
+        }
+        committed += bytesRead;
+        fill += bytesRead;
+        if (fill < chunk.length) {
+          break;
+        }
+        chunkIndex++;
+        fill = 0;
+      }
+    } finally {
+      if (release(session, committed) && (sessionChecksums != null)) {
+        checksums.put(session.getId(), sessionChecksums);
+      }
+    }
+
+    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".appended");
+    return committed;
+  }
+
+  /**
+   * Stores the complete content of the session as RPM and removes the session.
+   *
+   * @param expectedSha256Hash the hex encoded SHA-256 of the RPM, or <code>null</code>
+   */
+  @TimeMeasurement
+  public FileDescriptor finish(String reponame, String sessionId, String expectedSha256Hash)
+                        throws InvalidRpmHeaderException, IOException {
+    UploadSession session = claim(reponame, sessionId, new BasicDBObject());
+    if ((session.getLength() >= 0) && (session.getOffset() != session.getLength())) {
+      release(session, session.getOffset());
+      throw new UploadSessionConflictException("Upload is incomplete, " + session.getOffset() + " of " +
+        session.getLength() + " bytes committed.");
+    }
+
+    boolean remove = false;
+    try {
+      Checksums sessionChecksums = checksumsAt(session.getId(), session.getOffset());
+      checksums.invalidate(session.getId());
+      if (sessionChecksums == null) {
+        sessionChecksums = recomputeChecksums(session);
+      }
+
+      FileDescriptor descriptor = storageService.storeUploadedRpm(reponame,
+        new UploadedChunks(session.getId(), session.getOffset(), session.getChunkSize(),
+          sessionChecksums.getSha256Hash(), sessionChecksums.getMd5Hash()), expectedSha256Hash);
+      blobStore.discardUnlessAdopted(session.getId());
+      remove = true;
+      InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".finished");
+      return descriptor;
+    } catch (InvalidRpmHeaderException | BadRequestException | GridFSFileAlreadyExistsException e) {
+      blobStore.discard(session.getId());
+      remove = true;
+      InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".rejected");
+      throw e;
+    } finally {
+      if (remove) {
+        sessions.remove(new BasicDBObject(ID_KEY, session.getId()));
+      } else {
+        release(session, session.getOffset());
+      }
+    }
+  }
+
+  @TimeMeasurement
+  public void abort(String reponame, String sessionId) {
+    UploadSession session = claim(reponame, sessionId, new BasicDBObject());
+    remove(session.getId());
+  }
+
+  /**
+   * Removes sessions, that have not been modified for {@link #getAbandonedAfterHours()}, and their chunks.
+   */
+  public int removeAbandonedSessions(Date now) {
+    Date before = addHours(now, -abandonedAfterHours);
+    DBCursor cursor = sessions.find(new BasicDBObject(LAST_MODIFIED_KEY, new BasicDBObject("$lt", before)),
+      new BasicDBObject(ID_KEY, 1));
+    int removed = 0;
+    try {
+      while (cursor.hasNext()) {
+        ObjectId id = (ObjectId) cursor.next().get(ID_KEY);
+        if (sessions.remove(new BasicDBObject(ID_KEY, id)
+            .append(LAST_MODIFIED_KEY, new BasicDBObject("$lt", before))).getN() > 0) {
+          blobStore.discard(id);
+          checksums.invalidate(id);
+          removed++;
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+
+    LOGGER.info("removed {} upload sessions abandoned before {}", removed, before);
+    return removed;
+  }
+
+  @ManagedAttribute
+  public int getAbandonedAfterHours() {
+    return abandonedAfterHours;
+  }
+
+  @ManagedAttribute
+  public void setAbandonedAfterHours(int abandonedAfterHours) {
+    this.abandonedAfterHours = abandonedAfterHours;
+  }
+
+  @ManagedAttribute
+  public int getBusyTimeoutInMinutes() {
+    return busyTimeoutInMinutes;
+  }
+
+  @ManagedAttribute
+  public void setBusyTimeoutInMinutes(int busyTimeoutInMinutes) {
+    this.busyTimeoutInMinutes = busyTimeoutInMinutes;
+  }
+
+  @ManagedAttribute
+  public long getSessionCount() {
+    return sessions.count();
+  }
+
+  /**
+   * Claims a session, that is not busy or whose lease has expired, because the request holding it has not
+   * renewed it for {@link #getBusyTimeoutInMinutes()}.
+   */
+  private UploadSession claim(String reponame, String sessionId, DBObject condition) {
+    Date now = new Date();
+    DBObject query = new BasicDBObject(ID_KEY, toId(reponame, sessionId)).append(REPO_KEY, reponame)
+      .append("$or", Arrays.asList(new BasicDBObject(BUSY_KEY, false),
+        new BasicDBObject(BUSY_SINCE_KEY, new BasicDBObject("$not",
+          new BasicDBObject("$gte", addMinutes(now, -busyTimeoutInMinutes))))));
+    query.putAll(condition);
+
+    DBObject claimed = sessions.findAndModify(query, null, null, false,
+      new BasicDBObject("$set", new BasicDBObject(BUSY_KEY, true).append(BUSY_SINCE_KEY, now)
+        .append(CLAIM_KEY, new ObjectId()).append(LAST_MODIFIED_KEY, now)), true, false);
+    if (claimed != null) {
+      return UploadSession.of(claimed);
+    }
+
+    UploadSession session = getSession(reponame, sessionId);
+    throw new UploadSessionConflictException(session.isBusy()
+      ? "Upload session is busy." : ("Upload session is at offset " + session.getOffset() + "."));
+  }
+
+  /**
+   * Renews the lease of the session, once half of it has passed.
+   *
+   * @return the time of the last renewal
+   */
+  private long renewIfHalfExpired(UploadSession session, long renewedAt) {
+    long now = System.currentTimeMillis();
+    if ((now - renewedAt) < (busyTimeoutInMinutes * 30_000L)) {
+      return renewedAt;
+    }
+
+    if (sessions.update(new BasicDBObject(ID_KEY, session.getId()).append(CLAIM_KEY, session.getClaim()),
+        new BasicDBObject("$set", new BasicDBObject(BUSY_SINCE_KEY, new Date(now)))).getN() == 0) {
+      throw new UploadSessionConflictException("Upload session has been taken over by another request.");
+    }
+    return now;
+  }
+
+  /**
+   * Releases the session, unless its lease has been taken over by another request in the meantime.
+   *
+   * @return true, if the session was still claimed by the given request
+   */
+  private boolean release(UploadSession session, long committed) {
+    DBObject update = new BasicDBObject("$set", new BasicDBObject(OFFSET_KEY, committed).append(BUSY_KEY, false)
+      .append(LAST_MODIFIED_KEY, new Date())).append("$unset", new BasicDBObject(CLAIM_KEY, ""));
+    return sessions.update(new BasicDBObject(ID_KEY, session.getId()).append(CLAIM_KEY, session.getClaim()),
+      update).getN() > 0;
+  }
+
+  private void remove(ObjectId id) {
+    sessions.remove(new BasicDBObject(ID_KEY, id));
+    blobStore.discard(id);
+    checksums.invalidate(id);
+  }
+
+  private long verifiedLength(UploadSession session, long length) {
+    if (length < 0) {
+      return session.getLength();
+    }
+    if (session.getLength() < 0) {
+      sessions.update(new BasicDBObject(ID_KEY, session.getId()),
+        new BasicDBObject("$set", new BasicDBObject(LENGTH_KEY, length)));
+    } else if (session.getLength() != length) {
+      throw new BadRequestException("Upload length is " + session.getLength() + ", not " + length + ".");
+    }
+    return length;
+  }
+
+  private Checksums checksumsAt(ObjectId id, long offset) {
+    Checksums sessionChecksums = checksums.getIfPresent(id);
+    if ((sessionChecksums != null) && (sessionChecksums.offset == offset)) {
+      return sessionChecksums;
+    }
+    checksums.invalidate(id);
+    return null;
+  }
+
+  private Checksums recomputeChecksums(UploadSession session) throws IOException {
+    LOGGER.info("recomputing checksums of upload session {}", session.getId());
+
+    Checksums sessionChecksums = new Checksums();
+    byte[] buffer = new byte[session.getChunkSize()];
+    try(InputStream inputStream = blobStore.openChunks(session.getId(), session.getOffset(),
+        session.getChunkSize())) {
+      int bytesRead;
+      while ((bytesRead = inputStream.read(buffer)) > 0) {
+        sessionChecksums.update(buffer, 0, bytesRead);
+      }
+    }
+    return sessionChecksums;
+  }
+
+  private static ObjectId toId(String reponame, String sessionId) {
+    if (!ObjectId.isValid(sessionId)) {
+      throw notFound(reponame, sessionId);
+    }
+    return new ObjectId(sessionId);
+  }
+
+  private static GridFSFileNotFoundException notFound(String reponame, String sessionId) {
+    return new GridFSFileNotFoundException("Upload session not found.", reponame + "/uploads/" + sessionId);
+  }
+
+  private static class Checksums {
+    private final MessageDigest sha256Digest = getSha256Digest();
+    private final MessageDigest md5Digest = getMd5Digest();
+    private long offset;
+
+    void update(byte[] buffer, int start, int length) {
+      sha256Digest.update(buffer, start, length);
+      md5Digest.update(buffer, start, length);
+      offset += length;
+    }
+
+    String getSha256Hash() {
+      return encodeHexString(sha256Digest.digest());
+    }
+
+    String getMd5Hash() {
+      return encodeHexString(md5Digest.digest());
+    }
+  }
+}
@@ -0,0 +1,342 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.Math.min;
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+
+/**
+ * One upstream read of a range of a stored file, shared by several readers. A reader alone reads directly from the
+ * upstream stream into its own buffer. A reader joining later reads the part it has missed on its own and continues
+ * with the shared read at the position of the join. Only then a ring buffer is allocated, through which the reader
+ * that runs out of data fetches the next block for all of them. Readers falling behind by more than the ring buffer
+ * size are detached and continue with their own stream.
+ */
+class SharedRead {
+  private static final int DETACHED = -2;
+  private static final int TRANSFER_SIZE = 64 * 1024;
+
+  private final ReadCoalescer coalescer;
+  private final Object key;
+  private final FileStorageItem storageItem;
+  private final long startPos;
+  private final long length;
+  private final int bufferSize;
+  private final List<Reader> readers = new ArrayList<>();
+
+  private InputStream upstream;
+  private byte[] ring;
+  private byte[] transferBuffer;
+  private long written;
+  private boolean producing;
+  private boolean eof;
+  private boolean failed;
+  private boolean closed;
+
+  /**
+   * @param length the length of the range, or -1 to read to the end of the file
+   * @param bufferSize the size of the ring buffer, which also bounds the part a joining reader reads on its own
+   */
+  SharedRead(ReadCoalescer coalescer, Object key, FileStorageItem storageItem, long startPos, long length,
+             int bufferSize) {
+    this.coalescer = coalescer;
+    this.key = key;
+    this.storageItem = storageItem;
+    this.startPos = startPos;
+    this.length = length;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * @return a new reader starting at the beginning, or null if the read has passed the buffer size. A block being
+   * read directly into the buffer of a reader is not shared, so the new reader waits for it to be finished.
+   */
+  synchronized InputStream join() {
+    while (producing && !failed) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+    if (closed || failed || eof || (written > bufferSize)) {
+      return null;
+    }
+
+    Reader reader = new Reader(written);
+    readers.add(reader);
+    return reader;
+  }
+
+  private int read(Reader reader, byte[] buffer, int offset, int len) throws IOException {
+    while (true) {
+      boolean alone;
+      int free = 0;
+      synchronized (this) {
+        while (true) {
+          if (reader.detached) {
+            return DETACHED;
+          }
+          if (reader.position < written) {
+            return copyOut(reader, buffer, offset, len);
+          }
+          if (eof) {
+            return -1;
+          }
+          if (failed) {
+            reader.detached = true;
+            return DETACHED;
+          }
+          if (!producing) {
+            break;
+          }
+          waitForProducer();
+        }
+
+        producing = true;
+        alone = isAlone(reader);
+        if (alone) {
+          ring = null;
+          transferBuffer = null;
+        } else {
+          free = makeRoom();
+        }
+      }
+
+      if (alone) {
+        return produceDirectly(reader, buffer, offset, len);
+      }
+      produce(free);
+    }
+  }
+
+  private int produceDirectly(Reader reader, byte[] buffer, int offset, int len) {
+    int count = readUpstream(buffer, offset, len);
+    synchronized (this) {
+      produced(count);
+      if (count > 0) {
+        reader.position += count;
+      } else if (count == DETACHED) {
+        reader.detached = true;
+      }
+      notifyProduced();
+    }
+    return count;
+  }
+
+  private void produce(int free) {
+    int count = readUpstream(transferBuffer, 0, min(free, transferBuffer.length));
+    synchronized (this) {
+      produced(count);
+      if (count > 0) {
+        copyIn(count);
+      }
+      notifyProduced();
+    }
+  }
+
+  private int readUpstream(byte[] buffer, int offset, int len) {
+    try {
+      if (upstream == null) {
+        upstream = open(0);
+      }
+      return upstream.read(buffer, offset, len);
+    } catch (IOException | RuntimeException e) {
+      return DETACHED;
+    }
+  }
+
+  private void produced(int count) {
+    if (count == DETACHED) {
+      failed = true;
+    } else if (count < 0) {
+      eof = true;
+    } else {
+      written += count;
+    }
+    producing = false;
+  }
+
+  private void notifyProduced() {
+    notifyAll();
+    if (eof || failed || (written > bufferSize)) {
+      coalescer.notJoinable(key, this);
+    }
+  }
+
+  private boolean isAlone(Reader reader) {
+    for (Reader other : readers) {
+      if ((other != reader) && !other.detached) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int copyOut(Reader reader, byte[] buffer, int offset, int len) {
+    int count = (int) min(len, written - reader.position);
+    int index = (int) (reader.position % ring.length);
+    int firstPart = min(count, ring.length - index);
+    System.arraycopy(ring, index, buffer, offset, firstPart);
+    System.arraycopy(ring, 0, buffer, offset + firstPart, count - firstPart);
+    reader.position += count;
+    return count;
+  }
+
+  /**
+   * Appends the transferred block, which has already been counted as written.
+   */
+  private void copyIn(int count) {
+    int index = (int) ((written - count) % ring.length);
+    int firstPart = min(count, ring.length - index);
+    System.arraycopy(transferBuffer, 0, ring, index, firstPart);
+    System.arraycopy(transferBuffer, firstPart, ring, 0, count - firstPart);
+  }
+
+  private int makeRoom() {
+    if (ring == null) {
+      ring = new byte[bufferSize];
+      transferBuffer = new byte[min(bufferSize, TRANSFER_SIZE)];
+    }
+
+    int free = freeSpace();
+    while (free < transferBuffer.length) {
+      long slowestPosition = slowestPosition();
+      for (Reader reader : readers) {
+        if (!reader.detached && (reader.position == slowestPosition)) {
+          reader.detached = true;
+          coalescer.fellBack();
+        }
+      }
+      free = freeSpace();
+    }
+    return free;
+  }
+
+  private int freeSpace() {
+    return (int) (ring.length - (written - slowestPosition()));
+  }
+
+  private long slowestPosition() {
+    long slowestPosition = written;
+    for (Reader reader : readers) {
+      if (!reader.detached) {
+        slowestPosition = min(slowestPosition, reader.position);
+      }
+    }
+    return slowestPosition;
+  }
+
+  private void waitForProducer() throws InterruptedIOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for shared read of " + storageItem.getFilename());
+    }
+  }
+
+  /**
+   * @return a stream of the range from the given offset on
+   */
+  private InputStream open(long offset) {
+    return (length < 0) ? storageItem.getInputStream(startPos + offset)
+                        : storageItem.getInputStream(startPos + offset, length - offset);
+  }
+
+  private void leave(Reader reader) {
+    boolean lastReader;
+    synchronized (this) {
+      readers.remove(reader);
+      lastReader = readers.isEmpty() && !closed;
+      if (lastReader) {
+        closed = true;
+      }
+    }
+
+    if (lastReader) {
+      closeQuietly(upstream);
+      coalescer.finished(key, this);
+    }
+  }
+
+  private class Reader extends InputStream {
+    private final long joinPosition;
+    private long position;
+    private boolean detached;
+    private InputStream missedStream;
+    private long missedRead;
+    private InputStream ownStream;
+    private boolean closed;
+
+    Reader(long joinPosition) {
+      this.joinPosition = joinPosition;
+      this.position = joinPosition;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] buffer = new byte[1];
+      int count = read(buffer, 0, 1);
+      return (count <= 0) ? -1 : (buffer[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (missedRead < joinPosition) {
+        return readMissed(buffer, offset, len);
+      }
+      if (ownStream == null) {
+        int count = SharedRead.this.read(this, buffer, offset, len);
+        if (count != DETACHED) {
+          return count;
+        }
+        ownStream = open(position);
+        leave(this);
+      }
+      return ownStream.read(buffer, offset, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      closeQuietly(missedStream);
+      if (ownStream != null) {
+        ownStream.close();
+      } else {
+        leave(this);
+      }
+    }
+
+    private int readMissed(byte[] buffer, int offset, int len) throws IOException {
+      if (missedStream == null) {
+        missedStream = storageItem.getInputStream(startPos, joinPosition);
+      }
+
+      int count = missedStream.read(buffer, offset, (int) min(len, joinPosition - missedRead));
+      if (count < 0) {
+        return -1;
+      }
+      missedRead += count;
+      if (missedRead == joinPosition) {
+        missedStream.close();
+        missedStream = null;
+      }
+      return count;
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package de.is24.infrastructure.gridfs.http.gridfs;
 
+import de.is24.infrastructure.gridfs.http.cache.RepoMetadataCache;
+import de.is24.infrastructure.gridfs.http.domain.RepodataCompression;
 import de.is24.infrastructure.gridfs.http.domain.YumEntry;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageChecksum;
@@ -7,13 +9,17 @@ import de.is24.infrastructure.gridfs.http.exception.BadRequestException;
 import de.is24.infrastructure.gridfs.http.exception.GridFSFileNotFoundException;
 import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
 import de.is24.infrastructure.gridfs.http.exception.RepositoryIsUndeletableException;
+import de.is24.infrastructure.gridfs.http.governor.IngestGovernor;
+import de.is24.infrastructure.gridfs.http.governor.IngestPermit;
 import de.is24.infrastructure.gridfs.http.jaxb.Data;
 import de.is24.infrastructure.gridfs.http.metadata.YumEntriesRepository;
 import de.is24.infrastructure.gridfs.http.repos.RepoService;
 import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderToYumPackageConverter;
 import de.is24.infrastructure.gridfs.http.rpm.RpmHeaderWrapper;
 import de.is24.infrastructure.gridfs.http.rpm.version.YumPackageVersionComparator;
+import de.is24.infrastructure.gridfs.http.storage.ContentWriter;
 import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptorResolver;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
 import de.is24.infrastructure.gridfs.http.storage.UploadResult;
@@ -30,7 +36,6 @@ import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Service;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -55,12 +60,13 @@ import static org.apache.commons.lang.StringUtils.substringAfter;
 @Service
 public class StorageService {
   private static final Logger LOGGER = LoggerFactory.getLogger(StorageService.class);
-  private static final int BUFFER_SIZE = 16 * 1024 * 1024;
 
   private final FileStorageService fileStorageService;
   private final YumEntriesRepository yumEntriesRepository;
   private final RepoService repoService;
   private YumPackageVersionComparator comparator = new YumPackageVersionComparator();
+  private RepoMetadataCache repoMetadataCache;
+  private IngestGovernor ingestGovernor;
 
   //needed for cglib proxy
   public StorageService() {
@@ -77,6 +83,16 @@ public class StorageService {
     this.repoService = repoService;
   }
 
+  @Autowired(required = false)
+  public void setRepoMetadataCache(RepoMetadataCache repoMetadataCache) {
+    this.repoMetadataCache = repoMetadataCache;
+  }
+
+  @Autowired(required = false)
+  public void setIngestGovernor(IngestGovernor ingestGovernor) {
+    this.ingestGovernor = ingestGovernor;
+  }
+
   @TimeMeasurement
   @PreAuthorize("hasPermission(#sourceFile, '" + PROPAGATE_FILE + "')")
   public FileDescriptor propagateRpm(String sourceFile, String destinationRepo) {
@@ -190,27 +206,95 @@ public class StorageService {
 
   @TimeMeasurement
   public void storeRpm(String reponame, InputStream inputStream) throws InvalidRpmHeaderException, IOException {
+    storeRpm(reponame, inputStream, null, -1, null);
+  }
+
+  /**
+   * Stores an RPM and discards it again, if it does not match the expectations. The upload waits for admission by
+   * the {@link IngestGovernor} before its content is read.
+   *
+   * @param expectedPath the path the RPM has to be stored at according to its header, or <code>null</code>
+   * @param expectedSize the size of the RPM, or -1 if unknown
+   * @param expectedSha256Hash the hex encoded SHA-256 of the RPM, or <code>null</code>
+   */
+  @TimeMeasurement
+  public void storeRpm(String reponame, InputStream inputStream, String expectedPath, long expectedSize,
+                       String expectedSha256Hash) throws InvalidRpmHeaderException, IOException {
     validateRepoName(reponame);
 
-    BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream, BUFFER_SIZE);
-    bufferedInputStream.mark(BUFFER_SIZE);
+    YumEntry yumEntry;
+    try(IngestPermit permit = (ingestGovernor == null) ? null : ingestGovernor.acquire(reponame)) {
+      yumEntry = storeRpmFile(reponame, inputStream, expectedPath, expectedSize, expectedSha256Hash);
+      yumEntriesRepository.save(yumEntry);
+    }
+    repoService.createOrUpdate(reponame);
+    LOGGER.info("Stored RPM {}/{}", reponame, yumEntry.getYumPackage().getLocation().getHref());
+  }
 
-    YumPackage yumPackage = convertHeader(bufferedInputStream);
-    bufferedInputStream.reset();
+  /**
+   * Stores the file of an RPM only, after admission by the {@link IngestGovernor}. Saving the returned
+   * {@link YumEntry} and updating the repository is left to the caller, so that both can be done once for many RPMs.
+   */
+  @TimeMeasurement
+  public YumEntry storeRpmFile(String reponame, InputStream inputStream) throws InvalidRpmHeaderException,
+                                                                              IOException {
+    validateRepoName(reponame);
+    try(IngestPermit permit = (ingestGovernor == null) ? null : ingestGovernor.acquire(reponame)) {
+      return storeRpmFile(reponame, inputStream, null, -1, null);
+    }
+  }
 
-    FileDescriptor descriptor = new FileDescriptor(reponame, yumPackage);
-    final FileStorageItem storageItem = fileStorageService.storeFile(bufferedInputStream, descriptor);
+  /**
+   * Stores an RPM from the chunks of a finished resumable upload, after admission by the {@link IngestGovernor}.
+   * The chunks are kept, so that the upload can be finished again if storing fails; discarding them, if they have
+   * not been adopted, is left to the caller.
+   *
+   * @param expectedSha256Hash the hex encoded SHA-256 of the RPM, or <code>null</code>
+   */
+  @TimeMeasurement
+  public FileDescriptor storeUploadedRpm(String reponame, UploadedChunks chunks, String expectedSha256Hash)
+                                  throws InvalidRpmHeaderException, IOException {
+    validateRepoName(reponame);
 
-    yumEntriesRepository.save(createYumEntry(yumPackage, storageItem));
+    RpmDescriptorResolver resolver = new RpmDescriptorResolver(reponame, null, chunks.getLength(),
+      expectedSha256Hash);
+    FileStorageItem storageItem;
+    try(IngestPermit permit = (ingestGovernor == null) ? null : ingestGovernor.acquire(reponame)) {
+      storageItem = fileStorageService.storeChunks(chunks, resolver);
+      boolean saved = false;
+      try {
+        yumEntriesRepository.save(createYumEntry(resolver.getYumPackage(), storageItem));
+        saved = true;
+      } finally {
+        if (!saved) {
+          fileStorageService.unstoreChunks(chunks, storageItem);
+        }
+      }
+    }
     repoService.createOrUpdate(reponame);
-    LOGGER.info("Stored RPM {}/{}", reponame, yumPackage.getLocation().getHref());
+    LOGGER.info("Stored uploaded RPM {}", storageItem.getFilename());
+    return new FileDescriptor(storageItem);
+  }
+
+  @TimeMeasurement
+  public Data storeRepodataDb(String reponame, File metadataFile, String name, RepodataCompression compression)
+                       throws IOException {
+    validateRepoName(reponame);
+
+    UploadResult uploadResult = fileStorageService.storeSqliteFileCompressedWithChecksumName(reponame, metadataFile,
+      name, compression);
+    Data data = createRepoMdData(uploadResult);
+    data.setDatabaseVersion(DB_VERSION);
+    return data;
   }
 
   @TimeMeasurement
-  public Data storeRepodataDbBz2(String reponame, File metadataFile, String name) throws IOException {
+  public Data storeRepodataXml(String reponame, String name, RepodataCompression compression,
+                               ContentWriter contentWriter) throws IOException {
     validateRepoName(reponame);
 
-    UploadResult uploadResult = fileStorageService.storeSqliteFileCompressedWithChecksumName(reponame, metadataFile, name);
+    UploadResult uploadResult = fileStorageService.storeXmlCompressedWithChecksumName(reponame, name, compression,
+      contentWriter);
     return createRepoMdData(uploadResult);
   }
 
@@ -224,6 +308,9 @@ public class StorageService {
 
     yumEntriesRepository.deleteByRepo(reponame);
     fileStorageService.deleteRepo(reponame);
+    if (repoMetadataCache != null) {
+      repoMetadataCache.invalidateRepo(reponame);
+    }
     repoService.delete(reponame);
   }
 
@@ -273,7 +360,19 @@ public class StorageService {
     return new YumEntry((ObjectId) storageItem.getId(), storageItem.getRepo(), yumPackage);
   }
 
+  private YumEntry storeRpmFile(String reponame, InputStream inputStream, String expectedPath, long expectedSize,
+                                String expectedSha256Hash) throws InvalidRpmHeaderException, IOException {
+    RpmDescriptorResolver resolver = new RpmDescriptorResolver(reponame, expectedPath, expectedSize,
+      expectedSha256Hash);
+    FileStorageItem storageItem = fileStorageService.storeFile(inputStream, resolver);
+    return createYumEntry(resolver.getYumPackage(), storageItem);
+  }
+
   private Data createRepoMdData(UploadResult uploadResult) {
+    if ((repoMetadataCache != null) && (uploadResult.getId() != null)) {
+      repoMetadataCache.put(fileStorageService.findById(uploadResult.getId()));
+    }
+
     Data data = new Data();
     data.setChecksum(SHA256_KEY, uploadResult.getCompressedChecksum());
     data.setSize(uploadResult.getCompressedSize());
@@ -281,7 +380,6 @@ public class StorageService {
     data.setOpenChecksum(SHA256_KEY, uploadResult.getUncompressedChecksum());
     data.setLocation(substringAfter(uploadResult.getLocation(), "/"));
     data.setTimestamp((int) (uploadResult.getUploadDate().getTime() / 1000));
-    data.setDatabaseVersion(DB_VERSION);
     return data;
   }
 
@@ -310,4 +408,53 @@ public class StorageService {
       throw e;
     }
   }
+
+  /**
+   * Parses lead, signature and header of an RPM while the upload is streamed into the storage.
+   */
+  private class RpmDescriptorResolver implements FileDescriptorResolver {
+    private final String reponame;
+    private final String expectedPath;
+    private final long expectedSize;
+    private final String expectedSha256Hash;
+    private YumPackage yumPackage;
+
+    RpmDescriptorResolver(String reponame, String expectedPath, long expectedSize, String expectedSha256Hash) {
+      this.reponame = reponame;
+      this.expectedPath = expectedPath;
+      this.expectedSize = expectedSize;
+      this.expectedSha256Hash = expectedSha256Hash;
+    }
+
+    @Override
+    public FileDescriptor resolve(InputStream head) throws InvalidRpmHeaderException {
+      yumPackage = convertHeader(head);
+
+      FileDescriptor descriptor = new FileDescriptor(reponame, yumPackage);
+      if ((expectedPath != null) && !expectedPath.equals(descriptor.getPath())) {
+        throw new BadRequestException("RPM header does not match path " + expectedPath + ", expected " +
+          descriptor.getPath());
+      }
+      return descriptor;
+    }
+
+    @Override
+    public String getExpectedSha256Hash() {
+      return (expectedSha256Hash == null) ? null : expectedSha256Hash.toLowerCase();
+    }
+
+    @Override
+    public void verify(long size, String sha256Hash) {
+      if ((expectedSize >= 0) && (expectedSize != size)) {
+        throw new BadRequestException("Received " + size + " bytes instead of " + expectedSize + ".");
+      }
+      if ((expectedSha256Hash != null) && !expectedSha256Hash.equalsIgnoreCase(sha256Hash)) {
+        throw new BadRequestException("SHA-256 of RPM is " + sha256Hash + ", expected " + expectedSha256Hash + ".");
+      }
+    }
+
+    YumPackage getYumPackage() {
+      return yumPackage;
+    }
+  }
 }
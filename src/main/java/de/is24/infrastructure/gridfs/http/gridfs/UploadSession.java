@@ -0,0 +1,87 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+
+
+/**
+ * State of a resumable upload: the bytes up to the offset have been committed as chunks.
+ */
+public class UploadSession {
+  static final String ID_KEY = "_id";
+  static final String REPO_KEY = "repo";
+  static final String OFFSET_KEY = "offset";
+  static final String LENGTH_KEY = "length";
+  static final String CHUNK_SIZE_KEY = "chunkSize";
+  static final String BUSY_KEY = "busy";
+  static final String BUSY_SINCE_KEY = "busySince";
+  static final String CLAIM_KEY = "claim";
+  static final String LAST_MODIFIED_KEY = "lastModified";
+
+  private final ObjectId id;
+  private final String repo;
+  private final long offset;
+  private final long length;
+  private final int chunkSize;
+  private final boolean busy;
+  private final ObjectId claim;
+
+  public UploadSession(ObjectId id, String repo, long offset, long length, int chunkSize, boolean busy) {
+    this(id, repo, offset, length, chunkSize, busy, null);
+  }
+
+  private UploadSession(ObjectId id, String repo, long offset, long length, int chunkSize, boolean busy,
+                        ObjectId claim) {
+    this.id = id;
+    this.repo = repo;
+    this.offset = offset;
+    this.length = length;
+    this.chunkSize = chunkSize;
+    this.busy = busy;
+    this.claim = claim;
+  }
+
+  static UploadSession of(DBObject dbObject) {
+    return new UploadSession((ObjectId) dbObject.get(ID_KEY), (String) dbObject.get(REPO_KEY),
+      ((Number) dbObject.get(OFFSET_KEY)).longValue(), ((Number) dbObject.get(LENGTH_KEY)).longValue(),
+      ((Number) dbObject.get(CHUNK_SIZE_KEY)).intValue(), Boolean.TRUE.equals(dbObject.get(BUSY_KEY)),
+      (ObjectId) dbObject.get(CLAIM_KEY));
+  }
+
+  public ObjectId getId() {
+    return id;
+  }
+
+  public String getRepo() {
+    return repo;
+  }
+
+  /**
+   * @return the number of bytes committed so far
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return the announced length of the upload, or -1 if not yet known
+   */
+  public long getLength() {
+    return length;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public boolean isBusy() {
+    return busy;
+  }
+
+  /**
+   * @return the token of the request currently working on the session, or null if not busy
+   */
+  ObjectId getClaim() {
+    return claim;
+  }
+}
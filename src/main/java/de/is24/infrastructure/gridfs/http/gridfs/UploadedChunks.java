@@ -0,0 +1,43 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import org.bson.types.ObjectId;
+
+
+/**
+ * The chunks a finished resumable upload has written to the {@link BlobStore}, with the checksums of its content.
+ */
+public class UploadedChunks {
+  private final ObjectId blobId;
+  private final long length;
+  private final int chunkSize;
+  private final String sha256Hash;
+  private final String md5Hash;
+
+  public UploadedChunks(ObjectId blobId, long length, int chunkSize, String sha256Hash, String md5Hash) {
+    this.blobId = blobId;
+    this.length = length;
+    this.chunkSize = chunkSize;
+    this.sha256Hash = sha256Hash;
+    this.md5Hash = md5Hash;
+  }
+
+  public ObjectId getBlobId() {
+    return blobId;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public String getSha256Hash() {
+    return sha256Hash;
+  }
+
+  public String getMd5Hash() {
+    return md5Hash;
+  }
+}
@@ -0,0 +1,78 @@
+package de.is24.infrastructure.gridfs.http.gridfs.scheduling;
+
+import de.is24.infrastructure.gridfs.http.gridfs.BlobStore;
+import de.is24.infrastructure.gridfs.http.gridfs.DeduplicationReport;
+import de.is24.infrastructure.gridfs.http.utils.MDCHelper;
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Migrates RPMs stored before the {@link BlobStore} existed: duplicates are collapsed into a single blob on demand.
+ */
+@ManagedResource
+@Service
+public class DeduplicationJob {
+  private final BlobStore blobStore;
+
+  private AtomicLong executionsSinceStartUp = new AtomicLong();
+  private AtomicLong failureSinceStartUp = new AtomicLong();
+  private AtomicLong reclaimedBytesSinceStartUp = new AtomicLong();
+
+  private volatile DeduplicationReport lastReport;
+  private String lastStackTrace;
+
+  @Autowired
+  public DeduplicationJob(final BlobStore blobStore) {
+    this.blobStore = blobStore;
+  }
+
+  @ManagedOperation
+  public String collapseDuplicatesNow() {
+    executionsSinceStartUp.incrementAndGet();
+    new MDCHelper(this.getClass()).run(() -> {
+      try {
+        DeduplicationReport report = blobStore.collapseDuplicates();
+        reclaimedBytesSinceStartUp.addAndGet(report.getReclaimedBytes());
+        lastReport = report;
+      } catch (Exception ex) {
+        failureSinceStartUp.incrementAndGet();
+        lastStackTrace = ExceptionUtils.getFullStackTrace(ex);
+        throw ex;
+      }
+    });
+    return getLastReport();
+  }
+
+  @ManagedAttribute
+  public String getLastReport() {
+    DeduplicationReport report = lastReport;
+    return (report == null) ? null : report.toString();
+  }
+
+  @ManagedAttribute
+  public long getReclaimedBytesSinceStartUp() {
+    return reclaimedBytesSinceStartUp.get();
+  }
+
+  @ManagedAttribute
+  public long getExecutionsSinceStartup() {
+    return executionsSinceStartUp.get();
+  }
+
+  @ManagedAttribute
+  public long getFailureSinceStartUp() {
+    return failureSinceStartUp.get();
+  }
+
+  @ManagedAttribute
+  public String getLastStackTrace() {
+    return lastStackTrace;
+  }
+}
@@ -1,6 +1,8 @@
 package de.is24.infrastructure.gridfs.http.gridfs.scheduling;
 
 import com.google.common.annotations.VisibleForTesting;
+import de.is24.infrastructure.gridfs.http.gridfs.BlobStore;
+import de.is24.infrastructure.gridfs.http.gridfs.ResumableUploadService;
 import de.is24.infrastructure.gridfs.http.mongo.MongoPrimaryDetector;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
 import de.is24.infrastructure.gridfs.http.utils.MDCHelper;
@@ -30,6 +32,8 @@ public class DeleteFilesJob {
   private AtomicLong failureSinceStartUp = new AtomicLong();
 
   private String lastStackTrace;
+  private ResumableUploadService resumableUploadService;
+  private BlobStore blobStore;
 
   @Autowired
   public DeleteFilesJob(final FileStorageService fileStorageService,
@@ -41,6 +45,16 @@ public class DeleteFilesJob {
   }
 
 
+  @Autowired(required = false)
+  public void setResumableUploadService(ResumableUploadService resumableUploadService) {
+    this.resumableUploadService = resumableUploadService;
+  }
+
+  @Autowired(required = false)
+  public void setBlobStore(BlobStore blobStore) {
+    this.blobStore = blobStore;
+  }
+
   @Scheduled(cron = "${scheduler.delete.files.cron:0 3-59/15 * * * *}")
   public void deleteFilesMarkedAsDeleted() {
     deleteFilesMarkedAsDeleted(new Date());
@@ -78,6 +92,12 @@ public class DeleteFilesJob {
     new MDCHelper(this.getClass()).run(() -> {
       try {
         fileStorageService.removeFilesMarkedAsDeletedBefore(addMinutes(now, -minuetsToWaitForActualDelete));
+        if (blobStore != null) {
+          blobStore.removeChunksCollapsedBefore(addMinutes(now, -minuetsToWaitForActualDelete));
+        }
+        if (resumableUploadService != null) {
+          resumableUploadService.removeAbandonedSessions(now);
+        }
       } catch (Exception ex) {
         failureSinceStartUp.incrementAndGet();
         lastStackTrace = ExceptionUtils.getFullStackTrace(ex);
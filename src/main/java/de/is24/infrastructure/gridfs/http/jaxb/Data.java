@@ -21,7 +21,7 @@ public class Data {
 
   private Checksum openChecksum;
 
-  private int databaseVersion;
+  private Integer databaseVersion;
 
   private String type;
 
@@ -76,11 +76,11 @@ public class Data {
   }
 
   @XmlElement(name = "database_version")
-  public int getDatabaseVersion() {
+  public Integer getDatabaseVersion() {
     return databaseVersion;
   }
 
-  public void setDatabaseVersion(int databaseVersion) {
+  public void setDatabaseVersion(Integer databaseVersion) {
     this.databaseVersion = databaseVersion;
   }
 
@@ -0,0 +1,14 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import org.bson.types.ObjectId;
+
+import java.util.Map;
+
+public interface FindYumEntryFingerprints {
+
+  /**
+   * @return the {@link YumEntriesRepositoryImpl#fingerprintOf fingerprints} of all entries of the repository by
+   * their id, without loading the entries
+   */
+  public Map<ObjectId, String> findFingerprintsByRepo(String reponame);
+}
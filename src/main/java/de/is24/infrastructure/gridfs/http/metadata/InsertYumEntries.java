@@ -0,0 +1,13 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+
+import java.util.Collection;
+
+public interface InsertYumEntries {
+
+  /**
+   * Inserts all entries with a single bulk insert.
+   */
+  public void insertAll(Collection<YumEntry> entries);
+}
@@ -1,38 +1,75 @@
 package de.is24.infrastructure.gridfs.http.metadata;
 
+import de.is24.infrastructure.gridfs.http.cache.RepoMetadataCache;
 import de.is24.infrastructure.gridfs.http.domain.RepoEntry;
 import de.is24.infrastructure.gridfs.http.domain.RepoType;
+import de.is24.infrastructure.gridfs.http.domain.RepodataCompression;
 import de.is24.infrastructure.gridfs.http.domain.YumEntry;
 import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
 import de.is24.infrastructure.gridfs.http.jaxb.Data;
 import de.is24.infrastructure.gridfs.http.metadata.generation.DbGenerator;
+import de.is24.infrastructure.gridfs.http.metadata.generation.DbGenerator.EntryWriter;
 import de.is24.infrastructure.gridfs.http.metadata.generation.FileListsGenerator;
+import de.is24.infrastructure.gridfs.http.metadata.generation.FileListsXmlGenerator;
 import de.is24.infrastructure.gridfs.http.metadata.generation.OtherDbGenerator;
+import de.is24.infrastructure.gridfs.http.metadata.generation.OtherXmlGenerator;
 import de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryDbGenerator;
+import de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryXmlGenerator;
 import de.is24.infrastructure.gridfs.http.metadata.generation.RepoMdGenerator;
+import de.is24.infrastructure.gridfs.http.metadata.generation.XmlGenerator;
+import de.is24.infrastructure.gridfs.http.metadata.generation.XmlGenerator.Packages;
+import de.is24.infrastructure.gridfs.http.metadata.generation.XmlGenerator.PackagesWriter;
 import de.is24.infrastructure.gridfs.http.repos.RepoCleaner;
 import de.is24.infrastructure.gridfs.http.repos.RepoService;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
 import de.is24.util.monitoring.InApplicationMonitor;
 import de.is24.util.monitoring.spring.TimeMeasurement;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.query.Field;
 import org.springframework.data.mongodb.tx.MongoTx;
+import org.springframework.data.mongodb.tx.MongoTxConfig;
+import org.springframework.data.mongodb.tx.MongoTxConfigHolder;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import static de.is24.infrastructure.gridfs.http.domain.RepodataCompression.BZIP2;
+import static de.is24.infrastructure.gridfs.http.domain.RepodataCompression.GZIP;
 import static java.io.File.createTempFile;
+import static java.lang.Math.max;
 import static java.util.Arrays.asList;
+import static java.util.Arrays.stream;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.joining;
 import static org.springframework.util.ObjectUtils.nullSafeEquals;
 
 
@@ -41,13 +78,20 @@ import static org.springframework.util.ObjectUtils.nullSafeEquals;
 @TimeMeasurement
 public class MetadataService {
   private static final Logger LOG = LoggerFactory.getLogger(MetadataService.class);
-  private static final String METADATA_FILE_PATTERN = "/repodata/.*sqlite.bz2";
+  private static final int DEFAULT_GENERATION_THREADS = 6;
+  private static final String METADATA_FILE_PATTERN = "/repodata/.*(sqlite|xml)\\.(" +
+    extensionsOf(RepodataCompression.values()) + ")";
   private static final String METADATA_SERVICE = "MetadataService.";
   private static final String METADATA_SERVICE_MARK_FOR_DELETE = METADATA_SERVICE + "markForDelete.";
   private static final String METADATA_SERVICE_FIND_ENTRIES = METADATA_SERVICE + "findEntries.";
   private static final String METADATA_SERVICE_CREATE_DB = METADATA_SERVICE + "createDb.";
   private static final String METADATA_SERVICE_STORE_DB = METADATA_SERVICE + "storeDb.";
+  private static final String METADATA_SERVICE_GENERATE_DBS = METADATA_SERVICE + "generateDbs.";
+  private static final String METADATA_SERVICE_GENERATE_XML = METADATA_SERVICE + "generateXml.";
   private static final String METADATA_SERVICE_GENERATE_REPOMDXML = METADATA_SERVICE + "generateRepomdXml.";
+  private static final long MB = 1024 * 1024;
+  private static final File DEFAULT_TMP_DIR = new File(System.getProperty("java.io.tmpdir"),
+    "yum-repo-server-metadata");
 
 
   private final StorageService storageService;
@@ -58,8 +102,18 @@ public class MetadataService {
   private final YumEntriesHashCalculator entriesHashCalculator;
   private final InApplicationMonitor inApplicationMonitor;
   private final FileStorageService fileStorageService;
-  private File tmpDir;
+  private final Map<String, RepoDbSnapshot> snapshots = new LinkedHashMap<>();
+  private final AtomicLong evictedSnapshots = new AtomicLong();
+  private final AtomicLong fullGenerations = new AtomicLong();
+  private final AtomicLong incrementalGenerations = new AtomicLong();
+  private final ThreadPoolExecutor generationExecutor = newGenerationExecutor();
+  private RepoMetadataCache repoMetadataCache;
+  private File tmpDir = DEFAULT_TMP_DIR;
   private int outdatedMetaDataSurvivalTime;
+  private volatile int incrementalMinPackages = 1000;
+  private volatile int incrementalMaxChangedPercent = 10;
+  private volatile int incrementalMaxDiskMb = 2048;
+  private volatile boolean xmlEnabled = true;
 
   //only for cglib proxy
   public MetadataService() {
@@ -103,17 +157,20 @@ public class MetadataService {
   @ManagedOperation(description = "only generate metadata without cleanup, but always")
   @MongoTx
   public void doYumMetadataGenerationOnly(String reponame) throws IOException, SQLException {
-    doYumMetadataGenerationOnlyInternal(reponame, entriesHashCalculator.hashForRepo(reponame));
+    doYumMetadataGenerationOnlyInternal(repoService.ensureEntry(reponame, RepoType.STATIC, RepoType.SCHEDULED),
+      entriesHashCalculator.hashForRepo(reponame));
   }
 
   private void generateYumMetadata(String reponame, boolean allwaysGenerate) throws IOException, SQLException {
+    repoService.flushModifications(reponame);
+
     final RepoEntry repoEntry = repoService.ensureEntry(reponame, RepoType.STATIC, RepoType.SCHEDULED);
     String calculatedHash = entriesHashCalculator.hashForRepo(repoEntry.getName());
     if (allwaysGenerate || needsMetadataUpdate(repoEntry, calculatedHash)) {
       if (repoCleaner.cleanup(reponame)) {
         calculatedHash = entriesHashCalculator.hashForRepo(repoEntry.getName());
       }
-      doYumMetadataGenerationOnlyInternal(reponame, calculatedHash);
+      doYumMetadataGenerationOnlyInternal(repoEntry, calculatedHash);
     } else {
       LOG.debug("Generation for repository {} skipped. Because no update available.", reponame);
     }
@@ -125,80 +182,528 @@ public class MetadataService {
     return !nullSafeEquals(calculatedHash, savedHash);
   }
 
-  private void doYumMetadataGenerationOnlyInternal(final String reponame, final String calculatedHashOfEntries)
+  private void doYumMetadataGenerationOnlyInternal(final RepoEntry repoEntry, final String calculatedHashOfEntries)
                                             throws IOException, SQLException {
+    final String reponame = repoEntry.getName();
+    final RepodataCompression compression = repoEntry.getRepodataCompression();
     LOG.info("Generating metadata for {} started ..", reponame);
 
     long start = System.currentTimeMillis();
     long current;
     fileStorageService.markForDeletionByFilenameRegex(reponame + METADATA_FILE_PATTERN);
+    if (repoMetadataCache != null) {
+      repoMetadataCache.invalidateByFilenameRegex(reponame + METADATA_FILE_PATTERN);
+    }
 
     current = System.currentTimeMillis();
     inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_MARK_FOR_DELETE + reponame, start,
       current);
-    start = current;
 
     Date startTime = new Date();
 
-    List<YumEntry> entries = entriesRepository.findByRepo(reponame);
+    RepoDbSnapshot snapshot = removeSnapshot(reponame);
+    boolean generated = false;
+    try {
+      List<Data> dbData = (snapshot == null) ? null : updateDbs(reponame, compression, snapshot);
+      if (dbData == null) {
+        if (snapshot != null) {
+          snapshot.delete();
+        }
+
+        start = System.currentTimeMillis();
+        Map<ObjectId, String> fingerprints = entriesRepository.findFingerprintsByRepo(reponame);
+        inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_FIND_ENTRIES + reponame, start,
+          System.currentTimeMillis());
+
+        snapshot = RepoDbSnapshot.of(fingerprints);
+        dbData = createDbs(reponame, compression, snapshot);
+      }
+
+      start = System.currentTimeMillis();
+      repoMdGenerator.generateRepoMdXml(reponame, dbData);
+      inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_GENERATE_REPOMDXML + reponame,
+        start, System.currentTimeMillis());
+
+      repoService.updateLastMetadataGeneration(reponame, startTime, calculatedHashOfEntries);
+      generated = true;
+    } finally {
+      if (generated) {
+        keep(reponame, snapshot);
+      } else if (snapshot != null) {
+        snapshot.delete();
+      }
+    }
+
+    LOG.info("Generating metadata for {} finished.", reponame);
+  }
+
+  /**
+   * Creates the databases from scratch. Every generator streams the entries of the snapshot with the fields it needs,
+   * so only one entry per generator is held in memory.
+   */
+  private List<Data> createDbs(String reponame, RepodataCompression compression, RepoDbSnapshot snapshot)
+                        throws IOException, SQLException {
+    for (DbGenerator dbGenerator : dbGenerators()) {
+      snapshot.setDbFile(dbGenerator.getName(),
+        createTempFile(reponame + "-" + dbGenerator.getName(), ".sqlite", tmpDir()));
+    }
+
+    List<Data> dbData = generateDbs(reponame, compression, snapshot, (dbGenerator, dbFile) -> {
+      LOG.info("Generate {}-DB for {}", dbGenerator.getName(), reponame);
+      dbGenerator.createDb(dbFile,
+        writer -> streamEntries(dbGenerator, snapshot, writer,
+          (fields, consumer) -> entriesRepository.streamByRepo(reponame, fields, consumer)));
+    });
+    fullGenerations.incrementAndGet();
+    return dbData;
+  }
+
+  /**
+   * Applies the entries added to and removed from the repository since the snapshot was taken to its databases.
+   *
+   * @return the stored databases, or <code>null</code> if too many entries have changed
+   */
+  private List<Data> updateDbs(String reponame, RepodataCompression compression, RepoDbSnapshot snapshot)
+                        throws IOException, SQLException {
+    long start = System.currentTimeMillis();
+    Map<ObjectId, String> fingerprints = entriesRepository.findFingerprintsByRepo(reponame);
+    List<ObjectId> removedIds = snapshot.findRemoved(fingerprints);
+    Map<ObjectId, String> addedFingerprints = snapshot.findAdded(fingerprints);
+    int changes = removedIds.size() + addedFingerprints.size();
+    if ((long) changes * 100 > (long) incrementalMaxChangedPercent * snapshot.size()) {
+      LOG.info("Too many changes in {} for incremental generation: {} of {}", reponame, changes, snapshot.size());
+      return null;
+    }
     inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_FIND_ENTRIES + reponame, start,
       System.currentTimeMillis());
 
+    if (changes > 0) {
+      snapshot.invalidateXml();
+    }
 
-    List<Data> dbData = new ArrayList<>();
-    for (DbGenerator dbGenerator : asList(new PrimaryDbGenerator(), new FileListsGenerator(), new OtherDbGenerator())) {
-      LOG.info("Generate {}-DB for {}", dbGenerator.getName(), reponame);
+    List<Integer> removedPkgKeys = snapshot.remove(removedIds);
+    snapshot.add(addedFingerprints);
+    Set<ObjectId> addedIds = addedFingerprints.keySet();
+    List<Data> dbData = generateDbs(reponame, compression, snapshot, (dbGenerator, dbFile) -> {
+      LOG.info("Update {}-DB for {}: {} removed, {} added", dbGenerator.getName(), reponame, removedPkgKeys.size(),
+        addedIds.size());
+      dbGenerator.updateDb(dbFile, removedPkgKeys,
+        writer -> {
+          if (!addedIds.isEmpty()) {
+            streamEntries(dbGenerator, snapshot, writer,
+              (fields, consumer) -> entriesRepository.streamByIds(addedIds, fields, consumer));
+          }
+        });
+    });
+    incrementalGenerations.incrementAndGet();
+    return dbData;
+  }
 
-      Data data = saveDb(dbGenerator, reponame, entries);
-      data.setType(dbGenerator.getName() + "_db");
-      dbData.add(data);
+  /**
+   * Writes the streamed entries which are contained in the snapshot with their <code>pkgKey</code>. Entries added or
+   * changed since the snapshot was taken are skipped, they are picked up by the next generation.
+   */
+  private static void streamEntries(DbGenerator dbGenerator, RepoDbSnapshot snapshot, EntryWriter writer,
+                                    EntryStream entryStream) throws SQLException {
+    Field fields = new Field();
+    dbGenerator.selectFields(fields);
+    try {
+      entryStream.stream(fields, entry -> {
+        Integer pkgKey = snapshot.getPkgKey(entry);
+        if (pkgKey == null) {
+          return;
+        }
+
+        try {
+          writer.write(pkgKey, entry);
+        } catch (SQLException e) {
+          throw new StreamInterruptedException(e);
+        }
+      });
+    } catch (StreamInterruptedException e) {
+      throw e.getCause();
     }
+  }
 
-    start = System.currentTimeMillis();
-    repoMdGenerator.generateRepoMdXml(reponame, dbData);
-    inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_GENERATE_REPOMDXML + reponame,
-      start, System.currentTimeMillis());
+  /**
+   * Builds and stores the databases of the snapshot concurrently on the generation pool, so that compressing and
+   * uploading one database overlaps with building the others. The XML repodata of the snapshot is streamed next to
+   * them. Returns after all of them have finished.
+   *
+   * @param compression the codec of the files, <code>null</code> for bzip2 compressed databases and gzip compressed XML
+   */
+  private List<Data> generateDbs(String reponame, RepodataCompression compression, RepoDbSnapshot snapshot,
+                                 DbBuilder dbBuilder) throws IOException, SQLException {
+    long start = System.currentTimeMillis();
+    MongoTxConfig mongoTxConfig = MongoTxConfigHolder.get();
+    RepodataCompression dbCompression = (compression == null) ? BZIP2 : compression;
+    RepodataCompression xmlCompression = (compression == null) ? GZIP : compression;
+    List<Future<Data>> futures = new ArrayList<>();
+    for (DbGenerator dbGenerator : dbGenerators()) {
+      File dbFile = snapshot.getDbFile(dbGenerator.getName());
+      futures.add(submit(mongoTxConfig, () -> generateDb(reponame, dbCompression, dbGenerator, dbFile, dbBuilder)));
+    }
+    if (xmlEnabled) {
+      for (XmlGenerator xmlGenerator : xmlGenerators()) {
+        futures.add(submit(mongoTxConfig, () -> generateXml(reponame, xmlCompression, xmlGenerator, snapshot)));
+      }
+    }
+
+    List<Data> dbData = awaitAll(futures);
+    inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_GENERATE_DBS + reponame, start,
+      System.currentTimeMillis());
+    return dbData;
+  }
 
-    repoService.updateLastMetadataGeneration(reponame, startTime, calculatedHashOfEntries);
+  private Future<Data> submit(MongoTxConfig mongoTxConfig, Callable<Data> task) {
+    return generationExecutor.submit(() -> {
+      MongoTxConfigHolder.registerConfig(mongoTxConfig);
+      try {
+        return task.call();
+      } finally {
+        MongoTxConfigHolder.resetConfig();
+      }
+    });
+  }
 
+  private Data generateDb(String reponame, RepodataCompression compression, DbGenerator dbGenerator, File dbFile,
+                          DbBuilder dbBuilder) throws IOException, SQLException {
+    long start = System.currentTimeMillis();
+    dbBuilder.build(dbGenerator, dbFile);
+    inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_CREATE_DB + dbGenerator.getName() + "." + reponame,
+      start, System.currentTimeMillis());
 
-    LOG.info("Generating metadata for {} finished.", reponame);
+    start = System.currentTimeMillis();
+    Data data = storageService.storeRepodataDb(reponame, dbFile, dbGenerator.getName(), compression);
+    data.setType(dbGenerator.getName() + "_db");
+    inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_STORE_DB + dbGenerator.getName() + "." + reponame,
+      start, System.currentTimeMillis());
+    return data;
   }
 
-  private Data saveDb(DbGenerator dbGenerator, String reponame, List<YumEntry> entries) throws IOException,
-                                                                                               SQLException {
+  /**
+   * Stores the compressed XML of the snapshot. Its package elements are streamed into a file next to the databases
+   * only if entries have been added or removed since they were last written, otherwise the kept ones are reused. The
+   * <code>packages</code> attribute counts the elements actually written, which skip entries changed since the
+   * snapshot was taken.
+   */
+  private Data generateXml(String reponame, RepodataCompression compression, XmlGenerator xmlGenerator,
+                           RepoDbSnapshot snapshot) throws IOException {
     long start = System.currentTimeMillis();
-    long current;
-    File tempDbFile = createTempFile(reponame + "-" + dbGenerator.getName(), ".sqlite", tmpDir);
-    try {
-      dbGenerator.createDb(tempDbFile, entries);
-      current = System.currentTimeMillis();
-      inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_CREATE_DB + dbGenerator.getName() + "." + reponame,
-        start, current);
-      start = current;
+    Packages packages = snapshot.getXmlPackages(xmlGenerator.getName());
+    if (packages == null) {
+      LOG.info("Generate {}-XML for {}", xmlGenerator.getName(), reponame);
+      packages = writePackages(reponame, xmlGenerator, snapshot);
+      snapshot.setXmlPackages(xmlGenerator.getName(), packages);
+    } else {
+      LOG.info("Reuse {}-XML for {}", xmlGenerator.getName(), reponame);
+    }
 
-      Data data = storageService.storeRepodataDbBz2(reponame, tempDbFile, dbGenerator.getName());
-      data.setType(dbGenerator.getName() + "_db");
+    Packages xmlPackages = packages;
+    Data data = storageService.storeRepodataXml(reponame, xmlGenerator.getName(), compression,
+      outputStream -> xmlGenerator.writeDocument(outputStream, xmlPackages));
+    data.setType(xmlGenerator.getName());
+    inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_GENERATE_XML + xmlGenerator.getName() + "." + reponame,
+      start, System.currentTimeMillis());
+    return data;
+  }
 
-      inApplicationMonitor.addTimerMeasurement(METADATA_SERVICE_STORE_DB + dbGenerator.getName() + "." + reponame,
-        start, System.currentTimeMillis());
+  private Packages writePackages(String reponame, XmlGenerator xmlGenerator, RepoDbSnapshot snapshot)
+                          throws IOException {
+    Field fields = new Field();
+    xmlGenerator.selectFields(fields);
 
-      return data;
+    File file = createTempFile(reponame + "-" + xmlGenerator.getName(), ".xml", tmpDir());
+    boolean written = false;
+    try {
+      PackagesWriter writer = xmlGenerator.openPackages(file);
+      try {
+        entriesRepository.streamByRepo(reponame, fields, entry -> {
+          if (snapshot.getPkgKey(entry) == null) {
+            return;
+          }
+
+          try {
+            writer.write(entry);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      } finally {
+        writer.close();
+      }
+      written = true;
+      return writer.getPackages();
     } finally {
-      tempDbFile.delete();
+      if (!written) {
+        file.delete();
+      }
     }
   }
 
+  /**
+   * Waits for all futures, even if one of them failed, so that no database file is in use any more on return.
+   */
+  private static List<Data> awaitAll(List<Future<Data>> futures) throws IOException, SQLException {
+    List<Data> dbData = new ArrayList<>();
+    Throwable failure = null;
+    for (Future<Data> future : futures) {
+      try {
+        dbData.add(future.get());
+      } catch (ExecutionException e) {
+        failure = (failure == null) ? e.getCause() : failure;
+      } catch (InterruptedException e) {
+        futures.forEach(pending -> pending.cancel(true));
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while waiting for generation of databases");
+      }
+    }
+
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof SQLException) {
+      throw (SQLException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure != null) {
+      throw new IllegalStateException("Could not generate databases.", failure);
+    }
+    return dbData;
+  }
+
+  /**
+   * Keeps the databases for the next generation. If the kept databases exceed
+   * <code>metadata.incremental.max.disk.mb</code>, those of the repositories generated least recently are deleted.
+   */
+  private void keep(String reponame, RepoDbSnapshot snapshot) {
+    if ((incrementalMaxChangedPercent <= 0) || (snapshot.size() < incrementalMinPackages)) {
+      snapshot.delete();
+      return;
+    }
+
+    List<RepoDbSnapshot> evicted = new ArrayList<>();
+    synchronized (snapshots) {
+      RepoDbSnapshot replaced = snapshots.put(reponame, snapshot);
+      if (replaced != null) {
+        evicted.add(replaced);
+      }
+
+      long maxBytes = incrementalMaxDiskMb * MB;
+      long bytes = snapshots.values().stream().mapToLong(RepoDbSnapshot::getSizeOnDisk).sum();
+      Iterator<RepoDbSnapshot> iterator = snapshots.values().iterator();
+      while ((bytes > maxBytes) && iterator.hasNext()) {
+        RepoDbSnapshot eldest = iterator.next();
+        iterator.remove();
+        bytes -= eldest.getSizeOnDisk();
+        evicted.add(eldest);
+        evictedSnapshots.incrementAndGet();
+      }
+    }
+    evicted.forEach(RepoDbSnapshot::delete);
+  }
+
+  private RepoDbSnapshot removeSnapshot(String reponame) {
+    synchronized (snapshots) {
+      return snapshots.remove(reponame);
+    }
+  }
+
+  private static ThreadPoolExecutor newGenerationExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_GENERATION_THREADS, DEFAULT_GENERATION_THREADS, 60,
+      SECONDS, new LinkedBlockingQueue<>(), new CustomizableThreadFactory("metadata-generation-"));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static List<DbGenerator> dbGenerators() {
+    return asList(new PrimaryDbGenerator(), new FileListsGenerator(), new OtherDbGenerator());
+  }
+
+  private static String extensionsOf(RepodataCompression[] compressions) {
+    return stream(compressions).map(RepodataCompression::getExtension).collect(joining("|"));
+  }
+
+  private static List<XmlGenerator> xmlGenerators() {
+    return asList(new PrimaryXmlGenerator(), new FileListsXmlGenerator(), new OtherXmlGenerator());
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    generationExecutor.shutdownNow();
+    removeSnapshots();
+  }
+
+  @ManagedOperation(description = "remove the databases kept for incremental generation")
+  public void removeSnapshots() {
+    List<RepoDbSnapshot> removed;
+    synchronized (snapshots) {
+      removed = new ArrayList<>(snapshots.values());
+      snapshots.clear();
+    }
+    removed.forEach(RepoDbSnapshot::delete);
+  }
+
+  /**
+   * Deletes the databases and XML package elements a previous run of the server left in <code>metadata.tmp.dir</code>.
+   * They cannot be applied to, because the snapshots of their entries are lost.
+   */
+  @PostConstruct
+  public void removeLeftoverDbFiles() {
+    File[] files = tmpDir.listFiles();
+    if (files == null) {
+      return;
+    }
+
+    Pattern leftoverPattern = Pattern.compile(".+-((" +
+      dbGenerators().stream().map(DbGenerator::getName).collect(joining("|")) + ")-?\\d+\\.sqlite(-journal)?|(" +
+      xmlGenerators().stream().map(XmlGenerator::getName).collect(joining("|")) + ")-?\\d+\\.xml)");
+    for (File file : files) {
+      if (leftoverPattern.matcher(file.getName()).matches()) {
+        LOG.info("Removing file {} left over by previous run.", file);
+        if (!file.delete()) {
+          LOG.warn("Could not remove file {} left over by previous run.", file);
+        }
+      }
+    }
+  }
+
+  @ManagedAttribute
+  public int getSnapshotCount() {
+    synchronized (snapshots) {
+      return snapshots.size();
+    }
+  }
+
+  @ManagedAttribute
+  public long getSnapshotSizeInMb() {
+    synchronized (snapshots) {
+      return snapshots.values().stream().mapToLong(RepoDbSnapshot::getSizeOnDisk).sum() / MB;
+    }
+  }
+
+  @ManagedAttribute
+  public long getEvictedSnapshots() {
+    return evictedSnapshots.get();
+  }
+
+  @ManagedAttribute
+  public long getFullGenerations() {
+    return fullGenerations.get();
+  }
+
+  @ManagedAttribute
+  public long getIncrementalGenerations() {
+    return incrementalGenerations.get();
+  }
+
+  @ManagedAttribute
+  public int getGenerationThreads() {
+    return generationExecutor.getMaximumPoolSize();
+  }
+
+  @ManagedAttribute
+  @Value("${metadata.generation.threads:6}")
+  public void setGenerationThreads(int generationThreads) {
+    int poolSize = max(generationThreads, 1);
+    if (poolSize > generationExecutor.getMaximumPoolSize()) {
+      generationExecutor.setMaximumPoolSize(poolSize);
+      generationExecutor.setCorePoolSize(poolSize);
+    } else {
+      generationExecutor.setCorePoolSize(poolSize);
+      generationExecutor.setMaximumPoolSize(poolSize);
+    }
+  }
+
+  @ManagedAttribute
+  public int getIncrementalMinPackages() {
+    return incrementalMinPackages;
+  }
+
+  @ManagedAttribute
+  @Value("${metadata.incremental.min.packages:1000}")
+  public void setIncrementalMinPackages(int incrementalMinPackages) {
+    this.incrementalMinPackages = incrementalMinPackages;
+  }
+
+  @ManagedAttribute
+  public int getIncrementalMaxChangedPercent() {
+    return incrementalMaxChangedPercent;
+  }
+
+  @ManagedAttribute
+  @Value("${metadata.incremental.max.changed.percent:10}")
+  public void setIncrementalMaxChangedPercent(int incrementalMaxChangedPercent) {
+    this.incrementalMaxChangedPercent = incrementalMaxChangedPercent;
+  }
+
+  @ManagedAttribute
+  public int getIncrementalMaxDiskMb() {
+    return incrementalMaxDiskMb;
+  }
+
+  @ManagedAttribute
+  @Value("${metadata.incremental.max.disk.mb:2048}")
+  public void setIncrementalMaxDiskMb(int incrementalMaxDiskMb) {
+    this.incrementalMaxDiskMb = incrementalMaxDiskMb;
+  }
+
+  @ManagedAttribute
+  public boolean isXmlEnabled() {
+    return xmlEnabled;
+  }
+
+  @ManagedAttribute
+  @Value("${metadata.xml.enabled:true}")
+  public void setXmlEnabled(boolean xmlEnabled) {
+    this.xmlEnabled = xmlEnabled;
+  }
+
+  /**
+   * @param tmpDir the directory for the databases and XML package elements, or null to use a directory of its own
+   * in the Java standard temp dir, so that files left over by a previous run are removed there as well
+   */
   @Value("${metadata.tmp.dir:@null}")
   public void setTmpDir(File tmpDir) {
-    this.tmpDir = tmpDir;
-    if (tmpDir != null) {
-      tmpDir.mkdirs();
-    }
+    this.tmpDir = (tmpDir == null) ? DEFAULT_TMP_DIR : tmpDir;
+    this.tmpDir.mkdirs();
+  }
+
+  private File tmpDir() {
+    tmpDir.mkdirs();
+    return tmpDir;
+  }
+
+  @Autowired(required = false)
+  public void setRepoMetadataCache(RepoMetadataCache repoMetadataCache) {
+    this.repoMetadataCache = repoMetadataCache;
   }
 
   @Value("${metdata.outdated.survival.time:5}")
   public void setOutdatedMetaDataSurvivalTime(int outdatedMetaDataSurvivalTime) {
     this.outdatedMetaDataSurvivalTime = outdatedMetaDataSurvivalTime;
   }
+
+  private interface DbBuilder {
+    void build(DbGenerator dbGenerator, File dbFile) throws IOException, SQLException;
+  }
+
+  private interface EntryStream {
+    void stream(Field fields, Consumer<YumEntry> consumer);
+  }
+
+  /**
+   * Carries a failed write out of the cursor callback, which must not throw checked exceptions.
+   */
+  private static class StreamInterruptedException extends RuntimeException {
+    StreamInterruptedException(SQLException cause) {
+      super(cause);
+    }
+
+    @Override
+    public synchronized SQLException getCause() {
+      return (SQLException) super.getCause();
+    }
+  }
 }
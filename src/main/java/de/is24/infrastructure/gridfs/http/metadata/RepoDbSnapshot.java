@@ -0,0 +1,158 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.metadata.generation.XmlGenerator.Packages;
+import org.bson.types.ObjectId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static de.is24.infrastructure.gridfs.http.metadata.YumEntriesRepositoryImpl.fingerprintOf;
+
+
+/**
+ * The sqlite databases of the last metadata generation of a repository, kept on local disk, together with the
+ * <code>pkgKey</code> and fingerprint of every entry they contain. The next generation applies only the added and
+ * removed entries to them. While the databases are written, the snapshot decides which <code>pkgKey</code> a streamed
+ * entry gets, so all databases agree on them even if the entries change in between. The package elements of the XML
+ * repodata are kept as well and reused until entries are added or removed.
+ */
+class RepoDbSnapshot {
+  private final Map<String, File> dbFiles = new HashMap<>();
+  private final Map<String, Packages> xmlPackages = new ConcurrentHashMap<>();
+  private final Map<ObjectId, Package> packages = new HashMap<>();
+  private int maxPkgKey;
+
+  /**
+   * @return a snapshot of databases created from the entries with the given fingerprints, numbered from 1 in the
+   * order of their ids
+   */
+  static RepoDbSnapshot of(Map<ObjectId, String> fingerprints) {
+    RepoDbSnapshot snapshot = new RepoDbSnapshot();
+    snapshot.add(fingerprints);
+    return snapshot;
+  }
+
+  /**
+   * @return the ids of all contained entries which are missing from or changed in the given fingerprints
+   */
+  List<ObjectId> findRemoved(Map<ObjectId, String> fingerprints) {
+    List<ObjectId> removed = new ArrayList<>();
+    packages.forEach((id, pkg) -> {
+      if (!pkg.fingerprint.equals(fingerprints.get(id))) {
+        removed.add(id);
+      }
+    });
+    return removed;
+  }
+
+  /**
+   * @return all given fingerprints which are not contained or have changed
+   */
+  Map<ObjectId, String> findAdded(Map<ObjectId, String> fingerprints) {
+    Map<ObjectId, String> added = new HashMap<>();
+    fingerprints.forEach((id, fingerprint) -> {
+      Package pkg = packages.get(id);
+      if ((pkg == null) || !pkg.fingerprint.equals(fingerprint)) {
+        added.put(id, fingerprint);
+      }
+    });
+    return added;
+  }
+
+  /**
+   * Removes the given entries.
+   *
+   * @return their <code>pkgKey</code>s
+   */
+  List<Integer> remove(List<ObjectId> ids) {
+    List<Integer> pkgKeys = new ArrayList<>();
+    for (ObjectId id : ids) {
+      Package pkg = packages.remove(id);
+      if (pkg != null) {
+        pkgKeys.add(pkg.pkgKey);
+      }
+    }
+    return pkgKeys;
+  }
+
+  /**
+   * Adds the entries with the given fingerprints with new <code>pkgKey</code>s in the order of their ids.
+   */
+  void add(Map<ObjectId, String> fingerprints) {
+    new TreeMap<>(fingerprints).forEach((id, fingerprint) -> packages.put(id, new Package(++maxPkgKey, fingerprint)));
+  }
+
+  /**
+   * @return the <code>pkgKey</code> of the given entry, or <code>null</code> if it is not contained or has changed
+   * since it was added
+   */
+  Integer getPkgKey(YumEntry entry) {
+    Package pkg = packages.get(entry.getId());
+    return ((pkg != null) && pkg.fingerprint.equals(fingerprintOf(entry))) ? pkg.pkgKey : null;
+  }
+
+  File getDbFile(String name) {
+    return dbFiles.get(name);
+  }
+
+  void setDbFile(String name, File dbFile) {
+    dbFiles.put(name, dbFile);
+  }
+
+  /**
+   * @return the package elements written for the XML with the given name, or <code>null</code> if they have to be
+   * written again
+   */
+  Packages getXmlPackages(String name) {
+    return xmlPackages.get(name);
+  }
+
+  void setXmlPackages(String name, Packages packages) {
+    Packages replaced = xmlPackages.put(name, packages);
+    if (replaced != null) {
+      replaced.getFile().delete();
+    }
+  }
+
+  /**
+   * Deletes the package elements of the XML, because entries have been added or removed.
+   */
+  void invalidateXml() {
+    xmlPackages.values().forEach(packages -> packages.getFile().delete());
+    xmlPackages.clear();
+  }
+
+  int size() {
+    return packages.size();
+  }
+
+  /**
+   * @return the size of the databases and package elements in bytes
+   */
+  long getSizeOnDisk() {
+    return dbFiles.values().stream().mapToLong(File::length).sum() +
+      xmlPackages.values().stream().mapToLong(packages -> packages.getFile().length()).sum();
+  }
+
+  void delete() {
+    dbFiles.values().forEach(File::delete);
+    dbFiles.clear();
+    invalidateXml();
+  }
+
+  private static class Package {
+    private final int pkgKey;
+    private final String fingerprint;
+
+    Package(int pkgKey, String fingerprint) {
+      this.pkgKey = pkgKey;
+      this.fingerprint = fingerprint;
+    }
+  }
+}
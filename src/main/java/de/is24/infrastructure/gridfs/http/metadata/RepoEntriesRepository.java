@@ -14,7 +14,7 @@ import java.util.Set;
  * @see http://static.springsource.org/spring-data/data-mongodb/docs/current/reference/html/repositories.html#repositories.query-methods
  * @see http://static.springsource.org/spring-data/data-mongodb/docs/current/reference/html/repository-query-keywords.html
  */
-public interface RepoEntriesRepository extends MongoRepository<RepoEntry, ObjectId> {
+public interface RepoEntriesRepository extends MongoRepository<RepoEntry, ObjectId>, UpdateRepoEntries {
   List<RepoEntry> findByName(String reponame);
 
   List<RepoEntry> findByType(RepoType type);
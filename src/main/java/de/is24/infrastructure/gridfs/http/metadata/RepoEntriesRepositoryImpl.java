@@ -0,0 +1,54 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import de.is24.infrastructure.gridfs.http.domain.RepoEntry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.Date;
+
+import static de.is24.infrastructure.gridfs.http.domain.RepoType.SCHEDULED;
+import static de.is24.infrastructure.gridfs.http.domain.RepoType.STATIC;
+import static java.util.Arrays.asList;
+
+@Service
+public class RepoEntriesRepositoryImpl implements UpdateRepoEntries {
+
+  private final MongoTemplate mongoTemplate;
+
+  @Autowired
+  public RepoEntriesRepositoryImpl(MongoTemplate mongoTemplate) {
+    this.mongoTemplate = mongoTemplate;
+  }
+
+  @Override
+  public boolean updateLastModifiedIfNewer(String reponame, Date lastModified) {
+    return repoEntries()
+      .update(staticRepo(reponame), new BasicDBObject("$max", new BasicDBObject("lastModified", lastModified)))
+      .getN() > 0;
+  }
+
+  @Override
+  public boolean updateLastMetadataGeneration(String reponame, Date lastMetadataGeneration, String hashOfEntries,
+                                              Date initialLastModified) {
+    boolean updated = repoEntries().update(staticRepo(reponame), new BasicDBObject("$set",
+      new BasicDBObject("lastMetadataGeneration", lastMetadataGeneration).append("hashOfEntries", hashOfEntries)))
+      .getN() > 0;
+    if (updated) {
+      repoEntries().update(staticRepo(reponame).append("lastModified", null),
+        new BasicDBObject("$set", new BasicDBObject("lastModified", initialLastModified)));
+    }
+    return updated;
+  }
+
+  private DBCollection repoEntries() {
+    return mongoTemplate.getCollection(mongoTemplate.getCollectionName(RepoEntry.class));
+  }
+
+  private static BasicDBObject staticRepo(String reponame) {
+    return new BasicDBObject("name", reponame)
+      .append("type", new BasicDBObject("$in", asList(STATIC.name(), SCHEDULED.name())));
+  }
+}
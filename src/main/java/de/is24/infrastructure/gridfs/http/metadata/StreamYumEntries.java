@@ -0,0 +1,25 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.query.Field;
+
+import java.util.Collection;
+import java.util.function.Consumer;
+
+public interface StreamYumEntries {
+
+  /**
+   * Passes the entries of the repository in no particular order to the consumer one at a time, while reading them
+   * from the cursor, so that no more than one entry is held in memory. They are not sorted, because sorting the
+   * entries of a large repository by id would happen in memory of the database.
+   *
+   * @param fields the fields to load, all if empty
+   */
+  public void streamByRepo(String reponame, Field fields, Consumer<YumEntry> consumer);
+
+  /**
+   * Passes the entries with the given ids to the consumer, like {@link #streamByRepo}.
+   */
+  public void streamByIds(Collection<ObjectId> ids, Field fields, Consumer<YumEntry> consumer);
+}
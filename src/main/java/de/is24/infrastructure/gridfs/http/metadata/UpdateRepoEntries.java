@@ -0,0 +1,22 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import java.util.Date;
+
+public interface UpdateRepoEntries {
+
+  /**
+   * Atomically raises the last modification of a static or scheduled repository to the given date, if it is newer.
+   *
+   * @return <code>false</code> if there is no such repository
+   */
+  public boolean updateLastModifiedIfNewer(String reponame, Date lastModified);
+
+  /**
+   * Atomically sets the last metadata generation and the hash of the entries of a static or scheduled repository.
+   * Its last modification is set to <code>initialLastModified</code>, if it has none yet.
+   *
+   * @return <code>false</code> if there is no such repository
+   */
+  public boolean updateLastMetadataGeneration(String reponame, Date lastMetadataGeneration, String hashOfEntries,
+                                              Date initialLastModified);
+}
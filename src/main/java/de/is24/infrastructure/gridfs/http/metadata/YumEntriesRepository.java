@@ -7,7 +7,8 @@ import org.springframework.data.mongodb.repository.MongoRepository;
 import java.util.List;
 
 
-public interface YumEntriesRepository extends MongoRepository<YumEntry, ObjectId>, DeleteByRepoYumEntries {
+public interface YumEntriesRepository extends MongoRepository<YumEntry, ObjectId>, DeleteByRepoYumEntries,
+  InsertYumEntries, FindYumEntryFingerprints, StreamYumEntries {
   List<YumEntry> findByRepo(String reponame);
 
   List<YumEntry> findByRepoAndYumPackageName(String reponame, String rpmName);
@@ -1,16 +1,32 @@
 package de.is24.infrastructure.gridfs.http.metadata;
 
+import com.mongodb.DBObject;
 import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Field;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.REPO_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.YUM_ENTRY_COLLECTION;
 import static org.springframework.data.mongodb.core.query.Criteria.where;
 import static org.springframework.data.mongodb.core.query.Query.query;
 
 @Service
-public class YumEntriesRepositoryImpl implements DeleteByRepoYumEntries {
+public class YumEntriesRepositoryImpl implements DeleteByRepoYumEntries, InsertYumEntries, FindYumEntryFingerprints,
+  StreamYumEntries {
+  private static final String CHECKSUM_KEY = "yumPackage.checksum.checksum";
+  private static final String LOCATION_KEY = "yumPackage.location.href";
 
   private final MongoTemplate mongoTemplate;
 
@@ -23,4 +39,53 @@ public class YumEntriesRepositoryImpl implements DeleteByRepoYumEntries {
   public void deleteByRepo(String reponame) {
     mongoTemplate.remove(query(where(REPO_KEY).is(reponame)), YumEntry.class);
   }
+
+  @Override
+  public void insertAll(Collection<YumEntry> entries) {
+    mongoTemplate.insert(entries, YumEntry.class);
+  }
+
+  @Override
+  public Map<ObjectId, String> findFingerprintsByRepo(String reponame) {
+    Query query = query(where(REPO_KEY).is(reponame));
+    query.fields().include(CHECKSUM_KEY).include(LOCATION_KEY);
+
+    Map<ObjectId, String> fingerprints = new HashMap<>();
+    mongoTemplate.executeQuery(query, YUM_ENTRY_COLLECTION, (DBObject dbObject) -> {
+      DBObject yumPackage = (DBObject) dbObject.get("yumPackage");
+      fingerprints.put((ObjectId) dbObject.get("_id"), fingerprintOf(
+        (String) ((DBObject) yumPackage.get("checksum")).get("checksum"),
+        (String) ((DBObject) yumPackage.get("location")).get("href")));
+    });
+    return fingerprints;
+  }
+
+  @Override
+  public void streamByRepo(String reponame, Field fields, Consumer<YumEntry> consumer) {
+    stream(where(REPO_KEY).is(reponame), fields, consumer);
+  }
+
+  @Override
+  public void streamByIds(Collection<ObjectId> ids, Field fields, Consumer<YumEntry> consumer) {
+    stream(where("_id").in(ids), fields, consumer);
+  }
+
+  private void stream(Criteria criteria, Field fields, Consumer<YumEntry> consumer) {
+    Query query = new BasicQuery(query(criteria).getQueryObject(), fields.getFieldsObject());
+    MongoConverter converter = mongoTemplate.getConverter();
+    mongoTemplate.executeQuery(query, YUM_ENTRY_COLLECTION,
+      (DBObject dbObject) -> consumer.accept(converter.read(YumEntry.class, dbObject)));
+  }
+
+  /**
+   * @return a string that changes whenever the entry changes in a way its rows in the repository databases would
+   */
+  public static String fingerprintOf(YumEntry entry) {
+    return fingerprintOf(entry.getYumPackage().getChecksum().getChecksum(),
+      entry.getYumPackage().getLocation().getHref());
+  }
+
+  private static String fingerprintOf(String checksum, String location) {
+    return checksum + " " + location;
+  }
 }
@@ -3,6 +3,7 @@ package de.is24.infrastructure.gridfs.http.metadata.generation;
 import de.is24.infrastructure.gridfs.http.domain.YumEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.query.Field;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -10,6 +11,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import static java.sql.DriverManager.getConnection;
@@ -27,6 +29,9 @@ public abstract class DbGenerator {
   protected static final String CHANGELOG = "changelog";
   protected static final String FILES = "files";
   protected static final String FILELIST = "filelist";
+  protected static final String YUM_PACKAGE_KEY = "yumPackage";
+  static final int PACKAGES_PER_BATCH = 500;
+  private static final String[] BULK_LOAD_PRAGMAS = { "PRAGMA journal_mode=OFF", "PRAGMA cache_size=10000" };
 
   private final String name;
 
@@ -36,26 +41,86 @@ public abstract class DbGenerator {
   }
 
   public void createDb(File dbFile, List<YumEntry> entries) throws SQLException, IOException {
+    createDb(dbFile, writer -> {
+      int pkgKey = 1;
+      for (YumEntry entry : entries) {
+        writer.write(pkgKey, entry);
+        pkgKey++;
+      }
+    });
+  }
+
+  /**
+   * Creates the database from entries passed to the writer one at a time, so they need not be loaded at once. The
+   * database is bulk loaded: without journal in a single transaction, with the rows of many packages per batch, and
+   * the indexes and triggers are created after all rows are written.
+   */
+  public void createDb(File dbFile, EntrySource entries) throws SQLException, IOException {
     dbFile.delete();
     try(Connection connection = getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath())) {
+      try(Statement statement = connection.createStatement()) {
+        for (String pragma : BULK_LOAD_PRAGMAS) {
+          statement.execute(pragma);
+        }
+      }
+
       initSchema(connection, getName() + ".sql");
+      connection.setAutoCommit(false);
 
       Map<String, PreparedStatement> preparedStatements = createPreparedStatements(connection);
       try {
-        int pkgKey = 1;
-        for (YumEntry entry : entries) {
-          writeEntry(preparedStatements, pkgKey, entry);
-          pkgKey++;
-        }
+        writeEntries(preparedStatements, entries);
       } finally {
         close(preparedStatements);
       }
+
+      createIndexes(connection, getName() + ".sql");
+      connection.commit();
     } catch (SQLException | IOException e) {
       LOG.error("Could not generate metadata for repository: {}", name, e);
       throw e;
     }
   }
 
+  /**
+   * Applies the changes of the repository to a database created by {@link #createDb}. The rows of removed packages
+   * in the other tables are removed by the triggers of the schema.
+   *
+   * @param addedEntries the added entries with their new <code>pkgKey</code>
+   */
+  public void updateDb(File dbFile, Collection<Integer> removedPkgKeys, EntrySource addedEntries)
+                throws SQLException {
+    try(Connection connection = getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath())) {
+      connection.setAutoCommit(false);
+      try(PreparedStatement deleteStatement = connection.prepareStatement("delete from packages where pkgKey = ?")) {
+        for (Integer pkgKey : removedPkgKeys) {
+          deleteStatement.setInt(1, pkgKey);
+          deleteStatement.executeUpdate();
+        }
+      }
+
+      Map<String, PreparedStatement> preparedStatements = createPreparedStatements(connection);
+      try {
+        writeEntries(preparedStatements, addedEntries);
+      } finally {
+        close(preparedStatements);
+      }
+      connection.commit();
+    } catch (SQLException e) {
+      LOG.error("Could not update metadata for repository: {}", name, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Restricts the fields loaded for the entries to the ones this generator writes. The id, checksum and location
+   * are always needed.
+   */
+  public abstract void selectFields(Field fields);
+
+  /**
+   * Adds the rows of the entry to the batches of the prepared statements, which are executed by the caller.
+   */
   protected abstract void writeEntry(Map<String, PreparedStatement> preparedStatements, int pkgKey, YumEntry entry)
                               throws SQLException;
 
@@ -65,15 +130,34 @@ public abstract class DbGenerator {
     return name;
   }
 
+  protected static Field includeIdentifyingFields(Field fields) {
+    return fields.include(YUM_PACKAGE_KEY + ".checksum").include(YUM_PACKAGE_KEY + ".location");
+  }
+
+  /**
+   * Creates the tables of the schema, but not yet its indexes and triggers.
+   */
   protected void initSchema(Connection connection, String schemaFile) throws IOException, SQLException {
     try(Statement statement = connection.createStatement()) {
       for (String command : readCommands(schemaFile)) {
-        statement.executeUpdate(command);
+        if (!isIndexOrTrigger(command)) {
+          statement.executeUpdate(command);
+        }
       }
       insertVersion(statement);
     }
   }
 
+  protected void createIndexes(Connection connection, String schemaFile) throws IOException, SQLException {
+    try(Statement statement = connection.createStatement()) {
+      for (String command : readCommands(schemaFile)) {
+        if (isIndexOrTrigger(command)) {
+          statement.executeUpdate(command);
+        }
+      }
+    }
+  }
+
   protected List<String> readCommands(String filename) throws IOException {
     InputStream inputStream = getClass().getResourceAsStream(SQL_DIR + filename);
     if (inputStream == null) {
@@ -98,6 +182,18 @@ public abstract class DbGenerator {
     }
   }
 
+  private void writeEntries(Map<String, PreparedStatement> preparedStatements, EntrySource entries)
+                     throws SQLException {
+    BatchWriter writer = new BatchWriter(preparedStatements);
+    entries.writeTo(writer);
+    writer.executeBatches();
+  }
+
+  private static boolean isIndexOrTrigger(String command) {
+    String upperCaseCommand = command.trim().toUpperCase();
+    return upperCaseCommand.startsWith("CREATE INDEX") || upperCaseCommand.startsWith("CREATE TRIGGER");
+  }
+
   protected void close(Map<String, PreparedStatement> preparedStatements) throws SQLException {
     for (Map.Entry<String, PreparedStatement> entry : preparedStatements.entrySet()) {
       entry.getValue().close();
@@ -119,4 +215,39 @@ public abstract class DbGenerator {
 
     return null;
   }
+
+  /**
+   * Executes the batches of all prepared statements after every {@link #PACKAGES_PER_BATCH} packages.
+   */
+  private class BatchWriter implements EntryWriter {
+    private final Map<String, PreparedStatement> preparedStatements;
+    private int pendingPackages;
+
+    BatchWriter(Map<String, PreparedStatement> preparedStatements) {
+      this.preparedStatements = preparedStatements;
+    }
+
+    @Override
+    public void write(int pkgKey, YumEntry entry) throws SQLException {
+      writeEntry(preparedStatements, pkgKey, entry);
+      if (++pendingPackages >= PACKAGES_PER_BATCH) {
+        executeBatches();
+      }
+    }
+
+    void executeBatches() throws SQLException {
+      for (PreparedStatement preparedStatement : preparedStatements.values()) {
+        preparedStatement.executeBatch();
+      }
+      pendingPackages = 0;
+    }
+  }
+
+  public interface EntrySource {
+    void writeTo(EntryWriter writer) throws SQLException;
+  }
+
+  public interface EntryWriter {
+    void write(int pkgKey, YumEntry entry) throws SQLException;
+  }
 }
@@ -4,6 +4,7 @@ import de.is24.infrastructure.gridfs.http.domain.YumEntry;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageDir;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFile;
+import org.springframework.data.mongodb.core.query.Field;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -24,6 +25,11 @@ public class FileListsGenerator extends DbGenerator {
     super("filelists");
   }
 
+  @Override
+  public void selectFields(Field fields) {
+    includeIdentifyingFields(fields).include(YUM_PACKAGE_KEY + ".packageDirs");
+  }
+
   @Override
   protected Map<String, PreparedStatement> createPreparedStatements(Connection connection) throws SQLException {
     Map<String, PreparedStatement> statements = new HashMap<>();
@@ -51,17 +57,13 @@ public class FileListsGenerator extends DbGenerator {
       ps.setString(++c, join(EMPTY, extractFileTypeChars(filesForDirectory)));
       ps.addBatch();
     }
-
-    if (yumPackage.getPackageDirs().length > 0) {
-      ps.executeBatch();
-    }
   }
 
   private void writePackageTable(final PreparedStatement ps, final int index, final YumPackage yumPackage)
                           throws SQLException {
     ps.setInt(1, index);
     ps.setString(2, yumPackage.getChecksum().getChecksum());
-    ps.executeUpdate();
+    ps.addBatch();
   }
 
   private List<String> extractFileTypeChars(final List<YumPackageFile> files) {
@@ -0,0 +1,47 @@
+package de.is24.infrastructure.gridfs.http.metadata.generation;
+
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageDir;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFile;
+import org.springframework.data.mongodb.core.query.Field;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.FILE;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.DbGenerator.YUM_PACKAGE_KEY;
+
+
+public class FileListsXmlGenerator extends XmlGenerator {
+  public static final String FILELISTS_NAMESPACE = "http://linux.duke.edu/metadata/filelists";
+
+  public FileListsXmlGenerator() {
+    super("filelists", "filelists", FILELISTS_NAMESPACE);
+  }
+
+  @Override
+  public void selectFields(Field fields) {
+    includeIdentifyingFields(fields).include(YUM_PACKAGE_KEY + ".packageDirs");
+  }
+
+  @Override
+  protected void writePackage(XMLStreamWriter writer, YumPackage yumPackage) throws XMLStreamException {
+    writer.writeStartElement("package");
+    writePackageIdentity(writer, yumPackage);
+    for (YumPackageDir dir : yumPackage.getPackageDirs()) {
+      for (YumPackageFile file : dir.getFiles()) {
+        writeFile(writer, file);
+      }
+    }
+    writer.writeEndElement();
+  }
+
+  static void writeFile(XMLStreamWriter writer, YumPackageFile file) throws XMLStreamException {
+    writer.writeStartElement("file");
+    if (!FILE.equals(file.getType())) {
+      writer.writeAttribute("type", file.getType().toString().toLowerCase());
+    }
+    writer.writeCharacters(text(file.getDir() + file.getName()));
+    writer.writeEndElement();
+  }
+}
@@ -3,6 +3,7 @@ package de.is24.infrastructure.gridfs.http.metadata.generation;
 import de.is24.infrastructure.gridfs.http.domain.YumEntry;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageChangeLog;
+import org.springframework.data.mongodb.core.query.Field;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -18,6 +19,11 @@ public class OtherDbGenerator extends DbGenerator {
     super("other");
   }
 
+  @Override
+  public void selectFields(Field fields) {
+    includeIdentifyingFields(fields).include(YUM_PACKAGE_KEY + ".changeLogs");
+  }
+
   @Override
   protected Map<String, PreparedStatement> createPreparedStatements(Connection connection) throws SQLException {
     Map<String, PreparedStatement> statements = new HashMap<>();
@@ -43,15 +49,11 @@ public class OtherDbGenerator extends DbGenerator {
       ps.setString(c++, changeLog.getMessage());
       ps.addBatch();
     }
-
-    if (!yumPackage.getChangeLogs().isEmpty()) {
-      ps.executeBatch();
-    }
   }
 
   private void writePackageTable(final PreparedStatement ps, final int index, final YumPackage yumPackage) throws SQLException {
     ps.setInt(1, index);
     ps.setString(2, yumPackage.getChecksum().getChecksum());
-    ps.executeUpdate();
+    ps.addBatch();
   }
 }
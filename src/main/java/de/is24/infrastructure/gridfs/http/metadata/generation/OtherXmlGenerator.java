@@ -0,0 +1,44 @@
+package de.is24.infrastructure.gridfs.http.metadata.generation;
+
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageChangeLog;
+import org.springframework.data.mongodb.core.query.Field;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.util.List;
+
+import static de.is24.infrastructure.gridfs.http.metadata.generation.DbGenerator.YUM_PACKAGE_KEY;
+
+
+public class OtherXmlGenerator extends XmlGenerator {
+  public static final String OTHER_NAMESPACE = "http://linux.duke.edu/metadata/other";
+
+  public OtherXmlGenerator() {
+    super("other", "otherdata", OTHER_NAMESPACE);
+  }
+
+  @Override
+  public void selectFields(Field fields) {
+    includeIdentifyingFields(fields).include(YUM_PACKAGE_KEY + ".changeLogs");
+  }
+
+  /**
+   * Writes the change logs oldest first, in the same order as the {@link OtherDbGenerator}.
+   */
+  @Override
+  protected void writePackage(XMLStreamWriter writer, YumPackage yumPackage) throws XMLStreamException {
+    writer.writeStartElement("package");
+    writePackageIdentity(writer, yumPackage);
+    List<YumPackageChangeLog> changeLogs = yumPackage.getChangeLogs();
+    for (int i = changeLogs.size() - 1; i >= 0; i--) {
+      YumPackageChangeLog changeLog = changeLogs.get(i);
+      writer.writeStartElement("changelog");
+      writer.writeAttribute("author", text(changeLog.getAuthor()));
+      writer.writeAttribute("date", String.valueOf(changeLog.getDate()));
+      writer.writeCharacters(text(changeLog.getMessage()));
+      writer.writeEndElement();
+    }
+    writer.writeEndElement();
+  }
+}
@@ -6,6 +6,7 @@ import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageDir;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFile;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFormatEntry;
 import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageRequirement;
+import org.springframework.data.mongodb.core.query.Field;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -31,6 +32,11 @@ public class PrimaryDbGenerator extends DbGenerator {
     super("primary");
   }
 
+  @Override
+  public void selectFields(Field fields) {
+    fields.exclude(YUM_PACKAGE_KEY + ".changeLogs");
+  }
+
   @Override
   protected Map<String, PreparedStatement> createPreparedStatements(Connection connection) throws SQLException {
     Map<String, PreparedStatement> preparedStatements = new HashMap<>();
@@ -88,7 +94,7 @@ public class PrimaryDbGenerator extends DbGenerator {
     ps.setString(c++, p.getLocation().getHref());
     ps.setString(c++, null);
     ps.setString(c, p.getChecksum().getType());
-    ps.executeUpdate();
+    ps.addBatch();
   }
 
   private void writeDependency(PreparedStatement ps, int pkgKey, List<YumPackageFormatEntry> dependencies)
@@ -98,9 +104,6 @@ public class PrimaryDbGenerator extends DbGenerator {
       ps.setInt(c, pkgKey);
       ps.addBatch();
     }
-    if (!dependencies.isEmpty()) {
-      ps.executeBatch();
-    }
   }
 
   private static int fillStatementForYumPackageFormatEntry(final PreparedStatement ps,
@@ -130,37 +133,29 @@ public class PrimaryDbGenerator extends DbGenerator {
       ps.setString(c, dependency.isPre().toString().toUpperCase());
       ps.addBatch();
     }
-    if (!dependencies.isEmpty()) {
-      ps.executeBatch();
-    }
   }
 
-  private List<YumPackageRequirement> filterRequires(List<YumPackageRequirement> requires) {
+  static List<YumPackageRequirement> filterRequires(List<YumPackageRequirement> requires) {
     return requires.stream().filter((YumPackageRequirement requirement) -> !requirement.getName().startsWith("rpmlib(")).collect(toList());
   }
 
   private void writePrimaryFiles(PreparedStatement ps, YumPackage yumPackage, int pkgKey,
                                  Predicate<YumPackageFile> predicate) throws SQLException {
-    int counter = 0;
     for (YumPackageDir dir : yumPackage.getPackageDirs()) {
       for (YumPackageFile file : dir.getFiles().stream().filter(predicate).collect(toList())) {
         ps.setString(1, file.getDir() + file.getName());
         ps.setString(2, file.getType().toString().toLowerCase());
         ps.setInt(3, pkgKey);
         ps.addBatch();
-        counter++;
       }
     }
-    if (counter > 0) {
-      ps.executeBatch();
-    }
   }
 
   public static boolean isPrimaryDirName(String dir) {
     return dir.contains("bin/") || dir.startsWith("/etc/");
   }
 
-  private static boolean isPrimaryFileName(YumPackageFile file) {
+  static boolean isPrimaryFileName(YumPackageFile file) {
     return isPrimaryDirName(file.getDir()) || "/usr/lib/sendmail".equals(file.getDir() + file.getName());
   }
 }
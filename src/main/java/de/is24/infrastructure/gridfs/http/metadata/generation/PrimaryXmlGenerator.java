@@ -0,0 +1,159 @@
+package de.is24.infrastructure.gridfs.http.metadata.generation;
+
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageDir;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFile;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFormat;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFormatEntry;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageRequirement;
+import org.springframework.data.mongodb.core.query.Field;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.DIR;
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.FILE;
+import static de.is24.infrastructure.gridfs.http.domain.yum.YumPackageFileType.GHOST;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.DbGenerator.YUM_PACKAGE_KEY;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryDbGenerator.CONFLICTS;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryDbGenerator.OBSOLETES;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryDbGenerator.PROVIDES;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryDbGenerator.REQUIRES;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryDbGenerator.filterRequires;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryDbGenerator.isPrimaryDirName;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryDbGenerator.isPrimaryFileName;
+import static org.apache.commons.lang.StringUtils.isNotBlank;
+
+
+/**
+ * Writes the primary.xml with the same dependencies and files as the {@link PrimaryDbGenerator}.
+ */
+public class PrimaryXmlGenerator extends XmlGenerator {
+  public static final String COMMON_NAMESPACE = "http://linux.duke.edu/metadata/common";
+  public static final String RPM_NAMESPACE = "http://linux.duke.edu/metadata/rpm";
+  private static final String RPM_PREFIX = "rpm";
+
+  public PrimaryXmlGenerator() {
+    super("primary", "metadata", COMMON_NAMESPACE);
+  }
+
+  @Override
+  public void selectFields(Field fields) {
+    fields.exclude(YUM_PACKAGE_KEY + ".changeLogs");
+  }
+
+  @Override
+  protected void writeNamespaces(XMLStreamWriter writer) throws XMLStreamException {
+    writer.writeNamespace(RPM_PREFIX, RPM_NAMESPACE);
+  }
+
+  @Override
+  protected void writePackage(XMLStreamWriter writer, YumPackage p) throws XMLStreamException {
+    writer.writeStartElement("package");
+    writer.writeAttribute("type", "rpm");
+    writeTextElement(writer, "name", p.getName());
+    writeTextElement(writer, "arch", p.getArch());
+    writer.writeEmptyElement("version");
+    writeVersion(writer, p.getVersion());
+
+    writer.writeStartElement("checksum");
+    writer.writeAttribute("type", text(p.getChecksum().getType()));
+    writer.writeAttribute("pkgid", "YES");
+    writer.writeCharacters(text(p.getChecksum().getChecksum()));
+    writer.writeEndElement();
+
+    writeTextElement(writer, "summary", p.getSummary());
+    writeTextElement(writer, "description", p.getDescription());
+    writeTextElement(writer, "packager", p.getPackager());
+    writeTextElement(writer, "url", p.getUrl());
+
+    writer.writeEmptyElement("time");
+    writer.writeAttribute("file", String.valueOf(p.getTime().getFile()));
+    writer.writeAttribute("build", String.valueOf(p.getTime().getBuild()));
+    writer.writeEmptyElement("size");
+    writer.writeAttribute("package", String.valueOf(p.getSize().getPackaged()));
+    writer.writeAttribute("installed", String.valueOf(p.getSize().getInstalled()));
+    writer.writeAttribute("archive", String.valueOf(p.getSize().getArchive()));
+    writer.writeEmptyElement("location");
+    writer.writeAttribute("href", text(p.getLocation().getHref()));
+
+    writeFormat(writer, p);
+    writer.writeEndElement();
+  }
+
+  private void writeFormat(XMLStreamWriter writer, YumPackage p) throws XMLStreamException {
+    YumPackageFormat format = p.getPackageFormat();
+    writer.writeStartElement("format");
+    writeRpmTextElement(writer, "license", format.getLicense());
+    writeRpmTextElement(writer, "vendor", format.getVendor());
+    writeRpmTextElement(writer, "group", format.getGroup());
+    writeRpmTextElement(writer, "buildhost", format.getBuildHost());
+    writeRpmTextElement(writer, "sourcerpm", format.getSourceRpm());
+    writer.writeEmptyElement(RPM_PREFIX, "header-range", RPM_NAMESPACE);
+    writer.writeAttribute("start", Integer.toString(format.getHeaderStart()));
+    writer.writeAttribute("end", Integer.toString(format.getHeaderEnd()));
+
+    writeDependencies(writer, PROVIDES, format.getProvides());
+    writeDependencies(writer, REQUIRES, filterRequires(format.getRequires()));
+    writeDependencies(writer, CONFLICTS, format.getConflicts());
+    writeDependencies(writer, OBSOLETES, format.getObsoletes());
+
+    writeFiles(writer, p, (YumPackageFile file) -> FILE.equals(file.getType()) && isPrimaryFileName(file));
+    writeFiles(writer, p, (YumPackageFile file) -> DIR.equals(file.getType()) && isPrimaryDirName(file.getDir()));
+    writeFiles(writer, p, (YumPackageFile file) -> GHOST.equals(file.getType()) && isPrimaryFileName(file));
+    writer.writeEndElement();
+  }
+
+  private void writeDependencies(XMLStreamWriter writer, String localName,
+                                 List<? extends YumPackageFormatEntry> dependencies) throws XMLStreamException {
+    if (dependencies.isEmpty()) {
+      return;
+    }
+
+    writer.writeStartElement(RPM_PREFIX, localName, RPM_NAMESPACE);
+    for (YumPackageFormatEntry dependency : dependencies) {
+      writer.writeEmptyElement(RPM_PREFIX, "entry", RPM_NAMESPACE);
+      writer.writeAttribute("name", text(dependency.getName()));
+      if (dependency.getFlags() != null) {
+        writer.writeAttribute("flags", dependency.getFlags());
+        writer.writeAttribute("epoch", Integer.toString(dependency.getVersion().getEpoch()));
+        writeAttributeIfNotBlank(writer, "ver", dependency.getVersion().getVer());
+        writeAttributeIfNotBlank(writer, "rel", dependency.getVersion().getRel());
+      }
+      if ((dependency instanceof YumPackageRequirement) && isPre((YumPackageRequirement) dependency)) {
+        writer.writeAttribute("pre", "1");
+      }
+    }
+    writer.writeEndElement();
+  }
+
+  private static boolean isPre(YumPackageRequirement requirement) {
+    return Boolean.TRUE.equals(requirement.isPre());
+  }
+
+  private void writeFiles(XMLStreamWriter writer, YumPackage yumPackage, Predicate<YumPackageFile> predicate)
+                   throws XMLStreamException {
+    for (YumPackageDir dir : yumPackage.getPackageDirs()) {
+      for (YumPackageFile file : dir.getFiles()) {
+        if (predicate.test(file)) {
+          FileListsXmlGenerator.writeFile(writer, file);
+        }
+      }
+    }
+  }
+
+  private void writeRpmTextElement(XMLStreamWriter writer, String localName, String text) throws XMLStreamException {
+    writer.writeStartElement(RPM_PREFIX, localName, RPM_NAMESPACE);
+    writer.writeCharacters(text(text));
+    writer.writeEndElement();
+  }
+
+  private void writeAttributeIfNotBlank(XMLStreamWriter writer, String localName, String value)
+                                 throws XMLStreamException {
+    if (isNotBlank(value)) {
+      writer.writeAttribute(localName, text(value));
+    }
+  }
+}
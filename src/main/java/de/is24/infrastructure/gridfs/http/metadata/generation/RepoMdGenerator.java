@@ -1,9 +1,11 @@
 package de.is24.infrastructure.gridfs.http.metadata.generation;
 
+import de.is24.infrastructure.gridfs.http.cache.RepoMetadataCache;
 import de.is24.infrastructure.gridfs.http.jaxb.Data;
 import de.is24.infrastructure.gridfs.http.jaxb.RepoMd;
 import de.is24.infrastructure.gridfs.http.security.PGPSigner;
 import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
 import de.is24.util.monitoring.spring.TimeMeasurement;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -22,6 +24,7 @@ public class RepoMdGenerator {
   private final FileStorageService fileStorageService;
   private final JAXBContext jaxbContext;
   private final PGPSigner pgpSigner;
+  private RepoMetadataCache repoMetadataCache;
 
   /* for cglib */
   protected RepoMdGenerator() {
@@ -43,10 +46,23 @@ public class RepoMdGenerator {
 
   public void generateRepoMdXml(final String reponame, final List<Data> data) {
     byte[] content = createXml(createRepoMd(createRevision(), data));
-    fileStorageService.storeFile(new ByteArrayInputStream(content), new FileDescriptor(filename(reponame)), true);
+    store(content, filename(reponame));
     if (pgpSigner.isActive()) {
       byte[] signature = pgpSigner.sign(content);
-      fileStorageService.storeFile(new ByteArrayInputStream(signature), new FileDescriptor(signatureFilename(reponame)), true);
+      store(signature, signatureFilename(reponame));
+    }
+  }
+
+  @Autowired(required = false)
+  public void setRepoMetadataCache(RepoMetadataCache repoMetadataCache) {
+    this.repoMetadataCache = repoMetadataCache;
+  }
+
+  private void store(byte[] content, String filename) {
+    FileStorageItem storageItem = fileStorageService.storeFile(new ByteArrayInputStream(content),
+      new FileDescriptor(filename), true);
+    if ((repoMetadataCache != null) && (storageItem != null)) {
+      repoMetadataCache.put(storageItem, content);
     }
   }
 
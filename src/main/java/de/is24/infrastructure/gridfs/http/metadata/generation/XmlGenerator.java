@@ -0,0 +1,246 @@
+package de.is24.infrastructure.gridfs.http.metadata.generation;
+
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageVersion;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.springframework.data.mongodb.core.query.Field;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static de.is24.infrastructure.gridfs.http.metadata.generation.DbGenerator.YUM_PACKAGE_KEY;
+import static org.apache.commons.io.IOUtils.copyLarge;
+
+
+/**
+ * Writes the XML repodata of a repository one package at a time with a StAX writer, so neither a document nor the
+ * entries of the repository are held in memory. The package elements are written to a file first and embedded into
+ * the document afterwards, so that the document states the number of packages it actually contains.
+ */
+public abstract class XmlGenerator {
+  private static final String ENCODING = "UTF-8";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+  private final String name;
+  private final String rootElement;
+  private final String namespace;
+
+  protected XmlGenerator(String name, String rootElement, String namespace) {
+    this.name = name;
+    this.rootElement = rootElement;
+    this.namespace = namespace;
+  }
+
+  /**
+   * Opens the file for the package elements of a document, which is written by {@link #writeDocument} once they
+   * are complete.
+   */
+  public PackagesWriter openPackages(File file) throws IOException {
+    CountingOutputStream outputStream = new CountingOutputStream(
+      new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    try {
+      XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(outputStream, ENCODING);
+      writeRootElement(writer);
+      writer.writeCharacters("");
+      writer.flush();
+      return new PackagesWriter(writer, outputStream, file);
+    } catch (XMLStreamException e) {
+      outputStream.close();
+      throw new IOException("Could not start packages of " + name + " xml.", e);
+    }
+  }
+
+  /**
+   * Writes the document with the given package elements on the output stream, which stays open.
+   */
+  public void writeDocument(OutputStream outputStream, Packages packages) throws IOException {
+    OutputStream bufferedOutputStream = new BufferedOutputStream(outputStream, BUFFER_SIZE);
+    try {
+      XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(bufferedOutputStream, ENCODING);
+      writer.writeStartDocument(ENCODING, "1.0");
+      writeRootElement(writer);
+      writer.writeAttribute("packages", Integer.toString(packages.getCount()));
+      writer.writeCharacters("");
+      writer.flush();
+      packages.copyTo(bufferedOutputStream);
+      writer.writeEndElement();
+      writer.writeEndDocument();
+      writer.flush();
+      writer.close();
+    } catch (XMLStreamException e) {
+      throw new IOException("Could not write " + name + " xml.", e);
+    }
+    bufferedOutputStream.flush();
+  }
+
+  /**
+   * Restricts the fields loaded for the entries to the ones this generator writes, like
+   * {@link DbGenerator#selectFields}.
+   */
+  public abstract void selectFields(Field fields);
+
+  public String getName() {
+    return name;
+  }
+
+  protected void writeNamespaces(XMLStreamWriter writer) throws XMLStreamException {
+  }
+
+  private void writeRootElement(XMLStreamWriter writer) throws XMLStreamException {
+    writer.writeStartElement(rootElement);
+    writer.writeDefaultNamespace(namespace);
+    writeNamespaces(writer);
+  }
+
+  protected abstract void writePackage(XMLStreamWriter writer, YumPackage yumPackage) throws XMLStreamException;
+
+  protected static Field includeIdentifyingFields(Field fields) {
+    return DbGenerator.includeIdentifyingFields(fields)
+      .include(YUM_PACKAGE_KEY + ".name")
+      .include(YUM_PACKAGE_KEY + ".arch")
+      .include(YUM_PACKAGE_KEY + ".version");
+  }
+
+  /**
+   * Writes the attributes identifying the package in the filelists and other xml.
+   */
+  protected static void writePackageIdentity(XMLStreamWriter writer, YumPackage yumPackage)
+                                     throws XMLStreamException {
+    writer.writeAttribute("pkgid", text(yumPackage.getChecksum().getChecksum()));
+    writer.writeAttribute("name", text(yumPackage.getName()));
+    writer.writeAttribute("arch", text(yumPackage.getArch()));
+    writer.writeEmptyElement("version");
+    writeVersion(writer, yumPackage.getVersion());
+  }
+
+  protected static void writeVersion(XMLStreamWriter writer, YumPackageVersion version) throws XMLStreamException {
+    writer.writeAttribute("epoch", Integer.toString(version.getEpoch()));
+    writer.writeAttribute("ver", text(version.getVer()));
+    writer.writeAttribute("rel", text(version.getRel()));
+  }
+
+  protected static void writeTextElement(XMLStreamWriter writer, String localName, String text)
+                                  throws XMLStreamException {
+    writer.writeStartElement(localName);
+    writer.writeCharacters(text(text));
+    writer.writeEndElement();
+  }
+
+  /**
+   * @return the text without the characters XML 1.0 does not allow, which rpm headers may contain
+   */
+  protected static String text(String text) {
+    if (text == null) {
+      return "";
+    }
+
+    StringBuilder builder = null;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (isAllowed(c)) {
+        if (builder != null) {
+          builder.append(c);
+        }
+      } else if (builder == null) {
+        builder = new StringBuilder(text.length()).append(text, 0, i);
+      }
+    }
+    return (builder == null) ? text : builder.toString();
+  }
+
+  private static boolean isAllowed(char c) {
+    return (c >= 0x20) ? ((c <= 0xD7FF) || (c >= 0xE000 && c <= 0xFFFD) || Character.isSurrogate(c))
+                       : ((c == '\t') || (c == '\n') || (c == '\r'));
+  }
+
+  /**
+   * Writes package elements to a file, counting them. The file starts with the root element, so that the
+   * namespaces of the elements are declared, but only the package elements are embedded into the document.
+   */
+  public final class PackagesWriter implements Closeable {
+    private final XMLStreamWriter writer;
+    private final CountingOutputStream outputStream;
+    private final File file;
+    private final long start;
+    private long end = -1;
+    private int count;
+
+    private PackagesWriter(XMLStreamWriter writer, CountingOutputStream outputStream, File file) {
+      this.writer = writer;
+      this.outputStream = outputStream;
+      this.file = file;
+      this.start = outputStream.getByteCount();
+    }
+
+    public void write(YumEntry entry) throws IOException {
+      try {
+        writePackage(writer, entry.getYumPackage());
+      } catch (XMLStreamException e) {
+        throw new IOException("Could not write " + name + " xml of " + entry.getId() + ".", e);
+      }
+      count++;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        writer.flush();
+        end = outputStream.getByteCount();
+        writer.close();
+      } catch (XMLStreamException e) {
+        throw new IOException("Could not end packages of " + name + " xml.", e);
+      } finally {
+        outputStream.close();
+      }
+    }
+
+    /**
+     * @return the written package elements, after the writer has been closed
+     */
+    public Packages getPackages() {
+      return new Packages(file, start, end, count);
+    }
+  }
+
+  /**
+   * The package elements of a document in a file written by a {@link PackagesWriter}.
+   */
+  public static final class Packages {
+    private final File file;
+    private final long start;
+    private final long end;
+    private final int count;
+
+    private Packages(File file, long start, long end, int count) {
+      this.file = file;
+      this.start = start;
+      this.end = end;
+      this.count = count;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    private void copyTo(OutputStream outputStream) throws IOException {
+      try(InputStream inputStream = new FileInputStream(file)) {
+        copyLarge(inputStream, outputStream, start, end - start);
+      }
+    }
+  }
+}
@@ -8,11 +8,22 @@ public interface DatabaseStructure {
   String MARKED_AS_DELETED_KEY = "markedAsDeleted";
   String UPLOAD_DATE_KEY = "uploadDate";
   String ARCH_KEY_REPO_DATA = "repodata";
+  String BLOB_KEY = "blob";
+  String REF_COUNT_KEY = "refCount";
   String METADATA_ARCH_KEY = "metadata." + ARCH_KEY;
   String METADATA_REPO_KEY = "metadata." + REPO_KEY;
   String METADATA_UPLOAD_DATE_KEY = "metadata." + UPLOAD_DATE_KEY;
   String METADATA_MARKED_AS_DELETED_KEY = "metadata." + MARKED_AS_DELETED_KEY;
+  String METADATA_SHA256_KEY = "metadata." + SHA256_KEY;
+  String METADATA_BLOB_KEY = "metadata." + BLOB_KEY;
+  String METADATA_REF_COUNT_KEY = "metadata." + REF_COUNT_KEY;
   String GRIDFS_FILES_COLLECTION = "fs.files";
+  String GRIDFS_CHUNKS_COLLECTION = "fs.chunks";
+  String BLOBS_BUCKET = "blobs";
+  String BLOB_FILES_COLLECTION = BLOBS_BUCKET + ".files";
+  String BLOB_CHUNKS_COLLECTION = BLOBS_BUCKET + ".chunks";
+  String COLLAPSED_CHUNKS_COLLECTION = BLOBS_BUCKET + ".collapsed";
   String YUM_ENTRY_COLLECTION = "yum.entries";
   String REPO_ENTRY_COLLECTION = "yum.repos";
+  String UPLOAD_SESSION_COLLECTION = "upload.sessions";
 }
@@ -0,0 +1,30 @@
+package de.is24.infrastructure.gridfs.http.monitoring;
+
+import de.is24.util.monitoring.InApplicationMonitor;
+
+
+/**
+ * Counts values in buckets with the given upper bounds, as one counter per bucket named
+ * <code>name.le_bound</code> and <code>name.gt_lastBound</code> for the values above all bounds.
+ */
+public final class Histogram {
+  private final String[] bucketNames;
+  private final long[] upperBounds;
+
+  public Histogram(String name, long... upperBounds) {
+    this.upperBounds = upperBounds.clone();
+    this.bucketNames = new String[upperBounds.length + 1];
+    for (int i = 0; i < upperBounds.length; i++) {
+      bucketNames[i] = name + ".le_" + upperBounds[i];
+    }
+    bucketNames[upperBounds.length] = name + ".gt_" + upperBounds[upperBounds.length - 1];
+  }
+
+  public void record(long value) {
+    int bucket = 0;
+    while ((bucket < upperBounds.length) && (value > upperBounds[bucket])) {
+      bucket++;
+    }
+    InApplicationMonitor.getInstance().incrementCounter(bucketNames[bucket]);
+  }
+}
@@ -0,0 +1,25 @@
+package de.is24.infrastructure.gridfs.http.monitoring;
+
+import de.is24.util.monitoring.StateValueProvider;
+import java.util.function.LongSupplier;
+
+
+public final class LongSupplierValueProvider extends StateValueProvider {
+  private final String name;
+  private final LongSupplier supplier;
+
+  public LongSupplierValueProvider(String name, LongSupplier supplier) {
+    this.name = name;
+    this.supplier = supplier;
+  }
+
+  @Override
+  public long getValue() {
+    return supplier.getAsLong();
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+}
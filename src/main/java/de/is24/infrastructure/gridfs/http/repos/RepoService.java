@@ -2,27 +2,43 @@ package de.is24.infrastructure.gridfs.http.repos;
 
 import de.is24.infrastructure.gridfs.http.domain.RepoEntry;
 import de.is24.infrastructure.gridfs.http.domain.RepoType;
+import de.is24.infrastructure.gridfs.http.domain.RepodataCompression;
 import de.is24.infrastructure.gridfs.http.exception.BadRequestException;
 import de.is24.infrastructure.gridfs.http.exception.RepositoryNotFoundException;
 import de.is24.infrastructure.gridfs.http.metadata.RepoEntriesRepository;
+import de.is24.util.monitoring.InApplicationMonitor;
 import org.apache.commons.lang.ArrayUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import javax.annotation.PreDestroy;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import static de.is24.infrastructure.gridfs.http.domain.RepoType.SCHEDULED;
 import static de.is24.infrastructure.gridfs.http.domain.RepoType.STATIC;
 import static de.is24.infrastructure.gridfs.http.domain.RepoType.VIRTUAL;
 import static de.is24.infrastructure.gridfs.http.repos.RepositoryNameValidator.validateRepoName;
+import static java.util.Collections.newSetFromMap;
 import static org.apache.commons.lang.ArrayUtils.contains;
 import static org.apache.commons.lang.StringUtils.substringAfter;
 
 
+/**
+ * Modifications of static repositories are written behind: the first modification of a repository seen by this
+ * instance is saved at once, later ones only mark the repository as modified. The marks are flushed periodically,
+ * and before metadata is generated, with a single atomic update per repository, that never moves the last
+ * modification backwards. Only repositories without an entry yet are saved as a whole.
+ */
 @ManagedResource
 @Service
 public class RepoService {
@@ -31,6 +47,10 @@ public class RepoService {
   public static final String STATIC_PREFIX = "static/";
   public static final String VIRTUAL_PREFIX = "virtual/";
   private final RepoEntriesRepository entriesRepository;
+  private final ConcurrentMap<String, Date> pendingModifications = new ConcurrentHashMap<>();
+  private final Set<String> existingRepos = newSetFromMap(new ConcurrentHashMap<>());
+  private final AtomicLong coalescedModifications = new AtomicLong();
+  private final AtomicLong flushedModifications = new AtomicLong();
 
   @Autowired
   public RepoService(RepoEntriesRepository entriesRepository) {
@@ -38,12 +58,76 @@ public class RepoService {
   }
 
   public void createOrUpdate(String reponame) {
-    RepoEntry repoEntry = ensureEntry(reponame, STATIC, SCHEDULED);
-    repoEntry.setLastModified(new Date());
-    entriesRepository.save(repoEntry);
+    validateRepoName(reponame);
+
+    Date now = new Date();
+    if (!existingRepos.contains(reponame)) {
+      saveLastModified(reponame, now);
+      existingRepos.add(reponame);
+      return;
+    }
+
+    pendingModifications.compute(reponame, (name, pending) -> {
+        if (pending == null) {
+          return now;
+        }
+        coalescedModifications.incrementAndGet();
+        InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".modification.coalesced");
+        return latest(pending, now);
+      });
+  }
+
+  @Scheduled(fixedDelayString = "${repo.modification.flush.interval.ms:250}")
+  @PreDestroy
+  public void flushModifications() {
+    for (String reponame : pendingModifications.keySet()) {
+      try {
+        flushModifications(reponame);
+      } catch (RuntimeException e) {
+        LOG.warn("Could not flush modification of repository {}.", reponame, e);
+      }
+    }
+  }
+
+  /**
+   * Writes the pending modification of the repository, if any.
+   */
+  public void flushModifications(String reponame) {
+    Date lastModified = pendingModifications.remove(reponame);
+    if (lastModified == null) {
+      return;
+    }
+
+    try {
+      saveLastModified(reponame, lastModified);
+    } catch (RuntimeException e) {
+      pendingModifications.merge(reponame, lastModified, RepoService::latest);
+      throw e;
+    }
+
+    flushedModifications.incrementAndGet();
+    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".modification.flushed");
+  }
+
+  @ManagedAttribute
+  public long getCoalescedModifications() {
+    return coalescedModifications.get();
+  }
+
+  @ManagedAttribute
+  public long getFlushedModifications() {
+    return flushedModifications.get();
+  }
+
+  @ManagedAttribute
+  public int getPendingModifications() {
+    return pendingModifications.size();
   }
 
   public void delete(String reponame) {
+    pendingModifications.remove(reponame);
+    existingRepos.remove(reponame);
+
     RepoEntry repoEntry = entriesRepository.findFirstByName(reponame);
     if (repoEntry != null) {
       entriesRepository.delete(repoEntry);
@@ -63,16 +147,25 @@ public class RepoService {
   }
 
   public void updateLastMetadataGeneration(String reponame, Date date, String newHashOfEntries) {
+    flushModifications(reponame);
+
+    Date initialLastModified = new Date(date.getTime() - ONE_SEC_IN_MS);
+    if (entriesRepository.updateLastMetadataGeneration(reponame, date, newHashOfEntries, initialLastModified)) {
+      return;
+    }
+
     RepoEntry repoEntry = ensureEntry(reponame, STATIC, SCHEDULED);
     repoEntry.setLastMetadataGeneration(date);
     repoEntry.setHashOfEntries(newHashOfEntries);
     if (repoEntry.getLastModified() == null) {
-      repoEntry.setLastModified(new Date(date.getTime() - ONE_SEC_IN_MS));
+      repoEntry.setLastModified(initialLastModified);
     }
     entriesRepository.save(repoEntry);
   }
 
   public boolean needsMetadataUpdate(String reponame) {
+    flushModifications(reponame);
+
     RepoEntry repoEntry = entriesRepository.findFirstByName(reponame);
     return (repoEntry == null) ||
       (repoEntry.getLastModified() == null) ||
@@ -113,6 +206,22 @@ public class RepoService {
     return repoEntry;
   }
 
+  private void saveLastModified(String reponame, Date lastModified) {
+    if (entriesRepository.updateLastModifiedIfNewer(reponame, lastModified)) {
+      return;
+    }
+
+    RepoEntry repoEntry = ensureEntry(reponame, STATIC, SCHEDULED);
+    if ((repoEntry.getLastModified() == null) || lastModified.after(repoEntry.getLastModified())) {
+      repoEntry.setLastModified(lastModified);
+    }
+    entriesRepository.save(repoEntry);
+  }
+
+  private static Date latest(Date first, Date second) {
+    return second.after(first) ? second : first;
+  }
+
   private static RepoEntry fillRepoEntry(final String reponame, final RepoType[] types) {
     validateRepoName(reponame);
 
@@ -160,6 +269,20 @@ public class RepoService {
       LOG.info("Set maxDaysRpms of repository {} to {}", reponame, maxDaysRpms);
   }
 
+  /**
+   * Sets the codec of the repodata. The hash of the entries is reset, so the metadata is generated again with it.
+   *
+   * @param repodataCompression the codec, <code>null</code> for the defaults
+   */
+  @ManagedOperation
+  public void setRepodataCompression(String reponame, RepodataCompression repodataCompression) {
+    RepoEntry repoEntry = ensureEntry(reponame, STATIC, SCHEDULED);
+    repoEntry.setRepodataCompression(repodataCompression);
+    repoEntry.setHashOfEntries(null);
+    entriesRepository.save(repoEntry);
+    LOG.info("Set repodataCompression of repository {} to {}", reponame, repodataCompression);
+  }
+
   @ManagedOperation
   public void createVirtualRepo(String reponame, String destination) {
     validateRepoName(reponame);
@@ -18,6 +18,7 @@ import org.springframework.security.web.authentication.www.BasicAuthenticationEn
 import static de.is24.infrastructure.gridfs.http.security.WhiteListAuthenticationFilter.WHITE_LISTED_HOSTS_MODIFCATION_ENABLED_KEY;
 import static java.util.UUID.randomUUID;
 import static org.springframework.http.HttpMethod.DELETE;
+import static org.springframework.http.HttpMethod.PATCH;
 import static org.springframework.http.HttpMethod.POST;
 import static org.springframework.http.HttpMethod.PUT;
 import static org.springframework.security.config.http.SessionCreationPolicy.STATELESS;
@@ -71,6 +72,7 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
         .antMatchers(POST, "/**").hasRole(ROLE_USER)
         .antMatchers(PUT, "/**").hasRole(ROLE_USER)
         .antMatchers(DELETE, "/**").hasRole(ROLE_USER)
+        .antMatchers(PATCH, "/**").hasRole(ROLE_USER)
         .and().addFilter(whiteListAuthenticationFilter());
   }
 
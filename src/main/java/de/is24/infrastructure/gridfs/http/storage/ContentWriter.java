@@ -0,0 +1,12 @@
+package de.is24.infrastructure.gridfs.http.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Writes content to be stored directly into the output stream of the storage, so it is never held as a whole.
+ */
+public interface ContentWriter {
+  void writeTo(OutputStream outputStream) throws IOException;
+}
@@ -0,0 +1,82 @@
+package de.is24.infrastructure.gridfs.http.storage;
+
+import java.io.InputStream;
+import java.util.Date;
+
+
+public class DelegatingFileStorageItem implements FileStorageItem {
+  private final FileStorageItem delegate;
+
+  public DelegatingFileStorageItem(FileStorageItem delegate) {
+    this.delegate = delegate;
+  }
+
+  public FileStorageItem getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public boolean isMarkedAsDeleted() {
+    return delegate.isMarkedAsDeleted();
+  }
+
+  @Override
+  public String getRepo() {
+    return delegate.getRepo();
+  }
+
+  @Override
+  public Object getId() {
+    return delegate.getId();
+  }
+
+  @Override
+  public String getFilename() {
+    return delegate.getFilename();
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return getInputStream(0);
+  }
+
+  @Override
+  public InputStream getInputStream(long startPos) {
+    return delegate.getInputStream(startPos);
+  }
+
+  @Override
+  public InputStream getInputStream(long startPos, long length) {
+    return delegate.getInputStream(startPos, length);
+  }
+
+  @Override
+  public long getSize() {
+    return delegate.getSize();
+  }
+
+  @Override
+  public String getChecksumSha256() {
+    return delegate.getChecksumSha256();
+  }
+
+  @Override
+  public Date getUploadDate() {
+    return delegate.getUploadDate();
+  }
+
+  @Override
+  public String getContentType() {
+    return delegate.getContentType();
+  }
+
+  @Override
+  public Date getDateOfMarkAsDeleted() {
+    return delegate.getDateOfMarkAsDeleted();
+  }
+
+  @Override
+  public String getArch() {
+    return delegate.getArch();
+  }
+}
@@ -0,0 +1,30 @@
+package de.is24.infrastructure.gridfs.http.storage;
+
+import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
+
+import java.io.InputStream;
+
+
+/**
+ * Determines the descriptor of a file while it is stored, from the beginning of its content.
+ */
+@FunctionalInterface
+public interface FileDescriptorResolver {
+  /**
+   * @param head the content of the file; everything read from it is stored, the rest is stored afterwards
+   */
+  FileDescriptor resolve(InputStream head) throws InvalidRpmHeaderException;
+
+  /**
+   * @return the lower case hex SHA-256 of the content if known in advance, so that stored content can be reused
+   */
+  default String getExpectedSha256Hash() {
+    return null;
+  }
+
+  /**
+   * Called with size and SHA-256 of the whole content before the file becomes visible. Throw to discard it.
+   */
+  default void verify(long size, String sha256Hash) {
+  }
+}
@@ -14,6 +14,14 @@ public interface FileStorageItem {
 
   InputStream getInputStream();
 
+  InputStream getInputStream(long startPos);
+
+  /**
+   * @return a stream of at most <code>length</code> bytes starting at <code>startPos</code>, that reads no more
+   * of the storage than needed for the range
+   */
+  InputStream getInputStream(long startPos, long length);
+
   long getSize();
 
   String getChecksumSha256();
@@ -1,6 +1,9 @@
 package de.is24.infrastructure.gridfs.http.storage;
 
+import de.is24.infrastructure.gridfs.http.domain.RepodataCompression;
+import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
 import de.is24.infrastructure.gridfs.http.gridfs.BoundedGridFsResource;
+import de.is24.infrastructure.gridfs.http.gridfs.UploadedChunks;
 import de.is24.util.monitoring.spring.TimeMeasurement;
 import org.springframework.security.access.prepost.PreAuthorize;
 
@@ -34,8 +37,38 @@ public interface FileStorageService {
 
   FileStorageItem storeFile(InputStream inputStream, FileDescriptor descriptor, boolean allowOverride);
 
-  UploadResult storeSqliteFileCompressedWithChecksumName(String reponame, File metadataFile, String name)
-                                                  throws IOException;
+  /**
+   * Stores the stream in a single pass. The resolver reads the beginning of the stream to determine where the
+   * file is stored, and verifies the complete content; if either fails, nothing is stored.
+   */
+  FileStorageItem storeFile(InputStream inputStream, FileDescriptorResolver resolver)
+                     throws InvalidRpmHeaderException, IOException;
+
+  /**
+   * Stores the chunks of a finished resumable upload without copying them. The resolver reads the beginning of the
+   * content to determine where the file is stored; if it fails, the chunks are kept. If the content is stored
+   * already, the chunks are kept as well and left to the caller to discard.
+   */
+  FileStorageItem storeChunks(UploadedChunks chunks, FileDescriptorResolver resolver)
+                       throws InvalidRpmHeaderException, IOException;
+
+  /**
+   * Reverts {@link #storeChunks}, keeping the chunks.
+   */
+  void unstoreChunks(UploadedChunks chunks, FileStorageItem storageItem);
+
+  /**
+   * Stores the sqlite database compressed as <code>repodata/&lt;name&gt;-&lt;checksum&gt;.sqlite.&lt;extension&gt;</code>.
+   */
+  UploadResult storeSqliteFileCompressedWithChecksumName(String reponame, File metadataFile, String name,
+                                                         RepodataCompression compression) throws IOException;
+
+  /**
+   * Stores the XML written by the content writer compressed as
+   * <code>repodata/&lt;name&gt;-&lt;checksum&gt;.xml.&lt;extension&gt;</code>.
+   */
+  UploadResult storeXmlCompressedWithChecksumName(String reponame, String name, RepodataCompression compression,
+                                                  ContentWriter contentWriter) throws IOException;
 
   List<FileStorageItem> getAllRpms();
 
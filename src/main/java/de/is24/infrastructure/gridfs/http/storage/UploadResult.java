@@ -6,6 +6,7 @@ import java.util.Date;
  * Created by sherold on 03.08.14.
  */
 public class UploadResult {
+  private Object id;
   private Date uploadDate;
   private long compressedSize;
   private String compressedChecksum;
@@ -13,6 +14,14 @@ public class UploadResult {
   private String uncompressedChecksum;
   private String location;
 
+  public void setId(Object id) {
+    this.id = id;
+  }
+
+  public Object getId() {
+    return id;
+  }
+
   public void setUploadDate(Date uploadDate) {
     this.uploadDate = uploadDate;
   }
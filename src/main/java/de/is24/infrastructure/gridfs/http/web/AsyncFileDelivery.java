@@ -0,0 +1,288 @@
+package de.is24.infrastructure.gridfs.http.web;
+
+import de.is24.util.monitoring.InApplicationMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.ResourceHttpMessageConverter;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+
+
+/**
+ * Delivers file bodies on a dedicated pool of I/O threads so that the container thread is released as soon as
+ * the response is determined. Slow clients then block a delivery thread instead of a connector thread, and
+ * the connector stays available for repodata, uploads and everything else. Downloads waiting for a delivery
+ * thread are queued up to a limit, further downloads are rejected with 503 and a Retry-After header, so that
+ * clients retry instead of waiting behind slow clients.
+ */
+@ManagedResource
+@Service
+public class AsyncFileDelivery {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AsyncFileDelivery.class);
+  private static final String RETRY_AFTER = "Retry-After";
+
+  private final ResourceHttpMessageConverter converter = new ResourceHttpMessageConverter();
+  private final ThreadPoolExecutor executor;
+  private final long timeoutInMillis;
+  private final long retryAfterSeconds;
+  private volatile boolean enabled;
+
+  @Autowired
+  public AsyncFileDelivery(@Value("${delivery.async.threads:0}") int threads,
+                           @Value("${delivery.async.queue.size:100}") int queueSize,
+                           @Value("${delivery.async.timeout.seconds:3600}") long timeoutInSeconds,
+                           @Value("${delivery.async.retry.after.seconds:5}") long retryAfterSeconds) {
+    this.enabled = threads > 0;
+    this.executor = new ThreadPoolExecutor(Math.max(threads, 1), Math.max(threads, 1), 60, SECONDS,
+      new LinkedBlockingQueue<>(Math.max(queueSize, 1)), new CustomizableThreadFactory("async-delivery-"));
+    this.executor.allowCoreThreadTimeOut(true);
+    this.timeoutInMillis = SECONDS.toMillis(timeoutInSeconds);
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  /**
+   * @return the given response entity, if it has to be written synchronously by the caller,
+   * or null, if the delivery has been started asynchronously or rejected.
+   */
+  public ResponseEntity<Resource> deliver(ResponseEntity<Resource> entity, HttpServletRequest request,
+                                          HttpServletResponse response) {
+    if (!enabled || (entity.getBody() == null) || (response == null) || !request.isAsyncSupported()) {
+      return entity;
+    }
+
+    AsyncContext asyncContext = request.startAsync(request, response);
+    asyncContext.setTimeout(timeoutInMillis);
+
+    Delivery delivery = new Delivery(entity, asyncContext, response);
+    asyncContext.addListener(delivery);
+    try {
+      executor.execute(delivery);
+      InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".started");
+    } catch (RejectedExecutionException e) {
+      InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".rejected");
+      delivery.reject();
+    }
+    return null;
+  }
+
+  @ManagedAttribute
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @ManagedAttribute
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  @ManagedAttribute
+  public int getThreads() {
+    return executor.getMaximumPoolSize();
+  }
+
+  @ManagedAttribute
+  public void setThreads(int threads) {
+    if (threads > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(threads);
+      executor.setCorePoolSize(threads);
+    } else {
+      executor.setCorePoolSize(threads);
+      executor.setMaximumPoolSize(threads);
+    }
+  }
+
+  @ManagedAttribute
+  public int getActiveDeliveries() {
+    return executor.getActiveCount();
+  }
+
+  @ManagedAttribute
+  public int getQueuedDeliveries() {
+    return executor.getQueue().size();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Writes the response on a delivery thread. Once the async context has ended by timeout or error, the container
+   * may recycle the response for another request, so every access to the response checks whether the delivery is
+   * still in charge of the response. Status and headers are set under the lock of the delivery, but body writes
+   * only check before and after the write, so that a write blocked by a stalled client does not keep the timeout
+   * from ending the delivery.
+   */
+  private class Delivery implements Runnable, AsyncListener {
+    private final ResponseEntity<Resource> entity;
+    private final AsyncContext asyncContext;
+    private final HttpServletResponse response;
+    private final Object lock = new Object();
+    private volatile boolean finished;
+
+    Delivery(ResponseEntity<Resource> entity, AsyncContext asyncContext, HttpServletResponse response) {
+      this.entity = entity;
+      this.asyncContext = asyncContext;
+      this.response = response;
+    }
+
+    @Override
+    public void run() {
+      try {
+        GuardedOutputMessage outputMessage = new GuardedOutputMessage(new ServletServerHttpResponse(response));
+        outputMessage.getHeaders().putAll(entity.getHeaders());
+        converter.write(entity.getBody(), entity.getHeaders().getContentType(), outputMessage);
+        InApplicationMonitor.getInstance().incrementCounter(AsyncFileDelivery.class.getName() + ".completed");
+      } catch (IOException e) {
+        LOGGER.debug("aborted delivery of {}: {}", entity.getBody().getDescription(), e.getMessage());
+        InApplicationMonitor.getInstance().incrementCounter(AsyncFileDelivery.class.getName() + ".aborted");
+      } catch (RuntimeException e) {
+        LOGGER.warn("failed to deliver {}", entity.getBody().getDescription(), e);
+        InApplicationMonitor.getInstance().incrementCounter(AsyncFileDelivery.class.getName() + ".failed");
+      } finally {
+        complete();
+      }
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+      InApplicationMonitor.getInstance().incrementCounter(AsyncFileDelivery.class.getName() + ".timeout");
+      cancel();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+      cancel();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+      finish();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
+
+    void reject() {
+      synchronized (lock) {
+        response.setStatus(SERVICE_UNAVAILABLE.value());
+        response.setHeader(RETRY_AFTER, Long.toString(retryAfterSeconds));
+      }
+      complete();
+    }
+
+    private void cancel() {
+      executor.remove(this);
+      complete();
+    }
+
+    private void complete() {
+      if (finish()) {
+        try {
+          asyncContext.complete();
+        } catch (IllegalStateException e) {
+          LOGGER.debug("async context already completed", e);
+        }
+      }
+    }
+
+    /**
+     * @return true, if this call has ended the delivery, false, if it had already ended
+     */
+    private boolean finish() {
+      synchronized (lock) {
+        if (finished) {
+          return false;
+        }
+        finished = true;
+        return true;
+      }
+    }
+
+    private void checkNotFinished() throws IOException {
+      if (finished) {
+        throw new IOException("delivery of " + entity.getBody().getDescription() + " has been cancelled");
+      }
+    }
+
+    private class GuardedOutputMessage implements HttpOutputMessage {
+      private final ServletServerHttpResponse delegate;
+
+      GuardedOutputMessage(ServletServerHttpResponse delegate) {
+        this.delegate = delegate;
+      }
+
+      @Override
+      public HttpHeaders getHeaders() {
+        return delegate.getHeaders();
+      }
+
+      @Override
+      public OutputStream getBody() throws IOException {
+        synchronized (lock) {
+          checkNotFinished();
+          delegate.setStatusCode(entity.getStatusCode());
+          return new GuardedOutputStream(delegate.getBody());
+        }
+      }
+    }
+
+    private class GuardedOutputStream extends FilterOutputStream {
+      GuardedOutputStream(OutputStream out) {
+        super(out);
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        checkNotFinished();
+        out.write(b);
+        checkNotFinished();
+      }
+
+      @Override
+      public void write(byte[] buffer, int offset, int len) throws IOException {
+        checkNotFinished();
+        out.write(buffer, offset, len);
+        checkNotFinished();
+      }
+
+      @Override
+      public void flush() throws IOException {
+        checkNotFinished();
+        out.flush();
+        checkNotFinished();
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    }
+  }
+}
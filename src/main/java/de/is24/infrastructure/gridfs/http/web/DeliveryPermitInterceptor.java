@@ -0,0 +1,62 @@
+package de.is24.infrastructure.gridfs.http.web;
+
+import de.is24.infrastructure.gridfs.http.governor.DeliveryPermit;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+import static de.is24.infrastructure.gridfs.http.governor.DeliveryPermit.REQUEST_ATTRIBUTE;
+
+
+/**
+ * Releases the {@link DeliveryPermit} of a download after the response has been written,
+ * or after the asynchronous delivery has ended.
+ */
+public class DeliveryPermitInterceptor extends HandlerInterceptorAdapter {
+  @Override
+  public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex)
+                       throws Exception {
+    Object attribute = request.getAttribute(REQUEST_ATTRIBUTE);
+    if (!(attribute instanceof DeliveryPermit)) {
+      return;
+    }
+
+    DeliveryPermit permit = (DeliveryPermit) attribute;
+    if (request.isAsyncStarted()) {
+      request.getAsyncContext().addListener(new ReleasingListener(permit));
+    } else {
+      permit.release();
+    }
+  }
+
+  private static class ReleasingListener implements AsyncListener {
+    private final DeliveryPermit permit;
+
+    ReleasingListener(DeliveryPermit permit) {
+      this.permit = permit;
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+      permit.release();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+      permit.release();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+      permit.release();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
+  }
+}
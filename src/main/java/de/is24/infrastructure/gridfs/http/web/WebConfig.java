@@ -66,6 +66,7 @@ public class WebConfig extends WebMvcConfigurerAdapter {
   public void addInterceptors(InterceptorRegistry registry) {
     registry.addInterceptor(new LoggingHandlerInterceptor());
     registry.addInterceptor(new TrailingSlashRedirectHandlerInterceptor());
+    registry.addInterceptor(new DeliveryPermitInterceptor());
   }
 
   @Override
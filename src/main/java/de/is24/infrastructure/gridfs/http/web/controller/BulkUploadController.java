@@ -0,0 +1,74 @@
+package de.is24.infrastructure.gridfs.http.web.controller;
+
+import de.is24.infrastructure.gridfs.http.gridfs.BulkUploadResult;
+import de.is24.infrastructure.gridfs.http.gridfs.BulkUploadService;
+import de.is24.util.monitoring.InApplicationMonitor;
+import de.is24.util.monitoring.spring.TimeMeasurement;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.springframework.http.HttpStatus.CREATED;
+import static org.springframework.http.HttpStatus.MULTI_STATUS;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.MULTIPART_FORM_DATA_VALUE;
+import static org.springframework.web.bind.annotation.RequestMethod.POST;
+
+
+/**
+ * Uploads many RPMs into a repository with a single request, either as tar stream or as multipart request with one
+ * part per RPM. The response lists the outcome of every file and is answered with 201, if all files have been
+ * stored, or with 207 otherwise.
+ */
+@Controller
+@RequestMapping("/repo")
+@TimeMeasurement
+public class BulkUploadController {
+  public static final String CONTENT_TYPE_APPLICATION_X_TAR = "application/x-tar";
+
+  private final BulkUploadService bulkUploadService;
+
+  /* for cglib */
+  protected BulkUploadController() {
+    bulkUploadService = null;
+  }
+
+  @Autowired
+  public BulkUploadController(BulkUploadService bulkUploadService) {
+    this.bulkUploadService = bulkUploadService;
+  }
+
+  @RequestMapping(
+    value = "/{reponame}/bulk", method = POST, consumes = CONTENT_TYPE_APPLICATION_X_TAR,
+    produces = APPLICATION_JSON_VALUE
+  )
+  public ResponseEntity<BulkUploadResult> uploadTar(@PathVariable("reponame") String reponame,
+                                                    HttpServletRequest request) throws IOException {
+    return respond(bulkUploadService.storeRpmsFromTar(reponame, request.getInputStream()));
+  }
+
+  @RequestMapping(
+    value = "/{reponame}/bulk", method = POST, consumes = MULTIPART_FORM_DATA_VALUE,
+    produces = APPLICATION_JSON_VALUE
+  )
+  public ResponseEntity<BulkUploadResult> uploadMultipart(@PathVariable("reponame") String reponame,
+                                                          MultipartHttpServletRequest request) throws IOException {
+    List<MultipartFile> files = new ArrayList<>();
+    request.getMultiFileMap().values().forEach(files::addAll);
+    return respond(bulkUploadService.storeRpms(reponame, files));
+  }
+
+  private ResponseEntity<BulkUploadResult> respond(BulkUploadResult result) {
+    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".upload.bulk");
+    return new ResponseEntity<>(result, (result.getFailed() == 0) ? CREATED : MULTI_STATUS);
+  }
+}
@@ -0,0 +1,140 @@
+package de.is24.infrastructure.gridfs.http.web.controller;
+
+import de.is24.infrastructure.gridfs.http.exception.BadRangeRequestException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.Long.parseLong;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.util.Comparator.comparingLong;
+import static java.util.regex.Pattern.compile;
+import static org.apache.commons.lang.StringUtils.isEmpty;
+import static org.apache.commons.lang.StringUtils.split;
+import static org.apache.commons.lang.StringUtils.trim;
+
+
+/**
+ * Parses a Range header (RFC 7233) into the ranges satisfiable for a file of a given length:
+ * <code>first-last</code>, <code>first-</code> and the suffix range <code>-length</code>, separated by commas.
+ * Overlapping and adjacent ranges are merged, so that no byte of the file is delivered more than once.
+ */
+final class ByteRanges {
+  static final String BYTES_UNIT = "bytes=";
+  static final int MAX_RANGES = 32;
+  private static final Pattern RANGE_SPEC_PATTERN = compile("^(0|[1-9]\\d*)?-(0|[1-9]\\d*)?$");
+
+  private ByteRanges() {
+  }
+
+  /**
+   * @return the satisfiable ranges merged and in ascending order, which is empty if none of them is satisfiable
+   * @throws BadRangeRequestException if the header is malformed or more than {@link #MAX_RANGES} distinct ranges
+   * remain after merging
+   */
+  static List<ByteRange> parse(String rangeHeader, long fileLength) {
+    if ((rangeHeader == null) || !rangeHeader.startsWith(BYTES_UNIT)) {
+      throw new BadRangeRequestException("Byte range header does not start with " + BYTES_UNIT, rangeHeader);
+    }
+
+    String[] specs = split(rangeHeader.substring(BYTES_UNIT.length()), ',');
+    if (specs.length == 0) {
+      throw new BadRangeRequestException("Byte range header must contain at least one range", rangeHeader);
+    }
+
+    List<ByteRange> ranges = new ArrayList<>();
+    for (String spec : specs) {
+      ByteRange range = parseSpec(trim(spec), fileLength, rangeHeader);
+      if (range != null) {
+        ranges.add(range);
+      }
+    }
+
+    List<ByteRange> mergedRanges = merge(ranges);
+    if (mergedRanges.size() > MAX_RANGES) {
+      throw new BadRangeRequestException("Byte range header must not contain more than " + MAX_RANGES +
+        " distinct ranges", rangeHeader);
+    }
+    return mergedRanges;
+  }
+
+  private static List<ByteRange> merge(List<ByteRange> ranges) {
+    ranges.sort(comparingLong(ByteRange::getFirst));
+
+    List<ByteRange> mergedRanges = new ArrayList<>();
+    ByteRange current = null;
+    for (ByteRange range : ranges) {
+      if (current == null) {
+        current = range;
+      } else if (range.getFirst() <= (current.getLast() + 1)) {
+        current = new ByteRange(current.getFirst(), max(current.getLast(), range.getLast()));
+      } else {
+        mergedRanges.add(current);
+        current = range;
+      }
+    }
+    if (current != null) {
+      mergedRanges.add(current);
+    }
+    return mergedRanges;
+  }
+
+  private static ByteRange parseSpec(String spec, long fileLength, String rangeHeader) {
+    Matcher matcher = RANGE_SPEC_PATTERN.matcher(spec);
+    if (!matcher.matches() || (isEmpty(matcher.group(1)) && isEmpty(matcher.group(2)))) {
+      throw new BadRangeRequestException("Byte range '" + spec + "' does not match " + RANGE_SPEC_PATTERN,
+        rangeHeader);
+    }
+
+    if (isEmpty(matcher.group(1))) {
+      long suffixLength = parseRangeLong(matcher.group(2), rangeHeader);
+      if ((suffixLength == 0) || (fileLength == 0)) {
+        return null;
+      }
+      return new ByteRange(max(fileLength - suffixLength, 0), fileLength - 1);
+    }
+
+    long first = parseRangeLong(matcher.group(1), rangeHeader);
+    long last = isEmpty(matcher.group(2)) ? Long.MAX_VALUE : parseRangeLong(matcher.group(2), rangeHeader);
+    if (last < first) {
+      throw new BadRangeRequestException("Range end is before range start in '" + spec + "'", rangeHeader);
+    }
+    if (first >= fileLength) {
+      return null;
+    }
+    return new ByteRange(first, min(last, fileLength - 1));
+  }
+
+  private static long parseRangeLong(String value, String rangeHeader) {
+    try {
+      return parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new BadRangeRequestException("Could not parse range element '" + value + "' to long.", rangeHeader);
+    }
+  }
+
+  static final class ByteRange {
+    private final long first;
+    private final long last;
+
+    ByteRange(long first, long last) {
+      this.first = first;
+      this.last = last;
+    }
+
+    long getFirst() {
+      return first;
+    }
+
+    long getLast() {
+      return last;
+    }
+
+    long getLength() {
+      return last - first + 1;
+    }
+  }
+}
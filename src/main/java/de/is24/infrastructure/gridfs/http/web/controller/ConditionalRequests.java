@@ -0,0 +1,89 @@
+package de.is24.infrastructure.gridfs.http.web.controller;
+
+import de.is24.infrastructure.gridfs.http.gridfs.BoundedGridFsResource;
+
+import javax.servlet.http.HttpServletRequest;
+
+import static org.apache.commons.lang.StringUtils.isBlank;
+import static org.apache.commons.lang.StringUtils.removeStart;
+import static org.apache.commons.lang.StringUtils.split;
+import static org.apache.commons.lang.StringUtils.trim;
+
+
+/**
+ * Evaluates If-None-Match, If-Modified-Since and If-Range against the sha256 and upload date of a stored file.
+ */
+final class ConditionalRequests {
+  static final String IF_NONE_MATCH = "If-None-Match";
+  static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+  static final String IF_RANGE = "If-Range";
+  private static final String WEAK_PREFIX = "W/";
+  private static final long SECOND = 1000;
+
+  private ConditionalRequests() {
+  }
+
+  static String etagOf(BoundedGridFsResource resource) {
+    return isBlank(resource.getChecksumSha256()) ? null : ("\"" + resource.getChecksumSha256() + "\"");
+  }
+
+  static long lastModifiedOf(BoundedGridFsResource resource) {
+    return (resource.getUploadDate() == null) ? -1 : resource.getUploadDate().getTime();
+  }
+
+  static boolean isNotModified(HttpServletRequest request, BoundedGridFsResource resource) {
+    String ifNoneMatch = request.getHeader(IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      return matchesAny(ifNoneMatch, etagOf(resource));
+    }
+
+    long ifModifiedSince = dateHeader(request, IF_MODIFIED_SINCE);
+    long lastModified = lastModifiedOf(resource);
+    return (ifModifiedSince >= 0) && (lastModified >= 0) && ((lastModified / SECOND) <= (ifModifiedSince / SECOND));
+  }
+
+  /**
+   * @return false if the request contains an If-Range header which does not match the current file,
+   * so that the whole file has to be delivered instead of the requested range.
+   */
+  static boolean isRangeApplicable(HttpServletRequest request, BoundedGridFsResource resource) {
+    String ifRange = request.getHeader(IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+
+    ifRange = trim(ifRange);
+    if (ifRange.startsWith(WEAK_PREFIX)) {
+      return false;
+    }
+    if (ifRange.startsWith("\"")) {
+      return ifRange.equals(etagOf(resource));
+    }
+
+    long date = dateHeader(request, IF_RANGE);
+    long lastModified = lastModifiedOf(resource);
+    return (date >= 0) && (lastModified >= 0) && ((lastModified / SECOND) == (date / SECOND));
+  }
+
+  private static boolean matchesAny(String ifNoneMatch, String etag) {
+    if (etag == null) {
+      return false;
+    }
+
+    for (String candidate : split(ifNoneMatch, ',')) {
+      String tag = removeStart(trim(candidate), WEAK_PREFIX);
+      if ("*".equals(tag) || etag.equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long dateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
+  }
+}
@@ -1,17 +1,22 @@
 package de.is24.infrastructure.gridfs.http.web.controller;
 
-import de.is24.infrastructure.gridfs.http.exception.BadRangeRequestException;
 import de.is24.infrastructure.gridfs.http.exception.GridFSFileNotFoundException;
+import de.is24.infrastructure.gridfs.http.governor.DeliveryGovernor;
+import de.is24.infrastructure.gridfs.http.governor.DeliveryPermit;
 import de.is24.infrastructure.gridfs.http.gridfs.BoundedGridFsResource;
+import de.is24.infrastructure.gridfs.http.gridfs.MultipartByteRangesResource;
 import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
 import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
+import de.is24.infrastructure.gridfs.http.web.AsyncFileDelivery;
+import de.is24.infrastructure.gridfs.http.web.controller.ByteRanges.ByteRange;
 import de.is24.util.monitoring.InApplicationMonitor;
 import de.is24.util.monitoring.spring.TimeMeasurement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
@@ -19,20 +24,29 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.ResponseStatus;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import static java.lang.Long.parseLong;
-import static java.lang.String.format;
-import static java.util.regex.Pattern.compile;
-import static org.apache.commons.lang.StringUtils.isEmpty;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import static de.is24.infrastructure.gridfs.http.cache.RepoMetadataCache.isChecksumNamed;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.ARCH_KEY_REPO_DATA;
+import static de.is24.infrastructure.gridfs.http.web.controller.ConditionalRequests.etagOf;
+import static de.is24.infrastructure.gridfs.http.web.controller.ConditionalRequests.isNotModified;
+import static de.is24.infrastructure.gridfs.http.web.controller.ConditionalRequests.isRangeApplicable;
+import static de.is24.infrastructure.gridfs.http.web.controller.ConditionalRequests.lastModifiedOf;
 import static org.apache.commons.lang.StringUtils.isNotBlank;
+import static org.springframework.http.HttpStatus.NOT_MODIFIED;
 import static org.springframework.http.HttpStatus.NO_CONTENT;
 import static org.springframework.http.HttpStatus.OK;
 import static org.springframework.http.HttpStatus.PARTIAL_CONTENT;
+import static org.springframework.http.HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 import static org.springframework.http.MediaType.valueOf;
 import static org.springframework.web.bind.annotation.RequestMethod.DELETE;
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
+import static org.springframework.web.bind.annotation.RequestMethod.HEAD;
 
 
 @Controller
@@ -42,12 +56,18 @@ public class FileController {
   private static final Logger LOGGER = LoggerFactory.getLogger(FileController.class);
 
   public static final String PREFIX = "/repo";
-  public static final String RANGE_PATTERN_REGEXP = "^bytes=(0|[1-9]\\d*)-((0|[1-9]\\d*)?)$";
-  private static final Pattern RANGE_PATTERN = compile(RANGE_PATTERN_REGEXP);
   public static final String RPM_EXTENSION = ".rpm";
 
+  private static final String ACCEPT_RANGES = "Accept-Ranges";
+  private static final String CONTENT_RANGE = "Content-Range";
+  private static final String RETRY_AFTER = "Retry-After";
+  private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
   private final FileStorageService fileStorageService;
   private final StorageService storageService;
+  private long repoMdMaxAgeInSeconds = 60;
+  private AsyncFileDelivery asyncFileDelivery;
+  private DeliveryGovernor deliveryGovernor;
 
   // just for cglib
   protected FileController() {
@@ -61,54 +81,146 @@ public class FileController {
     this.fileStorageService = fileStorageService;
   }
 
-  @RequestMapping(value = "/{repo}/{arch}/{filename:.+}", method = GET)
-  public ResponseEntity<InputStreamResource> deliverFile(@PathVariable("repo") String repo,
-                                                         @PathVariable("arch") String arch,
-                                                         @PathVariable("filename") String filename) throws IOException {
-    BoundedGridFsResource resource = fileStorageService.getResource(new FileDescriptor(repo, arch, filename));
-    HttpHeaders httpHeaders = new HttpHeaders();
-    httpHeaders.setContentLength(resource.contentLength());
-    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".get.rpm");
-    return new ResponseEntity<>(resource, withContentType(httpHeaders, resource), OK);
+  @RequestMapping(value = "/{repo}/{arch}/{filename:.+}", method = { GET, HEAD })
+  public ResponseEntity<Resource> deliverFile(@PathVariable("repo") String repo,
+                                              @PathVariable("arch") String arch,
+                                              @PathVariable("filename") String filename,
+                                              HttpServletRequest request,
+                                              HttpServletResponse response) throws IOException {
+    FileDescriptor descriptor = new FileDescriptor(repo, arch, filename);
+    BoundedGridFsResource resource = fileStorageService.getResource(descriptor);
+    return delivered(deliverWholeFile(resource, request), descriptor, request, response);
   }
 
   @RequestMapping(value = "/{repo}/{arch}/{filename:.+}", method = GET, headers = { "Range" })
-  public ResponseEntity<InputStreamResource> deliverRangeOfFile(@PathVariable("repo") String repo,
-                                                                @PathVariable("arch") String arch,
-                                                                @PathVariable("filename") String filename,
-                                                                @RequestHeader("Range") String rangeHeader)
-                                                         throws IOException {
+  public ResponseEntity<Resource> deliverRangeOfFile(@PathVariable("repo") String repo,
+                                                     @PathVariable("arch") String arch,
+                                                     @PathVariable("filename") String filename,
+                                                     @RequestHeader("Range") String rangeHeader,
+                                                     HttpServletRequest request,
+                                                     HttpServletResponse response) throws IOException {
     FileDescriptor descriptor = new FileDescriptor(repo, arch, filename);
-    Matcher matcher = getMatcher(rangeHeader);
-    String intervalStartString = matcher.group(1);
-    String intervalEndString = matcher.group(2);
-
-    long intervalStart = parseRangeLong(intervalStartString, rangeHeader);
-
-    BoundedGridFsResource resource;
-    if (isEmpty(intervalEndString)) {
-      resource = fileStorageService.getResource(descriptor, intervalStart);
-    } else {
-      long intervalEnd = parseRangeLong(intervalEndString, rangeHeader);
-      if (intervalEnd < intervalStart) {
-        throw new BadRangeRequestException(
-          format("Range end is before range start for path [%s]", descriptor.getPath()),
-          rangeHeader);
+    BoundedGridFsResource wholeFile = fileStorageService.getResource(descriptor);
+    if (isNotModified(request, wholeFile) || !isRangeApplicable(request, wholeFile)) {
+      return delivered(deliverWholeFile(wholeFile, request), descriptor, request, response);
+    }
+
+    List<ByteRange> ranges = ByteRanges.parse(rangeHeader, wholeFile.getFileLength());
+    if (ranges.isEmpty()) {
+      InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".get.unsatisfiable-range");
+      HttpHeaders httpHeaders = new HttpHeaders();
+      httpHeaders.set(CONTENT_RANGE, "bytes */" + wholeFile.getFileLength());
+      return new ResponseEntity<>(httpHeaders, REQUESTED_RANGE_NOT_SATISFIABLE);
+    }
+
+    HttpHeaders httpHeaders = cachingHeaders(wholeFile);
+    httpHeaders.set(ACCEPT_RANGES, "bytes");
+    if (ranges.size() == 1) {
+      ByteRange range = ranges.get(0);
+      BoundedGridFsResource resource = wholeFile.range(range.getFirst(), range.getLength());
+      InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".get.rpm-range");
+      httpHeaders.set(CONTENT_RANGE,
+        "bytes " + range.getFirst() + "-" + range.getLast() + "/" + wholeFile.getFileLength());
+      httpHeaders.setContentLength(range.getLength());
+      return delivered(new ResponseEntity<>(resource, withContentType(httpHeaders, resource), PARTIAL_CONTENT),
+        descriptor, request, response);
+    }
+
+    List<BoundedGridFsResource> parts = new ArrayList<>();
+    for (ByteRange range : ranges) {
+      parts.add(wholeFile.range(range.getFirst(), range.getLength()));
+    }
+
+    MultipartByteRangesResource resource = new MultipartByteRangesResource(parts, newBoundary());
+    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".get.rpm-multirange");
+    httpHeaders.setContentType(valueOf(resource.getContentType()));
+    httpHeaders.setContentLength(resource.contentLength());
+    return delivered(new ResponseEntity<>(resource, httpHeaders, PARTIAL_CONTENT), descriptor, request, response);
+  }
+
+  @Value("${delivery.repomd.max.age.seconds:60}")
+  public void setRepoMdMaxAgeInSeconds(long repoMdMaxAgeInSeconds) {
+    this.repoMdMaxAgeInSeconds = repoMdMaxAgeInSeconds;
+  }
+
+  @Autowired(required = false)
+  public void setAsyncFileDelivery(AsyncFileDelivery asyncFileDelivery) {
+    this.asyncFileDelivery = asyncFileDelivery;
+  }
+
+  @Autowired(required = false)
+  public void setDeliveryGovernor(DeliveryGovernor deliveryGovernor) {
+    this.deliveryGovernor = deliveryGovernor;
+  }
+
+  private ResponseEntity<Resource> delivered(ResponseEntity<Resource> entity, FileDescriptor descriptor,
+                                             HttpServletRequest request, HttpServletResponse response)
+                                      throws IOException {
+    boolean limited = false;
+    if ((deliveryGovernor != null) && (entity.getBody() != null)) {
+      DeliveryPermit permit = deliveryGovernor.acquire(descriptor, request);
+      if (!permit.isGranted()) {
+        InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".get.throttled");
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.set(RETRY_AFTER, Long.toString(permit.getRetryAfterSeconds()));
+        return new ResponseEntity<>(httpHeaders, SERVICE_UNAVAILABLE);
       }
-      resource = fileStorageService.getResource(descriptor, intervalStart, intervalEnd - intervalStart + 1);
+
+      request.setAttribute(DeliveryPermit.REQUEST_ATTRIBUTE, permit);
+      limited = permit.isLimited();
+      entity = new ResponseEntity<>(permit.throttled(entity.getBody()), entity.getHeaders(), entity.getStatusCode());
     }
 
-    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".get.rpm-range");
-    return new ResponseEntity<>(resource, withContentType(rangeHeaders(resource), resource),
-      PARTIAL_CONTENT);
+    // sendfile writes after the permit has been released, so limited downloads are written here
+    if (!limited && (entity.getBody() instanceof BoundedGridFsResource) &&
+        Sendfile.offer(request, (BoundedGridFsResource) entity.getBody())) {
+      InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".get.sendfile");
+      return new ResponseEntity<>(entity.getHeaders(), entity.getStatusCode());
+    }
+
+    if (asyncFileDelivery == null) {
+      return entity;
+    }
+    return asyncFileDelivery.deliver(entity, request, response);
   }
 
-  private long parseRangeLong(String value, String rangeHeader) {
-    try {
-      return parseLong(value);
-    } catch (NumberFormatException e) {
-      throw new BadRangeRequestException("Could not parse range element '" + value + "' to long.", rangeHeader);
+  private ResponseEntity<Resource> deliverWholeFile(BoundedGridFsResource resource, HttpServletRequest request)
+                                             throws IOException {
+    HttpHeaders httpHeaders = cachingHeaders(resource);
+    if (isNotModified(request, resource)) {
+      InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".get.not-modified");
+      return new ResponseEntity<>(httpHeaders, NOT_MODIFIED);
+    }
+
+    httpHeaders.setContentLength(resource.contentLength());
+    withContentType(httpHeaders, resource);
+    if (HEAD.name().equals(request.getMethod())) {
+      httpHeaders.set(ACCEPT_RANGES, "bytes");
+      InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".head.rpm");
+      return new ResponseEntity<>(httpHeaders, OK);
+    }
+
+    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".get.rpm");
+    return new ResponseEntity<>(resource, httpHeaders, OK);
+  }
+
+  private HttpHeaders cachingHeaders(BoundedGridFsResource resource) {
+    HttpHeaders headers = new HttpHeaders();
+    String etag = etagOf(resource);
+    if (etag != null) {
+      headers.setETag(etag);
+    }
+
+    long lastModified = lastModifiedOf(resource);
+    if (lastModified >= 0) {
+      headers.setLastModified(lastModified);
     }
+
+    String path = resource.getFilename();
+    if (path != null && path.contains("/" + ARCH_KEY_REPO_DATA + "/")) {
+      headers.setCacheControl(isChecksumNamed(path) ? IMMUTABLE_CACHE_CONTROL : ("max-age=" + repoMdMaxAgeInSeconds));
+    }
+    return headers;
   }
 
   private HttpHeaders withContentType(HttpHeaders httpHeaders, BoundedGridFsResource resource) {
@@ -118,12 +230,8 @@ public class FileController {
     return httpHeaders;
   }
 
-  private Matcher getMatcher(String rangeHeader) {
-    Matcher matcher = RANGE_PATTERN.matcher(rangeHeader);
-    if (!matcher.matches()) {
-      throw new BadRangeRequestException("Byte range header does not match " + RANGE_PATTERN_REGEXP, rangeHeader);
-    }
-    return matcher;
+  private static String newBoundary() {
+    return UUID.randomUUID().toString().replace("-", "");
   }
 
 
@@ -143,13 +251,4 @@ public class FileController {
     }
   }
 
-  private HttpHeaders rangeHeaders(BoundedGridFsResource resource) throws IOException {
-    HttpHeaders headers = new HttpHeaders();
-    headers.set("Accept-Ranges", "bytes");
-    headers.set("Content-Range",
-      "bytes 0-" + (resource.contentLength() - 1) + "/" + resource.getFileLength());
-    headers.setContentLength(resource.contentLength());
-    return headers;
-  }
-
 }
@@ -1,6 +1,7 @@
 package de.is24.infrastructure.gridfs.http.web.controller;
 
 import de.is24.infrastructure.gridfs.http.domain.RepoType;
+import de.is24.infrastructure.gridfs.http.domain.RepodataCompression;
 import de.is24.infrastructure.gridfs.http.exception.BadRequestException;
 import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
 import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
@@ -13,6 +14,7 @@ import org.springframework.web.bind.MissingServletRequestParameterException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RequestPart;
@@ -23,6 +25,10 @@ import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 import java.io.InputStream;
 
+import static de.is24.infrastructure.gridfs.http.gridfs.GridFsFileStorageService.CONTENT_TYPE_APPLICATION_X_RPM;
+import static de.is24.infrastructure.gridfs.http.web.controller.FileController.RPM_EXTENSION;
+import static org.apache.commons.lang.StringUtils.trimToNull;
+import static org.apache.commons.lang.math.NumberUtils.toLong;
 import static org.springframework.http.HttpStatus.CREATED;
 import static org.springframework.http.HttpStatus.NOT_ACCEPTABLE;
 import static org.springframework.http.HttpStatus.NO_CONTENT;
@@ -37,6 +43,9 @@ import static org.springframework.web.bind.annotation.RequestMethod.PUT;
 @RequestMapping("/repo")
 @TimeMeasurement
 public class RepositoryController {
+  public static final String CHECKSUM_SHA256_HEADER = "X-Checksum-Sha256";
+  private static final String CONTENT_LENGTH = "Content-Length";
+
   private final StorageService gridFs;
   private final RepoService repoService;
 
@@ -66,6 +75,23 @@ public class RepositoryController {
     uploadRpm(reponame, multipartFile.getInputStream());
   }
 
+  @RequestMapping(value = "/{reponame}", method = POST, consumes = CONTENT_TYPE_APPLICATION_X_RPM)
+  @ResponseStatus(CREATED)
+  public void uploadRawRpm(@PathVariable("reponame") String reponame,
+                           @RequestHeader(value = CHECKSUM_SHA256_HEADER, required = false) String sha256Hash,
+                           HttpServletRequest request) throws IOException {
+    uploadRawRpm(reponame, null, sha256Hash, request);
+  }
+
+  @RequestMapping(value = "/{reponame}/{arch}/{filename}" + RPM_EXTENSION, method = PUT)
+  @ResponseStatus(CREATED)
+  public void putRpm(@PathVariable("reponame") String reponame, @PathVariable("arch") String arch,
+                     @PathVariable("filename") String filename,
+                     @RequestHeader(value = CHECKSUM_SHA256_HEADER, required = false) String sha256Hash,
+                     HttpServletRequest request) throws IOException {
+    uploadRawRpm(reponame, reponame + "/" + arch + "/" + filename + RPM_EXTENSION, sha256Hash, request);
+  }
+
   @RequestMapping(value = "/{reponame:[a-zA-Z0-9-_.]*}", method = DELETE)
   @ResponseStatus(NO_CONTENT)
   public void deleteRepository(@PathVariable("reponame") String reponame) throws IOException {
@@ -94,6 +120,13 @@ public class RepositoryController {
     repoService.setMaxDaysRpms(reponame, maxDaysRpms);
   }
 
+  @RequestMapping(value = "/{reponame}/repodataCompression", method = PUT)
+  @ResponseStatus(NO_CONTENT)
+  public void updateRepodataCompression(@PathVariable("reponame") String reponame, @RequestBody(required = false)
+                                        RepodataCompression repodataCompression) {
+    repoService.setRepodataCompression(reponame, repodataCompression);
+  }
+
   @RequestMapping(method = POST)
   @ResponseStatus(CREATED)
   public void createStaticRepository(@RequestParam("name") String reponame) {
@@ -119,4 +152,19 @@ public class RepositoryController {
     InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".upload");
   }
 
+  /**
+   * Streams the request body directly into the storage, without multipart spooling or form decoding.
+   */
+  private void uploadRawRpm(String reponame, String expectedPath, String sha256Hash, HttpServletRequest request)
+                     throws IOException {
+    long contentLength = toLong(request.getHeader(CONTENT_LENGTH), -1);
+    try {
+      gridFs.storeRpm(reponame, request.getInputStream(), expectedPath, contentLength, trimToNull(sha256Hash));
+    } catch (InvalidRpmHeaderException e) {
+      throw new BadRequestException("Could not read RPM header.", e);
+    }
+
+    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".upload.raw");
+  }
+
 }
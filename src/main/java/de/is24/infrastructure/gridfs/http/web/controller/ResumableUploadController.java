@@ -0,0 +1,137 @@
+package de.is24.infrastructure.gridfs.http.web.controller;
+
+import de.is24.infrastructure.gridfs.http.exception.BadRequestException;
+import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
+import de.is24.infrastructure.gridfs.http.gridfs.ResumableUploadService;
+import de.is24.infrastructure.gridfs.http.gridfs.UploadSession;
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import de.is24.util.monitoring.InApplicationMonitor;
+import de.is24.util.monitoring.spring.TimeMeasurement;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.springframework.http.HttpStatus.CREATED;
+import static org.springframework.http.HttpStatus.NO_CONTENT;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.web.bind.annotation.RequestMethod.DELETE;
+import static org.springframework.web.bind.annotation.RequestMethod.HEAD;
+import static org.springframework.web.bind.annotation.RequestMethod.PATCH;
+import static org.springframework.web.bind.annotation.RequestMethod.POST;
+
+
+/**
+ * Uploads large RPMs in several requests. A session is created with POST, the content is appended with PATCH
+ * requests carrying a <code>Content-Range</code> header, the committed offset is queried with HEAD and the upload
+ * is finished with a POST to the session. After a broken PATCH the client resumes at the committed offset.
+ */
+@Controller
+@RequestMapping("/repo")
+@TimeMeasurement
+public class ResumableUploadController {
+  private static final Logger LOG = LoggerFactory.getLogger(ResumableUploadController.class);
+  public static final String UPLOAD_OFFSET_HEADER = "Upload-Offset";
+  public static final String UPLOAD_LENGTH_HEADER = "Upload-Length";
+  public static final String CHECKSUM_SHA256_HEADER = "X-Checksum-Sha256";
+  private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+  private final ResumableUploadService resumableUploadService;
+
+  /* for cglib */
+  protected ResumableUploadController() {
+    resumableUploadService = null;
+  }
+
+  @Autowired
+  public ResumableUploadController(ResumableUploadService resumableUploadService) {
+    this.resumableUploadService = resumableUploadService;
+  }
+
+  @RequestMapping(value = "/{reponame}/uploads", method = POST)
+  @ResponseStatus(CREATED)
+  public void createSession(@PathVariable("reponame") String reponame,
+                            @RequestHeader(value = UPLOAD_LENGTH_HEADER, required = false) Long length,
+                            HttpServletResponse response) {
+    UploadSession session = resumableUploadService.createSession(reponame, (length == null) ? -1 : length);
+
+    response.addHeader("Location", sessionLocation(reponame, session));
+    response.addHeader(UPLOAD_OFFSET_HEADER, "0");
+    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".upload.session");
+  }
+
+  @RequestMapping(value = "/{reponame}/uploads/{id}", method = HEAD)
+  @ResponseStatus(OK)
+  public void getOffset(@PathVariable("reponame") String reponame, @PathVariable("id") String id,
+                        HttpServletResponse response) {
+    UploadSession session = resumableUploadService.getSession(reponame, id);
+
+    response.addHeader(UPLOAD_OFFSET_HEADER, Long.toString(session.getOffset()));
+    if (session.getLength() >= 0) {
+      response.addHeader(UPLOAD_LENGTH_HEADER, Long.toString(session.getLength()));
+    }
+  }
+
+  @RequestMapping(value = "/{reponame}/uploads/{id}", method = PATCH)
+  @ResponseStatus(NO_CONTENT)
+  public void append(@PathVariable("reponame") String reponame, @PathVariable("id") String id,
+                     @RequestHeader(value = "Content-Range", required = false) String contentRange,
+                     HttpServletRequest request, HttpServletResponse response) throws IOException {
+    Matcher matcher = (contentRange == null) ? null : CONTENT_RANGE_PATTERN.matcher(contentRange);
+    if ((matcher == null) || !matcher.matches()) {
+      throw new BadRequestException("Content-Range 'bytes <start>-<end>/<length>' is required, but was: " +
+        contentRange);
+    }
+
+    long start;
+    long end;
+    long length;
+    try {
+      start = Long.parseLong(matcher.group(1));
+      end = Long.parseLong(matcher.group(2));
+      length = "*".equals(matcher.group(3)) ? -1 : Long.parseLong(matcher.group(3));
+    } catch (NumberFormatException e) {
+      throw new BadRequestException("Invalid Content-Range: " + contentRange);
+    }
+    if ((end < start) || (end == Long.MAX_VALUE) || ((length >= 0) && (end >= length))) {
+      throw new BadRequestException("Invalid Content-Range: " + contentRange);
+    }
+
+    long offset = resumableUploadService.append(reponame, id, start, length,
+      new BoundedInputStream(request.getInputStream(), end - start + 1));
+    response.addHeader(UPLOAD_OFFSET_HEADER, Long.toString(offset));
+  }
+
+  @RequestMapping(value = "/{reponame}/uploads/{id}", method = POST)
+  @ResponseStatus(CREATED)
+  public void finish(@PathVariable("reponame") String reponame, @PathVariable("id") String id,
+                     @RequestHeader(value = CHECKSUM_SHA256_HEADER, required = false) String sha256Hash,
+                     HttpServletResponse response) throws InvalidRpmHeaderException, IOException {
+    FileDescriptor descriptor = resumableUploadService.finish(reponame, id, sha256Hash);
+
+    LOG.info("Finished resumable upload {} to {}", id, descriptor.getPath());
+    response.addHeader("Location", FileController.PREFIX + "/" + descriptor.getPath());
+    InApplicationMonitor.getInstance().incrementCounter(getClass().getName() + ".upload.finished");
+  }
+
+  @RequestMapping(value = "/{reponame}/uploads/{id}", method = DELETE)
+  @ResponseStatus(NO_CONTENT)
+  public void abort(@PathVariable("reponame") String reponame, @PathVariable("id") String id) {
+    resumableUploadService.abort(reponame, id);
+  }
+
+  private static String sessionLocation(String reponame, UploadSession session) {
+    return FileController.PREFIX + "/" + reponame + "/uploads/" + session.getId();
+  }
+}
@@ -0,0 +1,44 @@
+package de.is24.infrastructure.gridfs.http.web.controller;
+
+import de.is24.infrastructure.gridfs.http.gridfs.BoundedGridFsResource;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Hands the delivery of files cached on the local disk to the sendfile support of the Tomcat connector. The
+ * connector then writes the file after the request has been handled, straight from the page cache to the socket,
+ * without copying it through a delivery thread. The file is pinned in the cache, because the connector opens it by
+ * name only after the request, when an eviction in between would otherwise have deleted it.
+ */
+final class Sendfile {
+  static final String SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+  static final String FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+  static final String START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+  static final String END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+  private Sendfile() {
+  }
+
+  /**
+   * @return true, if the connector will write the content of the resource, so that the response must not
+   * have a body; false, if the resource has to be written by the caller.
+   */
+  static boolean offer(HttpServletRequest request, BoundedGridFsResource resource) throws IOException {
+    if (!Boolean.TRUE.equals(request.getAttribute(SUPPORT_ATTRIBUTE))) {
+      return false;
+    }
+
+    File localFile = resource.pinLocalFile();
+    if (localFile == null) {
+      return false;
+    }
+
+    request.setAttribute(FILENAME_ATTRIBUTE, localFile.getCanonicalPath());
+    request.setAttribute(START_ATTRIBUTE, resource.getStartPos());
+    request.setAttribute(END_ATTRIBUTE, resource.getStartPos() + resource.contentLength());
+    return true;
+  }
+}
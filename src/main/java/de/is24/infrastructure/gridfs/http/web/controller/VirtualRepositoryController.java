@@ -5,7 +5,7 @@ import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
 import de.is24.infrastructure.gridfs.http.repos.RepoService;
 import de.is24.util.monitoring.spring.TimeMeasurement;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -16,6 +16,9 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -25,6 +28,7 @@ import static org.springframework.http.HttpStatus.CREATED;
 import static org.springframework.http.HttpStatus.NO_CONTENT;
 import static org.springframework.web.bind.annotation.RequestMethod.DELETE;
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
+import static org.springframework.web.bind.annotation.RequestMethod.HEAD;
 import static org.springframework.web.bind.annotation.RequestMethod.POST;
 
 
@@ -62,37 +66,42 @@ public class VirtualRepositoryController {
     repoService.deleteVirtual(reponame);
   }
 
-  @RequestMapping(value = "/{repo}/{arch}/{filename:.+}", method = GET)
-  public ResponseEntity<InputStreamResource> deliverFile(@PathVariable("repo") String repo,
-                                                         @PathVariable("arch") String arch,
-                                                         @PathVariable("filename") String filename) throws IOException {
-    return deliverFileInternal(repo, arch, filename, null);
+  @RequestMapping(value = "/{repo}/{arch}/{filename:.+}", method = { GET, HEAD })
+  public ResponseEntity<Resource> deliverFile(@PathVariable("repo") String repo,
+                                              @PathVariable("arch") String arch,
+                                              @PathVariable("filename") String filename,
+                                              HttpServletRequest request,
+                                              HttpServletResponse response) throws IOException {
+    return deliverFileInternal(repo, arch, filename, null, request, response);
   }
 
   @RequestMapping(value = "/{repo}/{arch}/{filename:.+}", method = GET, headers = { "Range" })
-  public ResponseEntity<InputStreamResource> deliverRangeOfFile(@PathVariable("repo") String repo,
-                                                                @PathVariable("arch") String arch,
-                                                                @PathVariable("filename") String filename,
-                                                                @RequestHeader("Range") String rangeHeader)
-                                                         throws IOException {
-    return deliverFileInternal(repo, arch, filename, rangeHeader);
+  public ResponseEntity<Resource> deliverRangeOfFile(@PathVariable("repo") String repo,
+                                                     @PathVariable("arch") String arch,
+                                                     @PathVariable("filename") String filename,
+                                                     @RequestHeader("Range") String rangeHeader,
+                                                     HttpServletRequest request,
+                                                     HttpServletResponse response) throws IOException {
+    return deliverFileInternal(repo, arch, filename, rangeHeader, request, response);
   }
 
-  private ResponseEntity<InputStreamResource> deliverFileInternal(String repo, String arch, String filename,
-                                                                  String rangeHeader) throws IOException {
+  private ResponseEntity<Resource> deliverFileInternal(String repo, String arch, String filename,
+                                                       String rangeHeader, HttpServletRequest request,
+                                                       HttpServletResponse response) throws IOException {
     RepoEntry entry = repoService.getRepo(repo, VIRTUAL);
     if (entry.isExternal()) {
       return createRedirect(getExternalUri(entry.getTarget(), arch, filename));
     }
 
     if (rangeHeader != null) {
-      return fileController.deliverRangeOfFile(entry.getTarget(), arch, filename, rangeHeader);
+      return fileController.deliverRangeOfFile(entry.getTarget(), arch, filename, rangeHeader, request,
+        response);
     }
 
-    return fileController.deliverFile(entry.getTarget(), arch, filename);
+    return fileController.deliverFile(entry.getTarget(), arch, filename, request, response);
   }
 
-  private ResponseEntity<InputStreamResource> createRedirect(URI uri) {
+  private ResponseEntity<Resource> createRedirect(URI uri) {
     HttpHeaders headers = new HttpHeaders();
     headers.setLocation(uri);
     return new ResponseEntity<>(headers, HttpStatus.valueOf(302));
@@ -1,5 +1,6 @@
 package de.is24.infrastructure.gridfs.http.web.exception;
 
+import de.is24.infrastructure.gridfs.http.exception.IngestRejectedException;
 import org.springframework.core.Ordered;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.ResponseStatus;
@@ -8,6 +9,7 @@ import org.springframework.web.servlet.mvc.annotation.ResponseStatusExceptionRes
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 
 public class MessageAwareResponseStatusExceptionResolver extends ResponseStatusExceptionResolver {
 
@@ -16,6 +18,22 @@ public class MessageAwareResponseStatusExceptionResolver extends ResponseStatusE
     return Ordered.HIGHEST_PRECEDENCE;
   }
 
+  @Override
+  protected ModelAndView doResolveException(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                            Exception ex) {
+    if (ex instanceof IngestRejectedException) {
+      IngestRejectedException rejected = (IngestRejectedException) ex;
+      try {
+        response.setHeader("Retry-After", Long.toString(rejected.getRetryAfterSeconds()));
+        response.sendError(rejected.getStatus().value(), ex.getMessage());
+        return new ModelAndView();
+      } catch (IOException e) {
+        logger.warn("Handling of [" + ex.getClass().getName() + "] resulted in Exception", e);
+      }
+    }
+    return super.doResolveException(request, response, handler, ex);
+  }
+
   @Override
   protected ModelAndView resolveResponseStatus(ResponseStatus responseStatus, HttpServletRequest request,
                                                HttpServletResponse response, Object handler, Exception ex) throws Exception {
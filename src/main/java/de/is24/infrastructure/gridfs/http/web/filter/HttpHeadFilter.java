@@ -15,18 +15,30 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.regex.Pattern;
+
+import static java.util.Arrays.stream;
 
 /**
  * Code from http://axelfontaine.com/blog/http-head.html
+ *
+ * Requests to paths matching one of the native head patterns are passed through, because their controllers
+ * answer HEAD themselves without rendering the body.
  */
 public class HttpHeadFilter implements Filter {
+  private final Pattern[] nativeHeadPatterns;
+
+  public HttpHeadFilter(String... nativeHeadPatterns) {
+    this.nativeHeadPatterns = stream(nativeHeadPatterns).map(Pattern::compile).toArray(Pattern[]::new);
+  }
+
   public void init(FilterConfig filterConfig) throws ServletException {
   }
 
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
     HttpServletRequest httpServletRequest = (HttpServletRequest) request;
 
-    if (isHttpHead(httpServletRequest)) {
+    if (isHttpHead(httpServletRequest) && !isNativeHead(httpServletRequest)) {
       HttpServletResponse httpServletResponse = (HttpServletResponse) response;
       NoBodyResponseWrapper noBodyResponseWrapper = new NoBodyResponseWrapper(httpServletResponse);
 
@@ -44,6 +56,11 @@ public class HttpHeadFilter implements Filter {
     return "HEAD".equals(request.getMethod());
   }
 
+  private boolean isNativeHead(HttpServletRequest request) {
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    return stream(nativeHeadPatterns).anyMatch(pattern -> pattern.matcher(path).matches());
+  }
+
   private class ForceGetRequestWrapper extends HttpServletRequestWrapper {
     public ForceGetRequestWrapper(HttpServletRequest request) {
       super(request);
@@ -0,0 +1,201 @@
+package de.is24.infrastructure.gridfs.http.cache;
+
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class LocalDiskCacheTest {
+  private static final int FILE_SIZE = 400 * 1024;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File cacheDir;
+  private LocalDiskCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheDir = folder.newFolder("cache");
+    cache = new LocalDiskCache(cacheDir, 1);
+  }
+
+  @Test
+  public void isInactiveWithoutCacheDir() throws Exception {
+    FileStorageItem storageItem = givenStorageItem(content(FILE_SIZE, 1));
+
+    assertThat(new LocalDiskCache(null, 1).cached(storageItem), is(sameInstance(storageItem)));
+  }
+
+  @Test
+  public void deliversFromDiskAfterCompleteRead() throws Exception {
+    byte[] content = content(FILE_SIZE, 1);
+    FileStorageItem storageItem = givenStorageItem(content);
+
+    readFully(cache.cached(storageItem));
+
+    FileStorageItem cachedItem = cache.cached(storageItem);
+    assertThat(cachedItem, is(instanceOf(CachedFileStorageItem.class)));
+    assertThat(readFully(cachedItem), is(content));
+    assertThat(cache.getHits(), is(1L));
+    assertThat(cache.getMisses(), is(1L));
+  }
+
+  @Test
+  public void deliversRangeFromDisk() throws Exception {
+    byte[] content = content(FILE_SIZE, 1);
+    FileStorageItem storageItem = givenStorageItem(content);
+    readFully(cache.cached(storageItem));
+
+    try(FileChannelInputStream inputStream = (FileChannelInputStream) cache.cached(storageItem).getInputStream(1000)) {
+      assertThat(toByteArray(inputStream.limit(500)), is(Arrays.copyOfRange(content, 1000, 1500)));
+    }
+  }
+
+  @Test
+  public void doesNotCachePartialReads() throws Exception {
+    FileStorageItem storageItem = givenStorageItem(content(FILE_SIZE, 1));
+
+    try(InputStream inputStream = cache.cached(storageItem).getInputStream()) {
+      inputStream.read(new byte[100]);
+    }
+
+    assertThat(cache.cached(storageItem), is(not(instanceOf(CachedFileStorageItem.class))));
+    assertThat(cache.getNumberOfEntries(), is(0));
+    assertThat(cacheDir.list().length, is(0));
+  }
+
+  @Test
+  public void doesNotCacheContentWithWrongChecksum() throws Exception {
+    FileStorageItem storageItem = givenStorageItem(content(FILE_SIZE, 1));
+    when(storageItem.getChecksumSha256()).thenReturn(sha256Hex(content(FILE_SIZE, 2)));
+
+    readFully(cache.cached(storageItem));
+
+    assertThat(cache.cached(storageItem), is(not(instanceOf(CachedFileStorageItem.class))));
+    assertThat(cache.getSizeInBytes(), is(0L));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedFiles() throws Exception {
+    FileStorageItem first = givenStorageItem(content(FILE_SIZE, 1));
+    FileStorageItem second = givenStorageItem(content(FILE_SIZE, 2));
+    FileStorageItem third = givenStorageItem(content(FILE_SIZE, 3));
+
+    readFully(cache.cached(first));
+    readFully(cache.cached(second));
+    cache.cached(first);
+    readFully(cache.cached(third));
+
+    assertThat(cache.getEvictions(), is(1L));
+    assertThat(cache.cached(first), is(instanceOf(CachedFileStorageItem.class)));
+    assertThat(cache.cached(second), is(not(instanceOf(CachedFileStorageItem.class))));
+    assertThat(cache.cached(third), is(instanceOf(CachedFileStorageItem.class)));
+  }
+
+  @Test
+  public void restoresEntriesFromCacheDir() throws Exception {
+    byte[] content = content(FILE_SIZE, 1);
+    FileStorageItem storageItem = givenStorageItem(content);
+    readFully(cache.cached(storageItem));
+
+    LocalDiskCache restartedCache = new LocalDiskCache(cacheDir, 1);
+
+    assertThat(restartedCache.getSizeInBytes(), is((long) FILE_SIZE));
+    assertThat(readFully(restartedCache.cached(storageItem)), is(content));
+  }
+
+  @Test
+  public void keepsEvictedFileWhilePinned() throws Exception {
+    FileStorageItem first = givenStorageItem(content(FILE_SIZE, 1));
+    FileStorageItem second = givenStorageItem(content(FILE_SIZE, 2));
+    FileStorageItem third = givenStorageItem(content(FILE_SIZE, 3));
+    readFully(cache.cached(first));
+    readFully(cache.cached(second));
+
+    assertThat(cache.pin(first.getChecksumSha256()), is(true));
+    readFully(cache.cached(third));
+
+    assertThat(cacheFileOf(first).isFile(), is(true));
+    assertThat(cacheFileOf(second).isFile(), is(false));
+    assertThat(cache.getSizeInBytes(), is(2L * FILE_SIZE));
+    assertThat(cache.pin(first.getChecksumSha256()), is(false));
+  }
+
+  @Test
+  public void deletesEvictedFileOncePinHasExpired() throws Exception {
+    cache = new LocalDiskCache(cacheDir, 1, 200);
+    FileStorageItem first = givenStorageItem(content(FILE_SIZE, 1));
+    readFully(cache.cached(first));
+    readFully(cache.cached(givenStorageItem(content(FILE_SIZE, 2))));
+    cache.pin(first.getChecksumSha256());
+    readFully(cache.cached(givenStorageItem(content(FILE_SIZE, 3))));
+    Thread.sleep(300);
+
+    readFully(cache.cached(givenStorageItem(content(FILE_SIZE, 4))));
+
+    assertThat(cacheFileOf(first).isFile(), is(false));
+    assertThat(cache.getSizeInBytes(), is(2L * FILE_SIZE));
+  }
+
+  @Test
+  public void reservesSizeOfFillInProgress() throws Exception {
+    FileStorageItem storageItem = givenStorageItem(content(FILE_SIZE, 1));
+
+    try(InputStream inputStream = cache.cached(storageItem).getInputStream()) {
+      inputStream.read(new byte[100]);
+      assertThat(cache.getSizeInBytes(), is((long) FILE_SIZE));
+    }
+
+    assertThat(cache.getSizeInBytes(), is(0L));
+  }
+
+  private File cacheFileOf(FileStorageItem storageItem) {
+    String sha256 = storageItem.getChecksumSha256();
+    return new File(new File(cacheDir, sha256.substring(0, 2)), sha256);
+  }
+
+  private static byte[] readFully(FileStorageItem storageItem) throws Exception {
+    try(InputStream inputStream = storageItem.getInputStream()) {
+      return toByteArray(inputStream);
+    }
+  }
+
+  private static FileStorageItem givenStorageItem(byte[] content) {
+    FileStorageItem storageItem = mock(FileStorageItem.class);
+    when(storageItem.getChecksumSha256()).thenReturn(sha256Hex(content));
+    when(storageItem.getSize()).thenReturn((long) content.length);
+    when(storageItem.getInputStream(anyLong())).thenAnswer(invocation -> {
+      ByteArrayInputStream inputStream = new ByteArrayInputStream(content);
+      inputStream.skip((Long) invocation.getArguments()[0]);
+      return inputStream;
+    });
+    return storageItem;
+  }
+
+  private static byte[] content(int size, int seed) {
+    byte[] content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) (i * 31 + seed);
+    }
+    return content;
+  }
+}
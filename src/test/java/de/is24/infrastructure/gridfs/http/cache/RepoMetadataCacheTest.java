@@ -0,0 +1,193 @@
+package de.is24.infrastructure.gridfs.http.cache;
+
+import de.is24.infrastructure.gridfs.http.exception.GridFSFileNotFoundException;
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.function.Supplier;
+
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class RepoMetadataCacheTest {
+  private static final String REPOMD_XML = "repo/repodata/repomd.xml";
+  private static final byte[] CONTENT = "<repomd/>".getBytes();
+  private static final String PRIMARY_DB = "repo/repodata/primary-" + sha256Hex(CONTENT) + ".sqlite.bz2";
+
+  private final RepoMetadataCache cache = new RepoMetadataCache(1, 60, 600);
+
+  @Test
+  public void deliversPublishedFileWithoutLoading() throws Exception {
+    cache.put(givenStorageItem(REPOMD_XML, CONTENT), CONTENT);
+    Supplier<FileStorageItem> loader = givenLoader(givenStorageItem(REPOMD_XML, CONTENT));
+
+    FileStorageItem cachedItem = cache.get(new FileDescriptor(REPOMD_XML), loader);
+
+    verify(loader, never()).get();
+    assertThat(cachedItem, is(instanceOf(InMemoryFileStorageItem.class)));
+    assertThat(read(cachedItem, 0), is(CONTENT));
+    assertThat(read(cachedItem, 1), is("repomd/>".getBytes()));
+  }
+
+  @Test
+  public void loadsFileOnFirstDelivery() throws Exception {
+    FileStorageItem storageItem = givenStorageItem(PRIMARY_DB, CONTENT);
+
+    read(cache.get(new FileDescriptor(PRIMARY_DB), givenLoader(storageItem)), 0);
+    FileStorageItem cachedItem = cache.get(new FileDescriptor(PRIMARY_DB), givenLoader(storageItem));
+
+    assertThat(cachedItem, is(instanceOf(InMemoryFileStorageItem.class)));
+    assertThat(read(cachedItem, 0), is(CONTENT));
+    assertThat(cache.getHits(), is(1L));
+    assertThat(cache.getMisses(), is(1L));
+    assertThat(cache.getSizeInBytes(), is((long) CONTENT.length));
+  }
+
+  @Test
+  public void answersHeadWithoutLoadingContent() throws Exception {
+    FileStorageItem storageItem = givenStorageItem(PRIMARY_DB, CONTENT);
+
+    FileStorageItem deliveredItem = cache.get(new FileDescriptor(PRIMARY_DB), givenLoader(storageItem));
+
+    assertThat(deliveredItem.getSize(), is((long) CONTENT.length));
+    verify(storageItem, never()).getInputStream();
+    verify(storageItem, never()).getInputStream(anyLong());
+    assertThat(cache.getNumberOfEntries(), is(0));
+  }
+
+  @Test
+  public void doesNotCacheFilesMarkedAsDeleted() throws Exception {
+    FileStorageItem storageItem = givenStorageItem(PRIMARY_DB, CONTENT);
+    when(storageItem.isMarkedAsDeleted()).thenReturn(true);
+
+    assertThat(cache.get(new FileDescriptor(PRIMARY_DB), givenLoader(storageItem)), is(sameInstance(storageItem)));
+    assertThat(cache.getNumberOfEntries(), is(0));
+  }
+
+  @Test
+  public void revalidatesRepoMdAfterTtl() throws Exception {
+    RepoMetadataCache cacheWithoutTtl = new RepoMetadataCache(1, 0, 600);
+    cacheWithoutTtl.put(givenStorageItem(REPOMD_XML, CONTENT), CONTENT);
+    cacheWithoutTtl.put(givenStorageItem(PRIMARY_DB, CONTENT), CONTENT);
+    Thread.sleep(5);
+
+    Supplier<FileStorageItem> primaryDbLoader = givenLoader(givenStorageItem(PRIMARY_DB, CONTENT));
+    cacheWithoutTtl.get(new FileDescriptor(PRIMARY_DB), primaryDbLoader);
+    verify(primaryDbLoader, never()).get();
+
+    byte[] newContent = "<repomd revision='2'/>".getBytes();
+    FileStorageItem newRepoMd = givenStorageItem(REPOMD_XML, newContent);
+    when(newRepoMd.getId()).thenReturn("new-id");
+    assertThat(read(cacheWithoutTtl.get(new FileDescriptor(REPOMD_XML), givenLoader(newRepoMd)), 0), is(newContent));
+  }
+
+  @Test
+  public void dropsChecksumNamedFileRemovedByOtherInstance() throws Exception {
+    RepoMetadataCache cacheWithoutTtl = new RepoMetadataCache(1, 60, 0);
+    cacheWithoutTtl.put(givenStorageItem(PRIMARY_DB, CONTENT), CONTENT);
+    Thread.sleep(5);
+
+    Supplier<FileStorageItem> loader = givenLoader(null);
+    when(loader.get()).thenThrow(new GridFSFileNotFoundException("Could not find file.", PRIMARY_DB));
+    try {
+      cacheWithoutTtl.get(new FileDescriptor(PRIMARY_DB), loader);
+      fail("expected " + GridFSFileNotFoundException.class.getSimpleName());
+    } catch (GridFSFileNotFoundException e) {
+      assertThat(cacheWithoutTtl.getNumberOfEntries(), is(0));
+      assertThat(cacheWithoutTtl.getSizeInBytes(), is(0L));
+    }
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedFiles() throws Exception {
+    byte[] content = new byte[400 * 1024];
+    cache.put(givenStorageItem("repo/repodata/a.xml", content), content);
+    cache.put(givenStorageItem("repo/repodata/b.xml", content), content);
+    cache.get(new FileDescriptor("repo/repodata/a.xml"), givenLoader(null));
+
+    cache.put(givenStorageItem("repo/repodata/c.xml", content), content);
+
+    assertThat(cache.getNumberOfEntries(), is(2));
+    assertThat(cache.getEvictions(), is(1L));
+    Supplier<FileStorageItem> loader = givenLoader(givenStorageItem("repo/repodata/a.xml", content));
+    cache.get(new FileDescriptor("repo/repodata/a.xml"), loader);
+    verify(loader, never()).get();
+  }
+
+  @Test
+  public void servesEvictedFileFromItsBuffer() throws Exception {
+    FileStorageItem storageItem = givenStorageItem(PRIMARY_DB, CONTENT);
+    FileStorageItem cachedItem = cache.put(storageItem, CONTENT);
+
+    try(InputStream inputStream = cachedItem.getInputStream(1)) {
+      cache.clear();
+      assertThat(toByteArray(inputStream), is("repomd/>".getBytes()));
+    }
+
+    assertThat(read(cachedItem, 0), is(CONTENT));
+    verify(storageItem, never()).getInputStream(anyLong());
+  }
+
+  @Test
+  public void invalidatesByFilenameRegex() throws Exception {
+    cache.put(givenStorageItem(REPOMD_XML, CONTENT), CONTENT);
+    cache.put(givenStorageItem(PRIMARY_DB, CONTENT), CONTENT);
+
+    cache.invalidateByFilenameRegex("repo/repodata/.*sqlite.bz2");
+
+    assertThat(cache.getNumberOfEntries(), is(1));
+    assertThat(cache.getSizeInBytes(), is((long) CONTENT.length));
+  }
+
+  @Test
+  public void skipsFilesLargerThanCache() throws Exception {
+    FileStorageItem storageItem = givenStorageItem(PRIMARY_DB, new byte[2 * 1024 * 1024]);
+
+    FileStorageItem deliveredItem = cache.get(new FileDescriptor(PRIMARY_DB), givenLoader(storageItem));
+    read(deliveredItem, 0);
+
+    assertThat(deliveredItem, is(not(instanceOf(InMemoryFileStorageItem.class))));
+    assertThat(cache.getNumberOfEntries(), is(0));
+  }
+
+  private static byte[] read(FileStorageItem storageItem, long startPos) throws Exception {
+    try(InputStream inputStream = storageItem.getInputStream(startPos)) {
+      return toByteArray(inputStream);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Supplier<FileStorageItem> givenLoader(FileStorageItem storageItem) {
+    Supplier<FileStorageItem> loader = mock(Supplier.class);
+    when(loader.get()).thenReturn(storageItem);
+    return loader;
+  }
+
+  private static FileStorageItem givenStorageItem(String path, byte[] content) {
+    FileStorageItem storageItem = mock(FileStorageItem.class);
+    when(storageItem.getId()).thenReturn(path);
+    when(storageItem.getFilename()).thenReturn(path);
+    when(storageItem.getChecksumSha256()).thenReturn(sha256Hex(content));
+    when(storageItem.getSize()).thenReturn((long) content.length);
+    when(storageItem.getUploadDate()).thenReturn(new Date());
+    when(storageItem.getInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(content));
+    when(storageItem.getInputStream(anyLong())).thenAnswer(invocation -> new ByteArrayInputStream(content));
+    return storageItem;
+  }
+}
@@ -0,0 +1,68 @@
+package de.is24.infrastructure.gridfs.http.domain;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+
+public class RepodataCompressionTest {
+  private static final byte[] CONTENT = givenContent();
+
+  @Test
+  public void decompressWhatWasCompressed() throws Exception {
+    for (RepodataCompression compression : RepodataCompression.values()) {
+      byte[] compressed = compress(compression, CONTENT);
+
+      assertThat(compression + " compressed size", compressed.length, lessThan(CONTENT.length));
+      assertThat(compression + " decompressed", decompress(compression, compressed), is(CONTENT));
+    }
+  }
+
+  @Test
+  public void decompressEmptyContent() throws Exception {
+    for (RepodataCompression compression : RepodataCompression.values()) {
+      assertThat(compression + " decompressed", decompress(compression, compress(compression, new byte[0])),
+        is(new byte[0]));
+    }
+  }
+
+  @Test
+  public void useExtensionsKnownToClients() throws Exception {
+    assertThat(RepodataCompression.BZIP2.getExtension(), is("bz2"));
+    assertThat(RepodataCompression.GZIP.getExtension(), is("gz"));
+    assertThat(RepodataCompression.XZ.getExtension(), is("xz"));
+    assertThat(RepodataCompression.ZSTD.getExtension(), is("zst"));
+  }
+
+  private static byte[] compress(RepodataCompression compression, byte[] content) throws Exception {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try(OutputStream outputStream = compression.compress(compressed)) {
+      outputStream.write(content);
+    }
+    return compressed.toByteArray();
+  }
+
+  private static byte[] decompress(RepodataCompression compression, byte[] compressed) throws Exception {
+    try(InputStream inputStream = compression.decompress(new ByteArrayInputStream(compressed))) {
+      return toByteArray(inputStream);
+    }
+  }
+
+  private static byte[] givenContent() {
+    byte[] content = new byte[256 * 1024];
+    Random random = new Random(content.length);
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) ('a' + random.nextInt(16));
+    }
+    return content;
+  }
+}
@@ -0,0 +1,119 @@
+package de.is24.infrastructure.gridfs.http.governor;
+
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import de.is24.infrastructure.gridfs.http.utils.HostName;
+import de.is24.infrastructure.gridfs.http.utils.HostnameResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+
+public class DeliveryGovernorTest {
+  private static final FileDescriptor RPM = new FileDescriptor("repo", "noarch", "a.rpm");
+  private static final FileDescriptor OTHER_REPO_RPM = new FileDescriptor("other-repo", "noarch", "a.rpm");
+  private static final FileDescriptor REPODATA = new FileDescriptor("repo", "repodata", "repomd.xml");
+
+  private final HostnameResolver hostnameResolver = mock(HostnameResolver.class);
+  private final MockHttpServletRequest request = new MockHttpServletRequest();
+
+  @Before
+  public void setUp() {
+    when(hostnameResolver.remoteHost(any(MockHttpServletRequest.class))).thenReturn(new HostName("host-a"));
+  }
+
+  @Test
+  public void rejectsDownloadsAbovePerHostLimitWithRetryAfter() {
+    DeliveryGovernor governor = new DeliveryGovernor(hostnameResolver, 0, 1, 0, 0, 0, 7);
+
+    assertThat(governor.acquire(RPM, request).isGranted(), is(true));
+
+    DeliveryPermit rejected = governor.acquire(OTHER_REPO_RPM, request);
+    assertThat(rejected.isGranted(), is(false));
+    assertThat(rejected.getRetryAfterSeconds(), is(7L));
+    assertThat(governor.getRejectedDownloads(), is(1L));
+  }
+
+  @Test
+  public void releasedPermitFreesSlot() {
+    DeliveryGovernor governor = new DeliveryGovernor(hostnameResolver, 0, 1, 0, 0, 0, 5);
+
+    DeliveryPermit permit = governor.acquire(RPM, request);
+    permit.release();
+    permit.release();
+
+    assertThat(governor.getActiveDownloads(), is(0));
+    assertThat(governor.acquire(RPM, request).isGranted(), is(true));
+  }
+
+  @Test
+  public void limitsEachHostSeparately() {
+    DeliveryGovernor governor = new DeliveryGovernor(hostnameResolver, 0, 1, 0, 0, 0, 5);
+    MockHttpServletRequest otherHostRequest = new MockHttpServletRequest();
+    when(hostnameResolver.remoteHost(otherHostRequest)).thenReturn(new HostName("host-b"));
+
+    assertThat(governor.acquire(RPM, request).isGranted(), is(true));
+    assertThat(governor.acquire(RPM, otherHostRequest).isGranted(), is(true));
+  }
+
+  @Test
+  public void rejectsDownloadsAbovePerRepoLimit() {
+    DeliveryGovernor governor = new DeliveryGovernor(hostnameResolver, 0, 0, 1, 0, 0, 5);
+
+    assertThat(governor.acquire(RPM, request).isGranted(), is(true));
+    assertThat(governor.acquire(RPM, request).isGranted(), is(false));
+    assertThat(governor.acquire(OTHER_REPO_RPM, request).isGranted(), is(true));
+  }
+
+  @Test
+  public void rejectsDownloadsAboveGlobalLimit() {
+    DeliveryGovernor governor = new DeliveryGovernor(hostnameResolver, 1, 0, 0, 0, 0, 5);
+
+    assertThat(governor.acquire(RPM, request).isGranted(), is(true));
+    assertThat(governor.acquire(OTHER_REPO_RPM, request).isGranted(), is(false));
+    assertThat(governor.getActiveDownloads(), is(1));
+  }
+
+  @Test
+  public void neverRejectsRepodata() {
+    DeliveryGovernor governor = new DeliveryGovernor(hostnameResolver, 1, 1, 1, 1, 1, 5);
+
+    assertThat(governor.acquire(RPM, request).isGranted(), is(true));
+    for (int i = 0; i < 10; i++) {
+      DeliveryPermit permit = governor.acquire(REPODATA, request);
+      assertThat(permit.isGranted(), is(true));
+    }
+    assertThat(governor.getActiveRepodataDownloads(), is(10));
+  }
+
+  @Test
+  public void doesNotThrottleRepodata() {
+    DeliveryGovernor governor = new DeliveryGovernor(hostnameResolver, 0, 0, 0, 1, 1, 5);
+    Resource resource = new ByteArrayResource(new byte[0]);
+
+    assertThat(governor.acquire(REPODATA, request).throttled(resource), sameInstance(resource));
+    assertThat(governor.acquire(RPM, request).throttled(resource), not(sameInstance(resource)));
+  }
+
+  @Test
+  public void rejectsDownloadsWhenBandwidthDebtExceedsRetryAfter() throws Exception {
+    DeliveryGovernor governor = new DeliveryGovernor(hostnameResolver, 0, 0, 0, 1, 0, 1);
+    DeliveryPermit permit = governor.acquire(RPM, request);
+    permit.getHostLimiter().getBucket().take(10 * 1024, governor.getBandwidthPerHostInBytes());
+    permit.release();
+
+    DeliveryPermit rejected = governor.acquire(RPM, request);
+    assertThat(rejected.isGranted(), is(false));
+    assertThat(rejected.getRetryAfterSeconds(), greaterThan(1L));
+  }
+}
@@ -0,0 +1,147 @@
+package de.is24.infrastructure.gridfs.http.governor;
+
+import de.is24.infrastructure.gridfs.http.exception.IngestRejectedException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
+
+
+public class IngestGovernorTest {
+  private final ExecutorService executor = newCachedThreadPool();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void admitsUploadsUpToLimit() throws Exception {
+    IngestGovernor governor = new IngestGovernor(2, 10, 0, 1, 5);
+
+    governor.acquire("repo");
+    governor.acquire("repo");
+
+    assertThat(governor.getActiveIngests(), is(2));
+    assertThat(governor.getQueuedIngests(), is(0));
+  }
+
+  @Test
+  public void closedPermitHandsSlotToWaitingUpload() throws Exception {
+    IngestGovernor governor = new IngestGovernor(1, 10, 0, 10, 5);
+    IngestPermit permit = governor.acquire("repo");
+
+    Future<IngestPermit> waiting = executor.submit(() -> governor.acquire("repo"));
+    awaitQueued(governor, 1);
+    permit.close();
+    permit.close();
+
+    waiting.get(5, SECONDS);
+    assertThat(governor.getActiveIngests(), is(1));
+    assertThat(governor.getQueuedIngests(), is(0));
+  }
+
+  @Test
+  public void raisedLimitAdmitsWaitingUploads() throws Exception {
+    IngestGovernor governor = new IngestGovernor(1, 10, 0, 10, 5);
+    governor.acquire("repo");
+    Future<IngestPermit> first = executor.submit(() -> governor.acquire("repo"));
+    Future<IngestPermit> second = executor.submit(() -> governor.acquire("other-repo"));
+    awaitQueued(governor, 2);
+
+    governor.setMaxIngests(3);
+
+    first.get(5, SECONDS);
+    second.get(5, SECONDS);
+    assertThat(governor.getActiveIngests(), is(3));
+    assertThat(governor.getQueuedIngests(), is(0));
+  }
+
+  @Test
+  public void rejectsWithServiceUnavailableWhenQueueIsFull() throws Exception {
+    IngestGovernor governor = new IngestGovernor(1, 1, 0, 10, 7);
+    governor.acquire("repo");
+    executor.submit(() -> governor.acquire("repo"));
+    awaitQueued(governor, 1);
+
+    assertRejected(governor, "other-repo", SERVICE_UNAVAILABLE.value());
+    assertThat(governor.getRejectedIngests(), is(1L));
+  }
+
+  @Test
+  public void rejectsWithTooManyRequestsWhenRepoFillsItsShareOfQueue() throws Exception {
+    IngestGovernor governor = new IngestGovernor(1, 10, 1, 10, 7);
+    governor.acquire("repo");
+    executor.submit(() -> governor.acquire("repo"));
+    awaitQueued(governor, 1);
+
+    assertRejected(governor, "repo", TOO_MANY_REQUESTS.value());
+    executor.submit(() -> governor.acquire("other-repo"));
+    awaitQueued(governor, 2);
+  }
+
+  @Test
+  public void rejectsWithServiceUnavailableAfterDeadline() throws Exception {
+    IngestGovernor governor = new IngestGovernor(1, 10, 0, 0, 7);
+    governor.acquire("repo");
+
+    assertRejected(governor, "repo", SERVICE_UNAVAILABLE.value());
+    assertThat(governor.getQueuedIngests(), is(0));
+  }
+
+  @Test
+  public void handsSlotsToWaitingReposInTurn() throws Exception {
+    IngestGovernor governor = new IngestGovernor(1, 10, 0, 10, 5);
+    IngestPermit permit = governor.acquire("storm");
+    Queue<String> admitted = new ConcurrentLinkedQueue<>();
+    List<Future<?>> uploads = new ArrayList<>();
+    for (String reponame : new String[] { "storm", "storm", "storm", "quiet" }) {
+      uploads.add(executor.submit(() -> {
+        try(IngestPermit ignored = governor.acquire(reponame)) {
+          admitted.add(reponame);
+        }
+        return null;
+      }));
+      awaitQueued(governor, uploads.size());
+    }
+
+    permit.close();
+    for (Future<?> upload : uploads) {
+      upload.get(5, SECONDS);
+    }
+
+    assertThat(admitted, contains("storm", "quiet", "storm", "storm"));
+  }
+
+  private static void assertRejected(IngestGovernor governor, String reponame, int status) throws Exception {
+    try {
+      governor.acquire(reponame);
+      fail("upload should have been rejected");
+    } catch (IngestRejectedException e) {
+      assertThat(e.getStatus().value(), is(status));
+      assertThat(e.getRetryAfterSeconds(), is(7L));
+    }
+  }
+
+  private static void awaitQueued(IngestGovernor governor, int queued) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while ((governor.getQueuedIngests() < queued) && (System.currentTimeMillis() < deadline)) {
+      Thread.sleep(10);
+    }
+    assertThat(governor.getQueuedIngests(), is(queued));
+  }
+}
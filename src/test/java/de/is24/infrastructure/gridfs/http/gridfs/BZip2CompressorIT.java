@@ -0,0 +1,125 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Random;
+
+import static java.lang.System.nanoTime;
+import static java.sql.DriverManager.getConnection;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
+import static org.apache.commons.io.IOUtils.copy;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+/**
+ * Compares the parallel bzip2 compression of a sqlite database of a few hundred MB, shaped like a filelists
+ * database, with the single-threaded compression.
+ */
+@Category(LocalExecutionOnly.class)
+public class BZip2CompressorIT {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BZip2CompressorIT.class);
+  private static final long MB = 1024 * 1024;
+  private static final long DB_SIZE = 256 * MB;
+  private static final int ROWS_PER_TRANSACTION = 100000;
+
+  private static File dbFile;
+  private static String dbChecksum;
+
+  @BeforeClass
+  public static void createDb() throws Exception {
+    dbFile = File.createTempFile("bzip2-compressor-it", ".sqlite");
+    try(Connection connection = getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath())) {
+      connection.setAutoCommit(false);
+      try(Statement statement = connection.createStatement()) {
+        statement.executeUpdate(
+          "CREATE TABLE filelist (pkgKey INTEGER, dirname TEXT, filenames TEXT, filetypes TEXT)");
+      }
+
+      Random random = new Random(42);
+      try(PreparedStatement insert = connection.prepareStatement("INSERT INTO filelist VALUES (?, ?, ?, ?)")) {
+        for (int pkgKey = 1; dbFile.length() < DB_SIZE; pkgKey++) {
+          for (int i = 0; i < ROWS_PER_TRANSACTION; i++) {
+            insert.setInt(1, pkgKey);
+            insert.setString(2, "/usr/share/package-" + random.nextInt(10000) + "/lib/" + random.nextInt(100));
+            insert.setString(3, "file-" + random.nextInt() + ".so/file-" + random.nextInt() + ".conf/README");
+            insert.setString(4, "ffd");
+            insert.executeUpdate();
+          }
+          connection.commit();
+        }
+      }
+    }
+    dbChecksum = checksumOf(new FileInputStream(dbFile));
+  }
+
+  @AfterClass
+  public static void deleteDb() throws Exception {
+    dbFile.delete();
+  }
+
+  @Test
+  public void compareParallelWithSingleThreadedCompression() throws Exception {
+    BZip2Compressor compressor = new BZip2Compressor(0);
+    try {
+      File singleThreaded = File.createTempFile("bzip2-compressor-it", ".single.bz2");
+      File parallel = File.createTempFile("bzip2-compressor-it", ".parallel.bz2");
+      try {
+        long singleThreadedNanos = compress(new BZip2CompressorOutputStream(new FileOutputStream(singleThreaded)));
+        long parallelNanos = compress(compressor.open(new FileOutputStream(parallel)));
+
+        LOGGER.info(
+          "compressing {} MB: single-threaded {} MB/s to {} MB, parallel with {} threads {} MB/s to {} MB",
+          dbFile.length() / MB, throughput(singleThreadedNanos), singleThreaded.length() / MB, compressor.getThreads(),
+          throughput(parallelNanos), parallel.length() / MB);
+
+        assertThat(checksumOf(new BZip2CompressorInputStream(new FileInputStream(parallel), false)), is(dbChecksum));
+      } finally {
+        singleThreaded.delete();
+        parallel.delete();
+      }
+    } finally {
+      compressor.shutdown();
+    }
+  }
+
+  private static long compress(OutputStream bzip2OutputStream) throws IOException {
+    long start = nanoTime();
+    try(InputStream inputStream = new BufferedInputStream(new FileInputStream(dbFile))) {
+      copy(inputStream, bzip2OutputStream);
+    } finally {
+      bzip2OutputStream.close();
+    }
+    return nanoTime() - start;
+  }
+
+  private static String checksumOf(InputStream inputStream) throws IOException {
+    try(InputStream in = new BufferedInputStream(inputStream)) {
+      return sha256Hex(in);
+    }
+  }
+
+  private static long throughput(long nanos) {
+    long millis = Math.max(NANOSECONDS.toMillis(nanos), 1);
+    return (dbFile.length() * 1000) / (MB * millis);
+  }
+}
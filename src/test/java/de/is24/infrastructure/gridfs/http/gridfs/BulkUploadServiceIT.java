@@ -0,0 +1,91 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
+import de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.uniqueRepoName;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.RPM_FILE_LOCATION;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.RPM_FILE_SIZE;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.SOURCE_RPM_LOCATION;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+
+@Category(LocalExecutionOnly.class)
+public class BulkUploadServiceIT {
+  @ClassRule
+  public static IntegrationTestContext context = new IntegrationTestContext();
+
+  private BulkUploadService service;
+  private String reponame;
+
+  @Before
+  public void setUp() throws Exception {
+    service = new BulkUploadService(context.gridFsService(), context.yumEntriesRepository(), context.repoService(),
+      2, 0);
+    reponame = uniqueRepoName();
+  }
+
+  @Test
+  public void storeAllRpmsOfTarAndReportEachFile() throws Exception {
+    byte[] tar = givenTarOf("valid.noarch.rpm", "invalid.rpm", "valid.src.rpm");
+
+    BulkUploadResult result = service.storeRpmsFromTar(reponame, new ByteArrayInputStream(tar));
+
+    assertThat(result.getStored(), is(2));
+    assertThat(result.getFailed(), is(1));
+
+    BulkUploadFileResult noarch = result.getFiles().get(0);
+    assertThat(noarch.getName(), is("valid.noarch.rpm"));
+    assertThat(noarch.getPath(), is(reponame + "/" + RPM_FILE_LOCATION));
+    assertThat(noarch.getSize(), is((long) RPM_FILE_SIZE));
+
+    BulkUploadFileResult invalid = result.getFiles().get(1);
+    assertThat(invalid.getStatus(), is(400));
+    assertThat(invalid.getPath(), nullValue());
+
+    assertThat(result.getFiles().get(2).getPath(), is(reponame + "/" + SOURCE_RPM_LOCATION));
+    assertThat(context.yumEntriesRepository().findByRepo(reponame).size(), is(2));
+    assertThat(context.repoEntriesRepository().findFirstByName(reponame), notNullValue());
+  }
+
+  @Test
+  public void reportConflictForRpmAlreadyInRepo() throws Exception {
+    context.gridFsService().storeRpm(reponame, streamOf("valid.noarch.rpm"));
+
+    BulkUploadResult result = service.storeRpmsFromTar(reponame,
+      new ByteArrayInputStream(givenTarOf("valid.noarch.rpm")));
+
+    assertThat(result.getFiles().get(0).getStatus(), is(409));
+    assertThat(context.yumEntriesRepository().findByRepo(reponame).size(), is(1));
+  }
+
+  private static byte[] givenTarOf(String... rpmNames) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    try(TarArchiveOutputStream tarOutputStream = new TarArchiveOutputStream(outputStream)) {
+      for (String rpmName : rpmNames) {
+        byte[] content = toByteArray(streamOf(rpmName));
+        TarArchiveEntry entry = new TarArchiveEntry(rpmName);
+        entry.setSize(content.length);
+        tarOutputStream.putArchiveEntry(entry);
+        tarOutputStream.write(content);
+        tarOutputStream.closeArchiveEntry();
+      }
+    }
+    return outputStream.toByteArray();
+  }
+}
@@ -0,0 +1,158 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSInputFile;
+import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
+import de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext;
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static de.is24.infrastructure.gridfs.http.gridfs.StorageServiceIT.TESTING_ARCH;
+import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.uniqueRepoName;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+@Category(LocalExecutionOnly.class)
+public class GridFsChunkInputStreamIT {
+  private static final int CHUNK_SIZE = 1024;
+  private static final int NUMBER_OF_CHUNKS = 100;
+  private static final int FILE_SIZE = CHUNK_SIZE * NUMBER_OF_CHUNKS;
+
+  @ClassRule
+  public static IntegrationTestContext context = new IntegrationTestContext();
+
+  @Test
+  public void readsWholeFileFromStart() throws Exception {
+    byte[] content = content(FILE_SIZE);
+    GridFSDBFile dbFile = givenFileWithChunkSize(content, CHUNK_SIZE);
+
+    try(GridFsChunkInputStream inputStream = new GridFsChunkInputStream(dbFile, 0)) {
+      assertThat(toByteArray(inputStream), is(content));
+      assertThat(inputStream.getChunksRead(), is((long) NUMBER_OF_CHUNKS));
+    }
+  }
+
+  @Test
+  public void readsWholeFileInBatchesOfChunks() throws Exception {
+    byte[] content = content(FILE_SIZE);
+    GridFSDBFile dbFile = givenFileWithChunkSize(content, CHUNK_SIZE);
+
+    try(GridFsChunkInputStream inputStream = new GridFsChunkInputStream(dbFile, 0, 10)) {
+      assertThat(toByteArray(inputStream), is(content));
+      assertThat(inputStream.getBytesRead(), is((long) FILE_SIZE));
+      assertThat(inputStream.getRoundTrips(), is(NUMBER_OF_CHUNKS / 10));
+    }
+  }
+
+  @Test
+  public void deliversWholeFileViaStorageItem() throws Exception {
+    byte[] content = content(FILE_SIZE);
+    FileDescriptor descriptor = new FileDescriptor(uniqueRepoName(), TESTING_ARCH, "whole-file.rpm");
+    context.fileStorageService().storeFile(new ByteArrayInputStream(content), descriptor);
+
+    try(InputStream inputStream = context.fileStorageService().getFileBy(descriptor).getInputStream()) {
+      assertThat(inputStream instanceof GridFsChunkInputStream, is(true));
+      assertThat(toByteArray(inputStream), is(content));
+    }
+  }
+
+  @Test
+  public void rangeReadCostsRequestedBytesNotOffset() throws Exception {
+    byte[] content = content(FILE_SIZE);
+    GridFSDBFile dbFile = givenFileWithChunkSize(content, CHUNK_SIZE);
+
+    assertThat(chunksReadForRange(dbFile, 0, 100), is(1L));
+    assertThat(chunksReadForRange(dbFile, FILE_SIZE / 2, 100), is(1L));
+    assertThat(chunksReadForRange(dbFile, FILE_SIZE - 100, 100), is(1L));
+    assertThat(chunksReadForRange(dbFile, FILE_SIZE - CHUNK_SIZE - 50, 100), is(2L));
+  }
+
+  @Test
+  public void readsRangeStartingInTheMiddleOfAChunk() throws Exception {
+    byte[] content = content(FILE_SIZE);
+    GridFSDBFile dbFile = givenFileWithChunkSize(content, CHUNK_SIZE);
+    int startPos = (CHUNK_SIZE * 42) + 17;
+
+    try(GridFsChunkInputStream inputStream = new GridFsChunkInputStream(dbFile, startPos)) {
+      assertThat(toByteArray(inputStream), is(Arrays.copyOfRange(content, startPos, FILE_SIZE)));
+      assertThat(inputStream.getChunksRead(), is((long) (NUMBER_OF_CHUNKS - 42)));
+    }
+  }
+
+  @Test
+  public void skipDoesNotReadSkippedChunks() throws Exception {
+    byte[] content = content(FILE_SIZE);
+    GridFSDBFile dbFile = givenFileWithChunkSize(content, CHUNK_SIZE);
+
+    try(GridFsChunkInputStream inputStream = new GridFsChunkInputStream(dbFile, 0)) {
+      assertThat(inputStream.read(), is(content[0] & 0xff));
+      assertThat(inputStream.skip(FILE_SIZE - 11), is((long) FILE_SIZE - 11));
+      assertThat(toByteArray(inputStream), is(Arrays.copyOfRange(content, FILE_SIZE - 10, FILE_SIZE)));
+      assertThat(inputStream.getChunksRead(), is(2L));
+    }
+  }
+
+  @Test
+  public void limitedStreamFetchesOnlyOverlappingChunks() throws Exception {
+    byte[] content = content(FILE_SIZE);
+    GridFSDBFile dbFile = givenFileWithChunkSize(content, CHUNK_SIZE);
+    int startPos = (CHUNK_SIZE * 10) + 17;
+    int length = CHUNK_SIZE * 2;
+
+    try(GridFsChunkInputStream inputStream = new GridFsChunkInputStream(dbFile, startPos, 50).limit(length)) {
+      assertThat(toByteArray(inputStream), is(Arrays.copyOfRange(content, startPos, startPos + length)));
+      assertThat(inputStream.getChunksRead(), is(3L));
+      assertThat(inputStream.getRoundTrips(), is(1));
+    }
+  }
+
+  @Test
+  public void deliversRangeViaFileStorageService() throws Exception {
+    byte[] content = content(3 * 1024 * 1024);
+    FileDescriptor descriptor = new FileDescriptor(uniqueRepoName(), TESTING_ARCH, "large-file.rpm");
+    context.fileStorageService().storeFile(new ByteArrayInputStream(content), descriptor);
+
+    int startPos = content.length - 1000;
+    BoundedGridFsResource resource = context.fileStorageService().getResource(descriptor, startPos, 500);
+
+    try(InputStream inputStream = resource.getInputStream()) {
+      assertThat(toByteArray(inputStream), is(Arrays.copyOfRange(content, startPos, startPos + 500)));
+    }
+  }
+
+  private long chunksReadForRange(GridFSDBFile dbFile, long startPos, int length) throws IOException {
+    try(GridFsChunkInputStream inputStream = new GridFsChunkInputStream(dbFile, startPos)) {
+      byte[] buffer = new byte[length];
+      int read = 0;
+      while (read < length) {
+        read += inputStream.read(buffer, read, length - read);
+      }
+      return inputStream.getChunksRead();
+    }
+  }
+
+  private GridFSDBFile givenFileWithChunkSize(byte[] content, int chunkSize) throws IOException {
+    String filename = uniqueRepoName() + "/" + TESTING_ARCH + "/chunked-file.rpm";
+    GridFSInputFile inputFile = context.gridFs().createFile(new ByteArrayInputStream(content), filename);
+    inputFile.setChunkSize(chunkSize);
+    inputFile.save();
+    return context.gridFs().findOne(filename);
+  }
+
+  private static byte[] content(int size) {
+    byte[] content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) (i * 31 + i / 251);
+    }
+    return content;
+  }
+}
@@ -0,0 +1,131 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSInputFile;
+import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
+import de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+
+import static de.is24.infrastructure.gridfs.http.gridfs.GridFsFileStorageService.CONTENT_TYPE_APPLICATION_X_RPM;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.GRIDFS_CHUNKS_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.GRIDFS_FILES_COLLECTION;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.commons.codec.digest.DigestUtils.md5Hex;
+import static org.apache.commons.io.IOUtils.copy;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.springframework.http.MediaType.APPLICATION_XML_VALUE;
+
+
+/**
+ * Compares the pipelined chunk writer with the GridFS of the driver, which sends one chunk per insert and waits for
+ * each acknowledgement, on the embedded MongoDB.
+ */
+@Category(LocalExecutionOnly.class)
+public class GridFsChunkWriterIT {
+  private static final Logger LOGGER = LoggerFactory.getLogger(GridFsChunkWriterIT.class);
+  private static final int MB = 1024 * 1024;
+  private static final int CONTENT_SIZE = 32 * MB + 4711;
+  private static final int ROUNDS = 5;
+
+  @ClassRule
+  public static IntegrationTestContext context = new IntegrationTestContext();
+
+  @Test
+  public void writeFilesDocumentReadableByGridFs() throws Exception {
+    byte[] content = givenContent(3 * MB + 17);
+
+    GridFSDBFile dbFile = context.gridFs().findOne(new BasicDBObject("_id", writeWithChunkWriter(content)));
+
+    assertThat(dbFile.getChunkSize(), is(1024L * 1024));
+    assertThat(dbFile.getLength(), is((long) content.length));
+    assertThat(dbFile.getMD5(), is(md5Hex(content)));
+    assertThat(toByteArray(dbFile.getInputStream()), is(content));
+  }
+
+  @Test
+  public void useChunkSizeOfContentType() throws Exception {
+    assertThat(context.chunkWriter().getChunkSize(APPLICATION_XML_VALUE), is(64 * 1024));
+    assertThat(context.chunkWriter().getChunkSize("application/octet-stream"),
+      is(GridFsChunkWriter.DEFAULT_CHUNK_SIZE));
+  }
+
+  @Test
+  public void writeNoFilesDocumentAndRemoveChunksOnDiscard() throws Exception {
+    GridFsChunkOutputStream outputStream = context.chunkWriter().open(chunks(), CONTENT_TYPE_APPLICATION_X_RPM);
+    outputStream.write(givenContent(5 * MB));
+
+    outputStream.discard();
+
+    BasicDBObject byFilesId = new BasicDBObject("files_id", outputStream.getFilesId());
+    assertThat(chunks().count(byFilesId), is(0L));
+    assertThat(files().findOne(new BasicDBObject("_id", outputStream.getFilesId())), nullValue());
+  }
+
+  @Test
+  public void compareThroughputWithDriverGridFs() throws Exception {
+    byte[] content = givenContent(CONTENT_SIZE);
+    writeWithDriver(content);
+    writeWithChunkWriter(content);
+
+    long driverNanos = 0;
+    long chunkWriterNanos = 0;
+    for (int i = 0; i < ROUNDS; i++) {
+      long start = nanoTime();
+      writeWithDriver(content);
+      driverNanos += nanoTime() - start;
+
+      start = nanoTime();
+      writeWithChunkWriter(content);
+      chunkWriterNanos += nanoTime() - start;
+    }
+
+    LOGGER.info("writing {} MB: driver GridFS {} MB/s, chunk writer {} MB/s", CONTENT_SIZE / MB,
+      throughput(driverNanos), throughput(chunkWriterNanos));
+  }
+
+  private static Object writeWithChunkWriter(byte[] content) throws Exception {
+    GridFsChunkOutputStream outputStream = context.chunkWriter().open(chunks(), CONTENT_TYPE_APPLICATION_X_RPM);
+    copy(new ByteArrayInputStream(content), outputStream);
+    outputStream.close();
+    files().insert(outputStream.createFilesDocument("chunk-writer-it.rpm", CONTENT_TYPE_APPLICATION_X_RPM,
+      new BasicDBObject()));
+    return outputStream.getFilesId();
+  }
+
+  private static void writeWithDriver(byte[] content) {
+    GridFSInputFile inputFile = context.gridFs().createFile(new ByteArrayInputStream(content), "driver-it.rpm");
+    inputFile.save();
+  }
+
+  private static long throughput(long nanos) {
+    long millis = Math.max(NANOSECONDS.toMillis(nanos), 1);
+    return ((long) CONTENT_SIZE * ROUNDS * 1000) / (MB * millis);
+  }
+
+  private static DBCollection chunks() {
+    return context.mongoTemplate().getCollection(GRIDFS_CHUNKS_COLLECTION);
+  }
+
+  private static DBCollection files() {
+    return context.mongoTemplate().getCollection(GRIDFS_FILES_COLLECTION);
+  }
+
+  private static byte[] givenContent(int size) {
+    byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    return content;
+  }
+}
@@ -1,35 +1,51 @@
 package de.is24.infrastructure.gridfs.http.gridfs;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.gridfs.GridFSDBFile;
 import com.mongodb.gridfs.GridFSFile;
+import com.mongodb.gridfs.GridFSInputFile;
 import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
+import de.is24.infrastructure.gridfs.http.exception.InvalidRpmHeaderException;
 import de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext;
 import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptorResolver;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
 import org.apache.commons.lang.time.DateUtils;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 import java.util.List;
+import java.util.Random;
 
 import static com.mongodb.gridfs.GridFSUtil.mergeMetaData;
 import static de.is24.infrastructure.gridfs.http.gridfs.StorageServiceIT.TESTING_ARCH;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.BLOB_CHUNKS_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.BLOB_FILES_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.GRIDFS_CHUNKS_COLLECTION;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.GRIDFS_FILES_COLLECTION;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.MARKED_AS_DELETED_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.REF_COUNT_KEY;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.REPO_KEY;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.SHA256_KEY;
 import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.simpleInputStream;
 import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.uniqueRepoName;
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
+import static org.apache.commons.io.IOUtils.readFully;
+import static org.apache.commons.io.IOUtils.toByteArray;
 import static org.apache.commons.lang.time.DateUtils.addDays;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
 import static org.springframework.data.mongodb.core.query.Criteria.where;
 import static org.springframework.data.mongodb.core.query.Query.query;
 import static org.springframework.data.mongodb.core.query.Update.update;
@@ -37,6 +53,7 @@ import static org.springframework.data.mongodb.gridfs.GridFsCriteria.whereMetaDa
 
 @Category(LocalExecutionOnly.class)
 public class GridFsFileStorageServiceIT {
+  private static final int MB = 1024 * 1024;
 
   @ClassRule
   public static IntegrationTestContext context = new IntegrationTestContext();
@@ -97,8 +114,9 @@ public class GridFsFileStorageServiceIT {
   public void ensureIndex() throws Exception {
     new GridFsFileStorageService(context.gridFs(), context.gridFsTemplate(), context.mongoTemplate());
     new GridFsFileStorageService(context.gridFs(), context.gridFsTemplate(), context.mongoTemplate());
+    new BlobStore(context.mongoTemplate());
     List<DBObject> indexInfos = context.mongoTemplate().getCollection(GRIDFS_FILES_COLLECTION).getIndexInfo();
-    assertThat(indexInfos.size(), is(6));
+    assertThat(indexInfos.size(), is(7));
   }
 
   @Test
@@ -111,6 +129,183 @@ public class GridFsFileStorageServiceIT {
     assertThat(context.fileStorageService().findByPrefix(filename).size(), is(1));
   }
 
+  @Test
+  public void storeFileResolvedFromHeadInSinglePass() throws Exception {
+    byte[] content = givenContentOfSize(MB + 17);
+    FileDescriptor descriptor = new FileDescriptor(uniqueRepoName(), TESTING_ARCH, "single-pass");
+
+    FileStorageItem storageItem = context.fileStorageService().storeFile(new ByteArrayInputStream(content), head -> {
+      try {
+        readFully(head, new byte[1000]);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      return descriptor;
+    });
+
+    assertThat(storageItem.getFilename(), is(descriptor.getPath()));
+    assertThat(storageItem.getSize(), is((long) content.length));
+    assertThat(storageItem.getChecksumSha256(), is(sha256Hex(content)));
+    assertThat(toByteArray(storageItem.getInputStream()), is(content));
+  }
+
+  @Test
+  public void removeChunksWhenResolvingDescriptorFails() throws Exception {
+    DBCollection chunks = context.mongoTemplate().getCollection(GRIDFS_CHUNKS_COLLECTION);
+    DBCollection blobChunks = context.mongoTemplate().getCollection(BLOB_CHUNKS_COLLECTION);
+    long chunksBefore = chunks.count();
+    long blobChunksBefore = blobChunks.count();
+
+    try {
+      context.fileStorageService().storeFile(new ByteArrayInputStream(givenContentOfSize(MB)), head -> {
+        try {
+          readFully(head, new byte[MB / 2]);
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+        throw new InvalidRpmHeaderException("header too broken");
+      });
+      fail("InvalidRpmHeaderException expected");
+    } catch (InvalidRpmHeaderException e) {
+      assertThat(chunks.count(), is(chunksBefore));
+      assertThat(blobChunks.count(), is(blobChunksBefore));
+    }
+  }
+
+  @Test
+  public void storeSameContentInDifferentReposOnlyOnce() throws Exception {
+    byte[] content = givenContentOfSize(MB + 3);
+    DBCollection blobChunks = context.mongoTemplate().getCollection(BLOB_CHUNKS_COLLECTION);
+    long blobChunksBefore = blobChunks.count();
+
+    FileStorageItem first = storeFile(content, new FileDescriptor(uniqueRepoName(), TESTING_ARCH, "dedup.rpm"));
+    long blobChunksOfContent = blobChunks.count() - blobChunksBefore;
+    FileStorageItem second = storeFile(content, new FileDescriptor(uniqueRepoName(), TESTING_ARCH, "dedup.rpm"));
+
+    assertThat(blobChunks.count() - blobChunksBefore, is(blobChunksOfContent));
+    assertThat(refCountOf(sha256Hex(content)), is(2));
+    assertThat(toByteArray(first.getInputStream()), is(content));
+    assertThat(toByteArray(second.getInputStream()), is(content));
+  }
+
+  @Test
+  public void removeBlobWithLastReference() throws Exception {
+    byte[] content = givenContentOfSize(MB + 5);
+    FileStorageItem first = storeFile(content, new FileDescriptor(uniqueRepoName(), TESTING_ARCH, "dedup.rpm"));
+    FileStorageItem second = storeFile(content, new FileDescriptor(uniqueRepoName(), TESTING_ARCH, "dedup.rpm"));
+
+    context.fileStorageService().delete(first);
+    assertThat(refCountOf(sha256Hex(content)), is(1));
+    assertThat(toByteArray(second.getInputStream()), is(content));
+
+    context.fileStorageService().delete(second);
+    assertThat(blobOf(sha256Hex(content)), nullValue());
+  }
+
+  @Test
+  public void writeNoChunksIfChecksumIsKnownInAdvance() throws Exception {
+    byte[] content = givenContentOfSize(MB + 7);
+    String sha256Hash = sha256Hex(content);
+    storeFile(content, new FileDescriptor(uniqueRepoName(), TESTING_ARCH, "dedup.rpm"));
+    DBCollection chunks = context.mongoTemplate().getCollection(GRIDFS_CHUNKS_COLLECTION);
+    DBCollection blobChunks = context.mongoTemplate().getCollection(BLOB_CHUNKS_COLLECTION);
+    long chunksBefore = chunks.count();
+    long blobChunksBefore = blobChunks.count();
+    FileDescriptor descriptor = new FileDescriptor(uniqueRepoName(), TESTING_ARCH, "dedup.rpm");
+
+    FileStorageItem storageItem = context.fileStorageService().storeFile(new ByteArrayInputStream(content),
+      new FileDescriptorResolver() {
+        @Override
+        public FileDescriptor resolve(InputStream head) {
+          return descriptor;
+        }
+
+        @Override
+        public String getExpectedSha256Hash() {
+          return sha256Hash;
+        }
+      });
+
+    assertThat(chunks.count(), is(chunksBefore));
+    assertThat(blobChunks.count(), is(blobChunksBefore));
+    assertThat(refCountOf(sha256Hash), is(2));
+    assertThat(toByteArray(storageItem.getInputStream()), is(content));
+  }
+
+  @Test
+  public void collapseDuplicatesStoredBeforeDeduplication() throws Exception {
+    byte[] content = givenContentOfSize(MB + 11);
+    String sha256Hash = sha256Hex(content);
+    String firstFilename = givenFileWithOwnChunks(content, uniqueRepoName() + "/noarch/legacy.rpm");
+    String secondFilename = givenFileWithOwnChunks(content, uniqueRepoName() + "/noarch/legacy.rpm");
+
+    DeduplicationReport report = context.blobStore().collapseDuplicates();
+
+    assertThat(report.getCollapsedFiles(), greaterThanOrEqualTo(2));
+    assertThat(report.getReclaimedBytes(), greaterThanOrEqualTo((long) content.length));
+    assertThat(refCountOf(sha256Hash), is(2));
+    assertThat(toByteArray(context.fileStorageService().findBy(new FileDescriptor(firstFilename)).getInputStream()),
+      is(content));
+    assertThat(toByteArray(context.fileStorageService().findBy(new FileDescriptor(secondFilename)).getInputStream()),
+      is(content));
+  }
+
+  @Test
+  public void keepChunksOfCollapsedDuplicatesForRunningDownloads() throws Exception {
+    byte[] content = givenContentOfSize(MB + 13);
+    String filename = givenFileWithOwnChunks(content, uniqueRepoName() + "/noarch/legacy.rpm");
+    givenFileWithOwnChunks(content, uniqueRepoName() + "/noarch/legacy.rpm");
+    Object ownerId = context.gridFs().findOne(filename).getId();
+    DBCollection chunks = context.mongoTemplate().getCollection(GRIDFS_CHUNKS_COLLECTION);
+
+    context.blobStore().collapseDuplicates();
+    assertThat(chunks.count(new BasicDBObject("files_id", ownerId)), greaterThanOrEqualTo(1L));
+
+    context.blobStore().removeChunksCollapsedBefore(addDays(new Date(), 1));
+    assertThat(chunks.count(new BasicDBObject("files_id", ownerId)), is(0L));
+  }
+
+  @Test
+  public void referenceExistingBlobWhenSameChecksumIsStoredTwice() throws Exception {
+    byte[] content = givenContentOfSize(MB + 17);
+    String sha256Hash = sha256Hex(content);
+    DBCollection blobChunks = context.mongoTemplate().getCollection(BLOB_CHUNKS_COLLECTION);
+    GridFSDBFile first = storeBlob(content, sha256Hash);
+    long blobChunksBefore = blobChunks.count();
+
+    GridFSDBFile second = storeBlob(content, sha256Hash);
+
+    assertThat(second.getId(), is(first.getId()));
+    assertThat(refCountOf(sha256Hash), is(2));
+    assertThat(blobChunks.count(), is(blobChunksBefore));
+  }
+
+  private FileStorageItem storeFile(byte[] content, FileDescriptor descriptor) throws Exception {
+    return context.fileStorageService().storeFile(new ByteArrayInputStream(content), head -> descriptor);
+  }
+
+  private GridFSDBFile storeBlob(byte[] content, String sha256Hash) throws IOException {
+    GridFsChunkOutputStream blob = context.blobStore().create("application/x-rpm");
+    blob.write(content);
+    return context.blobStore().store(blob, sha256Hash);
+  }
+
+  private String givenFileWithOwnChunks(byte[] content, String filename) {
+    GridFSInputFile inputFile = context.gridFs().createFile(new ByteArrayInputStream(content), filename);
+    inputFile.setMetaData(new BasicDBObject(SHA256_KEY, sha256Hex(content)));
+    inputFile.save();
+    return filename;
+  }
+
+  private DBObject blobOf(String sha256Hash) {
+    return context.mongoTemplate().getCollection(BLOB_FILES_COLLECTION)
+      .findOne(new BasicDBObject("filename", sha256Hash));
+  }
+
+  private int refCountOf(String sha256Hash) {
+    return ((Number) ((DBObject) blobOf(sha256Hash).get("metadata")).get(REF_COUNT_KEY)).intValue();
+  }
+
   private void assertAllFilesAreCorrupt(List<FileStorageItem> corruptFiles) {
     for (FileStorageItem file : corruptFiles) {
       if (file.getFilename() != null && file.getRepo() != null)
@@ -138,6 +333,12 @@ public class GridFsFileStorageServiceIT {
     givenFileToBeDeleted(new FileDescriptor(repoToDeleteIn, TESTING_ARCH, "toBeDeletedFuture"), addDays(now, 1));
   }
 
+  private static byte[] givenContentOfSize(int size) {
+    byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    return content;
+  }
+
   private GridFSFile givenFileToBeDeleted(FileDescriptor descriptor, final Date time) throws IOException {
     final GridFSDBFile toBeDeleted = ((GridFsFileStorageItem) context.storageTestUtils().givenFileWithDescriptor(descriptor)).getDbFile();
 
@@ -0,0 +1,66 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import static de.is24.infrastructure.gridfs.http.gridfs.ParallelBZip2OutputStream.BLOCK_INPUT_SIZE;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+public class ParallelBZip2OutputStreamTest {
+  private final ExecutorService executor = new ForkJoinPool(4);
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void compressEmptyContent() throws Exception {
+    assertDecompressedFromSingleStream(new byte[0]);
+  }
+
+  @Test
+  public void compressContentOfManyBlocks() throws Exception {
+    byte[] content = new byte[(5 * BLOCK_INPUT_SIZE) + 4711];
+    Random random = new Random(content.length);
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) ('a' + random.nextInt(16));
+    }
+
+    assertDecompressedFromSingleStream(content);
+  }
+
+  @Test
+  public void compressRunsExpandedByRunLengthEncodingIntoOneBlockEach() throws Exception {
+    byte[] content = new byte[3 * BLOCK_INPUT_SIZE];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) (i / 4);
+    }
+
+    assertDecompressedFromSingleStream(content);
+  }
+
+  private void assertDecompressedFromSingleStream(byte[] content) throws Exception {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try(OutputStream outputStream = new ParallelBZip2OutputStream(compressed, executor, 3)) {
+      outputStream.write(content);
+    }
+
+    try(InputStream inputStream = new BZip2CompressorInputStream(new ByteArrayInputStream(compressed.toByteArray()),
+        false)) {
+      assertThat(toByteArray(inputStream), is(content));
+    }
+  }
+}
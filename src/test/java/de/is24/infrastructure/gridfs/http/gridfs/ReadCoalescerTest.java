@@ -0,0 +1,289 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.util.concurrent.Uninterruptibles.awaitUninterruptibly;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+public class ReadCoalescerTest {
+  private static final byte[] CONTENT = content(10 * 1024);
+
+  private final ReadCoalescer coalescer = new ReadCoalescer(16, 4);
+
+  @Test
+  public void concurrentReadersShareOneUpstreamRead() throws Exception {
+    FileStorageItem storageItem = givenStorageItem();
+    FileStorageItem coalescedItem = coalescer.coalesced(storageItem);
+
+    try(InputStream first = coalescedItem.getInputStream(); InputStream second = coalescedItem.getInputStream()) {
+      assertThat(first.read(new byte[100]), is(100));
+      assertThat(toByteArray(second), is(CONTENT));
+      assertThat(toByteArray(first), is(Arrays.copyOfRange(CONTENT, 100, CONTENT.length)));
+    }
+
+    verify(storageItem, times(1)).getInputStream(anyLong());
+    assertThat(coalescer.getDirectReads(), is(1L));
+    assertThat(coalescer.getCoalescedReads(), is(1L));
+    assertThat(coalescer.getSharedReads(), is(0));
+  }
+
+  @Test
+  public void readersOfDifferentRangesDoNotShare() throws Exception {
+    FileStorageItem storageItem = givenStorageItem();
+    FileStorageItem coalescedItem = coalescer.coalesced(storageItem);
+
+    try(InputStream first = coalescedItem.getInputStream(); InputStream second = coalescedItem.getInputStream(500)) {
+      assertThat(toByteArray(first), is(CONTENT));
+      assertThat(toByteArray(second), is(Arrays.copyOfRange(CONTENT, 500, CONTENT.length)));
+    }
+
+    verify(storageItem, times(2)).getInputStream(anyLong());
+    assertThat(coalescer.getCoalescedReads(), is(0L));
+  }
+
+  @Test
+  public void slowReaderFallsBackToOwnStream() throws Exception {
+    ReadCoalescer smallBufferCoalescer = new ReadCoalescer(1, 4);
+    FileStorageItem storageItem = givenStorageItem();
+    FileStorageItem coalescedItem = smallBufferCoalescer.coalesced(storageItem);
+
+    try(InputStream fast = coalescedItem.getInputStream(); InputStream slow = coalescedItem.getInputStream()) {
+      assertThat(slow.read(new byte[10]), is(10));
+      assertThat(toByteArray(fast), is(CONTENT));
+      assertThat(toByteArray(slow), is(Arrays.copyOfRange(CONTENT, 10, CONTENT.length)));
+    }
+
+    verify(storageItem, times(2)).getInputStream(anyLong());
+    assertThat(smallBufferCoalescer.getFallbacks(), is(1L));
+  }
+
+  @Test
+  public void lateReaderDoesNotJoinWhenReadHasPassedBufferSize() throws Exception {
+    ReadCoalescer smallBufferCoalescer = new ReadCoalescer(1, 4);
+    FileStorageItem storageItem = givenStorageItem();
+    FileStorageItem coalescedItem = smallBufferCoalescer.coalesced(storageItem);
+
+    try(InputStream first = coalescedItem.getInputStream()) {
+      assertThat(first.read(new byte[2048]), is(2048));
+      try(InputStream late = coalescedItem.getInputStream()) {
+        assertThat(toByteArray(late), is(CONTENT));
+      }
+    }
+
+    assertThat(smallBufferCoalescer.getCoalescedReads(), is(0L));
+    assertThat(smallBufferCoalescer.getDirectReads(), is(2L));
+  }
+
+  @Test
+  public void lateReaderJoinsAfterBlockBeingReadDirectly() throws Exception {
+    CountDownLatch secondBlockRequested = new CountDownLatch(1);
+    CountDownLatch secondBlockReleased = new CountDownLatch(1);
+    AtomicInteger upstreams = new AtomicInteger();
+    FileStorageItem storageItem = givenStorageItem();
+    when(storageItem.getInputStream(anyLong())).thenAnswer(invocation -> (upstreams.getAndIncrement() == 0)
+      ? blockingOnSecondRead(secondBlockRequested, secondBlockReleased) : new ByteArrayInputStream(CONTENT));
+    FileStorageItem coalescedItem = coalescer.coalesced(storageItem);
+
+    ExecutorService executor = newFixedThreadPool(2);
+    try(InputStream first = coalescedItem.getInputStream()) {
+      assertThat(first.read(new byte[2048]), is(512));
+      Future<byte[]> rest = executor.submit(() -> toByteArray(first));
+      secondBlockRequested.await();
+
+      Future<InputStream> late = executor.submit(() -> coalescedItem.getInputStream());
+      secondBlockReleased.countDown();
+      try(InputStream lateInputStream = late.get()) {
+        assertThat(toByteArray(lateInputStream), is(CONTENT));
+      }
+      assertThat(rest.get(), is(Arrays.copyOfRange(CONTENT, 512, CONTENT.length)));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void coalescedRangeReadsOnlyTheRange() throws Exception {
+    FileStorageItem storageItem = givenStorageItem();
+    FileStorageItem coalescedItem = coalescer.coalesced(storageItem);
+
+    try(InputStream first = new BoundedGridFsResource(coalescedItem, 500, 100).getInputStream();
+        InputStream second = new BoundedGridFsResource(coalescedItem, 500, 100).getInputStream()) {
+      assertThat(toByteArray(first), is(Arrays.copyOfRange(CONTENT, 500, 600)));
+      assertThat(toByteArray(second), is(Arrays.copyOfRange(CONTENT, 500, 600)));
+    }
+
+    verify(storageItem).getInputStream(500L, 100L);
+    verify(storageItem, never()).getInputStream(anyLong());
+    assertThat(coalescer.getCoalescedReads(), is(1L));
+  }
+
+  @Test
+  public void readersOfDifferentLengthsDoNotShare() throws Exception {
+    FileStorageItem storageItem = givenStorageItem();
+    FileStorageItem coalescedItem = coalescer.coalesced(storageItem);
+
+    try(InputStream range = coalescedItem.getInputStream(0, 100);
+        InputStream whole = coalescedItem.getInputStream()) {
+      assertThat(toByteArray(range), is(Arrays.copyOfRange(CONTENT, 0, 100)));
+      assertThat(toByteArray(whole), is(CONTENT));
+    }
+
+    verify(storageItem).getInputStream(0L, 100L);
+    verify(storageItem).getInputStream(0L);
+    assertThat(coalescer.getCoalescedReads(), is(0L));
+  }
+
+  @Test(timeout = 10000)
+  public void readersFallBackWhenUpstreamThrowsRuntimeException() throws Exception {
+    AtomicInteger upstreams = new AtomicInteger();
+    FileStorageItem storageItem = givenStorageItem();
+    when(storageItem.getInputStream(anyLong())).thenAnswer(invocation -> {
+      if (upstreams.getAndIncrement() == 0) {
+        return failingOnSecondRead();
+      }
+
+      ByteArrayInputStream inputStream = new ByteArrayInputStream(CONTENT);
+      inputStream.skip((Long) invocation.getArguments()[0]);
+      return inputStream;
+    });
+    FileStorageItem coalescedItem = coalescer.coalesced(storageItem);
+
+    try(InputStream first = coalescedItem.getInputStream()) {
+      assertThat(first.read(new byte[2048]), is(512));
+      try(InputStream second = coalescedItem.getInputStream()) {
+        assertThat(toByteArray(second), is(CONTENT));
+      }
+      assertThat(toByteArray(first), is(Arrays.copyOfRange(CONTENT, 512, CONTENT.length)));
+    }
+
+    verify(storageItem, times(3)).getInputStream(anyLong());
+    verify(storageItem).getInputStream(0L, 512L);
+    assertThat(coalescer.getCoalescedReads(), is(1L));
+    assertThat(coalescer.getSharedReads(), is(0));
+  }
+
+  @Test
+  public void readsDirectlyWhenTooManySharedReads() throws Exception {
+    ReadCoalescer singleReadCoalescer = new ReadCoalescer(16, 1);
+    FileStorageItem coalescedItem = singleReadCoalescer.coalesced(givenStorageItem("id"));
+    FileStorageItem otherItem = singleReadCoalescer.coalesced(givenStorageItem("other"));
+
+    try(InputStream first = coalescedItem.getInputStream(); InputStream second = otherItem.getInputStream()) {
+      assertThat(toByteArray(first), is(CONTENT));
+      assertThat(toByteArray(second), is(CONTENT));
+    }
+
+    assertThat(singleReadCoalescer.getSharedReads(), is(0));
+    assertThat(singleReadCoalescer.getDirectReads(), is(2L));
+  }
+
+  @Test
+  public void manyThreadsReadTheSameFile() throws Exception {
+    FileStorageItem storageItem = givenStorageItem();
+    FileStorageItem coalescedItem = coalescer.coalesced(storageItem);
+    int threads = 8;
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = newFixedThreadPool(threads);
+    try {
+      List<Future<byte[]>> results = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        results.add(executor.submit((Callable<byte[]>) () -> {
+          start.await();
+          try(InputStream inputStream = coalescedItem.getInputStream()) {
+            return toByteArray(inputStream);
+          }
+        }));
+      }
+      start.countDown();
+
+      for (Future<byte[]> result : results) {
+        assertThat(result.get(), is(CONTENT));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(coalescer.getSharedReads(), is(0));
+    assertThat(coalescer.getDirectReads() + coalescer.getCoalescedReads(), is((long) threads));
+  }
+
+  private static FileStorageItem givenStorageItem() {
+    return givenStorageItem("id");
+  }
+
+  private static FileStorageItem givenStorageItem(String id) {
+    FileStorageItem storageItem = mock(FileStorageItem.class);
+    when(storageItem.getId()).thenReturn(id);
+    when(storageItem.getSize()).thenReturn((long) CONTENT.length);
+    when(storageItem.getInputStream(anyLong())).thenAnswer(invocation -> {
+      ByteArrayInputStream inputStream = new ByteArrayInputStream(CONTENT);
+      inputStream.skip((Long) invocation.getArguments()[0]);
+      return inputStream;
+    });
+    when(storageItem.getInputStream(anyLong(), anyLong())).thenAnswer(invocation -> {
+      int startPos = ((Long) invocation.getArguments()[0]).intValue();
+      int length = ((Long) invocation.getArguments()[1]).intValue();
+      return new ByteArrayInputStream(CONTENT, startPos, Math.min(length, CONTENT.length - startPos));
+    });
+    return storageItem;
+  }
+
+  private static InputStream blockingOnSecondRead(CountDownLatch requested, CountDownLatch released) {
+    return new ByteArrayInputStream(CONTENT) {
+      private int reads;
+
+      @Override
+      public synchronized int read(byte[] buffer, int offset, int len) {
+        if (reads++ == 1) {
+          requested.countDown();
+          awaitUninterruptibly(released);
+        }
+        return super.read(buffer, offset, Math.min(len, 512));
+      }
+    };
+  }
+
+  private static InputStream failingOnSecondRead() {
+    return new ByteArrayInputStream(CONTENT) {
+      private int reads;
+
+      @Override
+      public synchronized int read(byte[] buffer, int offset, int len) {
+        if (reads++ == 1) {
+          throw new IllegalStateException("cursor not found");
+        }
+        return super.read(buffer, offset, Math.min(len, 512));
+      }
+    };
+  }
+
+  private static byte[] content(int size) {
+    byte[] content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) (i * 31 + i / 251);
+    }
+    return content;
+  }
+}
@@ -0,0 +1,139 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
+import de.is24.infrastructure.gridfs.http.domain.RepodataCompression;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Random;
+
+import static de.is24.infrastructure.gridfs.http.domain.RepodataCompression.BZIP2;
+import static java.lang.System.nanoTime;
+import static java.sql.DriverManager.getConnection;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
+import static org.apache.commons.io.IOUtils.copy;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+/**
+ * Compares compression and decompression speed and compressed size of the repodata codecs for a sqlite database of
+ * 64 MB, shaped like a filelists database, including the parallel bzip2 compression used for
+ * {@link RepodataCompression#BZIP2}.
+ */
+@Category(LocalExecutionOnly.class)
+public class RepodataCompressionIT {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RepodataCompressionIT.class);
+  private static final long MB = 1024 * 1024;
+  private static final long DB_SIZE = 64 * MB;
+  private static final int ROWS_PER_TRANSACTION = 100000;
+
+  private static File dbFile;
+  private static String dbChecksum;
+
+  @BeforeClass
+  public static void createDb() throws Exception {
+    dbFile = File.createTempFile("repodata-compression-it", ".sqlite");
+    try(Connection connection = getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath())) {
+      connection.setAutoCommit(false);
+      try(Statement statement = connection.createStatement()) {
+        statement.executeUpdate(
+          "CREATE TABLE filelist (pkgKey INTEGER, dirname TEXT, filenames TEXT, filetypes TEXT)");
+      }
+
+      Random random = new Random(42);
+      try(PreparedStatement insert = connection.prepareStatement("INSERT INTO filelist VALUES (?, ?, ?, ?)")) {
+        for (int pkgKey = 1; dbFile.length() < DB_SIZE; pkgKey++) {
+          for (int i = 0; i < ROWS_PER_TRANSACTION; i++) {
+            insert.setInt(1, pkgKey);
+            insert.setString(2, "/usr/share/package-" + random.nextInt(10000) + "/lib/" + random.nextInt(100));
+            insert.setString(3, "file-" + random.nextInt() + ".so/file-" + random.nextInt() + ".conf/README");
+            insert.setString(4, "ffd");
+            insert.executeUpdate();
+          }
+          connection.commit();
+        }
+      }
+    }
+    dbChecksum = checksumOf(new FileInputStream(dbFile));
+  }
+
+  @AfterClass
+  public static void deleteDb() throws Exception {
+    dbFile.delete();
+  }
+
+  @Test
+  public void compareCodecs() throws Exception {
+    for (RepodataCompression compression : RepodataCompression.values()) {
+      File compressed = File.createTempFile("repodata-compression-it", "." + compression.getExtension());
+      try {
+        long compressionNanos = compress(compression.compress(new FileOutputStream(compressed)));
+        logAndVerify(compression.name(), compression, compressed, compressionNanos);
+      } finally {
+        compressed.delete();
+      }
+    }
+  }
+
+  @Test
+  public void compareParallelBZip2() throws Exception {
+    BZip2Compressor compressor = new BZip2Compressor(0);
+    File compressed = File.createTempFile("repodata-compression-it", ".parallel.bz2");
+    try {
+      long compressionNanos = compress(compressor.open(new FileOutputStream(compressed)));
+      logAndVerify(BZIP2 + " with " + compressor.getThreads() + " threads", BZIP2, compressed, compressionNanos);
+    } finally {
+      compressed.delete();
+      compressor.shutdown();
+    }
+  }
+
+  private static void logAndVerify(String codec, RepodataCompression compression, File compressed,
+                                   long compressionNanos) throws IOException {
+    long start = nanoTime();
+    String checksum = checksumOf(compression.decompress(new FileInputStream(compressed)));
+    long decompressionNanos = nanoTime() - start;
+
+    LOGGER.info("{} of {} MB: compression {} MB/s, decompression {} MB/s, size {} KB ({}%)", codec,
+      dbFile.length() / MB, throughput(compressionNanos), throughput(decompressionNanos), compressed.length() / 1024,
+      (compressed.length() * 100) / dbFile.length());
+    assertThat(checksum, is(dbChecksum));
+  }
+
+  private static long compress(OutputStream compressingOutputStream) throws IOException {
+    long start = nanoTime();
+    try(InputStream inputStream = new BufferedInputStream(new FileInputStream(dbFile))) {
+      copy(inputStream, compressingOutputStream);
+    } finally {
+      compressingOutputStream.close();
+    }
+    return nanoTime() - start;
+  }
+
+  private static String checksumOf(InputStream inputStream) throws IOException {
+    try(InputStream in = new BufferedInputStream(inputStream)) {
+      return sha256Hex(in);
+    }
+  }
+
+  private static long throughput(long nanos) {
+    long millis = Math.max(NANOSECONDS.toMillis(nanos), 1);
+    return (dbFile.length() * 1000) / (MB * millis);
+  }
+}
@@ -0,0 +1,199 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import com.mongodb.BasicDBObject;
+import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
+import de.is24.infrastructure.gridfs.http.exception.UploadSessionConflictException;
+import de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext;
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.BLOB_CHUNKS_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.UPLOAD_SESSION_COLLECTION;
+import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.uniqueRepoName;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.RPM_FILE_LOCATION;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.RPM_FILE_SIZE;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
+import static java.util.Arrays.copyOfRange;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.apache.commons.lang.time.DateUtils.addHours;
+import static org.apache.commons.lang.time.DateUtils.addMinutes;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+@Category(LocalExecutionOnly.class)
+public class ResumableUploadServiceIT {
+  private static final int CHUNK_SIZE_IN_KB = 1;
+  private static final int BREAK_OFF_POSITION = 1100;
+  private static final int BUSY_TIMEOUT_IN_MINUTES = 10;
+
+  @ClassRule
+  public static IntegrationTestContext context = new IntegrationTestContext();
+
+  private ResumableUploadService service;
+  private String reponame;
+  private byte[] rpm;
+
+  @Before
+  public void setUp() throws Exception {
+    service = givenService();
+    reponame = uniqueRepoName();
+    rpm = toByteArray(streamOf("valid.noarch.rpm"));
+  }
+
+  @Test
+  public void storeRpmUploadedInPiecesNotAlignedToChunks() throws Exception {
+    UploadSession session = service.createSession(reponame, RPM_FILE_SIZE);
+    String id = session.getId().toString();
+
+    assertThat(service.append(reponame, id, 0, RPM_FILE_SIZE, rangeOf(0, 700)), is(700L));
+    assertThat(service.append(reponame, id, 700, RPM_FILE_SIZE, rangeOf(700, 1200)), is(1200L));
+    assertThat(service.append(reponame, id, 1200, RPM_FILE_SIZE, rangeOf(1200, RPM_FILE_SIZE)),
+      is((long) RPM_FILE_SIZE));
+
+    FileDescriptor descriptor = service.finish(reponame, id, null);
+
+    assertStored(descriptor);
+    assertThat(service.getSessionCount(), is(0L));
+  }
+
+  @Test
+  public void resumeAfterBrokenStreamAtCommittedOffset() throws Exception {
+    String id = service.createSession(reponame, RPM_FILE_SIZE).getId().toString();
+
+    try {
+      service.append(reponame, id, 0, RPM_FILE_SIZE, new BreakingInputStream(rpm, BREAK_OFF_POSITION));
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    long offset = service.getSession(reponame, id).getOffset();
+    assertThat(offset, is(1024L));
+
+    service.append(reponame, id, offset, RPM_FILE_SIZE, rangeOf((int) offset, RPM_FILE_SIZE));
+    assertStored(service.finish(reponame, id, null));
+  }
+
+  @Test
+  public void finishOnOtherInstanceRecomputesChecksums() throws Exception {
+    String id = service.createSession(reponame, -1).getId().toString();
+    service.append(reponame, id, 0, -1, rangeOf(0, RPM_FILE_SIZE));
+
+    assertStored(givenService().finish(reponame, id, null));
+  }
+
+  @Test
+  public void takeOverStaleClaimOfDeadRequest() throws Exception {
+    String id = service.createSession(reponame, RPM_FILE_SIZE).getId().toString();
+    service.append(reponame, id, 0, RPM_FILE_SIZE, rangeOf(0, 1024));
+    givenClaimedSince(id, addMinutes(new Date(), -BUSY_TIMEOUT_IN_MINUTES - 1));
+
+    service.append(reponame, id, 1024, RPM_FILE_SIZE, rangeOf(1024, RPM_FILE_SIZE));
+
+    assertStored(service.finish(reponame, id, null));
+  }
+
+  @Test(expected = UploadSessionConflictException.class)
+  public void rejectAppendWhileClaimIsAlive() throws Exception {
+    String id = service.createSession(reponame, RPM_FILE_SIZE).getId().toString();
+    givenClaimedSince(id, new Date());
+
+    service.append(reponame, id, 0, RPM_FILE_SIZE, rangeOf(0, RPM_FILE_SIZE));
+  }
+
+  @Test(expected = UploadSessionConflictException.class)
+  public void rejectAppendAtWrongOffset() throws Exception {
+    String id = service.createSession(reponame, RPM_FILE_SIZE).getId().toString();
+    service.append(reponame, id, 0, RPM_FILE_SIZE, rangeOf(0, 500));
+
+    service.append(reponame, id, 400, RPM_FILE_SIZE, rangeOf(400, 600));
+  }
+
+  @Test(expected = UploadSessionConflictException.class)
+  public void rejectFinishOfIncompleteUpload() throws Exception {
+    String id = service.createSession(reponame, RPM_FILE_SIZE).getId().toString();
+    service.append(reponame, id, 0, RPM_FILE_SIZE, rangeOf(0, 500));
+
+    service.finish(reponame, id, null);
+  }
+
+  @Test
+  public void discardChunksOfUploadWhoseContentIsStoredAlready() throws Exception {
+    String id = service.createSession(reponame, RPM_FILE_SIZE).getId().toString();
+    service.append(reponame, id, 0, RPM_FILE_SIZE, rangeOf(0, RPM_FILE_SIZE));
+    service.finish(reponame, id, null);
+
+    String otherReponame = uniqueRepoName();
+    UploadSession session = service.createSession(otherReponame, RPM_FILE_SIZE);
+    service.append(otherReponame, session.getId().toString(), 0, RPM_FILE_SIZE, rangeOf(0, RPM_FILE_SIZE));
+    service.finish(otherReponame, session.getId().toString(), null);
+
+    assertThat(countChunksOf(session), is(0L));
+  }
+
+  @Test
+  public void removeAbandonedSessionsWithChunks() throws Exception {
+    UploadSession session = service.createSession(reponame, RPM_FILE_SIZE);
+    service.append(reponame, session.getId().toString(), 0, RPM_FILE_SIZE, rangeOf(0, 1500));
+    assertThat(countChunksOf(session), is(2L));
+
+    service.removeAbandonedSessions(addHours(new Date(), service.getAbandonedAfterHours() + 1));
+
+    assertThat(countChunksOf(session), is(0L));
+    assertThat(context.mongoTemplate().getCollection(UPLOAD_SESSION_COLLECTION)
+      .count(new BasicDBObject("_id", session.getId())), is(0L));
+  }
+
+  private void assertStored(FileDescriptor descriptor) throws IOException {
+    assertThat(descriptor.getPath(), is(reponame + "/" + RPM_FILE_LOCATION));
+    assertThat(context.yumEntriesRepository().findByRepo(reponame).size(), is(1));
+    assertThat(toByteArray(context.fileStorageService().findBy(descriptor).getInputStream()), is(rpm));
+  }
+
+  private void givenClaimedSince(String id, Date busySince) {
+    context.mongoTemplate().getCollection(UPLOAD_SESSION_COLLECTION).update(
+      new BasicDBObject("_id", new ObjectId(id)),
+      new BasicDBObject("$set", new BasicDBObject("busy", true).append("busySince", busySince)
+        .append("claim", new ObjectId())));
+  }
+
+  private long countChunksOf(UploadSession session) {
+    return context.mongoTemplate().getCollection(BLOB_CHUNKS_COLLECTION)
+      .count(new BasicDBObject("files_id", session.getId()));
+  }
+
+  private InputStream rangeOf(int from, int to) {
+    return new ByteArrayInputStream(copyOfRange(rpm, from, to));
+  }
+
+  private static ResumableUploadService givenService() {
+    return new ResumableUploadService(context.mongoTemplate(), context.blobStore(), context.gridFsService(),
+      CHUNK_SIZE_IN_KB, 24, BUSY_TIMEOUT_IN_MINUTES);
+  }
+
+  private static class BreakingInputStream extends ByteArrayInputStream {
+    private final int breakOffPosition;
+
+    BreakingInputStream(byte[] content, int breakOffPosition) {
+      super(content);
+      this.breakOffPosition = breakOffPosition;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int len) {
+      if (pos >= breakOffPosition) {
+        throw new IllegalStateException("connection reset");
+      }
+      return super.read(buffer, offset, Math.min(len, breakOffPosition - pos));
+    }
+  }
+}
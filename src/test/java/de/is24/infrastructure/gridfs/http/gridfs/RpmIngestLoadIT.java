@@ -0,0 +1,142 @@
+package de.is24.infrastructure.gridfs.http.gridfs;
+
+import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
+import de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.uniqueRepoName;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.apache.commons.lang.ArrayUtils.addAll;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+
+/**
+ * Uploads RPMs concurrently and pauses all of them in the middle of the payload, to measure the heap retained per
+ * upload, then measures the throughput of the rest of the uploads. The former mark/reset ingest retained at least
+ * 16MB per upload.
+ */
+@Category(LocalExecutionOnly.class)
+public class RpmIngestLoadIT {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RpmIngestLoadIT.class);
+  private static final int MB = 1024 * 1024;
+  private static final int CONCURRENT_UPLOADS = 50;
+  private static final int PAYLOAD_SIZE = 8 * MB;
+  private static final int PAUSE_AFTER_PAYLOAD_BYTES = 2 * MB;
+  private static final long MAX_HEAP_PER_UPLOAD = 2 * MB;
+
+  @ClassRule
+  public static IntegrationTestContext context = new IntegrationTestContext();
+
+  @Test
+  public void concurrentUploadsRetainOnlyFewChunksOfHeap() throws Exception {
+    byte[] header = toByteArray(streamOf("valid.noarch.rpm"));
+    byte[] rpm = addAll(header, givenPayload());
+    int pausePosition = header.length + PAUSE_AFTER_PAYLOAD_BYTES;
+    CountDownLatch paused = new CountDownLatch(CONCURRENT_UPLOADS);
+    CountDownLatch proceed = new CountDownLatch(1);
+    long heapBefore = usedHeapAfterGc();
+
+    ExecutorService executor = newFixedThreadPool(CONCURRENT_UPLOADS);
+    List<Future<?>> uploads = new ArrayList<>();
+    for (int i = 0; i < CONCURRENT_UPLOADS; i++) {
+      String reponame = uniqueRepoName();
+      uploads.add(executor.submit(() -> {
+        context.gridFsService().storeRpm(reponame, new PausingInputStream(rpm, pausePosition, paused, proceed));
+        return null;
+      }));
+    }
+
+    assertThat(paused.await(1, MINUTES), is(true));
+
+    long heapPerUpload = (usedHeapAfterGc() - heapBefore) / CONCURRENT_UPLOADS;
+    long start = nanoTime();
+    proceed.countDown();
+    for (Future<?> upload : uploads) {
+      upload.get(5, MINUTES);
+    }
+
+    long millis = NANOSECONDS.toMillis(nanoTime() - start);
+    executor.shutdown();
+
+    long remainingBytes = (long) (rpm.length - pausePosition) * CONCURRENT_UPLOADS;
+    LOGGER.info("{} concurrent uploads: {} KB heap per upload, {} MB/s throughput", CONCURRENT_UPLOADS,
+      heapPerUpload / 1024, (remainingBytes * 1000) / (MB * Math.max(millis, 1)));
+    assertThat(heapPerUpload, lessThan(MAX_HEAP_PER_UPLOAD));
+  }
+
+  private static byte[] givenPayload() {
+    byte[] payload = new byte[PAYLOAD_SIZE];
+    new Random(PAYLOAD_SIZE).nextBytes(payload);
+    return payload;
+  }
+
+  private static long usedHeapAfterGc() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static class PausingInputStream extends ByteArrayInputStream {
+    private final int pausePosition;
+    private final CountDownLatch paused;
+    private final CountDownLatch proceed;
+    private boolean hasPaused;
+
+    PausingInputStream(byte[] content, int pausePosition, CountDownLatch paused, CountDownLatch proceed) {
+      super(content);
+      this.pausePosition = pausePosition;
+      this.paused = paused;
+      this.proceed = proceed;
+    }
+
+    @Override
+    public synchronized int read() {
+      byte[] single = new byte[1];
+      return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xff);
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int len) {
+      if (!hasPaused && (pos == pausePosition)) {
+        hasPaused = true;
+        pause();
+      }
+      if (!hasPaused && (pos + len > pausePosition)) {
+        return super.read(buffer, offset, pausePosition - pos);
+      }
+      return super.read(buffer, offset, len);
+    }
+
+    private void pause() {
+      paused.countDown();
+      try {
+        proceed.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("upload interrupted while paused", e);
+      }
+    }
+  }
+}
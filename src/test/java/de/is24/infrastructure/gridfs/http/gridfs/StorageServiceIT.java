@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.InputStream;
 import java.util.Date;
 
+import static de.is24.infrastructure.gridfs.http.domain.RepodataCompression.BZIP2;
 import static de.is24.infrastructure.gridfs.http.mongo.DatabaseStructure.MARKED_AS_DELETED_KEY;
 import static de.is24.infrastructure.gridfs.http.storage.StorageTestUtils.METADATA_PATH;
 import static de.is24.infrastructure.gridfs.http.storage.StorageTestUtils.PRIMARY_XMl_PATH;
@@ -36,6 +37,7 @@ import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
 import static org.springframework.data.mongodb.core.query.Query.query;
 import static org.springframework.data.mongodb.gridfs.GridFsCriteria.whereFilename;
 
@@ -220,6 +222,41 @@ public class StorageServiceIT {
     context.gridFsService().storeRpm(reponame, streamOf(VALID_NOARCH_RPM));
   }
 
+  @Test
+  public void storeRpmWithExpectedPathSizeAndChecksum() throws Exception {
+    String reponame = uniqueRepoName();
+
+    context.gridFsService().storeRpm(reponame, streamOf(VALID_NOARCH_RPM), reponame + VALID_NOARCH_RPM_PATH,
+      RPM_FILE_SIZE, VALID_NOARCH_RPM_SHA256.toUpperCase());
+
+    assertThat(findNoarchRpm(reponame).getChecksumSha256(), is(VALID_NOARCH_RPM_SHA256));
+  }
+
+  @Test
+  public void discardRpmWithWrongChecksum() throws Exception {
+    String reponame = uniqueRepoName();
+
+    try {
+      context.gridFsService().storeRpm(reponame, streamOf(VALID_NOARCH_RPM), null, -1, VALID_SOURCE_RPM_SHA256);
+      fail("BadRequestException expected");
+    } catch (BadRequestException e) {
+      assertThat(findNoarchRpm(reponame), nullValue());
+    }
+  }
+
+  @Test
+  public void discardRpmNotMatchingExpectedPath() throws Exception {
+    String reponame = uniqueRepoName();
+
+    try {
+      context.gridFsService().storeRpm(reponame, streamOf(VALID_NOARCH_RPM), reponame + "/noarch/other-1-1.noarch.rpm",
+        -1, null);
+      fail("BadRequestException expected");
+    } catch (BadRequestException e) {
+      assertThat(findNoarchRpm(reponame), nullValue());
+    }
+  }
+
   @Test(expected = BadRequestException.class)
   public void throwExceptionForBadReponameOnStore() throws Exception {
     String reponame = INVALIDE_REPO_NAME;
@@ -323,7 +360,7 @@ public class StorageServiceIT {
   public void storeRepodataAsBz2() throws Exception {
     String reponame = uniqueRepoName();
     Data data = context.gridFsService()
-      .storeRepodataDbBz2(reponame, new File(getClass().getResource("/test-for-bz2.txt").toURI()), "primary");
+      .storeRepodataDb(reponame, new File(getClass().getResource("/test-for-bz2.txt").toURI()), "primary", BZIP2);
     assertThat(data.getSize(), is(68L));
     assertThat(data.getChecksum().getChecksum(), is(TEST_FILE_BZ2_SHA256));
     assertThat(data.getOpenSize(), is(33L));
@@ -353,6 +390,7 @@ public class StorageServiceIT {
   }
 
   private void assertRepoWasModifiedAfterStartTime(String reponame) {
+    context.repoService().flushModifications();
     assertThat(context.repoEntriesRepository().findFirstByName(reponame).getLastModified().getTime(),
       greaterThan(startTime));
   }
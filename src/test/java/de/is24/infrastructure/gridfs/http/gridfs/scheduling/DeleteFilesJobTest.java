@@ -1,5 +1,7 @@
 package de.is24.infrastructure.gridfs.http.gridfs.scheduling;
 
+import de.is24.infrastructure.gridfs.http.gridfs.BlobStore;
+import de.is24.infrastructure.gridfs.http.gridfs.ResumableUploadService;
 import de.is24.infrastructure.gridfs.http.mongo.MongoPrimaryDetector;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
 import org.apache.commons.lang.time.DateUtils;
@@ -25,6 +27,12 @@ public class DeleteFilesJobTest {
   @Mock
   private FileStorageService fileStorageServiceMock;
 
+  @Mock
+  private ResumableUploadService resumableUploadServiceMock;
+
+  @Mock
+  private BlobStore blobStoreMock;
+
   private DeleteFilesJob deleteFilesJob;
 
   private final Date testStart = new Date();
@@ -32,6 +40,8 @@ public class DeleteFilesJobTest {
   @Before
   public void setUp() throws Exception {
     deleteFilesJob = new DeleteFilesJob(fileStorageServiceMock, primaryDetectorMock, CONFIGURED_WAIT);
+    deleteFilesJob.setResumableUploadService(resumableUploadServiceMock);
+    deleteFilesJob.setBlobStore(blobStoreMock);
   }
 
   @Test
@@ -40,7 +50,7 @@ public class DeleteFilesJobTest {
 
     deleteFilesJob.deleteFilesMarkedAsDeleted(testStart);
 
-    verifyZeroInteractions(fileStorageServiceMock);
+    verifyZeroInteractions(fileStorageServiceMock, resumableUploadServiceMock, blobStoreMock);
   }
 
   @Test
@@ -51,4 +61,22 @@ public class DeleteFilesJobTest {
 
     verify(fileStorageServiceMock).removeFilesMarkedAsDeletedBefore(DateUtils.addMinutes(testStart, -CONFIGURED_WAIT));
   }
+
+  @Test
+  public void removeAbandonedUploadSessionsOnPrimary() throws Exception {
+    when(primaryDetectorMock.isPrimary()).thenReturn(true);
+
+    deleteFilesJob.deleteFilesMarkedAsDeleted(testStart);
+
+    verify(resumableUploadServiceMock).removeAbandonedSessions(testStart);
+  }
+
+  @Test
+  public void removeChunksOfCollapsedFilesBeforeConfiguredWaitOnPrimary() throws Exception {
+    when(primaryDetectorMock.isPrimary()).thenReturn(true);
+
+    deleteFilesJob.deleteFilesMarkedAsDeleted(testStart);
+
+    verify(blobStoreMock).removeChunksCollapsedBefore(DateUtils.addMinutes(testStart, -CONFIGURED_WAIT));
+  }
 }
@@ -9,18 +9,42 @@ import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
+import static de.is24.infrastructure.gridfs.http.domain.RepodataCompression.BZIP2;
 import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.uniqueRepoName;
 import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_FILE_NAME;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_LOCATION;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.SOURCE_RPM_FILE_NAME;
 import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
 import static java.io.File.createTempFile;
 import static java.lang.System.currentTimeMillis;
+import static java.sql.DriverManager.getConnection;
+import static java.util.stream.Collectors.toSet;
+import static javax.xml.parsers.DocumentBuilderFactory.newInstance;
+import static org.apache.commons.io.IOUtils.copy;
 import static org.apache.commons.lang.time.DateUtils.addHours;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.endsWith;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
@@ -51,6 +75,9 @@ public class MetadataServiceIT {
     assertDbFile("primary");
     assertDbFile("other");
     assertDbFile("filelists");
+    assertXmlFile("primary");
+    assertXmlFile("other");
+    assertXmlFile("filelists");
     assertRepoMdXml();
     assertRepoMdXmlSignature();
 
@@ -89,10 +116,82 @@ public class MetadataServiceIT {
     assertTrue(context.fileStorageService().findById(sqliteFileId).isMarkedAsDeleted());
   }
 
+  @Test
+  public void applyChangesToDbsOfPreviousGeneration() throws Exception {
+    service.setIncrementalMinPackages(0);
+    try {
+      context.gridFsService().storeRpm(reponame, streamOf(COMPLEX_RPM_FILE_NAME));
+      context.gridFsService().storeRpm(reponame, streamOf("valid.noarch.rpm"));
+      service.generateYumMetadata(reponame);
+
+      long incrementalGenerations = service.getIncrementalGenerations();
+      context.gridFsService().delete(new FileDescriptor(reponame + "/" + COMPLEX_RPM_LOCATION));
+      context.gridFsService().storeRpm(reponame, streamOf(SOURCE_RPM_FILE_NAME));
+      service.generateYumMetadata(reponame);
+
+      assertThat(service.getIncrementalGenerations(), is(incrementalGenerations + 1));
+      assertThat(queryDb("primary", "select pkgId from packages"), is(checksumsOfEntries()));
+      assertThat(queryDb("filelists", "select pkgId from packages"), is(checksumsOfEntries()));
+      assertThat(queryDb("primary", "select pkgKey from files where pkgKey not in (select pkgKey from packages)"),
+        is(empty()));
+      assertThat(queryDb("other", "select pkgKey from changelog where pkgKey not in (select pkgKey from packages)"),
+        is(empty()));
+      assertThat(packageIdsOfXml("filelists"), is(checksumsOfEntries()));
+      assertThat(packageCountOfXml("primary"), is(Integer.toString(checksumsOfEntries().size())));
+    } finally {
+      service.setIncrementalMinPackages(1000);
+    }
+  }
+
+  @Test
+  public void removeDbsOfLeastRecentlyGeneratedReposAboveDiskLimit() throws Exception {
+    service.setIncrementalMinPackages(0);
+    service.setIncrementalMaxDiskMb(0);
+    try {
+      long evictedSnapshots = service.getEvictedSnapshots();
+      context.gridFsService().storeRpm(reponame, streamOf(COMPLEX_RPM_FILE_NAME));
+      service.generateYumMetadata(reponame);
+
+      assertThat(service.getSnapshotCount(), is(0));
+      assertThat(service.getEvictedSnapshots(), greaterThan(evictedSnapshots));
+    } finally {
+      service.setIncrementalMinPackages(1000);
+      service.setIncrementalMaxDiskMb(2048);
+    }
+  }
+
+  private Set<String> checksumsOfEntries() {
+    return context.yumEntriesRepository().findByRepo(reponame).stream()
+      .map(entry -> entry.getYumPackage().getChecksum().getChecksum()).collect(toSet());
+  }
+
+  private Set<String> queryDb(String type, String sql) throws IOException, SQLException {
+    FileStorageItem storageItem = findRepodataFile(type, ".sqlite.bz2");
+    File dbFile = createTempFile(reponame, ".sqlite");
+    try {
+      try(InputStream inputStream = new BZip2CompressorInputStream(storageItem.getInputStream());
+          OutputStream outputStream = new FileOutputStream(dbFile)) {
+        copy(inputStream, outputStream);
+      }
+
+      Set<String> values = new HashSet<>();
+      try(Connection connection = getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+          Statement statement = connection.createStatement();
+          ResultSet resultSet = statement.executeQuery(sql)) {
+        while (resultSet.next()) {
+          values.add(resultSet.getString(1));
+        }
+      }
+      return values;
+    } finally {
+      dbFile.delete();
+    }
+  }
+
   private Object givenSomeSqliteFileFromOneHourAgo(String reponame) throws IOException {
     String givenSqliteFilenameInfix = "other-123";
     context.gridFsService()
-    .storeRepodataDbBz2(reponame, createTempFile(reponame, "dummyfile"), givenSqliteFilenameInfix);
+    .storeRepodataDb(reponame, createTempFile(reponame, "dummyfile"), givenSqliteFilenameInfix, BZIP2);
 
     FileStorageItem file = findSqLiteFile(reponame, givenSqliteFilenameInfix);
     assertThat(file, notNullValue());
@@ -121,10 +220,43 @@ public class MetadataServiceIT {
   }
 
   private void assertDbFile(String type) {
-    FileStorageItem dbFile = context.fileStorageService().findByPrefix(reponame + "/repodata/" + type).get(0);
+    FileStorageItem dbFile = findRepodataFile(type, ".sqlite.bz2");
     String sha256 = dbFile.getChecksumSha256();
     assertThat(dbFile.getFilename(), endsWith(type + "-" + sha256 + ".sqlite.bz2"));
     assertFalse(dbFile.isMarkedAsDeleted());
   }
 
+  private void assertXmlFile(String type) throws Exception {
+    FileStorageItem xmlFile = findRepodataFile(type, ".xml.gz");
+    String sha256 = xmlFile.getChecksumSha256();
+    assertThat(xmlFile.getFilename(), endsWith(type + "-" + sha256 + ".xml.gz"));
+    Document document = parseXml(xmlFile);
+    assertThat(document.getDocumentElement().getAttribute("packages"), is("1"));
+    assertThat(document.getElementsByTagName("package").getLength(), is(1));
+  }
+
+  private Set<String> packageIdsOfXml(String type) throws Exception {
+    NodeList packages = parseXml(findRepodataFile(type, ".xml.gz")).getElementsByTagName("package");
+    Set<String> packageIds = new HashSet<>();
+    for (int i = 0; i < packages.getLength(); i++) {
+      packageIds.add(((Element) packages.item(i)).getAttribute("pkgid"));
+    }
+    return packageIds;
+  }
+
+  private String packageCountOfXml(String type) throws Exception {
+    return parseXml(findRepodataFile(type, ".xml.gz")).getDocumentElement().getAttribute("packages");
+  }
+
+  private Document parseXml(FileStorageItem xmlFile) throws Exception {
+    try(InputStream inputStream = new GZIPInputStream(xmlFile.getInputStream())) {
+      return newInstance().newDocumentBuilder().parse(inputStream);
+    }
+  }
+
+  private FileStorageItem findRepodataFile(String type, String suffix) {
+    return context.fileStorageService().findByPrefix(reponame + "/repodata/" + type + "-").stream()
+      .filter(item -> !item.isMarkedAsDeleted() && item.getFilename().endsWith(suffix)).findFirst().get();
+  }
+
 }
@@ -2,25 +2,39 @@ package de.is24.infrastructure.gridfs.http.metadata;
 
 import de.is24.infrastructure.gridfs.http.domain.RepoEntry;
 import de.is24.infrastructure.gridfs.http.domain.RepoType;
+import de.is24.infrastructure.gridfs.http.domain.RepodataCompression;
 import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
 import de.is24.infrastructure.gridfs.http.jaxb.Data;
 import de.is24.infrastructure.gridfs.http.metadata.generation.RepoMdGenerator;
 import de.is24.infrastructure.gridfs.http.repos.RepoCleaner;
 import de.is24.infrastructure.gridfs.http.repos.RepoService;
+import de.is24.infrastructure.gridfs.http.storage.ContentWriter;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
 import de.is24.util.monitoring.InApplicationMonitor;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.mongodb.core.query.Field;
 
 import java.io.File;
-
+import java.util.concurrent.CountDownLatch;
+
+import static de.is24.infrastructure.gridfs.http.domain.RepodataCompression.BZIP2;
+import static de.is24.infrastructure.gridfs.http.domain.RepodataCompression.GZIP;
+import static de.is24.infrastructure.gridfs.http.domain.RepodataCompression.ZSTD;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -28,10 +42,13 @@ import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
 public class MetadataServiceTest {
-  private static final String REGEX_REPODATA_SQLITE_FILES = "/repodata/.*sqlite.bz2";
+  private static final String REGEX_REPODATA_FILES = "/repodata/.*(sqlite|xml)\\.(bz2|gz|xz|zst)";
   private static final int OUTDATED_META_DATA_SURVIVAL_TIME = 5;
   public static final String ENTRIES_HASH = "entriesHash";
 
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
   @InjectMocks
   private MetadataService service;
   private String reponame;
@@ -56,7 +73,10 @@ public class MetadataServiceTest {
 
   @Before
   public void setup() throws Exception {
-    when(storageService.storeRepodataDbBz2(anyString(), any(File.class), anyString())).thenReturn(new Data());
+    when(storageService.storeRepodataDb(anyString(), any(File.class), anyString(), any(RepodataCompression.class)))
+      .thenReturn(new Data());
+    when(storageService.storeRepodataXml(anyString(), anyString(), any(RepodataCompression.class),
+        any(ContentWriter.class))).thenReturn(new Data());
 
     this.reponame = "any-reponame";
 
@@ -73,7 +93,7 @@ public class MetadataServiceTest {
   public void oldMetaDataFilesAreDeleted() throws Exception {
     this.service.generateYumMetadataIfNecessary(reponame);
 
-    verify(fileStorageService).markForDeletionByFilenameRegex(eq(reponame + REGEX_REPODATA_SQLITE_FILES));
+    verify(fileStorageService).markForDeletionByFilenameRegex(eq(reponame + REGEX_REPODATA_FILES));
   }
 
   @Test
@@ -90,4 +110,90 @@ public class MetadataServiceTest {
 
     verifyZeroInteractions(repoCleaner, storageService);
   }
+
+  @Test
+  public void storeAllDbsConcurrently() throws Exception {
+    CountDownLatch allStoring = new CountDownLatch(3);
+    when(storageService.storeRepodataDb(anyString(), any(File.class), anyString(), any(RepodataCompression.class)))
+      .thenAnswer(invocation -> {
+        allStoring.countDown();
+        assertThat(allStoring.await(10, SECONDS), is(true));
+        return new Data();
+      });
+
+    service.generateYumMetadataIfNecessary(reponame);
+
+    verify(storageService).storeRepodataDb(eq(reponame), any(File.class), eq("primary"), eq(BZIP2));
+    verify(storageService).storeRepodataDb(eq(reponame), any(File.class), eq("filelists"), eq(BZIP2));
+    verify(storageService).storeRepodataDb(eq(reponame), any(File.class), eq("other"), eq(BZIP2));
+  }
+
+  @Test
+  public void storeXmlNextToDbs() throws Exception {
+    service.generateYumMetadataIfNecessary(reponame);
+
+    verify(storageService).storeRepodataXml(eq(reponame), eq("primary"), eq(GZIP), any(ContentWriter.class));
+    verify(storageService).storeRepodataXml(eq(reponame), eq("filelists"), eq(GZIP), any(ContentWriter.class));
+    verify(storageService).storeRepodataXml(eq(reponame), eq("other"), eq(GZIP), any(ContentWriter.class));
+  }
+
+  @Test
+  public void storeNoXmlIfDisabled() throws Exception {
+    service.setXmlEnabled(false);
+
+    service.generateYumMetadataIfNecessary(reponame);
+
+    verify(storageService, never()).storeRepodataXml(anyString(), anyString(), any(RepodataCompression.class),
+      any(ContentWriter.class));
+  }
+
+  @Test
+  public void compressAllFilesWithCodecOfRepository() throws Exception {
+    repoEntry.setRepodataCompression(ZSTD);
+
+    service.generateYumMetadataIfNecessary(reponame);
+
+    verify(storageService).storeRepodataDb(eq(reponame), any(File.class), eq("primary"), eq(ZSTD));
+    verify(storageService).storeRepodataXml(eq(reponame), eq("primary"), eq(ZSTD), any(ContentWriter.class));
+  }
+
+  @Test
+  public void reuseXmlIfNoEntriesChanged() throws Exception {
+    service.setIncrementalMinPackages(0);
+
+    service.generateYumMetadata(reponame);
+    service.generateYumMetadata(reponame);
+
+    verify(yumEntriesRepository, times(6)).streamByRepo(eq(reponame), any(Field.class), any());
+    verify(storageService, times(2)).storeRepodataXml(eq(reponame), eq("primary"), eq(GZIP),
+      any(ContentWriter.class));
+  }
+
+  @Test
+  public void removeDbFilesLeftOverByPreviousRun() throws Exception {
+    File primaryDb = tmpDir.newFile("any-reponame-primary123456.sqlite");
+    File otherDbJournal = tmpDir.newFile("any-reponame-other42.sqlite-journal");
+    File filelistsXml = tmpDir.newFile("any-reponame-filelists987.xml");
+    File unrelated = tmpDir.newFile("unrelated.sqlite");
+    service.setTmpDir(tmpDir.getRoot());
+
+    service.removeLeftoverDbFiles();
+
+    assertThat(primaryDb.exists(), is(false));
+    assertThat(otherDbJournal.exists(), is(false));
+    assertThat(filelistsXml.exists(), is(false));
+    assertThat(unrelated.exists(), is(true));
+  }
+
+  @Test
+  public void removeDbFilesLeftOverInDefaultTmpDir() throws Exception {
+    service.setTmpDir(null);
+    File primaryDb = new File(new File(System.getProperty("java.io.tmpdir"), "yum-repo-server-metadata"),
+      "any-reponame-primary" + System.nanoTime() + ".sqlite");
+    assertThat(primaryDb.createNewFile(), is(true));
+
+    service.removeLeftoverDbFiles();
+
+    assertThat(primaryDb.exists(), is(false));
+  }
 }
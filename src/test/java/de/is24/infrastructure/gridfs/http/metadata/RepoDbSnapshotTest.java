@@ -0,0 +1,99 @@
+package de.is24.infrastructure.gridfs.http.metadata;
+
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackage;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageChecksum;
+import de.is24.infrastructure.gridfs.http.domain.yum.YumPackageLocation;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static de.is24.infrastructure.gridfs.http.metadata.YumEntriesRepositoryImpl.fingerprintOf;
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+
+public class RepoDbSnapshotTest {
+  private YumEntry first;
+  private YumEntry second;
+  private RepoDbSnapshot snapshot;
+
+  @Before
+  public void setUp() throws Exception {
+    first = givenEntry("1111", "noarch/first-1.0-1.noarch.rpm");
+    second = givenEntry("2222", "noarch/second-1.0-1.noarch.rpm");
+    snapshot = RepoDbSnapshot.of(fingerprintsOf(first, second));
+  }
+
+  @Test
+  public void findNoChangesForSameEntries() throws Exception {
+    Map<ObjectId, String> fingerprints = fingerprintsOf(first, second);
+
+    assertThat(snapshot.findRemoved(fingerprints), is(empty()));
+    assertThat(snapshot.findAdded(fingerprints).keySet(), is(empty()));
+  }
+
+  @Test
+  public void findChangedEntryAsRemovedAndAdded() throws Exception {
+    YumEntry third = givenEntry("3333", "noarch/third-1.0-1.noarch.rpm");
+    YumEntry changedSecond = new YumEntry(second.getId(), second.getRepo(), givenEntry("4444",
+      "noarch/second-1.0-1.noarch.rpm").getYumPackage());
+    Map<ObjectId, String> fingerprints = fingerprintsOf(changedSecond, third);
+
+    assertThat(snapshot.findRemoved(fingerprints), containsInAnyOrder(first.getId(), second.getId()));
+    assertThat(snapshot.findAdded(fingerprints).keySet(), containsInAnyOrder(second.getId(), third.getId()));
+  }
+
+  @Test
+  public void numberAddedEntriesAfterTheLastPkgKey() throws Exception {
+    YumEntry third = givenEntry("3333", "noarch/third-1.0-1.noarch.rpm");
+
+    int secondPkgKey = snapshot.getPkgKey(second);
+
+    assertThat(snapshot.remove(asList(second.getId())), contains(secondPkgKey));
+    snapshot.add(fingerprintsOf(third));
+    assertThat(snapshot.getPkgKey(third), is(3));
+    assertThat(snapshot.size(), is(2));
+  }
+
+  @Test
+  public void numberEntriesInOrderOfTheirIds() throws Exception {
+    assertThat(snapshot.getPkgKey(first), is(1));
+    assertThat(snapshot.getPkgKey(second), is(2));
+  }
+
+  @Test
+  public void giveNoPkgKeyToEntryChangedSinceSnapshot() throws Exception {
+    YumEntry changedSecond = new YumEntry(second.getId(), second.getRepo(), givenEntry("4444",
+      "noarch/second-1.0-1.noarch.rpm").getYumPackage());
+
+    assertThat(snapshot.getPkgKey(changedSecond), nullValue());
+    assertThat(snapshot.getPkgKey(givenEntry("5555", "noarch/fifth-1.0-1.noarch.rpm")), nullValue());
+  }
+
+  private static Map<ObjectId, String> fingerprintsOf(YumEntry... entries) {
+    Map<ObjectId, String> fingerprints = new HashMap<>();
+    for (YumEntry entry : entries) {
+      fingerprints.put(entry.getId(), fingerprintOf(entry));
+    }
+    return fingerprints;
+  }
+
+  private static YumEntry givenEntry(String checksum, String location) {
+    YumPackageLocation packageLocation = new YumPackageLocation();
+    packageLocation.setHref(location);
+
+    YumPackage yumPackage = new YumPackage();
+    yumPackage.setChecksum(new YumPackageChecksum("sha256", checksum));
+    yumPackage.setLocation(packageLocation);
+    return new YumEntry(new ObjectId(), "any-repo", yumPackage);
+  }
+}
@@ -0,0 +1,115 @@
+package de.is24.infrastructure.gridfs.http.metadata.generation;
+
+import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.uniqueRepoName;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_FILE_NAME;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
+import static java.io.File.createTempFile;
+import static java.lang.System.nanoTime;
+import static java.sql.DriverManager.getConnection;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+/**
+ * Compares the bulk load of {@link DbGenerator#createDb} with writing the same packages into a database which already
+ * has its indexes and a journal, as {@link DbGenerator#updateDb} does, for repositories of 1k, 10k and 50k packages.
+ */
+@Category(LocalExecutionOnly.class)
+public class DbGeneratorBulkLoadIT {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DbGeneratorBulkLoadIT.class);
+  private static final List<Integer> REPO_SIZES = asList(1000, 10000, 50000);
+
+  @ClassRule
+  public static IntegrationTestContext context = new IntegrationTestContext();
+
+  private static YumEntry template;
+  private File dbFile;
+
+  @BeforeClass
+  public static void storeTemplateRpm() throws Exception {
+    String reponame = uniqueRepoName();
+    context.gridFsService().storeRpm(reponame, streamOf(COMPLEX_RPM_FILE_NAME));
+    template = context.yumEntriesRepository().findByRepo(reponame).get(0);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    dbFile = createTempFile("bulk-load-it", ".sqlite");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    dbFile.delete();
+  }
+
+  @Test
+  public void compareBulkLoadWithIndexedLoad() throws Exception {
+    for (DbGenerator generator : asList(new PrimaryDbGenerator(), new FileListsGenerator(), new OtherDbGenerator())) {
+      for (int repoSize : REPO_SIZES) {
+        List<YumEntry> entries = givenEntries(repoSize);
+
+        long start = nanoTime();
+        generator.createDb(dbFile, entries);
+        long bulkLoadNanos = nanoTime() - start;
+        assertThat(countPackages(), is(repoSize));
+
+        generator.createDb(dbFile, emptyList());
+        start = nanoTime();
+        generator.updateDb(dbFile, emptyList(), writer -> {
+          int pkgKey = 1;
+          for (YumEntry entry : entries) {
+            writer.write(pkgKey++, entry);
+          }
+        });
+        long indexedLoadNanos = nanoTime() - start;
+        assertThat(countPackages(), is(repoSize));
+
+        LOGGER.info("{} db with {} packages: bulk load {} packages/s, indexed load {} packages/s", generator.getName(),
+          repoSize, throughput(repoSize, bulkLoadNanos), throughput(repoSize, indexedLoadNanos));
+      }
+    }
+  }
+
+  private int countPackages() throws Exception {
+    try(Connection connection = getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("select count(*) from packages")) {
+      return resultSet.getInt(1);
+    }
+  }
+
+  private static List<YumEntry> givenEntries(int count) {
+    List<YumEntry> entries = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      entries.add(new YumEntry(new ObjectId(), template.getRepo(), template.getYumPackage()));
+    }
+    return entries;
+  }
+
+  private static long throughput(int packages, long nanos) {
+    return (packages * 1000L) / Math.max(NANOSECONDS.toMillis(nanos), 1);
+  }
+}
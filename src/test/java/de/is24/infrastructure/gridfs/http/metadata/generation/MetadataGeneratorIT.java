@@ -1,6 +1,9 @@
 package de.is24.infrastructure.gridfs.http.metadata.generation;
 
 import de.is24.infrastructure.gridfs.http.category.LocalExecutionOnly;
+import de.is24.infrastructure.gridfs.http.domain.YumEntry;
+import de.is24.infrastructure.gridfs.http.metadata.generation.DbGenerator.EntrySource;
+import de.is24.infrastructure.gridfs.http.metadata.generation.XmlGenerator.PackagesWriter;
 import de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext;
 import org.junit.After;
 import org.junit.Before;
@@ -8,8 +11,14 @@ import org.junit.BeforeClass;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
+import org.springframework.data.mongodb.core.query.Field;
+import org.w3c.dom.Element;
 
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -20,14 +29,22 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static de.is24.infrastructure.gridfs.http.metadata.generation.FileListsXmlGenerator.FILELISTS_NAMESPACE;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.OtherXmlGenerator.OTHER_NAMESPACE;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryXmlGenerator.COMMON_NAMESPACE;
+import static de.is24.infrastructure.gridfs.http.metadata.generation.PrimaryXmlGenerator.RPM_NAMESPACE;
 import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.uniqueRepoName;
 import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_FILE_NAME;
 import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_FILE_NAMES_WITHOUT_ROOT_DIR;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_LICENSE;
+import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.COMPLEX_RPM_NAME;
 import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.streamOf;
 import static java.io.File.createTempFile;
 import static java.sql.DriverManager.getConnection;
 import static java.util.Arrays.asList;
+import static java.util.Arrays.stream;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
@@ -111,6 +128,135 @@ public class MetadataGeneratorIT {
     assertDb(dbFile, openSqLiteFile(VALID_OTHER_SQLITE), OTHER_IGNORED_COLUMNS);
   }
 
+  @Test
+  public void createPrimaryDbFromStreamedEntriesWithSelectedFields() throws Exception {
+    String reponame = uniqueRepoName();
+    context.gridFsService().storeRpm(reponame, streamOf(COMPLEX_RPM_FILE_NAME));
+    generator = new PrimaryDbGenerator();
+    generator.createDb(dbFile, streamedEntries(reponame));
+    assertDb(dbFile, openSqLiteFile(VALID_PRIMARY_SQLITE), PRIMARY_IGNORED_COLUMNS);
+  }
+
+  @Test
+  public void createFilelistsDbFromStreamedEntriesWithSelectedFields() throws Exception {
+    String reponame = uniqueRepoName();
+    context.gridFsService().storeRpm(reponame, streamOf(COMPLEX_RPM_FILE_NAME));
+    generator = new FileListsGenerator();
+    generator.createDb(dbFile, streamedEntries(reponame));
+    assertThat(asList(removeRootDirSequence(readFileNameFromDb()).split("/")),
+      is(COMPLEX_RPM_FILE_NAMES_WITHOUT_ROOT_DIR));
+  }
+
+  @Test
+  public void createOtherDbFromStreamedEntriesWithSelectedFields() throws Exception {
+    String reponame = uniqueRepoName();
+    context.gridFsService().storeRpm(reponame, streamOf(COMPLEX_RPM_FILE_NAME));
+    generator = new OtherDbGenerator();
+    generator.createDb(dbFile, streamedEntries(reponame));
+    assertDb(dbFile, openSqLiteFile(VALID_OTHER_SQLITE), OTHER_IGNORED_COLUMNS);
+  }
+
+  @Test
+  public void createPrimaryXml() throws Exception {
+    String reponame = uniqueRepoName();
+    context.gridFsService().storeRpm(reponame, streamOf(COMPLEX_RPM_FILE_NAME));
+    YumEntry entry = context.yumEntriesRepository().findByRepo(reponame).get(0);
+
+    Element metadata = generateXml(new PrimaryXmlGenerator(), reponame);
+
+    assertThat(metadata.getNamespaceURI(), is(COMMON_NAMESPACE));
+    assertThat(metadata.getAttribute("packages"), is("1"));
+    assertThat(textOf(metadata, COMMON_NAMESPACE, "name"), is(COMPLEX_RPM_NAME));
+    assertThat(textOf(metadata, COMMON_NAMESPACE, "checksum"), is(entry.getYumPackage().getChecksum().getChecksum()));
+    assertThat(textOf(metadata, RPM_NAMESPACE, "license"), is(COMPLEX_RPM_LICENSE));
+    Element provides = (Element) metadata.getElementsByTagNameNS(RPM_NAMESPACE, "provides").item(0);
+    assertThat(provides.getElementsByTagNameNS(RPM_NAMESPACE, "entry").getLength(),
+      is(entry.getYumPackage().getPackageFormat().getProvides().size()));
+  }
+
+  @Test
+  public void createFilelistsXml() throws Exception {
+    String reponame = uniqueRepoName();
+    context.gridFsService().storeRpm(reponame, streamOf(COMPLEX_RPM_FILE_NAME));
+    YumEntry entry = context.yumEntriesRepository().findByRepo(reponame).get(0);
+
+    Element filelists = generateXml(new FileListsXmlGenerator(), reponame);
+
+    assertThat(filelists.getNamespaceURI(), is(FILELISTS_NAMESPACE));
+    Element yumPackage = (Element) filelists.getElementsByTagNameNS(FILELISTS_NAMESPACE, "package").item(0);
+    assertThat(yumPackage.getAttribute("pkgid"), is(entry.getYumPackage().getChecksum().getChecksum()));
+    assertThat(yumPackage.getAttribute("name"), is(COMPLEX_RPM_NAME));
+    assertThat(filelists.getElementsByTagNameNS(FILELISTS_NAMESPACE, "file").getLength(),
+      is(stream(entry.getYumPackage().getPackageDirs()).mapToInt(dir -> dir.getFiles().size()).sum()));
+  }
+
+  @Test
+  public void createOtherXml() throws Exception {
+    String reponame = uniqueRepoName();
+    context.gridFsService().storeRpm(reponame, streamOf(COMPLEX_RPM_FILE_NAME));
+    YumEntry entry = context.yumEntriesRepository().findByRepo(reponame).get(0);
+
+    Element otherdata = generateXml(new OtherXmlGenerator(), reponame);
+
+    assertThat(otherdata.getNamespaceURI(), is(OTHER_NAMESPACE));
+    assertThat(otherdata.getElementsByTagNameNS(OTHER_NAMESPACE, "changelog").getLength(),
+      is(entry.getYumPackage().getChangeLogs().size()));
+  }
+
+  @Test
+  public void removeCharactersNotAllowedInXml() throws Exception {
+    assertThat(XmlGenerator.text("valid\001 text\013"), is("valid text"));
+    assertThat(XmlGenerator.text(null), is(""));
+  }
+
+  private Element generateXml(XmlGenerator xmlGenerator, String reponame) throws Exception {
+    Field fields = new Field();
+    xmlGenerator.selectFields(fields);
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    File packagesFile = createTempFile(reponame + "-" + xmlGenerator.getName(), ".xml");
+    try {
+      PackagesWriter writer = xmlGenerator.openPackages(packagesFile);
+      try {
+        context.yumEntriesRepository().streamByRepo(reponame, fields, entry -> {
+          try {
+            writer.write(entry);
+          } catch (IOException e) {
+            throw new IllegalStateException(e);
+          }
+        });
+      } finally {
+        writer.close();
+      }
+      xmlGenerator.writeDocument(outputStream, writer.getPackages());
+    } finally {
+      packagesFile.delete();
+    }
+
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    return factory.newDocumentBuilder().parse(new ByteArrayInputStream(outputStream.toByteArray()))
+      .getDocumentElement();
+  }
+
+  private static String textOf(Element element, String namespace, String localName) {
+    return element.getElementsByTagNameNS(namespace, localName).item(0).getTextContent();
+  }
+
+  private EntrySource streamedEntries(String reponame) {
+    Field fields = new Field();
+    generator.selectFields(fields);
+    return writer -> {
+      AtomicInteger pkgKey = new AtomicInteger();
+      context.yumEntriesRepository().streamByRepo(reponame, fields, entry -> {
+        try {
+          writer.write(pkgKey.incrementAndGet(), entry);
+        } catch (SQLException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+    };
+  }
+
   private String removeRootDirSequence(final String fileNamesFromDb) {
     return fileNamesFromDb.replaceAll(SPECIAL_ROOT_DIR_SEQUENCE, FILELIST_SEPARATOR);
   }
@@ -2,10 +2,14 @@ package de.is24.infrastructure.gridfs.http.mongo;
 
 import com.mongodb.Mongo;
 import com.mongodb.gridfs.GridFS;
+import de.is24.infrastructure.gridfs.http.gridfs.BZip2Compressor;
+import de.is24.infrastructure.gridfs.http.gridfs.BlobStore;
+import de.is24.infrastructure.gridfs.http.gridfs.GridFsChunkWriter;
 import de.is24.infrastructure.gridfs.http.gridfs.GridFsFileStorageService;
 import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
 import de.is24.infrastructure.gridfs.http.metadata.MetadataService;
 import de.is24.infrastructure.gridfs.http.metadata.RepoEntriesRepository;
+import de.is24.infrastructure.gridfs.http.metadata.RepoEntriesRepositoryImpl;
 import de.is24.infrastructure.gridfs.http.metadata.YumEntriesHashCalculator;
 import de.is24.infrastructure.gridfs.http.metadata.YumEntriesRepository;
 import de.is24.infrastructure.gridfs.http.metadata.YumEntriesRepositoryImpl;
@@ -36,6 +40,9 @@ public class IntegrationTestContext extends MongoTestContext {
 
   private MongoTemplate mongoTemplate;
   private FileStorageService fileStorageService;
+  private BlobStore blobStore;
+  private GridFsChunkWriter chunkWriter;
+  private BZip2Compressor bzip2Compressor;
   private GridFS gridFs;
   private GridFsTemplate gridFsTemplate;
   private StorageService storageService;
@@ -59,11 +66,38 @@ public class IntegrationTestContext extends MongoTestContext {
 
   public FileStorageService fileStorageService() {
     if (fileStorageService == null) {
-      fileStorageService = new GridFsFileStorageService(gridFs(), gridFsTemplate(), mongoTemplate());
+      GridFsFileStorageService gridFsFileStorageService = new GridFsFileStorageService(gridFs(), gridFsTemplate(),
+        mongoTemplate());
+      gridFsFileStorageService.setBlobStore(blobStore());
+      gridFsFileStorageService.setChunkWriter(chunkWriter());
+      gridFsFileStorageService.setBZip2Compressor(bzip2Compressor());
+      fileStorageService = gridFsFileStorageService;
     }
     return fileStorageService;
   }
 
+  public BlobStore blobStore() {
+    if (blobStore == null) {
+      blobStore = new BlobStore(mongoTemplate());
+      blobStore.setChunkWriter(chunkWriter());
+    }
+    return blobStore;
+  }
+
+  public GridFsChunkWriter chunkWriter() {
+    if (chunkWriter == null) {
+      chunkWriter = new GridFsChunkWriter("application/x-rpm=1024,application/xml=64", 4, 2, 0);
+    }
+    return chunkWriter;
+  }
+
+  public BZip2Compressor bzip2Compressor() {
+    if (bzip2Compressor == null) {
+      bzip2Compressor = new BZip2Compressor(0);
+    }
+    return bzip2Compressor;
+  }
+
   public StorageService gridFsService() {
     if (storageService == null) {
       storageService = new StorageService(fileStorageService(), yumEntriesRepository(),
@@ -95,7 +129,7 @@ public class IntegrationTestContext extends MongoTestContext {
 
   public RepoEntriesRepository repoEntriesRepository() {
     if (repoEntriesRepository == null) {
-      repoEntriesRepository = new MongoRepositoryFactory(mongoTemplate()).getRepository(RepoEntriesRepository.class);
+      repoEntriesRepository = new MongoRepositoryFactory(mongoTemplate()).getRepository(RepoEntriesRepository.class, new RepoEntriesRepositoryImpl(mongoTemplate()));
     }
     return repoEntriesRepository;
   }
@@ -122,6 +122,7 @@ public class RepoCleanerIT {
   }
 
   private void assertThatRepoEntryIsMarkedAsModified(long startTime) {
+    context.repoService().flushModifications();
     RepoEntry repoEntry = context.repoEntriesRepository().findFirstByName(reponame);
     assertThat(repoEntry.getLastModified().getTime(), greaterThan(startTime));
   }
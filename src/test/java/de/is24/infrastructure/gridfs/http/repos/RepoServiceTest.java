@@ -14,8 +14,12 @@ import static de.is24.infrastructure.gridfs.http.domain.RepoType.VIRTUAL;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -117,6 +121,18 @@ public class RepoServiceTest {
     verify(repository).save(entry);
   }
 
+  @Test
+  public void updateLastMetadataGenerationOfExistingRepoInPlace() throws Exception {
+    Date date = new Date();
+    when(repository.updateLastMetadataGeneration(ANY_REPONAME, date, "newHashOfEntries",
+      new Date(date.getTime() - 1000))).thenReturn(true);
+
+    service.updateLastMetadataGeneration(ANY_REPONAME, date, "newHashOfEntries");
+
+    verify(repository, never()).findFirstByName(anyString());
+    verify(repository, never()).save(any(RepoEntry.class));
+  }
+
   @Test
   public void activateSchedulingForRepo() throws Exception {
     RepoEntry repoEntry = createRepoEntry(STATIC);
@@ -219,6 +235,96 @@ public class RepoServiceTest {
     assertThat(service.getRepo(ANY_REPONAME, STATIC), is(entry));
   }
 
+  @Test
+  public void saveFirstModificationAtOnce() throws Exception {
+    service.createOrUpdate(ANY_REPONAME);
+
+    verify(repository).updateLastModifiedIfNewer(eq(ANY_REPONAME), any(Date.class));
+    verify(repository).save(any(RepoEntry.class));
+  }
+
+  @Test
+  public void updateFirstModificationOfExistingRepoInPlace() throws Exception {
+    when(repository.updateLastModifiedIfNewer(eq(ANY_REPONAME), any(Date.class))).thenReturn(true);
+
+    service.createOrUpdate(ANY_REPONAME);
+
+    verify(repository, never()).findFirstByName(anyString());
+    verify(repository, never()).save(any(RepoEntry.class));
+  }
+
+  @Test
+  public void coalesceFurtherModificationsUntilFlush() throws Exception {
+    when(repository.updateLastModifiedIfNewer(eq(ANY_REPONAME), any(Date.class))).thenReturn(true);
+    service.createOrUpdate(ANY_REPONAME);
+
+    service.createOrUpdate(ANY_REPONAME);
+    service.createOrUpdate(ANY_REPONAME);
+    service.createOrUpdate(ANY_REPONAME);
+    verify(repository, times(1)).updateLastModifiedIfNewer(anyString(), any(Date.class));
+    assertThat(service.getPendingModifications(), is(1));
+
+    service.flushModifications();
+
+    verify(repository, never()).save(any(RepoEntry.class));
+    verify(repository, times(2)).updateLastModifiedIfNewer(eq(ANY_REPONAME), any(Date.class));
+    assertThat(service.getCoalescedModifications(), is(2L));
+    assertThat(service.getFlushedModifications(), is(1L));
+    assertThat(service.getPendingModifications(), is(0));
+  }
+
+  @Test
+  public void flushBeforeMetadataUpdateIsChecked() throws Exception {
+    when(repository.updateLastModifiedIfNewer(eq(ANY_REPONAME), any(Date.class))).thenReturn(true);
+    service.createOrUpdate(ANY_REPONAME);
+    service.createOrUpdate(ANY_REPONAME);
+
+    service.needsMetadataUpdate(ANY_REPONAME);
+
+    verify(repository, times(2)).updateLastModifiedIfNewer(eq(ANY_REPONAME), any(Date.class));
+  }
+
+  @Test
+  public void saveModificationIfRepoWasDeletedMeanwhile() throws Exception {
+    service.createOrUpdate(ANY_REPONAME);
+    service.createOrUpdate(ANY_REPONAME);
+
+    service.flushModifications();
+
+    verify(repository, times(2)).save(any(RepoEntry.class));
+  }
+
+  @Test
+  public void keepModificationIfFlushFails() throws Exception {
+    when(repository.updateLastModifiedIfNewer(eq(ANY_REPONAME), any(Date.class)))
+      .thenReturn(true)
+      .thenThrow(new IllegalStateException("database not available"));
+    service.createOrUpdate(ANY_REPONAME);
+    service.createOrUpdate(ANY_REPONAME);
+
+    service.flushModifications();
+
+    assertThat(service.getPendingModifications(), is(1));
+  }
+
+  @Test
+  public void flushOtherReposIfFlushOfOneFails() throws Exception {
+    when(repository.updateLastModifiedIfNewer(eq(ANY_REPONAME), any(Date.class)))
+      .thenReturn(true)
+      .thenThrow(new IllegalStateException("database not available"));
+    when(repository.updateLastModifiedIfNewer(eq("other-reponame"), any(Date.class))).thenReturn(true);
+    service.createOrUpdate(ANY_REPONAME);
+    service.createOrUpdate(ANY_REPONAME);
+    service.createOrUpdate("other-reponame");
+    service.createOrUpdate("other-reponame");
+
+    service.flushModifications();
+
+    verify(repository, times(2)).updateLastModifiedIfNewer(eq("other-reponame"), any(Date.class));
+    assertThat(service.getFlushedModifications(), is(1L));
+    assertThat(service.getPendingModifications(), is(1));
+  }
+
   //Issue #11
   @Test(expected = BadRequestException.class)
   public void shouldNotCreateNullStaticRepoNames() {
@@ -0,0 +1,183 @@
+package de.is24.infrastructure.gridfs.http.web;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+
+import static com.google.common.util.concurrent.Uninterruptibles.awaitUninterruptibly;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.springframework.http.HttpStatus.PARTIAL_CONTENT;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM;
+
+
+public class AsyncFileDeliveryTest {
+  private static final byte[] CONTENT = "some rpm content".getBytes();
+
+  private final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/repo/a/noarch/a.rpm");
+  private final MockHttpServletResponse response = new MockHttpServletResponse();
+  private AsyncFileDelivery delivery;
+
+  @After
+  public void tearDown() {
+    if (delivery != null) {
+      delivery.shutdown();
+    }
+  }
+
+  @Test
+  public void deliversSynchronouslyWhenDisabled() {
+    delivery = new AsyncFileDelivery(0, 10, 60, 5);
+    request.setAsyncSupported(true);
+
+    ResponseEntity<Resource> entity = givenEntity();
+    assertThat(delivery.deliver(entity, request, response), sameInstance(entity));
+    assertThat(request.isAsyncStarted(), is(false));
+  }
+
+  @Test
+  public void deliversSynchronouslyWhenAsyncIsNotSupported() {
+    delivery = new AsyncFileDelivery(2, 10, 60, 5);
+    request.setAsyncSupported(false);
+
+    ResponseEntity<Resource> entity = givenEntity();
+    assertThat(delivery.deliver(entity, request, response), sameInstance(entity));
+  }
+
+  @Test
+  public void deliversBodyOnDeliveryThread() throws Exception {
+    delivery = new AsyncFileDelivery(2, 10, 60, 5);
+    request.setAsyncSupported(true);
+
+    assertThat(delivery.deliver(givenEntity(), request, response), nullValue());
+    waitForCompletion();
+
+    assertThat(response.getStatus(), is(PARTIAL_CONTENT.value()));
+    assertThat(response.getContentAsByteArray(), is(CONTENT));
+    assertThat(response.getHeader("Content-Range"), is("bytes 0-15/16"));
+    assertThat(response.getContentType(), is(APPLICATION_OCTET_STREAM.toString()));
+    assertThat(delivery.getActiveDeliveries(), is(0));
+  }
+
+  @Test
+  public void rejectsDeliveriesWhenQueueIsFull() throws Exception {
+    delivery = new AsyncFileDelivery(1, 1, 60, 5);
+    CountDownLatch released = new CountDownLatch(1);
+    MockHttpServletRequest runningRequest = givenAsyncRequest();
+    MockHttpServletRequest queuedRequest = givenAsyncRequest();
+    request.setAsyncSupported(true);
+    try {
+      delivery.deliver(givenBlockingEntity(released), runningRequest, new MockHttpServletResponse());
+      delivery.deliver(givenEntity(), queuedRequest, new MockHttpServletResponse());
+
+      assertThat(delivery.deliver(givenEntity(), request, response), nullValue());
+      assertThat(response.getStatus(), is(SERVICE_UNAVAILABLE.value()));
+      assertThat(response.getHeader("Retry-After"), is("5"));
+      waitForCompletion(request);
+    } finally {
+      released.countDown();
+    }
+    waitForCompletion(runningRequest);
+    waitForCompletion(queuedRequest);
+  }
+
+  @Test
+  public void doesNotTouchResponseOfQueuedDeliveryAfterTimeout() throws Exception {
+    delivery = new AsyncFileDelivery(1, 10, 60, 5);
+    CountDownLatch released = new CountDownLatch(1);
+    MockHttpServletRequest runningRequest = givenAsyncRequest();
+    request.setAsyncSupported(true);
+    try {
+      delivery.deliver(givenBlockingEntity(released), runningRequest, new MockHttpServletResponse());
+      delivery.deliver(givenEntity(), request, response);
+      assertThat(delivery.getQueuedDeliveries(), is(1));
+
+      timeout(request);
+
+      assertThat(delivery.getQueuedDeliveries(), is(0));
+      assertThat(request.isAsyncStarted(), is(false));
+    } finally {
+      released.countDown();
+    }
+    waitForCompletion(runningRequest);
+    assertThat(response.isCommitted(), is(false));
+    assertThat(response.getContentAsByteArray().length, is(0));
+  }
+
+  @Test
+  public void stopsWritingRunningDeliveryAfterTimeout() throws Exception {
+    delivery = new AsyncFileDelivery(1, 10, 60, 5);
+    CountDownLatch released = new CountDownLatch(1);
+    request.setAsyncSupported(true);
+
+    delivery.deliver(givenBlockingEntity(released), request, response);
+    timeout(request);
+    released.countDown();
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while ((delivery.getActiveDeliveries() > 0) && (System.currentTimeMillis() < deadline)) {
+      Thread.sleep(10);
+    }
+    assertThat(delivery.getActiveDeliveries(), is(0));
+    assertThat(response.getContentAsByteArray().length, is(0));
+  }
+
+  private void waitForCompletion() throws InterruptedException {
+    waitForCompletion(request);
+  }
+
+  private static void waitForCompletion(MockHttpServletRequest request) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (request.isAsyncStarted() && (System.currentTimeMillis() < deadline)) {
+      Thread.sleep(10);
+    }
+    assertThat(request.isAsyncStarted(), is(false));
+  }
+
+  private static void timeout(MockHttpServletRequest request) throws IOException {
+    MockAsyncContext asyncContext = (MockAsyncContext) request.getAsyncContext();
+    for (AsyncListener listener : asyncContext.getListeners()) {
+      listener.onTimeout(new AsyncEvent(asyncContext));
+    }
+  }
+
+  private static MockHttpServletRequest givenAsyncRequest() {
+    MockHttpServletRequest asyncRequest = new MockHttpServletRequest("GET", "/repo/a/noarch/b.rpm");
+    asyncRequest.setAsyncSupported(true);
+    return asyncRequest;
+  }
+
+  private ResponseEntity<Resource> givenBlockingEntity(CountDownLatch released) {
+    Resource resource = new ByteArrayResource(CONTENT) {
+      @Override
+      public InputStream getInputStream() {
+        awaitUninterruptibly(released);
+        return super.getInputStream();
+      }
+    };
+    return new ResponseEntity<>(resource, givenEntity().getHeaders(), PARTIAL_CONTENT);
+  }
+
+  private ResponseEntity<Resource> givenEntity() {
+    HttpHeaders headers = new HttpHeaders();
+    headers.set("Content-Range", "bytes 0-15/16");
+    headers.setContentType(APPLICATION_OCTET_STREAM);
+    headers.setContentLength(CONTENT.length);
+    return new ResponseEntity<>(new ByteArrayResource(CONTENT), headers, PARTIAL_CONTENT);
+  }
+}
@@ -1,6 +1,8 @@
 package de.is24.infrastructure.gridfs.http.web.controller;
 
+import de.is24.infrastructure.gridfs.http.gridfs.BulkUploadService;
 import de.is24.infrastructure.gridfs.http.gridfs.GridFsFileStorageService;
+import de.is24.infrastructure.gridfs.http.gridfs.ResumableUploadService;
 import de.is24.infrastructure.gridfs.http.gridfs.StorageService;
 import de.is24.infrastructure.gridfs.http.metadata.MetadataService;
 import de.is24.infrastructure.gridfs.http.repos.RepoService;
@@ -28,6 +30,10 @@ public abstract class AbstractControllerTest {
   protected MetadataService metadataService;
   @Mock
   protected RepoService repoService;
+  @Mock
+  protected BulkUploadService bulkUploadService;
+  @Mock
+  protected ResumableUploadService resumableUploadService;
   
   protected MockMvc mockMvc;
 
@@ -37,7 +43,9 @@ public abstract class AbstractControllerTest {
                 new FileController(storageService, fileStorageService),
                 new MetadataController(metadataService, repoService),
                 new RepositoryController(storageService, repoService),
-                new PropagationController(storageService)
+                new PropagationController(storageService),
+                new BulkUploadController(bulkUploadService),
+                new ResumableUploadController(resumableUploadService)
     ).build();
   }
 
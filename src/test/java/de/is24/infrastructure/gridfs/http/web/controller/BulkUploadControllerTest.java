@@ -0,0 +1,70 @@
+package de.is24.infrastructure.gridfs.http.web.controller;
+
+import de.is24.infrastructure.gridfs.http.gridfs.BulkUploadFileResult;
+import de.is24.infrastructure.gridfs.http.gridfs.BulkUploadResult;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.InputStream;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.fileUpload;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+
+public class BulkUploadControllerTest extends AbstractControllerTest {
+  private static final String REPONAME = "bulk-repo";
+  private static final byte[] CONTENT = "rpm".getBytes();
+  private static final MediaType APPLICATION_X_TAR = MediaType.parseMediaType("application/x-tar");
+
+  @Test
+  public void tarIsStreamedAndAnsweredWithCreated() throws Exception {
+    when(bulkUploadService.storeRpmsFromTar(eq(REPONAME), any(InputStream.class)))
+      .thenReturn(new BulkUploadResult(REPONAME));
+
+    mockMvc.perform(post("/repo/" + REPONAME + "/bulk").contentType(APPLICATION_X_TAR).content(CONTENT))
+    .andExpect(status().isCreated())
+    .andExpect(content().string(containsString("\"repo\":\"" + REPONAME + "\"")));
+  }
+
+  @Test
+  public void failedFilesAreAnsweredWithMultiStatus() throws Exception {
+    BulkUploadResult result = new BulkUploadResult(REPONAME);
+    result.add(BulkUploadFileResult.failed("broken.rpm", 400, "Could not read rpm header."));
+    when(bulkUploadService.storeRpmsFromTar(eq(REPONAME), any(InputStream.class))).thenReturn(result);
+
+    mockMvc.perform(post("/repo/" + REPONAME + "/bulk").contentType(APPLICATION_X_TAR).content(CONTENT))
+    .andExpect(status().is(207))
+    .andExpect(content().string(containsString("Could not read rpm header.")));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void allPartsOfMultipartRequestAreUploaded() throws Exception {
+    when(bulkUploadService.storeRpms(eq(REPONAME), anyListOf(MultipartFile.class)))
+      .thenReturn(new BulkUploadResult(REPONAME));
+
+    mockMvc.perform(fileUpload("/repo/" + REPONAME + "/bulk")
+      .file(new MockMultipartFile("rpmFile", "a.rpm", null, CONTENT))
+      .file(new MockMultipartFile("rpmFile", "b.rpm", null, CONTENT))
+      .file(new MockMultipartFile("other", "c.rpm", null, CONTENT)))
+    .andExpect(status().isCreated());
+
+    ArgumentCaptor<List> files = ArgumentCaptor.forClass(List.class);
+    verify(bulkUploadService).storeRpms(eq(REPONAME), files.capture());
+    assertThat(files.getValue().size(), is(3));
+  }
+}
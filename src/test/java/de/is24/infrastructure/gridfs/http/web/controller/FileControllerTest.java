@@ -1,33 +1,55 @@
 package de.is24.infrastructure.gridfs.http.web.controller;
 
+import de.is24.infrastructure.gridfs.http.cache.CachedFileStorageItem;
+import de.is24.infrastructure.gridfs.http.cache.LocalDiskCache;
 import de.is24.infrastructure.gridfs.http.exception.GridFSFileNotFoundException;
+import de.is24.infrastructure.gridfs.http.governor.DeliveryGovernor;
 import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
 import de.is24.infrastructure.gridfs.http.storage.FileStorageItem;
+import de.is24.infrastructure.gridfs.http.utils.HostName;
+import de.is24.infrastructure.gridfs.http.utils.HostnameResolver;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.junit.Rule;
 import org.junit.Test;
-import org.springframework.core.io.InputStreamResource;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.Resource;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.ResultMatcher;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
+import javax.servlet.http.HttpServletRequest;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.Date;
 
+import static org.apache.commons.io.FileUtils.writeStringToFile;
 import static org.apache.commons.lang.RandomStringUtils.random;
 import static org.apache.commons.lang.StringUtils.repeat;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.http.MediaType.valueOf;
 import static org.springframework.test.util.AssertionErrors.assertEquals;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
 
 
 public class FileControllerTest extends AbstractControllerTest {
@@ -41,6 +63,14 @@ public class FileControllerTest extends AbstractControllerTest {
 
 
   public static final String CONTENT_WITH_200_CHARS = random(200, "a");
+  private static final String DIGITS_WITH_200_CHARS = repeat("0123456789", 20);
+  private static final String SHA256 = repeat("ab", 32);
+  private static final String ETAG = "\"" + SHA256 + "\"";
+  private static final long UPLOAD_DATE = 1400000000000L;
+  private static final String UPLOAD_DATE_HEADER = "Tue, 13 May 2014 16:53:20 GMT";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
 
   @SuppressWarnings("unchecked")
@@ -73,6 +103,256 @@ public class FileControllerTest extends AbstractControllerTest {
     .andExpect(content().string(repeat("a", 101)));
   }
 
+  @Test
+  public void deliverRangeWithCorrectOffsets() throws Exception {
+    givenGridFSDBFileWithContent(DIGITS_WITH_200_CHARS);
+
+    performRpmGetWithRange("bytes=52-61").andExpect(status().isPartialContent())
+    .andExpect(header().string("Content-Range", "bytes 52-61/200"))
+    .andExpect(contentLengthIs(10))
+    .andExpect(content().string("2345678901"));
+  }
+
+  @Test
+  public void deliverSuffixRange() throws Exception {
+    givenGridFSDBFileWithContent(DIGITS_WITH_200_CHARS);
+
+    performRpmGetWithRange("bytes=-5").andExpect(status().isPartialContent())
+    .andExpect(header().string("Content-Range", "bytes 195-199/200"))
+    .andExpect(content().string("56789"));
+  }
+
+  @Test
+  public void deliverRangeUpToEndOfFileWhenEndIsBeyondFileSize() throws Exception {
+    givenGridFSDBFileWithContent(DIGITS_WITH_200_CHARS);
+
+    performRpmGetWithRange("bytes=198-500").andExpect(status().isPartialContent())
+    .andExpect(header().string("Content-Range", "bytes 198-199/200"))
+    .andExpect(content().string("89"));
+  }
+
+  @Test
+  public void deliverMultipleRangesAsMultipartByteranges() throws Exception {
+    givenGridFSDBFileWithContent(DIGITS_WITH_200_CHARS);
+
+    MvcResult result = performRpmGetWithRange("bytes=0-2, 15-16,-1").andExpect(status().isPartialContent())
+      .andReturn();
+
+    String contentType = result.getResponse().getContentType();
+    assertThat(contentType, startsWith("multipart/byteranges"));
+
+    String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+    String body = result.getResponse().getContentAsString();
+    assertThat(body, is(
+      "\r\n--" + boundary + "\r\nContent-Type: application/x-rpm\r\nContent-Range: bytes 0-2/200\r\n\r\n012" +
+      "\r\n--" + boundary + "\r\nContent-Type: application/x-rpm\r\nContent-Range: bytes 15-16/200\r\n\r\n56" +
+      "\r\n--" + boundary + "\r\nContent-Type: application/x-rpm\r\nContent-Range: bytes 199-199/200\r\n\r\n9" +
+      "\r\n--" + boundary + "--\r\n"));
+    assertThat(result.getResponse().getContentLength(), is(body.length()));
+  }
+
+  @Test
+  public void mergeOverlappingAndAdjacentRanges() throws Exception {
+    givenGridFSDBFileWithContent(DIGITS_WITH_200_CHARS);
+
+    performRpmGetWithRange("bytes=10-19,0-,0-,-190,5-9").andExpect(status().isPartialContent())
+    .andExpect(header().string("Content-Range", "bytes 0-199/200"))
+    .andExpect(contentLengthIs(200))
+    .andExpect(content().string(DIGITS_WITH_200_CHARS));
+  }
+
+  @Test
+  public void mergeRangesBeforeLimitingTheirNumber() throws Exception {
+    givenGridFSDBFileWithContent(DIGITS_WITH_200_CHARS);
+
+    performRpmGetWithRange("bytes=" + repeat("0-1,", 40) + "2-3").andExpect(status().isPartialContent())
+    .andExpect(header().string("Content-Range", "bytes 0-3/200"))
+    .andExpect(content().string("0123"));
+  }
+
+  @Test
+  public void deliver416WhenTooManyDistinctRanges() throws Exception {
+    givenGridFSDBFileWithContent(DIGITS_WITH_200_CHARS);
+
+    StringBuilder rangeHeader = new StringBuilder("bytes=0-0");
+    for (int i = 1; i <= ByteRanges.MAX_RANGES; i++) {
+      rangeHeader.append(',').append(2 * i).append('-').append(2 * i);
+    }
+    performRpmGetWithRange(rangeHeader.toString()).andExpect(badRangeStatus());
+  }
+
+  @Test
+  public void deliverSingleRangeWhenOtherRangesAreNotSatisfiable() throws Exception {
+    givenGridFSDBFileWithContent(DIGITS_WITH_200_CHARS);
+
+    performRpmGetWithRange("bytes=300-400,10-11").andExpect(status().isPartialContent())
+    .andExpect(header().string("Content-Range", "bytes 10-11/200"))
+    .andExpect(content().string("01"));
+  }
+
+  @Test
+  public void deliver416WithContentRangeWhenNoRangeIsSatisfiable() throws Exception {
+    givenGridFSDBFile();
+
+    performRpmGetWithRange("bytes=200-,-0").andExpect(badRangeStatus())
+    .andExpect(header().string("Content-Range", "bytes */200"));
+  }
+
+  @Test
+  public void deliverEtagAndLastModified() throws Exception {
+    givenGridFSDBFile();
+
+    performRpmGet().andExpect(status().isOk())
+    .andExpect(header().string("ETag", ETAG))
+    .andExpect(header().string("Last-Modified", UPLOAD_DATE_HEADER));
+  }
+
+  @Test
+  public void deliver304WhenEtagMatches() throws Exception {
+    givenGridFSDBFile();
+
+    mockMvc.perform(MockMvcRequestBuilders.get(RPM_URL).header("If-None-Match", "\"other\", " + ETAG))
+    .andExpect(status().isNotModified())
+    .andExpect(header().string("ETag", ETAG))
+    .andExpect(content().string(""));
+  }
+
+  @Test
+  public void deliverFileWhenEtagDoesNotMatch() throws Exception {
+    givenGridFSDBFile();
+
+    mockMvc.perform(MockMvcRequestBuilders.get(RPM_URL).header("If-None-Match", "\"other\""))
+    .andExpect(status().isOk())
+    .andExpect(content().string(CONTENT_WITH_200_CHARS));
+  }
+
+  @Test
+  public void deliver304WhenNotModifiedSince() throws Exception {
+    givenGridFSDBFile();
+
+    mockMvc.perform(MockMvcRequestBuilders.get(RPM_URL).header("If-Modified-Since", UPLOAD_DATE_HEADER))
+    .andExpect(status().isNotModified());
+  }
+
+  @Test
+  public void deliver304ForRangeRequestWhenEtagMatches() throws Exception {
+    givenGridFSDBFile();
+
+    mockMvc.perform(MockMvcRequestBuilders.get(RPM_URL).header("Range", "bytes=0-100").header("If-None-Match", ETAG))
+    .andExpect(status().isNotModified());
+  }
+
+  @Test
+  public void deliverRangeWhenIfRangeMatches() throws Exception {
+    givenGridFSDBFile();
+
+    mockMvc.perform(MockMvcRequestBuilders.get(RPM_URL).header("Range", "bytes=0-100").header("If-Range", ETAG))
+    .andExpect(status().isPartialContent())
+    .andExpect(contentLengthIs(101));
+  }
+
+  @Test
+  public void deliverWholeFileWhenIfRangeDoesNotMatch() throws Exception {
+    givenGridFSDBFile();
+
+    mockMvc.perform(MockMvcRequestBuilders.get(RPM_URL).header("Range", "bytes=0-100").header("If-Range", "\"other\""))
+    .andExpect(status().isOk())
+    .andExpect(contentLengthIs(200))
+    .andExpect(content().string(CONTENT_WITH_200_CHARS));
+  }
+
+  @Test
+  public void deliverChecksumNamedRepodataAsImmutable() throws Exception {
+    String path = REPO + "/repodata/primary-" + SHA256 + ".sqlite.bz2";
+    givenGridFSDBFile(path);
+
+    performSimpleGet("/repo/" + path).andExpect(status().isOk())
+    .andExpect(header().string("Cache-Control", "public, max-age=31536000, immutable"));
+  }
+
+  @Test
+  public void deliverRepoMdWithShortMaxAge() throws Exception {
+    String path = REPO + "/repodata/repomd.xml";
+    givenGridFSDBFile(path);
+
+    performSimpleGet("/repo/" + path).andExpect(status().isOk())
+    .andExpect(header().string("Cache-Control", "max-age=60"));
+  }
+
+  @Test
+  public void deliverHeadersWithoutReadingContentOnHead() throws Exception {
+    FileStorageItem storageItem = givenGridFSDBFile();
+
+    mockMvc.perform(MockMvcRequestBuilders.head(RPM_URL)).andExpect(status().isOk())
+    .andExpect(contentLengthIs(200))
+    .andExpect(content().contentType(APPLICATION_X_RPM))
+    .andExpect(header().string("ETag", ETAG))
+    .andExpect(header().string("Last-Modified", UPLOAD_DATE_HEADER))
+    .andExpect(header().string("Accept-Ranges", "bytes"))
+    .andExpect(content().string(""));
+
+    verify(storageItem, never()).getInputStream(anyLong());
+  }
+
+  @Test
+  public void handCachedFileToSendfileOfConnector() throws Exception {
+    File cacheFile = givenCachedFileWithContent(DIGITS_WITH_200_CHARS);
+
+    mockMvc.perform(MockMvcRequestBuilders.get(RPM_URL).header("Range", "bytes=52-61")
+      .requestAttr(Sendfile.SUPPORT_ATTRIBUTE, Boolean.TRUE))
+    .andExpect(status().isPartialContent())
+    .andExpect(header().string("Content-Range", "bytes 52-61/200"))
+    .andExpect(contentLengthIs(10))
+    .andExpect(content().string(""))
+    .andExpect(request().attribute(Sendfile.FILENAME_ATTRIBUTE, cacheFile.getCanonicalPath()))
+    .andExpect(request().attribute(Sendfile.START_ATTRIBUTE, 52L))
+    .andExpect(request().attribute(Sendfile.END_ATTRIBUTE, 62L));
+  }
+
+  @Test
+  public void writeCachedFileItselfWhenItHasBeenEvicted() throws Exception {
+    givenCachedFileWithContent(DIGITS_WITH_200_CHARS, false);
+
+    mockMvc.perform(MockMvcRequestBuilders.get(RPM_URL).header("Range", "bytes=52-61")
+      .requestAttr(Sendfile.SUPPORT_ATTRIBUTE, Boolean.TRUE))
+    .andExpect(status().isPartialContent())
+    .andExpect(content().string("2345678901"))
+    .andExpect(request().attribute(Sendfile.FILENAME_ATTRIBUTE, nullValue()));
+  }
+
+  @Test
+  public void writeCachedFileItselfWhenDownloadIsLimited() throws Exception {
+    givenCachedFileWithContent(DIGITS_WITH_200_CHARS);
+    HostnameResolver hostnameResolver = mock(HostnameResolver.class);
+    when(hostnameResolver.remoteHost(any(HttpServletRequest.class))).thenReturn(new HostName("host-a"));
+    FileController controller = new FileController(storageService, fileStorageService);
+    controller.setDeliveryGovernor(new DeliveryGovernor(hostnameResolver, 0, 1, 0, 0, 0, 5));
+    MockMvc governedMockMvc = standaloneSetup(controller).build();
+
+    governedMockMvc.perform(MockMvcRequestBuilders.get(RPM_URL).header("Range", "bytes=52-61")
+      .requestAttr(Sendfile.SUPPORT_ATTRIBUTE, Boolean.TRUE))
+    .andExpect(status().isPartialContent())
+    .andExpect(content().string("2345678901"))
+    .andExpect(request().attribute(Sendfile.FILENAME_ATTRIBUTE, nullValue()));
+  }
+
+  @Test
+  public void deliverCachedFileWhenConnectorHasNoSendfile() throws Exception {
+    givenCachedFileWithContent(DIGITS_WITH_200_CHARS);
+
+    performRpmGetWithRange("bytes=52-61").andExpect(status().isPartialContent())
+    .andExpect(content().string("2345678901"))
+    .andExpect(request().attribute(Sendfile.FILENAME_ATTRIBUTE, nullValue()));
+  }
+
+  @Test
+  public void deliver304OnHeadWhenEtagMatches() throws Exception {
+    givenGridFSDBFile();
+
+    mockMvc.perform(MockMvcRequestBuilders.head(RPM_URL).header("If-None-Match", ETAG))
+    .andExpect(status().isNotModified());
+  }
+
   @Test
   public void deliver416WhenByteRangeInvalidChars() throws Exception {
     givenGridFSDBFile();
@@ -117,13 +397,43 @@ public class FileControllerTest extends AbstractControllerTest {
     mockMvc.perform(DELETE_REQUEST).andExpect(status().isNoContent());
   }
 
-  private void givenGridFSDBFile() throws IOException {
-    FileStorageItem fileStorageItem = storageItem(CONTENT_WITH_200_CHARS);
+  private FileStorageItem givenGridFSDBFile() throws IOException {
+    return givenGridFSDBFile(REPO + "/" + ARCH + "/" + FILENAME + ".rpm");
+  }
+
+  private FileStorageItem givenGridFSDBFileWithContent(String content) throws IOException {
+    return givenGridFSDBFile(REPO + "/" + ARCH + "/" + FILENAME + ".rpm", content);
+  }
+
+  private FileStorageItem givenGridFSDBFile(String path) throws IOException {
+    return givenGridFSDBFile(path, CONTENT_WITH_200_CHARS);
+  }
+
+  private FileStorageItem givenGridFSDBFile(String path, String content) throws IOException {
+    FileStorageItem fileStorageItem = storageItem(content);
+    when(fileStorageItem.getFilename()).thenReturn(path);
 
     when(fileStorageService.getFileBy(any(FileDescriptor.class))).thenReturn(fileStorageItem);
     when(fileStorageService.getResource(any(FileDescriptor.class))).thenCallRealMethod();
     when(fileStorageService.getResource(any(FileDescriptor.class), anyLong())).thenCallRealMethod();
     when(fileStorageService.getResource(any(FileDescriptor.class), anyLong(), anyLong())).thenCallRealMethod();
+    return fileStorageItem;
+  }
+
+  private File givenCachedFileWithContent(String content) throws IOException {
+    return givenCachedFileWithContent(content, true);
+  }
+
+  private File givenCachedFileWithContent(String content, boolean stillCached) throws IOException {
+    File cacheFile = temporaryFolder.newFile(SHA256);
+    writeStringToFile(cacheFile, content);
+
+    LocalDiskCache cache = mock(LocalDiskCache.class);
+    when(cache.pin(SHA256)).thenReturn(stillCached);
+    FileStorageItem storageItem = givenGridFSDBFileWithContent(content);
+    when(fileStorageService.getFileBy(any(FileDescriptor.class))).thenReturn(
+      new CachedFileStorageItem(storageItem, cacheFile, cache));
+    return cacheFile;
   }
 
   private ResultActions performRpmGet() throws Exception {
@@ -139,15 +449,27 @@ public class FileControllerTest extends AbstractControllerTest {
     return mockMvc.perform(MockMvcRequestBuilders.get(RPM_URL).header("Range", rangeHeader));
   }
 
-  private String toString(ResponseEntity<InputStreamResource> response) throws IOException {
+  private String toString(ResponseEntity<Resource> response) throws IOException {
     return IOUtils.toString(response.getBody().getInputStream());
   }
 
   private FileStorageItem storageItem(String content) {
     FileStorageItem storageItem = mock(FileStorageItem.class);
     when(storageItem.getInputStream()).thenReturn(new ByteArrayInputStream(content.getBytes()));
+    when(storageItem.getInputStream(anyLong())).thenAnswer(invocation -> {
+      ByteArrayInputStream inputStream = new ByteArrayInputStream(content.getBytes());
+      inputStream.skip((Long) invocation.getArguments()[0]);
+      return inputStream;
+    });
+    when(storageItem.getInputStream(anyLong(), anyLong())).thenAnswer(invocation -> {
+      ByteArrayInputStream inputStream = new ByteArrayInputStream(content.getBytes());
+      inputStream.skip((Long) invocation.getArguments()[0]);
+      return new BoundedInputStream(inputStream, (Long) invocation.getArguments()[1]);
+    });
     when(storageItem.getSize()).thenReturn((long) content.length());
     when(storageItem.getContentType()).thenReturn("application/x-rpm");
+    when(storageItem.getChecksumSha256()).thenReturn(SHA256);
+    when(storageItem.getUploadDate()).thenReturn(new Date(UPLOAD_DATE));
     return storageItem;
   }
 }
@@ -0,0 +1,151 @@
+package de.is24.infrastructure.gridfs.http.web.controller;
+
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import de.is24.infrastructure.gridfs.http.storage.FileStorageService;
+import de.is24.infrastructure.gridfs.http.web.AsyncFileDelivery;
+import de.is24.infrastructure.gridfs.http.web.boot.AbstractContainerAndMongoDBStarter;
+import de.is24.infrastructure.gridfs.http.web.boot.LocalOnly;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.uniqueRepoName;
+import static javax.servlet.http.HttpServletResponse.SC_OK;
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.apache.http.util.EntityUtils.consume;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+
+/**
+ * Opens more stalled downloads than the connector has threads and compares how many of them are served
+ * concurrently with synchronous and with asynchronous delivery.
+ */
+@LocalOnly
+public class FileDeliveryLoadIT extends AbstractContainerAndMongoDBStarter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileDeliveryLoadIT.class);
+
+  private static final int FILE_SIZE = 16 * 1024 * 1024;
+  private static final int DOWNLOADS = 300;
+  private static final int DELIVERY_THREADS = 400;
+  private static final long STATUS_LINE_TIMEOUT = 10000;
+
+  @Autowired
+  private FileStorageService fileStorageService;
+
+  @Autowired
+  private AsyncFileDelivery asyncFileDelivery;
+
+  private final List<Socket> downloads = new ArrayList<>();
+  private String path;
+
+  @Before
+  public void setUp() throws Exception {
+    byte[] content = new byte[FILE_SIZE];
+    new Random(42).nextBytes(content);
+
+    String repo = uniqueRepoName();
+    fileStorageService.storeFile(new ByteArrayInputStream(content), new FileDescriptor(repo, "noarch", "big.rpm"));
+    path = "/repo/" + repo + "/noarch/big.rpm";
+  }
+
+  @After
+  public void tearDown() {
+    closeDownloads();
+    asyncFileDelivery.setEnabled(false);
+  }
+
+  @Test
+  public void asyncDeliveryServesMoreConcurrentDownloadsThanSyncDelivery() throws Exception {
+    asyncFileDelivery.setEnabled(false);
+    int syncDownloads = startStalledDownloads();
+    boolean syncStatusAvailable = isStatusPageAvailable();
+    closeDownloads();
+
+    asyncFileDelivery.setThreads(DELIVERY_THREADS);
+    asyncFileDelivery.setEnabled(true);
+    int asyncDownloads = startStalledDownloads();
+    boolean asyncStatusAvailable = isStatusPageAvailable();
+
+    LOGGER.info("concurrent downloads: sync {} (status page available: {}), async {} (status page available: {})",
+      syncDownloads, syncStatusAvailable, asyncDownloads, asyncStatusAvailable);
+    assertThat(asyncDownloads, is(DOWNLOADS));
+    assertThat(asyncDownloads, greaterThan(syncDownloads));
+    assertThat(asyncStatusAvailable, is(true));
+  }
+
+  private int startStalledDownloads() throws IOException {
+    for (int i = 0; i < DOWNLOADS; i++) {
+      Socket socket = new Socket(deploymentURL.getHost(), deploymentURL.getPort());
+      socket.setReceiveBufferSize(4096);
+      OutputStream out = socket.getOutputStream();
+      out.write(("GET " + path + " HTTP/1.1\r\nHost: " + deploymentURL.getHost() + "\r\n\r\n").getBytes());
+      out.flush();
+      downloads.add(socket);
+    }
+
+    long deadline = System.currentTimeMillis() + STATUS_LINE_TIMEOUT;
+    int served = 0;
+    for (Socket socket : downloads) {
+      if (readsStatusLine(socket, deadline)) {
+        served++;
+      }
+    }
+    return served;
+  }
+
+  private boolean readsStatusLine(Socket socket, long deadline) throws IOException {
+    long remaining = deadline - System.currentTimeMillis();
+    if (remaining <= 0) {
+      return false;
+    }
+
+    socket.setSoTimeout((int) remaining);
+    InputStream in = socket.getInputStream();
+    try {
+      int b;
+      while (((b = in.read()) >= 0) && (b != '\n')) {
+      }
+      return b == '\n';
+    } catch (SocketTimeoutException e) {
+      return false;
+    }
+  }
+
+  private boolean isStatusPageAvailable() {
+    try {
+      HttpGet get = new HttpGet(deploymentURL + "/status");
+      get.setConfig(RequestConfig.custom().setSocketTimeout((int) STATUS_LINE_TIMEOUT).build());
+
+      HttpResponse response = httpClient.execute(get);
+      consume(response.getEntity());
+      return response.getStatusLine().getStatusCode() == SC_OK;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private void closeDownloads() {
+    for (Socket socket : downloads) {
+      closeQuietly(socket);
+    }
+    downloads.clear();
+  }
+}
@@ -22,15 +22,19 @@ import java.io.IOException;
 import static de.is24.infrastructure.gridfs.http.domain.RepoEntry.DEFAULT_MAX_DAYS_RPMS;
 import static de.is24.infrastructure.gridfs.http.domain.RepoEntry.DEFAULT_MAX_KEEP_RPMS;
 import static de.is24.infrastructure.gridfs.http.domain.RepoType.SCHEDULED;
+import static de.is24.infrastructure.gridfs.http.domain.RepodataCompression.ZSTD;
 import static de.is24.infrastructure.gridfs.http.mongo.IntegrationTestContext.mongoTemplate;
 import static de.is24.infrastructure.gridfs.http.utils.RepositoryUtils.uniqueRepoName;
 import static de.is24.infrastructure.gridfs.http.utils.RpmUtils.RPM_FILE;
 import static de.is24.infrastructure.gridfs.http.web.RepoTestUtils.uploadRpm;
 import static java.lang.Thread.sleep;
+import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 import static javax.servlet.http.HttpServletResponse.SC_CREATED;
 import static javax.servlet.http.HttpServletResponse.SC_NOT_FOUND;
 import static javax.servlet.http.HttpServletResponse.SC_NO_CONTENT;
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
 import static org.apache.commons.collections.CollectionUtils.isEmpty;
+import static org.apache.commons.io.FileUtils.readFileToByteArray;
 import static org.apache.http.entity.ContentType.APPLICATION_FORM_URLENCODED;
 import static org.apache.http.entity.ContentType.APPLICATION_JSON;
 import static org.apache.http.entity.ContentType.MULTIPART_FORM_DATA;
@@ -39,6 +43,7 @@ import static org.apache.http.util.EntityUtils.consume;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertFalse;
 
 
@@ -76,6 +81,31 @@ public class RepositoryControllerIT extends AbstractContainerAndMongoDBStarter {
     thenMaxKeepRpmsHasDefaultValue(reponame);
   }
 
+  @Test
+  public void hasStatusCreatedAfterRawPutOfRpm() throws Exception {
+    String reponame = uniqueRepoName();
+    HttpPut put = new HttpPut(deploymentURL + "/repo/" + reponame + "/noarch/test-artifact-1.2-1.noarch.rpm");
+    put.setEntity(new FileEntity(RPM_FILE, ContentType.create("application/x-rpm")));
+    put.setHeader("X-Checksum-Sha256", sha256Hex(readFileToByteArray(RPM_FILE)));
+
+    HttpResponse response = httpClient.execute(put);
+    consume(response.getEntity());
+
+    assertThat(response.getStatusLine().getStatusCode(), is(SC_CREATED));
+  }
+
+  @Test
+  public void hasStatusBadRequestAfterRawPostOfRpmWithWrongChecksum() throws Exception {
+    HttpPost post = new HttpPost(deploymentURL + "/repo/" + uniqueRepoName());
+    post.setEntity(new FileEntity(RPM_FILE, ContentType.create("application/x-rpm")));
+    post.setHeader("X-Checksum-Sha256", sha256Hex("something else"));
+
+    HttpResponse response = httpClient.execute(post);
+    consume(response.getEntity());
+
+    assertThat(response.getStatusLine().getStatusCode(), is(SC_BAD_REQUEST));
+  }
+
   @Test
   public void deleteRepository() throws Exception {
     HttpDelete delete = new HttpDelete(repoUrl);
@@ -111,6 +141,22 @@ public class RepositoryControllerIT extends AbstractContainerAndMongoDBStarter {
     assertThat(repoEntry.getMaxDaysRpms(), is(3));
   }
 
+  @Test
+  public void modifyRepodataCompression() throws Exception {
+    RepoEntry repoEntry = updateRepoEntry("/repodataCompression", "\"ZSTD\"");
+    assertThat(repoEntry, notNullValue());
+    assertThat(repoEntry.getRepodataCompression(), is(ZSTD));
+  }
+
+  @Test
+  public void resetRepodataCompressionWithEmptyBody() throws Exception {
+    updateRepoEntry("/repodataCompression", "\"ZSTD\"");
+
+    RepoEntry repoEntry = updateRepoEntry("/repodataCompression", "");
+    assertThat(repoEntry, notNullValue());
+    assertThat(repoEntry.getRepodataCompression(), nullValue());
+  }
+
   @Test
   public void createStaticRepo() throws Exception {
     String reponame = uniqueRepoName();
@@ -1,16 +1,26 @@
 package de.is24.infrastructure.gridfs.http.web.controller;
 
 import org.junit.Test;
+import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
+import java.io.InputStream;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 
 public class RepositoryControllerTest extends AbstractControllerTest {
   private static final String REPONAME = "someRepo-18.0.346357";
+  private static final byte[] RPM_CONTENT = "rpm".getBytes();
+  private static final MediaType APPLICATION_X_RPM = MediaType.parseMediaType("application/x-rpm");
 
   private static final MockHttpServletRequestBuilder MOCK_DELETE_REQUEST = MockMvcRequestBuilders.delete("/repo/" +
     REPONAME);
@@ -29,4 +39,24 @@ public class RepositoryControllerTest extends AbstractControllerTest {
 
     verifyZeroInteractions(storageService);
   }
+
+  @Test
+  public void putStreamsRequestBodyWithExpectedPathAndChecksum() throws Exception {
+    mockMvc.perform(put("/repo/" + REPONAME + "/noarch/a-1.0-1.noarch.rpm").content(RPM_CONTENT)
+      .header("Content-Length", RPM_CONTENT.length)
+      .header("X-Checksum-Sha256", "abc123"))
+    .andExpect(status().isCreated());
+
+    verify(storageService).storeRpm(eq(REPONAME), any(InputStream.class),
+      eq(REPONAME + "/noarch/a-1.0-1.noarch.rpm"), eq((long) RPM_CONTENT.length), eq("abc123"));
+  }
+
+  @Test
+  public void postWithRpmContentTypeStreamsRequestBody() throws Exception {
+    mockMvc.perform(post("/repo/" + REPONAME).contentType(APPLICATION_X_RPM).content(RPM_CONTENT))
+    .andExpect(status().isCreated());
+
+    verify(storageService).storeRpm(eq(REPONAME), any(InputStream.class), (String) isNull(), eq(-1L),
+      (String) isNull());
+  }
 }
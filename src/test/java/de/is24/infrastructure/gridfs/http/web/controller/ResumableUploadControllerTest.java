@@ -0,0 +1,108 @@
+package de.is24.infrastructure.gridfs.http.web.controller;
+
+import de.is24.infrastructure.gridfs.http.gridfs.UploadSession;
+import de.is24.infrastructure.gridfs.http.storage.FileDescriptor;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.io.InputStream;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.head;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.patch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+
+public class ResumableUploadControllerTest extends AbstractControllerTest {
+  private static final String REPONAME = "resumable-repo";
+  private static final ObjectId SESSION_ID = new ObjectId();
+  private static final String SESSION_URL = "/repo/" + REPONAME + "/uploads/" + SESSION_ID;
+  private static final byte[] CONTENT = "0123456789".getBytes();
+
+  @Test
+  public void createSessionWithLocation() throws Exception {
+    when(resumableUploadService.createSession(REPONAME, 2048)).thenReturn(session(0, 2048));
+
+    mockMvc.perform(post("/repo/" + REPONAME + "/uploads").header("Upload-Length", "2048"))
+    .andExpect(status().isCreated())
+    .andExpect(header().string("Location", SESSION_URL))
+    .andExpect(header().string("Upload-Offset", "0"));
+  }
+
+  @Test
+  public void headAnswersCommittedOffset() throws Exception {
+    when(resumableUploadService.getSession(REPONAME, SESSION_ID.toString())).thenReturn(session(1024, 2048));
+
+    mockMvc.perform(head(SESSION_URL))
+    .andExpect(status().isOk())
+    .andExpect(header().string("Upload-Offset", "1024"))
+    .andExpect(header().string("Upload-Length", "2048"));
+  }
+
+  @Test
+  public void appendContentRange() throws Exception {
+    when(resumableUploadService.append(eq(REPONAME), eq(SESSION_ID.toString()), eq(100L), eq(2048L),
+        any(InputStream.class))).thenReturn(110L);
+
+    mockMvc.perform(patch(SESSION_URL).header("Content-Range", "bytes 100-109/2048").content(CONTENT))
+    .andExpect(status().isNoContent())
+    .andExpect(header().string("Upload-Offset", "110"));
+  }
+
+  @Test
+  public void appendWithUnknownLength() throws Exception {
+    when(resumableUploadService.append(eq(REPONAME), eq(SESSION_ID.toString()), eq(0L), eq(-1L),
+        any(InputStream.class))).thenReturn(10L);
+
+    mockMvc.perform(patch(SESSION_URL).header("Content-Range", "bytes 0-9/*").content(CONTENT))
+    .andExpect(status().isNoContent())
+    .andExpect(header().string("Upload-Offset", "10"));
+  }
+
+  @Test
+  public void appendWithoutContentRangeIsBadRequest() throws Exception {
+    mockMvc.perform(patch(SESSION_URL).content(CONTENT)).andExpect(status().isBadRequest());
+
+    verifyZeroInteractions(resumableUploadService);
+  }
+
+  @Test
+  public void appendBeyondLengthIsBadRequest() throws Exception {
+    mockMvc.perform(patch(SESSION_URL).header("Content-Range", "bytes 2040-2049/2048").content(CONTENT))
+    .andExpect(status().isBadRequest());
+
+    verify(resumableUploadService, never()).append(anyString(), anyString(), anyLong(),
+      anyLong(), any(InputStream.class));
+  }
+
+  @Test
+  public void appendWithOverflowingContentRangeIsBadRequest() throws Exception {
+    mockMvc.perform(patch(SESSION_URL).header("Content-Range", "bytes 0-99999999999999999999/*").content(CONTENT))
+    .andExpect(status().isBadRequest());
+
+    verifyZeroInteractions(resumableUploadService);
+  }
+
+  @Test
+  public void finishWithLocationOfRpm() throws Exception {
+    when(resumableUploadService.finish(REPONAME, SESSION_ID.toString(), "abc")).thenReturn(
+      new FileDescriptor(REPONAME, "noarch", "valid.noarch.rpm"));
+
+    mockMvc.perform(post(SESSION_URL).header("X-Checksum-Sha256", "abc"))
+    .andExpect(status().isCreated())
+    .andExpect(header().string("Location", "/repo/" + REPONAME + "/noarch/valid.noarch.rpm"));
+  }
+
+  private static UploadSession session(long offset, long length) {
+    return new UploadSession(SESSION_ID, REPONAME, offset, length, 1024, false);
+  }
+}
@@ -1,6 +1,7 @@
 package de.is24.infrastructure.gridfs.http.web.exception;
 
 import de.is24.infrastructure.gridfs.http.exception.BadRequestException;
+import de.is24.infrastructure.gridfs.http.exception.IngestRejectedException;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.web.bind.annotation.ResponseStatus;
@@ -16,6 +17,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.http.HttpStatus.BAD_REQUEST;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
 
 public class MessageAwareResponseStatusExceptionResolverTest {
   private MessageAwareResponseStatusExceptionResolver resolver;
@@ -60,4 +62,13 @@ public class MessageAwareResponseStatusExceptionResolverTest {
 
     verify(httpServletResponse).sendError(anyInt(), eq(reason));
   }
+
+  @Test
+  public void rendersRejectedIngestWithRetryAfter() throws Exception {
+    resolver.doResolveException(null, httpServletResponse, null,
+      new IngestRejectedException(TOO_MANY_REQUESTS, 7, "Too many uploads."));
+
+    verify(httpServletResponse).setHeader("Retry-After", "7");
+    verify(httpServletResponse).sendError(429, "Too many uploads.");
+  }
 }